@@ -74,6 +74,10 @@ public enum ErrorType {
      * The scientific name has been misapplied to a taxon concept in the past.  The matched concept does NOT exist as an accepted concept.
      */
     MISAPPLIED("misappliedName", "The scientific name has been misapplied to a taxon concept in the past.  The matched concept does NOT exist as an accepted concept."),
+    /**
+     * The match was stopped because it used all of its time or work budget.  The result is the best that was found before the budget ran out.
+     */
+    BUDGET_EXCEEDED("budgetExceeded", "The match was stopped because it used all of its time or work budget. The result is the best that was found before the budget ran out."),
     /**
      * No issue was detected
      */
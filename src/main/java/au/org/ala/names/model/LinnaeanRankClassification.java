@@ -56,7 +56,7 @@ public class LinnaeanRankClassification {
         this.phylum = cl.phylum;
         this.pid = cl.pid;
         this.klass = cl.klass;
-        this.kid = cl.cid;
+        this.cid = cl.cid;
         this.order = cl.order;
         this.oid = cl.oid;
         this.family = cl.family;
@@ -443,6 +443,18 @@ public class LinnaeanRankClassification {
      * @return
      */
     public String getLuceneSearchString(boolean optional) {
+        return getLuceneSearchString(optional, true);
+    }
+
+    /**
+     * Returns the additional string that needs to be included in a search
+     *
+     * @param optional      Indicates whether the the terms should be optional
+     * @param includeAuthor Indicates whether the authorship should be included. It is not needed when the authors
+     *                      are compared after the search
+     * @return
+     */
+    public String getLuceneSearchString(boolean optional, boolean includeAuthor) {
         String prefix = optional ? " " : " +";
         StringBuilder sb = new StringBuilder();
         if (StringUtils.isNotEmpty(kingdom))
@@ -460,7 +472,7 @@ public class LinnaeanRankClassification {
         if (StringUtils.isNotEmpty(species))
             sb.append(prefix).append(RankType.SPECIES.getRank()).append(":\"").append(species).append("\"");
         //authorship is always optional due to inconsistencies in the name format etc...
-        if (authorship != null)
+        if (includeAuthor && authorship != null)
             sb.append(" ").append(NameIndexField.AUTHOR.toString()).append(":\"").append(authorship).append("\"~");
         return sb.toString();
     }
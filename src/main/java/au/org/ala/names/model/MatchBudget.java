@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2014 Atlas of Living Australia
+ * All Rights Reserved.
+ *
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ */
+
+package au.org.ala.names.model;
+
+/**
+ * Limits the work that a single name match can do.  Pathological names (long phrase names, names that try every
+ * rank of a recursive match and resolve homonyms at each) can take much longer than a typical match.  When the
+ * budget runs out the match stops and returns the best result found so far, or none, with an
+ * {@link ErrorType#BUDGET_EXCEEDED} error.
+ * <p/>
+ * A limit of 0 means unlimited.  A budget can be shared between threads, each match keeps its own {@link Usage}.
+ */
+public class MatchBudget {
+    private final long maxTime;
+    private final int maxQueries;
+    private final int maxStages;
+
+    /**
+     * @param maxTime    The maximum wall time for the match in milliseconds
+     * @param maxQueries The maximum number of index queries
+     * @param maxStages  The maximum number of match stages that can be attempted
+     */
+    public MatchBudget(long maxTime, int maxQueries, int maxStages) {
+        this.maxTime = Math.max(0, maxTime);
+        this.maxQueries = Math.max(0, maxQueries);
+        this.maxStages = Math.max(0, maxStages);
+    }
+
+    public long getMaxTime() {
+        return maxTime;
+    }
+
+    public int getMaxQueries() {
+        return maxQueries;
+    }
+
+    public int getMaxStages() {
+        return maxStages;
+    }
+
+    /**
+     * @return The usage for a new match, the time starts now
+     */
+    public Usage start() {
+        return new Usage(this);
+    }
+
+    @Override
+    public String toString() {
+        return "MatchBudget(time: " + maxTime + "ms queries: " + maxQueries + " stages: " + maxStages + ")";
+    }
+
+    /**
+     * The part of a budget that a single match has used.  A usage is only used by the thread performing the match.
+     */
+    public static class Usage {
+        private final MatchBudget budget;
+        private final long start = System.nanoTime();
+        private int queries;
+        private int stages;
+        private boolean exceeded;
+
+        private Usage(MatchBudget budget) {
+            this.budget = budget;
+        }
+
+        /**
+         * Record the start of a stage.  Exceeding the stages stops the next query.
+         */
+        public void stage() {
+            stages++;
+            if (budget.maxStages > 0 && stages > budget.maxStages)
+                exceeded = true;
+        }
+
+        /**
+         * Record a query that is about to be issued.
+         *
+         * @return false when the budget has been exceeded and the query should not be issued
+         */
+        public boolean query() {
+            if (isExceeded())
+                return false;
+            queries++;
+            if (budget.maxQueries > 0 && queries > budget.maxQueries)
+                exceeded = true;
+            return !exceeded;
+        }
+
+        /**
+         * @return true when any of the limits has been exceeded
+         */
+        public boolean isExceeded() {
+            if (!exceeded && budget.maxTime > 0 && getRemainingTime() <= 0)
+                exceeded = true;
+            return exceeded;
+        }
+
+        /**
+         * @return The milliseconds left before the time limit, or Long.MAX_VALUE when there is no time limit
+         */
+        public long getRemainingTime() {
+            if (budget.maxTime == 0)
+                return Long.MAX_VALUE;
+            return budget.maxTime - (System.nanoTime() - start) / 1000000;
+        }
+
+        public int getQueries() {
+            return queries;
+        }
+
+        public int getStages() {
+            return stages;
+        }
+
+        public MatchBudget getBudget() {
+            return budget;
+        }
+
+        @Override
+        public String toString() {
+            return "used " + (System.nanoTime() - start) / 1000000 + "ms, " + queries + " queries and " + stages
+                    + " stages of " + budget;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2014 Atlas of Living Australia
+ * All Rights Reserved.
+ *
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ */
+
+package au.org.ala.names.model;
+
+/**
+ * The stages of a name match that are recorded in a {@link MatchTrace}.
+ */
+public enum MatchStage {
+    /** Search for the supplied name */
+    EXACT("exact"),
+    /** Search for a phrase name */
+    PHRASE("phrase"),
+    /** Search for the canonical form of the parsed name */
+    CANONICAL("canonical"),
+    /** Search for an unmatched cultivar as a phrase name */
+    CULTIVAR_PHRASE("cultivarPhrase"),
+    /** Search for the sounds like expression of the name */
+    SOUNDEX("soundex"),
+    /** Search for the names within a small edit distance of the name */
+    EDIT_DISTANCE("editDistance"),
+    /** Resolution of a genus or species homonym, including the IRMNG lookups */
+    HOMONYM("homonym"),
+    /** The misapplied and species split checks, which look up the accepted concepts */
+    SYNONYM_CHECK("synonymCheck"),
+    /** Matching to the higher classification after the name failed to match */
+    RECURSIVE("recursive"),
+    /** Looking up the GUIDs for the classification of the result */
+    GUID("guid");
+
+    private String title;
+
+    MatchStage(String title) {
+        this.title = title;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    @Override
+    public String toString() {
+        return title;
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2014 Atlas of Living Australia
+ * All Rights Reserved.
+ *
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ */
+
+package au.org.ala.names.model;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Aggregate counters for the traced name matches.
+ * <p/>
+ * Only matches that are traced (see {@link au.org.ala.names.search.ALANameSearcher#setTraceInterval(int)}) are
+ * counted so the totals represent a sample of the matches.
+ */
+public class MatchStatistics {
+    private final AtomicLong matches = new AtomicLong();
+    private final AtomicLong elapsed = new AtomicLong();
+    private final AtomicLongArray stageCounts = new AtomicLongArray(MatchStage.values().length);
+    private final AtomicLongArray stageElapsed = new AtomicLongArray(MatchStage.values().length);
+    private final AtomicLongArray stageQueries = new AtomicLongArray(MatchStage.values().length);
+    private final AtomicLongArray stageHits = new AtomicLongArray(MatchStage.values().length);
+    private final AtomicLongArray stageExceptions = new AtomicLongArray(MatchStage.values().length);
+
+    /**
+     * Add a finished trace to the counters.
+     *
+     * @param trace The trace
+     */
+    public void record(MatchTrace trace) {
+        matches.incrementAndGet();
+        elapsed.addAndGet(trace.getElapsed());
+        for (MatchTrace.Stage stage : trace.getStages()) {
+            int i = stage.getStage().ordinal();
+            stageCounts.incrementAndGet(i);
+            stageElapsed.addAndGet(i, stage.getElapsed());
+            stageQueries.addAndGet(i, stage.getQueries().size());
+            stageHits.addAndGet(i, stage.getHits());
+            if (stage.getException() != null)
+                stageExceptions.incrementAndGet(i);
+        }
+    }
+
+    /**
+     * @return The number of traced matches
+     */
+    public long getMatches() {
+        return matches.get();
+    }
+
+    /**
+     * @return The total nanoseconds spent on the traced matches
+     */
+    public long getElapsed() {
+        return elapsed.get();
+    }
+
+    /**
+     * @return The number of times the stage was attempted
+     */
+    public long getCount(MatchStage stage) {
+        return stageCounts.get(stage.ordinal());
+    }
+
+    /**
+     * @return The total nanoseconds spent in the stage
+     */
+    public long getElapsed(MatchStage stage) {
+        return stageElapsed.get(stage.ordinal());
+    }
+
+    /**
+     * @return The number of index queries issued by the stage
+     */
+    public long getQueries(MatchStage stage) {
+        return stageQueries.get(stage.ordinal());
+    }
+
+    /**
+     * @return The number of results produced by the stage
+     */
+    public long getHits(MatchStage stage) {
+        return stageHits.get(stage.ordinal());
+    }
+
+    /**
+     * @return The number of times the stage ended with an exception
+     */
+    public long getExceptions(MatchStage stage) {
+        return stageExceptions.get(stage.ordinal());
+    }
+
+    /**
+     * Reset all the counters.
+     */
+    public void reset() {
+        matches.set(0);
+        elapsed.set(0);
+        for (int i = 0; i < stageCounts.length(); i++) {
+            stageCounts.set(i, 0);
+            stageElapsed.set(i, 0);
+            stageQueries.set(i, 0);
+            stageHits.set(i, 0);
+            stageExceptions.set(i, 0);
+        }
+    }
+
+    /**
+     * @return The counters as a map suitable for reporting
+     */
+    public Map<String, Long> toMap() {
+        Map<String, Long> map = new LinkedHashMap<String, Long>();
+        map.put("matches", getMatches());
+        map.put("elapsed", getElapsed());
+        for (MatchStage stage : MatchStage.values()) {
+            map.put(stage + ".count", getCount(stage));
+            map.put(stage + ".elapsed", getElapsed(stage));
+            map.put(stage + ".queries", getQueries(stage));
+            map.put(stage + ".hits", getHits(stage));
+            map.put(stage + ".exceptions", getExceptions(stage));
+        }
+        return map;
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2014 Atlas of Living Australia
+ * All Rights Reserved.
+ *
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ */
+
+package au.org.ala.names.model;
+
+import au.org.ala.names.search.SearchResultException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A record of the stages that were attempted during a single name match.
+ * <p/>
+ * Stages are listed in the order that they started.  A stage may contain other stages, eg a recursive match
+ * contains the exact matches on the higher taxa, in which case the elapsed time of the outer stage includes
+ * the inner stages.
+ * <p/>
+ * A trace is only used by the thread performing the match.
+ */
+public class MatchTrace {
+    private final List<Stage> stages = new ArrayList<Stage>();
+    private final List<Stage> open = new ArrayList<Stage>();
+    private final long start = System.nanoTime();
+    private long elapsed = -1;
+    private SearchResultException exception;
+
+    /**
+     * Start a new stage nested within any stage that is currently open.
+     *
+     * @param stage The stage that is starting
+     * @return The stage record, to be supplied to {@link #end(Stage, int)}
+     */
+    public Stage start(MatchStage stage) {
+        Stage s = new Stage(stage, open.size());
+        stages.add(s);
+        open.add(s);
+        return s;
+    }
+
+    /**
+     * End the stage along with any stages nested in it that were not ended.
+     *
+     * @param stage The stage record
+     * @param hits  The number of results the stage produced
+     */
+    public void end(Stage stage, int hits) {
+        int i = open.lastIndexOf(stage);
+        if (i < 0)
+            return;
+        stage.hits = hits;
+        unwind(i);
+    }
+
+    /**
+     * Record a Lucene query issued by the innermost open stage.
+     *
+     * @param query The query
+     * @param hits  The number of documents returned
+     */
+    public void query(String query, int hits) {
+        if (!open.isEmpty()) {
+            Stage s = open.get(open.size() - 1);
+            s.queries.add(query);
+            s.queryHits += hits;
+        }
+    }
+
+    /**
+     * @return The number of stages currently open
+     */
+    public int depth() {
+        return open.size();
+    }
+
+    /**
+     * Ends every stage opened after the supplied depth.  The innermost stage is recorded as the one that
+     * raised the exception.
+     *
+     * @param depth The depth to unwind to
+     * @param e     The exception that ended the stages
+     */
+    public void fail(int depth, SearchResultException e) {
+        if (open.size() > depth)
+            open.get(open.size() - 1).exception = e;
+        unwind(depth);
+        exception = e;
+    }
+
+    private void unwind(int depth) {
+        long now = System.nanoTime();
+        while (open.size() > depth) {
+            Stage s = open.remove(open.size() - 1);
+            s.elapsed = now - s.start;
+        }
+    }
+
+    /**
+     * Ends the trace and any stages that are still open.
+     */
+    public void finish() {
+        unwind(0);
+        elapsed = System.nanoTime() - start;
+    }
+
+    /**
+     * @return The stages in the order that they were started
+     */
+    public List<Stage> getStages() {
+        return Collections.unmodifiableList(stages);
+    }
+
+    /**
+     * @return The total time for the match in nanoseconds or -1 when the trace has not finished
+     */
+    public long getElapsed() {
+        return elapsed;
+    }
+
+    /**
+     * @return The last exception that decided the outcome of a stage
+     */
+    public SearchResultException getException() {
+        return exception;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("Trace ").append(elapsed).append("ns");
+        for (Stage s : stages) {
+            sb.append("\n");
+            for (int i = 0; i < s.depth; i++)
+                sb.append("  ");
+            sb.append(s);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * A single stage of the match.
+     */
+    public static class Stage {
+        private final MatchStage stage;
+        private final int depth;
+        private final long start = System.nanoTime();
+        private long elapsed = -1;
+        private int hits;
+        private int queryHits;
+        private final List<String> queries = new ArrayList<String>(2);
+        private SearchResultException exception;
+
+        Stage(MatchStage stage, int depth) {
+            this.stage = stage;
+            this.depth = depth;
+        }
+
+        public MatchStage getStage() {
+            return stage;
+        }
+
+        /**
+         * @return The number of stages this stage is nested within
+         */
+        public int getDepth() {
+            return depth;
+        }
+
+        /**
+         * @return The elapsed time in nanoseconds
+         */
+        public long getElapsed() {
+            return elapsed;
+        }
+
+        /**
+         * @return The number of results that the stage produced
+         */
+        public int getHits() {
+            return hits;
+        }
+
+        /**
+         * @return The queries issued against the index during the stage
+         */
+        public List<String> getQueries() {
+            return queries;
+        }
+
+        /**
+         * @return The total number of documents returned by the queries
+         */
+        public int getQueryHits() {
+            return queryHits;
+        }
+
+        /**
+         * @return The exception that was raised during the stage or null
+         */
+        public SearchResultException getException() {
+            return exception;
+        }
+
+        @Override
+        public String toString() {
+            return stage + " " + elapsed + "ns hits: " + hits + " queries: " + queries + (exception != null ? " exception: " + exception.getErrorType() : "");
+        }
+    }
+}
@@ -71,7 +71,13 @@ public enum MatchType {
      * Limited to searches that supplied an id as the search params {@link au.org.ala.names.search.ALANameSearcher#searchForRecordByLsid(String)} etc
      *
      */
-    TAXON_ID("taxonIdMatch", "The match was based on the supplied taxon concept ID rather than the scientific name.");
+    TAXON_ID("taxonIdMatch", "The match was based on the supplied taxon concept ID rather than the scientific name."),
+    /**
+     * A match was determined by allowing a small number of spelling mistakes in the supplied name. There is a greater than average chance that the match is incorrect.
+     *
+     * Limited to fuzzy searches when the fuzzy name index is in use {@link au.org.ala.names.search.ALANameSearcher#setUseFuzzyIndex(boolean)}
+     */
+    EDIT_DISTANCE("editDistanceMatch", "A match was determined by allowing a small number of spelling mistakes (missing, extra, wrong or swapped letters) in the supplied name. There is a greater than average chance that the match is incorrect.");
     private String title;
     private String description;
 
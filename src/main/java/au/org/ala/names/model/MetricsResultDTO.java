@@ -16,6 +16,7 @@ package au.org.ala.names.model;
 
 import au.org.ala.names.search.SearchResultException;
 
+import java.util.HashSet;
 import java.util.Set;
 
 import org.gbif.ecat.voc.NameType;
@@ -33,6 +34,23 @@ public class MetricsResultDTO {
     private NameType nameType;
     private Set<ErrorType> errors;
     private SearchResultException lastException;
+    private MatchTrace trace;
+
+    public MetricsResultDTO() {
+    }
+
+    /**
+     * Creates a copy of the metrics, including a copy of the result, that can be modified independently of the original.
+     *
+     * @param metrics The metrics to copy
+     */
+    public MetricsResultDTO(MetricsResultDTO metrics) {
+        result = metrics.result == null ? null : new NameSearchResult(metrics.result);
+        nameType = metrics.nameType;
+        errors = metrics.errors == null ? null : new HashSet<ErrorType>(metrics.errors);
+        lastException = metrics.lastException;
+        trace = metrics.trace;
+    }
 
     /**
      *
@@ -76,6 +94,9 @@ public class MetricsResultDTO {
      * @return The last error that occurred during the search.
      */
     public SearchResultException getLastException() {
+        //the searcher records the errors without a stack trace, each metrics hands out its own copy with one
+        if (lastException != null)
+            lastException = lastException.withStackTrace();
         return lastException;
     }
 
@@ -83,5 +104,16 @@ public class MetricsResultDTO {
         this.lastException = lastException;
     }
 
+    /**
+     *
+     * @return The trace of the stages used for the match or null when the search was not traced.
+     * See {@link au.org.ala.names.search.ALANameSearcher#setTraceInterval(int)}
+     */
+    public MatchTrace getTrace() {
+        return trace;
+    }
 
+    public void setTrace(MatchTrace trace) {
+        this.trace = trace;
+    }
 }
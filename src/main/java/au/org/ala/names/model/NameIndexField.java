@@ -38,7 +38,22 @@ public enum NameIndexField {
     PHRASE("phrase"),//stores the values of a "phrase" name.  Some more intelligence will be needed when matching these
     VOUCHER("voucher"), //stores a voucher value minus the spaces and fullstops.
     ALA("ala"), //stores whether or not it is an ALA generated name
-    SYNONYM_TYPE("syn_type"); //stores the type of synonym that it represents
+    SYNONYM_TYPE("syn_type"), //stores the type of synonym that it represents
+    PRIORITY("priority"), //stores the index time contribution to the score of a name match. Used to order exact lookups without scoring
+    SOUNDEX_KEY("soundex_key"), //the genus, specific and infra specific sound expressions as a single term genus_ex|specific_ex|infra_ex
+    AUTHOR_KEY("author_key"), //the author without punctuation, spaces, diacritics, year and ex/in authors. Used to compare authors without scoring
+    AUTHOR_YEAR("author_year"), //the year that was split out of the author
+    ACCEPTED_ID("accepted_id"), //the following are copied from the accepted concept into synonyms so that the accepted concept does not need to be looked up
+    ACCEPTED_CONCEPT_LSID("accepted_concept_lsid"), //the lsid of the accepted concept, accepted_lsid can hold its id instead
+    ACCEPTED_NAME("accepted_name"),
+    ACCEPTED_AUTHOR("accepted_author"),
+    ACCEPTED_AUTHOR_KEY("accepted_author_key"),
+    ACCEPTED_AUTHOR_YEAR("accepted_author_year"),
+    ACCEPTED_RANK_ID("accepted_rank_id"),
+    ACCEPTED_LEFT("accepted_left"),
+    ACCEPTED_RIGHT("accepted_right");
+    /** The prefix of the fields copied from the accepted concept, the classification is stored as accepted_kingdom, accepted_kid etc */
+    public static final String ACCEPTED_PREFIX = "accepted_";
     String name;
 
     NameIndexField(String name) {
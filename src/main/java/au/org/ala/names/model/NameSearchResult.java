@@ -38,10 +38,18 @@ public class NameSearchResult {
     private String kingdom;
     private String left, right;
     private LinnaeanRankClassification rankClass;
+    //the document the classification is lazily loaded from
+    private Document doc;
     private RankType rank;
     //The type of match that was performed
     private MatchType matchType;
     private SynonymType synonymType; //store that type of synonym that this name is    
+    //the normalised author and year, null when the index does not contain them
+    private String authorKey, authorYear;
+    //the details of the accepted concept that are copied into synonyms, null when the index does not contain them
+    private String acceptedId, acceptedConceptLsid, acceptedRankId, acceptedLeft, acceptedRight;
+    private String acceptedAuthorKey, acceptedAuthorYear;
+    private LinnaeanRankClassification acceptedClass;
 
     public NameSearchResult(String id, String lsid, MatchType type) {
         this.id = id;//Long.parseLong(id);
@@ -50,6 +58,37 @@ public class NameSearchResult {
         isHomonym = false;
     }
 
+    /**
+     * Creates a copy of a result that can be modified independently of the original.
+     *
+     * @param result The result to copy
+     */
+    public NameSearchResult(NameSearchResult result) {
+        id = result.id;
+        lsid = result.lsid;
+        cleanName = result.cleanName;
+        isHomonym = result.isHomonym;
+        acceptedLsid = result.acceptedLsid;
+        kingdom = result.kingdom;
+        left = result.left;
+        right = result.right;
+        rankClass = result.rankClass == null ? null : new LinnaeanRankClassification(result.rankClass);
+        doc = result.doc;
+        rank = result.rank;
+        matchType = result.matchType;
+        synonymType = result.synonymType;
+        authorKey = result.authorKey;
+        authorYear = result.authorYear;
+        acceptedId = result.acceptedId;
+        acceptedConceptLsid = result.acceptedConceptLsid;
+        acceptedAuthorKey = result.acceptedAuthorKey;
+        acceptedAuthorYear = result.acceptedAuthorYear;
+        acceptedClass = result.acceptedClass == null ? null : new LinnaeanRankClassification(result.acceptedClass);
+        acceptedRankId = result.acceptedRankId;
+        acceptedLeft = result.acceptedLeft;
+        acceptedRight = result.acceptedRight;
+    }
+
     public NameSearchResult(Document doc, MatchType type) {
         this(doc.get(NameIndexField.ID.toString()), doc.get(NameIndexField.LSID.toString()), type);
         kingdom = doc.get(RankType.KINGDOM.getRank());
@@ -58,33 +97,57 @@ public class NameSearchResult {
             rank = RankType.getForId(Integer.parseInt(doc.get(NameIndexField.RANK_ID.toString())));
         } catch (Exception e) {
         }
-        rankClass = new LinnaeanRankClassification(doc.get(RankType.KINGDOM.getRank()),
-                doc.get(RankType.PHYLUM.getRank()),
-                doc.get(RankType.CLASS.getRank()),
-                doc.get(RankType.ORDER.getRank()),
-                doc.get(RankType.FAMILY.getRank()),
-                doc.get(RankType.GENUS.getRank()),
-                doc.get(NameIndexField.NAME.toString()));
-        rankClass.setSpecies(doc.get(RankType.SPECIES.getRank()));
-        //add the ids
-        rankClass.setKid(doc.get("kid"));
-        rankClass.setPid(doc.get("pid"));
-        rankClass.setCid(doc.get("cid"));
-        rankClass.setOid(doc.get("oid"));
-        rankClass.setFid(doc.get("fid"));
-        rankClass.setGid(doc.get("gid"));
-        rankClass.setSid(doc.get("sid"));
-        rankClass.setAuthorship(doc.get(NameIndexField.AUTHOR.toString()));
+        //the classification is only built when it is requested, many results are discarded by the homonym checks first
+        this.doc = doc;
         //left and right values for the taxon concept
         left = doc.get("left");
         right = doc.get("right");
+        authorKey = doc.get(NameIndexField.AUTHOR_KEY.toString());
+        authorYear = doc.get(NameIndexField.AUTHOR_YEAR.toString());
         synonymType = SynonymType.getTypeFor(doc.get(NameIndexField.SYNONYM_TYPE.toString()));
         String syn = doc.get(NameIndexField.ACCEPTED.toString());
         if (syn != null) {
             acceptedLsid = syn;
+            acceptedId = doc.get(NameIndexField.ACCEPTED_ID.toString());
+            acceptedConceptLsid = doc.get(NameIndexField.ACCEPTED_CONCEPT_LSID.toString());
+            acceptedAuthorKey = doc.get(NameIndexField.ACCEPTED_AUTHOR_KEY.toString());
+            acceptedAuthorYear = doc.get(NameIndexField.ACCEPTED_AUTHOR_YEAR.toString());
+            if (doc.get(NameIndexField.ACCEPTED_NAME.toString()) != null)
+                acceptedClass = createRankClassification(doc, NameIndexField.ACCEPTED_PREFIX);
+            acceptedRankId = doc.get(NameIndexField.ACCEPTED_RANK_ID.toString());
+            acceptedLeft = doc.get(NameIndexField.ACCEPTED_LEFT.toString());
+            acceptedRight = doc.get(NameIndexField.ACCEPTED_RIGHT.toString());
         }
     }
 
+    /**
+     * Builds a classification from the stored fields of a document.
+     *
+     * @param doc    The document
+     * @param prefix The prefix of the fields, empty for the name of the document and
+     *               {@link NameIndexField#ACCEPTED_PREFIX} for the accepted concept of a synonym
+     */
+    private LinnaeanRankClassification createRankClassification(Document doc, String prefix) {
+        LinnaeanRankClassification rankClass = new LinnaeanRankClassification(doc.get(prefix + RankType.KINGDOM.getRank()),
+                doc.get(prefix + RankType.PHYLUM.getRank()),
+                doc.get(prefix + RankType.CLASS.getRank()),
+                doc.get(prefix + RankType.ORDER.getRank()),
+                doc.get(prefix + RankType.FAMILY.getRank()),
+                doc.get(prefix + RankType.GENUS.getRank()),
+                doc.get(prefix + NameIndexField.NAME.toString()));
+        rankClass.setSpecies(doc.get(prefix + RankType.SPECIES.getRank()));
+        //add the ids
+        rankClass.setKid(doc.get(prefix + "kid"));
+        rankClass.setPid(doc.get(prefix + "pid"));
+        rankClass.setCid(doc.get(prefix + "cid"));
+        rankClass.setOid(doc.get(prefix + "oid"));
+        rankClass.setFid(doc.get(prefix + "fid"));
+        rankClass.setGid(doc.get(prefix + "gid"));
+        rankClass.setSid(doc.get(prefix + "sid"));
+        rankClass.setAuthorship(doc.get(prefix + NameIndexField.AUTHOR.toString()));
+        return rankClass;
+    }
+
     public SynonymType getSynonymType() {
         return synonymType;
     }
@@ -94,6 +157,10 @@ public class NameSearchResult {
      * @return The classification for the match
      */
     public LinnaeanRankClassification getRankClassification() {
+        if (rankClass == null && doc != null) {
+            rankClass = createRankClassification(doc, "");
+            doc = null;
+        }
         return rankClass;
     }
 
@@ -184,13 +251,14 @@ public class NameSearchResult {
 
     @Override
     public String toString() {
-        return "Match: " + matchType + " id: " + id + " lsid: " + lsid + " classification: " + rankClass + " synonym: " + acceptedLsid + " rank: " + rank;
+        return "Match: " + matchType + " id: " + id + " lsid: " + lsid + " classification: " + getRankClassification() + " synonym: " + acceptedLsid + " rank: " + rank;
     }
 
     public Map<String,String> toMap() {
         Map<String,String> map = new LinkedHashMap<String, String>();
         map.put("ID", id);
         map.put("GUID", lsid);
+        LinnaeanRankClassification rankClass = getRankClassification();
         map.put("Classification", rankClass.toCSV(','));
         map.put("Scientific name", rankClass.getScientificName());
         map.put("Authorship", rankClass.getAuthorship());
@@ -223,4 +291,51 @@ public class NameSearchResult {
     public void setRight(String right) {
         this.right = right;
     }
+
+    /**
+     * @return The normalised author of the result
+     * @see au.org.ala.names.util.AuthorSimilarity#authorKey(String)
+     */
+    public String getAuthorKey() {
+        return authorKey;
+    }
+
+    /**
+     * @return The year of the author of the result
+     */
+    public String getAuthorYear() {
+        return authorYear;
+    }
+
+    /**
+     * @return true when the details of the accepted concept have been copied into this synonym
+     */
+    public boolean hasAcceptedConcept() {
+        return acceptedLsid != null && acceptedClass != null;
+    }
+
+    /**
+     * Builds the result for the accepted concept of this synonym from the details that were copied into the
+     * synonym when it was indexed.
+     *
+     * @return The accepted concept as a {@link MatchType#TAXON_ID} result or null when this is not a synonym or
+     * the accepted details are not available
+     */
+    public NameSearchResult getAcceptedResult() {
+        if (!hasAcceptedConcept())
+            return null;
+        //the accepted_lsid of the synonym may be the id of the accepted concept, older indexes only have that
+        NameSearchResult accepted = new NameSearchResult(acceptedId, acceptedConceptLsid != null ? acceptedConceptLsid : acceptedLsid, MatchType.TAXON_ID);
+        accepted.rankClass = new LinnaeanRankClassification(acceptedClass);
+        accepted.kingdom = acceptedClass.getKingdom();
+        try {
+            accepted.rank = RankType.getForId(Integer.parseInt(acceptedRankId));
+        } catch (Exception e) {
+        }
+        accepted.left = acceptedLeft;
+        accepted.right = acceptedRight;
+        accepted.authorKey = acceptedAuthorKey;
+        accepted.authorYear = acceptedAuthorYear;
+        return accepted;
+    }
 }
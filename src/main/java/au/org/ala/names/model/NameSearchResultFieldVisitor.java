@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2014 Atlas of Living Australia
+ * All Rights Reserved.
+ *
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ */
+
+package au.org.ala.names.model;
+
+import org.apache.lucene.document.DocumentStoredFieldVisitor;
+import org.apache.lucene.index.FieldInfo;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Loads the stored fields that are needed to construct a {@link NameSearchResult}.
+ * <p/>
+ * The sounds like expressions, phrase name fields and the additional name values are not loaded.  Only the first
+ * value of each field is kept because that is all that {@link org.apache.lucene.document.Document#get(String)}
+ * returns, and the remainder of the document is skipped as soon as all the fields have been found.
+ * <p/>
+ * A visitor collects the fields of a single document.
+ */
+public class NameSearchResultFieldVisitor extends DocumentStoredFieldVisitor {
+    /** The fields read by {@link NameSearchResult#NameSearchResult(org.apache.lucene.document.Document, MatchType)} */
+    public static final Set<String> RESULT_FIELDS = Collections.unmodifiableSet(resultFields(
+            NameIndexField.ID.toString(), NameIndexField.LSID.toString(), NameIndexField.NAME.toString(),
+            NameIndexField.RANK_ID.toString(), NameIndexField.AUTHOR.toString(), NameIndexField.ACCEPTED.toString(),
+            NameIndexField.SYNONYM_TYPE.toString(), NameIndexField.AUTHOR_KEY.toString(), NameIndexField.AUTHOR_YEAR.toString(),
+            RankType.KINGDOM.getRank(), RankType.PHYLUM.getRank(), RankType.CLASS.getRank(), RankType.ORDER.getRank(),
+            RankType.FAMILY.getRank(), RankType.GENUS.getRank(), RankType.SPECIES.getRank(),
+            "kid", "pid", "cid", "oid", "fid", "gid", "sid", "left", "right",
+            NameIndexField.ACCEPTED_ID.toString(), NameIndexField.ACCEPTED_CONCEPT_LSID.toString(), NameIndexField.ACCEPTED_NAME.toString(),
+            NameIndexField.ACCEPTED_AUTHOR.toString(), NameIndexField.ACCEPTED_AUTHOR_KEY.toString(),
+            NameIndexField.ACCEPTED_AUTHOR_YEAR.toString(), NameIndexField.ACCEPTED_RANK_ID.toString(),
+            NameIndexField.ACCEPTED_LEFT.toString(), NameIndexField.ACCEPTED_RIGHT.toString()));
+
+    private final Set<String> fields;
+    private final Set<String> loaded = new HashSet<String>();
+
+    public NameSearchResultFieldVisitor() {
+        this(RESULT_FIELDS);
+    }
+
+    /**
+     * Adds the accepted_* classification fields of a synonym to the supplied fields.
+     */
+    private static Set<String> resultFields(String... fields) {
+        Set<String> result = new HashSet<String>(Arrays.asList(fields));
+        String[] classification = {RankType.KINGDOM.getRank(), RankType.PHYLUM.getRank(), RankType.CLASS.getRank(),
+                RankType.ORDER.getRank(), RankType.FAMILY.getRank(), RankType.GENUS.getRank(), RankType.SPECIES.getRank(),
+                "kid", "pid", "cid", "oid", "fid", "gid", "sid"};
+        for (String field : classification)
+            result.add(NameIndexField.ACCEPTED_PREFIX + field);
+        return result;
+    }
+
+    /**
+     * @param fields The fields to load
+     */
+    public NameSearchResultFieldVisitor(Set<String> fields) {
+        super(fields);
+        this.fields = fields;
+    }
+
+    @Override
+    public Status needsField(FieldInfo fieldInfo) throws IOException {
+        if (loaded.size() == fields.size())
+            return Status.STOP;
+        return fields.contains(fieldInfo.name) && !loaded.contains(fieldInfo.name) ? Status.YES : Status.NO;
+    }
+
+    @Override
+    public void stringField(FieldInfo fieldInfo, String value) throws IOException {
+        loaded.add(fieldInfo.name);
+        super.stringField(fieldInfo, value);
+    }
+}
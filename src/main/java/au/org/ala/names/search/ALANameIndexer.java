@@ -19,6 +19,7 @@ import au.com.bytecode.opencsv.CSVReader;
 import au.org.ala.names.lucene.analyzer.LowerCaseKeywordAnalyzer;
 import au.org.ala.names.model.*;
 import au.org.ala.names.parser.PhraseNameParser;
+import au.org.ala.names.util.AuthorSimilarity;
 import au.org.ala.names.util.TaxonNameSoundEx;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.LineIterator;
@@ -31,11 +32,13 @@ import org.apache.lucene.document.*;
 import org.apache.lucene.document.Field.Store;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexableField;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.SmallFloat;
 import org.apache.lucene.util.Version;
 import org.gbif.dwc.record.DarwinCoreRecord;
 import org.gbif.dwc.text.Archive;
@@ -47,6 +50,7 @@ import org.gbif.ecat.voc.NameType;
 import java.io.*;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Locale;
 import java.util.Set;
 import java.util.regex.Pattern;
 
@@ -305,6 +309,9 @@ public class ALANameIndexer {
     }
 
     private void addALASyonyms(IndexWriter iw, String file) throws Exception {
+        //the accepted concepts that have been written so far
+        DirectoryReader acceptedReader = DirectoryReader.open(iw, false);
+        IndexSearcher accepted = new IndexSearcher(acceptedReader);
         au.com.bytecode.opencsv.CSVReader reader = new au.com.bytecode.opencsv.CSVReader(new FileReader(file), '\t', '"', '\\', 1);
         for (String[] values = reader.readNext(); values != null; values = reader.readNext()) {
 
@@ -312,9 +319,77 @@ public class ALANameIndexer {
             //give CoL synonyms a lower boost than NSL
             float boost = source.trim().equals("") || source.equalsIgnoreCase("CoL") ? 0.75f : 1.0f;
             Document doc = createALASynonymDocument(values[5], values[6], values[0], values[1], values[2], values[3], values[4], boost, values[9]);
-            if (doc != null)
+            if (doc != null) {
+                addAcceptedConcept(doc, accepted, values[3]);
                 iw.addDocument(doc);
+            }
+        }
+        acceptedReader.close();
+    }
+
+    /**
+     * Copies the classification, nested set values and rank of the accepted concept into a synonym document. This
+     * allows the accepted concept to be returned for a synonym match without another search and allows the
+     * classification to be used to score and resolve synonyms.
+     * <p/>
+     * The accepted concept is stored in its own accepted_* fields.  The classification is also added to the
+     * searchable classification fields of the synonym, except for the ranks that the synonym already has.
+     *
+     * @param doc          The synonym document
+     * @param accepted     A searcher on the accepted concepts
+     * @param acceptedLsid The lsid or id of the accepted concept
+     */
+    protected void addAcceptedConcept(Document doc, IndexSearcher accepted, String acceptedLsid) throws IOException {
+        if (StringUtils.isBlank(acceptedLsid))
+            return;
+        Document acc = getAcceptedDocument(accepted, NameIndexField.LSID.toString(), acceptedLsid);
+        if (acc == null)
+            acc = getAcceptedDocument(accepted, NameIndexField.ID.toString(), acceptedLsid);
+        if (acc == null)
+            return;
+        String[][] classification = {
+                {RankType.KINGDOM.getRank(), "kid"}, {RankType.PHYLUM.getRank(), "pid"}, {RankType.CLASS.getRank(), "cid"},
+                {RankType.ORDER.getRank(), "oid"}, {RankType.FAMILY.getRank(), "fid"}, {RankType.GENUS.getRank(), "gid"},
+                {RankType.SPECIES.getRank(), "sid"}};
+        for (String[] fields : classification) {
+            String value = acc.get(fields[0]);
+            String id = acc.get(fields[1]);
+            addStored(doc, NameIndexField.ACCEPTED_PREFIX + fields[0], value);
+            addStored(doc, NameIndexField.ACCEPTED_PREFIX + fields[1], id);
+            if (value != null && doc.get(fields[0]) == null) {
+                doc.add(new TextField(fields[0], value, Store.YES));
+                if (id != null)
+                    doc.add(new StoredField(fields[1], id));
+            }
         }
+        addStored(doc, NameIndexField.ACCEPTED_ID, acc.get(NameIndexField.ID.toString()));
+        addStored(doc, NameIndexField.ACCEPTED_CONCEPT_LSID, acc.get(NameIndexField.LSID.toString()));
+        addStored(doc, NameIndexField.ACCEPTED_NAME, acc.get(NameIndexField.NAME.toString()));
+        addStored(doc, NameIndexField.ACCEPTED_AUTHOR, acc.get(NameIndexField.AUTHOR.toString()));
+        addStored(doc, NameIndexField.ACCEPTED_AUTHOR_KEY, acc.get(NameIndexField.AUTHOR_KEY.toString()));
+        addStored(doc, NameIndexField.ACCEPTED_AUTHOR_YEAR, acc.get(NameIndexField.AUTHOR_YEAR.toString()));
+        addStored(doc, NameIndexField.ACCEPTED_RANK_ID, acc.get(NameIndexField.RANK_ID.toString()));
+        addStored(doc, NameIndexField.ACCEPTED_LEFT, acc.get(IndexField.LEFT.toString()));
+        addStored(doc, NameIndexField.ACCEPTED_RIGHT, acc.get(IndexField.RIGHT.toString()));
+    }
+
+    private Document getAcceptedDocument(IndexSearcher accepted, String field, String value) throws IOException {
+        org.apache.lucene.search.TopDocs results = accepted.search(new TermQuery(new Term(field, value)), 10);
+        for (org.apache.lucene.search.ScoreDoc sd : results.scoreDocs) {
+            Document doc = accepted.doc(sd.doc);
+            if (doc.get(NameIndexField.ACCEPTED.toString()) == null)
+                return doc;
+        }
+        return null;
+    }
+
+    private void addStored(Document doc, NameIndexField field, String value) {
+        addStored(doc, field.toString(), value);
+    }
+
+    private void addStored(Document doc, String field, String value) {
+        if (value != null)
+            doc.add(new StoredField(field, value));
     }
 
     private void indexALA(IndexWriter iw, String file, String synonymFile) throws Exception {
@@ -879,6 +954,7 @@ public class ALANameIndexer {
         if (StringUtils.isNotEmpty(author)) {
             //TODO think about whether we need to treat the author string with the taxamatch
             doc.add(new TextField(NameIndexField.AUTHOR.toString(), author, Store.YES));
+            addAuthorKey(doc, author);
         }
 
 
@@ -938,29 +1014,89 @@ public class ALANameIndexer {
 
         //add the sound expressions for the name if required
         try {
+            String genusEx = null, speciesEx = null, infraEx = null;
             if (StringUtils.isNotBlank(genus)) {
-                doc.add(new TextField(NameIndexField.GENUS_EX.toString(), TaxonNameSoundEx.treatWord(genus, "genus"), Store.YES));
+                genusEx = TaxonNameSoundEx.treatWord(genus, "genus");
+                doc.add(new TextField(NameIndexField.GENUS_EX.toString(), genusEx, Store.YES));
             }
             if (StringUtils.isNotBlank(specificEpithet)) {
-                doc.add(new TextField(NameIndexField.SPECIES_EX.toString(), TaxonNameSoundEx.treatWord(specificEpithet, "species"), Store.YES));
+                speciesEx = TaxonNameSoundEx.treatWord(specificEpithet, "species");
+                doc.add(new TextField(NameIndexField.SPECIES_EX.toString(), speciesEx, Store.YES));
             } else if (StringUtils.isNotBlank(genus)) {
-                doc.add(new TextField(NameIndexField.SPECIES_EX.toString(), "<null>", Store.YES));
+                speciesEx = "<null>";
+                doc.add(new TextField(NameIndexField.SPECIES_EX.toString(), speciesEx, Store.YES));
             }
             if (StringUtils.isNotBlank(infraspecificEpithet)) {
-                doc.add(new TextField(NameIndexField.INFRA_EX.toString(), TaxonNameSoundEx.treatWord(infraspecificEpithet, "species"), Store.YES));
+                infraEx = TaxonNameSoundEx.treatWord(infraspecificEpithet, "species");
+                doc.add(new TextField(NameIndexField.INFRA_EX.toString(), infraEx, Store.YES));
             } else if (StringUtils.isNotBlank(specificEpithet)) {
                 //make searching for an empty infraspecific soudex easier
-                doc.add(new TextField(NameIndexField.INFRA_EX.toString(), "<null>", Store.YES));
+                infraEx = "<null>";
+                doc.add(new TextField(NameIndexField.INFRA_EX.toString(), infraEx, Store.YES));
+            }
+            //the combined key allows the sounds like search to be a single term lookup
+            if (genusEx != null && speciesEx != null && infraEx != null) {
+                doc.add(new StringField(NameIndexField.SOUNDEX_KEY.toString(), soundexKey(genusEx, speciesEx, infraEx), Store.NO));
             }
         } catch (Exception e) {
             log.warn(lsid + " " + name + " has issues creating a soundex: " + e.getMessage());
         }
 
+        addPriority(doc);
 
         return doc;
 
     }
 
+    /**
+     * Builds the combined sound expression key.  The key is lowercase to match the analysed values of the
+     * separate sound expression fields.
+     *
+     * @param genusEx   The genus sound expression
+     * @param speciesEx The specific epithet sound expression or &lt;null&gt;
+     * @param infraEx   The infraspecific epithet sound expression or &lt;null&gt;
+     * @return The key
+     */
+    public static String soundexKey(String genusEx, String speciesEx, String infraEx) {
+        return (genusEx + "|" + speciesEx + "|" + infraEx).toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Adds the normalised author and the year of the author so that authors can be compared without scoring.
+     *
+     * @param doc    The document to add the fields to
+     * @param author The raw author
+     */
+    private void addAuthorKey(Document doc, String author) {
+        String[] key = AuthorSimilarity.parseAuthor(author);
+        if (key[0] != null)
+            doc.add(new StringField(NameIndexField.AUTHOR_KEY.toString(), key[0], Store.YES));
+        if (key[1] != null)
+            doc.add(new StringField(NameIndexField.AUTHOR_YEAR.toString(), key[1], Store.YES));
+    }
+
+    /**
+     * Stores the lookup priority for the document.
+     * <p/>
+     * The priority is the norm that Lucene calculates for the name field (the product of the boosts for each name
+     * divided by the square root of the number of names) using the same lossy encoding.  This allows
+     * {@link ALANameSearcher} to reproduce the order of an exact name match without scoring.
+     *
+     * @param doc The document to add the priority to
+     */
+    protected void addPriority(Document doc) {
+        float boost = 1.0f;
+        int count = 0;
+        for (IndexableField f : doc.getFields(NameIndexField.NAME.toString())) {
+            boost *= f.boost();
+            count++;
+        }
+        if (count > 0) {
+            float norm = SmallFloat.byte315ToFloat(SmallFloat.floatToByte315(boost * ((float) (1.0 / Math.sqrt(count)))));
+            doc.add(new FloatField(NameIndexField.PRIORITY.toString(), norm, Store.NO));
+        }
+    }
+
     private String getPhraseName(String specificEpithet, String infraspecificEpithet) {
 
         return null;
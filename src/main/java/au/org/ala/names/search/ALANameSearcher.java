@@ -18,12 +18,18 @@ package au.org.ala.names.search;
 import au.org.ala.names.lucene.analyzer.LowerCaseKeywordAnalyzer;
 import au.org.ala.names.model.*;
 import au.org.ala.names.parser.PhraseNameParser;
+import au.org.ala.names.util.AuthorSimilarity;
+import au.org.ala.names.util.Levenshtein;
+import au.org.ala.names.util.ObjectPool;
+import au.org.ala.names.util.SingleFlight;
 import au.org.ala.names.util.TaxonNameSoundEx;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.TermToBytesRefAttribute;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.*;
@@ -31,6 +37,8 @@ import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.queryparser.classic.QueryParser;
 import org.apache.lucene.search.*;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.Version;
 import org.gbif.ecat.model.ParsedName;
 import org.gbif.ecat.parser.UnparsableException;
@@ -41,9 +49,19 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -70,10 +88,39 @@ import java.util.regex.Pattern;
  */
 public class ALANameSearcher {
     protected Log log = LogFactory.getLog(ALANameSearcher.class);
+    /** The maximum number of idle query parsers of each type */
+    private static final int PARSER_POOL_SIZE = 64;
+    /** The number of identifiers that are looked up with each pass over the index segments */
+    private static final int ID_BATCH_SIZE = 50000;
     private DirectoryReader cbReader, irmngReader, vernReader;
     private IndexSearcher cbSearcher, irmngSearcher, vernSearcher, idSearcher;
-    private ThreadLocal<QueryParser> queryParser;
-    private ThreadLocal<QueryParser> idParser;
+    //the query parsers are not thread safe, they are pooled rather than held per thread so that many short lived threads do not each need one
+    private ObjectPool<QueryParser> queryParser;
+    private ObjectPool<QueryParser> idParser;
+    private IndexFilterCache filterCache;
+    private boolean constantScoreLookups = true;
+    /** Whether the scientific name index contains the priority field required to order name lookups without scoring */
+    private boolean hasPriority;
+    /** Whether the scientific name index contains the combined sound expression key */
+    private boolean hasSoundexKey;
+    /** Whether the scientific name index contains the normalised author key used to compare authors after a search */
+    private boolean hasAuthorKey;
+    private ExactNameDictionary nameDictionary;
+    private FuzzyNameIndex fuzzyIndex;
+    //the trace of the match being performed by the current thread, only set when the match is being traced
+    private final ThreadLocal<MatchTrace> trace = new ThreadLocal<MatchTrace>();
+    private final MatchStatistics statistics = new MatchStatistics();
+    private final AtomicLong traceCounter = new AtomicLong();
+    private volatile int traceInterval = 0;
+    private final AuthorSimilarity authorSimilarity = new AuthorSimilarity();
+    //the metrics searches that are in progress, used to coalesce concurrent identical searches
+    private final SingleFlight<String, MetricsResultDTO> inFlight = new SingleFlight<String, MetricsResultDTO>();
+    private volatile boolean coalesceRequests = false;
+    //the budget of the metrics search being performed by the current thread, only set when the search has a budget
+    private final ThreadLocal<MatchBudget.Usage> budgetUsage = new ThreadLocal<MatchBudget.Usage>();
+    private volatile MatchBudget matchBudget = null;
+    //the candidates for the names of the batch being matched by the current thread
+    private final ThreadLocal<ExactNameBatch> exactBatch = new ThreadLocal<ExactNameBatch>();
     protected TaxonNameSoundEx tnse;
     private PhraseNameParser parser;
     private static final String RANK_MARKER_ALL = "( " + StringUtils.join(Rank.RANK_MARKER_MAP.keySet(), "| ") + ")\\.";
@@ -103,17 +150,17 @@ public class ALANameSearcher {
         //Initialis CB index searching items
         log.debug("Creating the search object for the name matching api...");
         //make the query parsers thread safe
-        queryParser = new ThreadLocal<QueryParser>() {
+        queryParser = new ObjectPool<QueryParser>(PARSER_POOL_SIZE) {
             @Override
-            protected QueryParser initialValue() {
+            protected QueryParser create() {
                 QueryParser qp = new QueryParser(Version.LUCENE_34, "genus", new LowerCaseKeywordAnalyzer());
                 qp.setFuzzyMinSim(0.8f); //fuzzy match similarity setting. used to match the authorship.
                 return qp;
             }
         };
-        idParser = new ThreadLocal<QueryParser>() {
+        idParser = new ObjectPool<QueryParser>(PARSER_POOL_SIZE) {
             @Override
-            protected QueryParser initialValue() {
+            protected QueryParser create() {
                 return new QueryParser(Version.LUCENE_34, "lsid", new org.apache.lucene.analysis.core.KeywordAnalyzer());
             }
         };
@@ -121,6 +168,9 @@ public class ALANameSearcher {
 
         cbReader = DirectoryReader.open(FSDirectory.open(createIfNotExist(indexDirectory + File.separator + "cb")));//false
         cbSearcher = new IndexSearcher(cbReader);
+        hasPriority = MultiFields.getTerms(cbReader, NameIndexField.PRIORITY.toString()) != null;
+        hasSoundexKey = MultiFields.getTerms(cbReader, NameIndexField.SOUNDEX_KEY.toString()) != null;
+        hasAuthorKey = MultiFields.getTerms(cbReader, NameIndexField.AUTHOR_KEY.toString()) != null;
         //Initalise the IRMNG index searching items
         irmngReader = DirectoryReader.open(FSDirectory.open(createIfNotExist(indexDirectory + File.separator + "irmng")));
         irmngSearcher = new IndexSearcher(irmngReader);
@@ -152,21 +202,245 @@ public class ALANameSearcher {
     public void reopenReaders() {
         //this should only need to reopen the cbSearcher because the others should NOT be changing
         try {
-            DirectoryReader newReader = DirectoryReader.openIfChanged(cbReader);
+            DirectoryReader oldReader = cbReader;
+            DirectoryReader newReader = DirectoryReader.openIfChanged(oldReader);
 
             //IndexReader tmpReader = cbReader.reopen();
             if (newReader != null) {
-                cbReader.close();
+                //build everything derived from the new reader before publishing it so searches never see a closed reader
+                IndexSearcher newSearcher = new IndexSearcher(newReader);
+                boolean priority, soundexKey, authorKey;
+                ExactNameDictionary newDictionary = null;
+                FuzzyNameIndex newFuzzyIndex = null;
+                try {
+                    priority = MultiFields.getTerms(newReader, NameIndexField.PRIORITY.toString()) != null;
+                    soundexKey = MultiFields.getTerms(newReader, NameIndexField.SOUNDEX_KEY.toString()) != null;
+                    authorKey = MultiFields.getTerms(newReader, NameIndexField.AUTHOR_KEY.toString()) != null;
+                    if (nameDictionary != null)
+                        newDictionary = new ExactNameDictionary(newReader);
+                    if (fuzzyIndex != null)
+                        newFuzzyIndex = new FuzzyNameIndex(newReader);
+                } catch (IOException e) {
+                    newReader.close();
+                    throw e;
+                }
                 cbReader = newReader;
                 //now reinit the searcher
-                cbSearcher = new IndexSearcher(cbReader);
+                cbSearcher = newSearcher;
+                hasPriority = priority;
+                hasSoundexKey = soundexKey;
+                hasAuthorKey = authorKey;
+                if (nameDictionary != null)
+                    nameDictionary = newDictionary;
+                if (fuzzyIndex != null)
+                    fuzzyIndex = newFuzzyIndex;
+                oldReader.close();
             }
         } catch (Exception e) {
+            log.error("Unable to reopen the scientific name index, the current index is still in use", e);
+        }
+
+    }
+
+    /**
+     * Identifies the build of the scientific name index.  The identity changes whenever the index is rebuilt or
+     * updated, so it can be used to invalidate anything derived from match results.
+     *
+     * @return The commit, version and size of the index
+     * @throws IOException
+     */
+    public String getIndexIdentity() throws IOException {
+        DirectoryReader reader = cbReader;
+        return reader.getIndexCommit().getSegmentsFileName() + ":" + reader.getVersion() + ":" + reader.maxDoc() + ":" + reader.numDocs();
+    }
+
+
+    /**
+     * Determines whether the rank restrictions are applied using the cached filters. When false the rank
+     * restriction is added to the query as a scoring clause.
+     * <p/>
+     * Off by default.  A filter does not contribute to the score, so an accepted name and a synonym with the
+     * same name can be returned in a different order than with the scoring clause.
+     *
+     * @param useFilterCache
+     */
+    public void setUseFilterCache(boolean useFilterCache) {
+        this.filterCache = useFilterCache ? (filterCache != null ? filterCache : new IndexFilterCache()) : null;
+    }
+
+    /**
+     * Sets how often the metrics searches are traced.  A traced search records each stage in a {@link MatchTrace}
+     * that is available from {@link MetricsResultDTO#getTrace()}, and the stages are added to the
+     * {@link #getMatchStatistics() statistics}.
+     *
+     * @param traceInterval Trace every nth search. 0 turns tracing off, 1 traces every search.
+     */
+    public void setTraceInterval(int traceInterval) {
+        this.traceInterval = Math.max(0, traceInterval);
+    }
+
+    public int getTraceInterval() {
+        return traceInterval;
+    }
+
+    /**
+     * @return The aggregate counters for the traced searches
+     */
+    public MatchStatistics getMatchStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Determines whether concurrent metrics searches for the same classification share a single search.  While a
+     * search is in progress any identical searches wait for it and receive a copy of its metrics.  Only the
+     * classification of the first caller is updated with the values that are inferred during the search.
+     *
+     * @param coalesceRequests When true identical concurrent searches are coalesced
+     */
+    public void setCoalesceRequests(boolean coalesceRequests) {
+        this.coalesceRequests = coalesceRequests;
+    }
+
+    public boolean isCoalesceRequests() {
+        return coalesceRequests;
+    }
+
+    /**
+     * Sets the budget that is applied to the metrics searches that do not supply their own.  When a search uses all
+     * of its budget it returns the best result found so far, or none, with a
+     * {@link ErrorType#BUDGET_EXCEEDED} error.
+     *
+     * @param matchBudget The default budget, null for no limits
+     */
+    public void setMatchBudget(MatchBudget matchBudget) {
+        this.matchBudget = matchBudget;
+    }
 
+    public MatchBudget getMatchBudget() {
+        return matchBudget;
+    }
+
+    /**
+     * Charges a query to the budget of the current search.
+     *
+     * @throws BudgetExceededException when the search has used all of its budget
+     */
+    private void spendQuery() throws BudgetExceededException {
+        MatchBudget.Usage usage = budgetUsage.get();
+        if (usage != null && !usage.query())
+            throw new BudgetExceededException(usage);
+    }
+
+    /**
+     * Stops the current search when it has used all of its budget, without charging a query.
+     *
+     * @throws BudgetExceededException when the search has used all of its budget
+     */
+    private void checkBudget() throws BudgetExceededException {
+        MatchBudget.Usage usage = budgetUsage.get();
+        if (usage != null && usage.isExceeded())
+            throw new BudgetExceededException(usage);
+    }
+
+    /**
+     * Starts tracing the current search if it has been sampled.
+     *
+     * @return The new trace or null when this search is not traced or a trace is already in progress
+     */
+    private MatchTrace startTrace() {
+        int interval = traceInterval;
+        if (interval == 0 || trace.get() != null || traceCounter.incrementAndGet() % interval != 0)
+            return null;
+        MatchTrace matchTrace = new MatchTrace();
+        trace.set(matchTrace);
+        return matchTrace;
+    }
+
+    private MatchTrace.Stage startStage(MatchStage stage) {
+        MatchBudget.Usage usage = budgetUsage.get();
+        if (usage != null)
+            usage.stage();
+        if (traceInterval == 0)
+            return null;
+        MatchTrace matchTrace = trace.get();
+        return matchTrace == null ? null : matchTrace.start(stage);
+    }
+
+    private void endStage(MatchTrace.Stage stage, List<?> hits) {
+        if (stage != null) {
+            MatchTrace matchTrace = trace.get();
+            if (matchTrace != null)
+                matchTrace.end(stage, hits == null ? 0 : hits.size());
         }
+    }
+
+    private void traceQuery(String query, int hits) {
+        if (traceInterval == 0)
+            return;
+        MatchTrace matchTrace = trace.get();
+        if (matchTrace != null)
+            matchTrace.query(query, hits);
+    }
+
+    /**
+     * Determines whether the exact name dictionary is loaded.  When it is loaded exact name matches that have a
+     * single candidate and need no homonym checks are resolved without a Lucene search.  The dictionary holds every
+     * indexed name in memory so it is off by default.
+     *
+     * @param useNameDictionary
+     * @throws IOException
+     */
+    public void setUseNameDictionary(boolean useNameDictionary) throws IOException {
+        if (!useNameDictionary)
+            nameDictionary = null;
+        else if (nameDictionary == null)
+            nameDictionary = new ExactNameDictionary(cbReader);
+    }
+
+    /**
+     * Determines whether the fuzzy name index is loaded.  When it is loaded fuzzy searches that fail to match
+     * on the sound expression look for the names that are within a small edit distance of the supplied name.
+     *
+     * @param useFuzzyIndex
+     * @throws IOException
+     */
+    public void setUseFuzzyIndex(boolean useFuzzyIndex) throws IOException {
+        if (!useFuzzyIndex)
+            fuzzyIndex = null;
+        else if (fuzzyIndex == null)
+            fuzzyIndex = new FuzzyNameIndex(cbReader);
+    }
+
+    /**
+     * @return The fuzzy name index or null when it is not in use
+     */
+    public FuzzyNameIndex getFuzzyIndex() {
+        return fuzzyIndex;
+    }
+
+    /**
+     * @return The exact name dictionary or null when it is not in use
+     */
+    public ExactNameDictionary getNameDictionary() {
+        return nameDictionary;
+    }
 
+    /**
+     * Determines whether searches on a single term (exact name, LSID and ID lookups without any optional
+     * classification) are performed without scoring.  The results are ordered using the priority stored at index time.
+     *
+     * @param constantScoreLookups
+     */
+    public void setConstantScoreLookups(boolean constantScoreLookups) {
+        this.constantScoreLookups = constantScoreLookups;
     }
 
+    /**
+     * @return The cached filters used to restrict searches on the name matching index, null when they are not in use
+     */
+    public IndexFilterCache getFilterCache() {
+        return filterCache;
+    }
 
     /**
      * Dumps a list of the species LSID's that are contained in the index.
@@ -458,9 +732,159 @@ public class ALANameSearcher {
      * @return
      */
     public MetricsResultDTO searchForRecordMetrics(LinnaeanRankClassification cl, boolean recursiveMatching, boolean addGuids, boolean fuzzy, boolean ignoreHomonym) {
+        return searchForRecordMetrics(cl, recursiveMatching, addGuids, fuzzy, ignoreHomonym, matchBudget);
+    }
+
+    /**
+     * Searches for a result returning a metrics of the result, stopping when the search has used all of its budget.
+     * When the budget runs out the metrics contain the best result found so far, or none, and a
+     * {@link ErrorType#BUDGET_EXCEEDED} error.
+     *
+     * @param cl The classification to perform the match on
+     * @param recursiveMatching When true attempt to match on higher classification
+     * @param addGuids When true will look up the guids for the higher classification (deprecated param as these are now stored with the index)
+     * @param fuzzy When true allow fuzzy matching on scientific names
+     * @param ignoreHomonym When true ignore the homonym exception if a single result is returned.
+     * @param budget The time and work budget for the search, null for no limits
+     * @return
+     */
+    public MetricsResultDTO searchForRecordMetrics(final LinnaeanRankClassification cl, final boolean recursiveMatching, final boolean addGuids, final boolean fuzzy, final boolean ignoreHomonym, final MatchBudget budget) {
+        if (!coalesceRequests)
+            return performMetricsSearch(cl, recursiveMatching, addGuids, fuzzy, ignoreHomonym, budget);
+        //a caller waiting for an identical search only waits for as long as its own budget allows
+        MatchBudget.Usage waiting = budget == null ? null : budget.start();
+        MetricsResultDTO shared;
+        try {
+            shared = inFlight.get(requestKey(cl, recursiveMatching, addGuids, fuzzy, ignoreHomonym, budget), new Callable<MetricsResultDTO>() {
+                @Override
+                public MetricsResultDTO call() {
+                    return performMetricsSearch(cl, recursiveMatching, addGuids, fuzzy, ignoreHomonym, budget);
+                }
+            }, budget == null ? 0 : budget.getMaxTime());
+        } catch (TimeoutException e) {
+            MetricsResultDTO metrics = new MetricsResultDTO();
+            metrics.setErrors(new HashSet<ErrorType>(Collections.singleton(ErrorType.BUDGET_EXCEEDED)));
+            metrics.setLastException(new BudgetExceededException(waiting));
+            return metrics;
+        }
+        //the shared metrics are never handed out, each caller gets a copy
+        return new MetricsResultDTO(shared);
+    }
 
+    /**
+     * Searches for a batch of classifications returning the metrics of each result.
+     * <p/>
+     * The candidates for all the names in the batch are collected first with a single pass over the name terms of
+     * each index segment.  Each classification is then matched as usual, with name lookups that resolve to no
+     * candidate, a single candidate, or an unscored list of candidates answered from the batch instead of a search.
+     *
+     * @param cls The classifications to match
+     * @param recursiveMatching When true attempt to match on higher classification
+     * @param addGuids When true will look up the guids for the higher classification (deprecated param as these are now stored with the index)
+     * @param fuzzy When true allow fuzzy matching on scientific names
+     * @return The metrics for each classification in the same order
+     */
+    public List<MetricsResultDTO> searchForRecordsMetrics(List<LinnaeanRankClassification> cls, boolean recursiveMatching, boolean addGuids, boolean fuzzy) {
+        List<MetricsResultDTO> results = new java.util.ArrayList<MetricsResultDTO>(cls.size());
+        ExactNameBatch previous = exactBatch.get();
+        try {
+            exactBatch.set(prepareExactBatch(cls));
+        } catch (IOException e) {
+            log.warn("Unable to look up the names of the batch, matching them one at a time", e);
+        }
+        try {
+            for (LinnaeanRankClassification cl : cls)
+                results.add(searchForRecordMetrics(cl, recursiveMatching, addGuids, fuzzy));
+        } finally {
+            if (previous == null)
+                exactBatch.remove();
+            else
+                exactBatch.set(previous);
+        }
+        return results;
+    }
+
+    /**
+     * Collects the candidates for every name in the classifications that the exact and recursive stages may look up.
+     *
+     * @return The batch or null when there is no index
+     */
+    private ExactNameBatch prepareExactBatch(List<LinnaeanRankClassification> cls) throws IOException {
+        DirectoryReader reader = cbReader;
+        if (reader == null || cls.isEmpty())
+            return null;
+        String field = NameIndexField.NAME.toString();
+        Set<BytesRef> terms = new HashSet<BytesRef>(cls.size() * 4);
+        for (LinnaeanRankClassification cl : cls) {
+            String[] names = {cl.getScientificName(), cl.getSubspecies(), cl.getSpecies(), cl.getGenus(), cl.getFamily(),
+                    cl.getOrder(), cl.getKlass(), cl.getPhylum(), cl.getKingdom(),
+                    cl.getGenus() == null || cl.getSpecificEpithet() == null ? null : cl.getGenus() + " " + cl.getSpecificEpithet()};
+            for (String name : names) {
+                if (StringUtils.isBlank(name))
+                    continue;
+                name = virusStopPattern.matcher(name.replace("?", "")).replaceAll(" ").trim();
+                if (!isLookupValue(name))
+                    continue;
+                BytesRef term = analyseTerm(queryParser, field, name);
+                if (term != null)
+                    terms.add(term);
+            }
+        }
+        long start = System.nanoTime();
+        ExactNameBatch batch = new ExactNameBatch(reader, field, terms, hasPriority ? NameIndexField.PRIORITY.toString() : null);
+        if (log.isDebugEnabled())
+            log.debug("Looked up " + batch.size() + " names for " + cls.size() + " classifications with " + batch.getSegmentSeeks()
+                    + " seeks in " + (System.nanoTime() - start) / 1000 + "us");
+        return batch;
+    }
+
+    /**
+     * Builds the key that identifies identical metrics searches.  All the parts of the classification that are
+     * used by the search are included exactly as they were supplied.
+     */
+    private String requestKey(LinnaeanRankClassification cl, boolean recursiveMatching, boolean addGuids, boolean fuzzy, boolean ignoreHomonym, MatchBudget budget) {
+        StringBuilder key = new StringBuilder(64);
+        key.append(recursiveMatching ? 'T' : 'F').append(addGuids ? 'T' : 'F').append(fuzzy ? 'T' : 'F').append(ignoreHomonym ? 'T' : 'F');
+        if (budget != null)
+            key.append(budget);
+        String[] values = {cl.getScientificName(), cl.getAuthorship(), cl.getRank(), cl.getKingdom(), cl.getPhylum(),
+                cl.getKlass(), cl.getOrder(), cl.getFamily(), cl.getGenus(), cl.getSpecies(), cl.getSpecificEpithet(),
+                cl.getSubspecies(), cl.getInfraspecificEpithet()};
+        for (String value : values) {
+            key.append('\u0001');
+            if (value == null)
+                key.append('\u0000');
+            else
+                key.append(value);
+        }
+        return key.toString();
+    }
+
+    private MetricsResultDTO performMetricsSearch(LinnaeanRankClassification cl, boolean recursiveMatching, boolean addGuids, boolean fuzzy, boolean ignoreHomonym, MatchBudget budget) {
         //set up the Object to return
         MetricsResultDTO metrics = new MetricsResultDTO();
+        MatchTrace matchTrace = startTrace();
+        boolean budgeted = budget != null && budgetUsage.get() == null;
+        if (budgeted)
+            budgetUsage.set(budget.start());
+        //the outcomes are recorded in the metrics so there is no need for stack traces
+        boolean stackless = SearchResultException.setStackless(true);
+        try {
+            return searchForRecordMetrics(cl, recursiveMatching, addGuids, fuzzy, ignoreHomonym, metrics);
+        } finally {
+            SearchResultException.setStackless(stackless);
+            if (budgeted)
+                budgetUsage.remove();
+            if (matchTrace != null) {
+                trace.remove();
+                matchTrace.finish();
+                metrics.setTrace(matchTrace);
+                statistics.record(matchTrace);
+            }
+        }
+    }
+
+    private MetricsResultDTO searchForRecordMetrics(LinnaeanRankClassification cl, boolean recursiveMatching, boolean addGuids, boolean fuzzy, boolean ignoreHomonym, MetricsResultDTO metrics) {
 
 
         RankType rank = cl.getRank()!=null ?RankType.getForStrRank(cl.getRank()):null;
@@ -602,6 +1026,7 @@ public class ALANameSearcher {
         nsr = performErrorCheckSearch(name.replaceAll("\\?", ""), cl, rank, fuzzy, ignoreHomonym, metrics);
 
         if (nsr == null && recursiveMatching) {
+            MatchTrace.Stage recursiveStage = startStage(MatchStage.RECURSIVE);
             //get the name type for the original name
             //remove the authorship from the search
             String authorship = cl.getAuthorship();
@@ -648,6 +1073,7 @@ public class ALANameSearcher {
             }
             //rest the author
             cl.setAuthorship(authorship);
+            endStage(recursiveStage, nsr == null ? null : java.util.Collections.singletonList(nsr));
 
         }
 
@@ -664,8 +1090,11 @@ public class ALANameSearcher {
         checkOtherIssues(originalName, metrics);
         if (nsr != null) {
             //Obtain and store the GUIDs for the classification identifiers
-            if (addGuids)
+            if (addGuids) {
+                MatchTrace.Stage guidStage = startStage(MatchStage.GUID);
                 updateClassificationWithGUID(nsr.getRankClassification());
+                endStage(guidStage, null);
+            }
         }
 
         if (metrics.getErrors().size() == 0)
@@ -700,22 +1129,44 @@ public class ALANameSearcher {
      */
     private NameSearchResult performErrorCheckSearch(String name, LinnaeanRankClassification cl, RankType rank, boolean fuzzy, boolean ignoreHomonym, MetricsResultDTO metrics) {
         NameSearchResult nsr = null;
+        MatchTrace matchTrace = traceInterval == 0 ? null : trace.get();
+        int depth = matchTrace == null ? 0 : matchTrace.depth();
+        //once the budget has run out the remaining searches are skipped, keeping the result found so far
+        MatchBudget.Usage usage = budgetUsage.get();
+        if (usage != null && usage.isExceeded()) {
+            metrics.getErrors().add(ErrorType.BUDGET_EXCEEDED);
+            return null;
+        }
         try {
             nsr = searchForRecord(name, cl, rank, fuzzy, ignoreHomonym);
         } catch (MisappliedException e) {
+            if (matchTrace != null)
+                matchTrace.fail(depth, e);
             metrics.setLastException(e);
             metrics.getErrors().add(e.errorType);
             if (e.getMisappliedResult() != null)
                 nsr = e.getMatchedResult();
         } catch (ParentSynonymChildException e) {
+            if (matchTrace != null)
+                matchTrace.fail(depth, e);
             metrics.setLastException(e);
             metrics.getErrors().add(e.errorType);
             nsr = e.getChildResult();
         } catch (ExcludedNameException e) {
+            if (matchTrace != null)
+                matchTrace.fail(depth, e);
             metrics.setLastException(e);
             metrics.getErrors().add(e.errorType);
             nsr = e.getNonExcludedName() != null ? e.getNonExcludedName() : e.getExcludedName();
+        } catch (BudgetExceededException e) {
+            if (matchTrace != null)
+                matchTrace.fail(depth, e);
+            metrics.setLastException(e);
+            metrics.getErrors().add(e.errorType);
+            nsr = e.getPartialResult();
         } catch (SearchResultException e) {
+            if (matchTrace != null)
+                matchTrace.fail(depth, e);
             metrics.setLastException(e);
             metrics.getErrors().add(e.errorType);
         }
@@ -843,6 +1294,8 @@ public class ALANameSearcher {
 
     public NameSearchResult searchForAcceptedRecordDefaultHandling(LinnaeanRankClassification cl, boolean fuzzy, boolean ignoreHomonym) {
         NameSearchResult nsr = null;
+        //the exceptions are handled here so there is no need for stack traces
+        boolean stackless = SearchResultException.setStackless(true);
         try {
             nsr = searchForRecord(cl.getScientificName(), cl, null, fuzzy, ignoreHomonym);
         } catch (MisappliedException e) {
@@ -854,11 +1307,13 @@ public class ALANameSearcher {
             nsr = e.getNonExcludedName() != null ? e.getNonExcludedName() : e.getExcludedName();
         } catch (SearchResultException e) {
             //do nothing
+        } finally {
+            SearchResultException.setStackless(stackless);
         }
 
         //now check for accepted concepts
         if (nsr != null && nsr.isSynonym())
-            nsr = searchForRecordByLsid(nsr.getAcceptedLsid());
+            nsr = searchForAcceptedRecord(nsr);
 
         return nsr;
     }
@@ -926,7 +1381,7 @@ public class ALANameSearcher {
      */
     public NameSearchResult searchForRecordByID(String id) {
         try {
-            List<NameSearchResult> results = performSearch(ALANameIndexer.IndexField.ID.toString(), id, null, null, 1, null, false, idParser.get());
+            List<NameSearchResult> results = performSearch(ALANameIndexer.IndexField.ID.toString(), id, null, null, 1, null, false, idParser);
             if (results.size() > 0) {
                 results.get(0).setMatchType(MatchType.TAXON_ID);
                 return results.get(0);
@@ -1052,7 +1507,11 @@ public class ALANameSearcher {
                 log.warn("Unable to parse " + name + ". " + e.getMessage());
             }
             //Check for the exact match
-            List<NameSearchResult> hits = performSearch(NameIndexField.NAME.toString(), name, rank, cl, max, MatchType.EXACT, true, queryParser.get());
+            MatchTrace.Stage stage = startStage(MatchStage.EXACT);
+            List<NameSearchResult> hits = searchNameDictionary(name, rank);
+            if (hits == null)
+                hits = performSearch(NameIndexField.NAME.toString(), name, rank, cl, max, MatchType.EXACT, true, queryParser);
+            endStage(stage, hits);
             if (hits == null) // situation where searcher has not been initialised
             {
                 return null;
@@ -1079,7 +1538,9 @@ public class ALANameSearcher {
                 searchFields[1] = new String[]{NameIndexField.PHRASE.toString(), phrase};
                 searchFields[2] = new String[]{NameIndexField.VOUCHER.toString(), voucher};
                 searchFields[3] = new String[]{NameIndexField.SPECIFIC.toString(), specific};
-                hits = performSearch(searchFields, rank, cl, max, MatchType.PHRASE, false, queryParser.get()); //don't want to check for homonyms yet...
+                stage = startStage(MatchStage.PHRASE);
+                hits = performSearch(searchFields, rank, cl, max, MatchType.PHRASE, false, queryParser); //don't want to check for homonyms yet...
+                endStage(stage, hits);
                 if (hits.size() == 1) {
                     return hits;
                 } else if (hits.size() > 1) {
@@ -1103,7 +1564,9 @@ public class ALANameSearcher {
                 if (cl.getAuthorship() == null) {
                     cl.setAuthorship(pn.authorshipComplete());
                 }
-                hits = performSearch(ALANameIndexer.IndexField.NAME.toString(), canonicalName, rank, cl, max, MatchType.CANONICAL, true, queryParser.get());
+                stage = startStage(MatchStage.CANONICAL);
+                hits = performSearch(ALANameIndexer.IndexField.NAME.toString(), canonicalName, rank, cl, max, MatchType.CANONICAL, true, queryParser);
+                endStage(stage, hits);
                 if (hits.size() > 0) {
                     return hits;
                 }
@@ -1118,7 +1581,9 @@ public class ALANameSearcher {
                     searchFields[1] = new String[]{NameIndexField.PHRASE.toString(), phrase};
                     searchFields[2] = new String[]{NameIndexField.VOUCHER.toString(), voucher};
                     searchFields[3] = new String[]{NameIndexField.SPECIFIC.toString(), specific};
-                    hits = performSearch(searchFields, rank, cl, max, MatchType.PHRASE, false, queryParser.get());
+                    stage = startStage(MatchStage.CULTIVAR_PHRASE);
+                    hits = performSearch(searchFields, rank, cl, max, MatchType.PHRASE, false, queryParser);
+                    endStage(stage, hits);
                     if (hits.size() > 0) {
                         return hits;
                     }
@@ -1129,20 +1594,57 @@ public class ALANameSearcher {
                 String genus = TaxonNameSoundEx.treatWord(pn.genusOrAbove, "genus");
                 String specific = TaxonNameSoundEx.treatWord(pn.specificEpithet, "species");
                 String infra = pn.infraSpecificEpithet == null ? null : TaxonNameSoundEx.treatWord(pn.infraSpecificEpithet, "species");
-                String[][] searchFields = new String[3][];
-                searchFields[0] = new String[]{NameIndexField.GENUS_EX.toString(), genus};
-                searchFields[1] = new String[]{NameIndexField.SPECIES_EX.toString(), specific};
-                if (StringUtils.isNotEmpty(infra)) {
-                    searchFields[2] = new String[]{NameIndexField.INFRA_EX.toString(), infra};
+                String[][] searchFields;
+                if (hasSoundexKey && genus != null && specific != null) {
+                    //a single term lookup on the combined key
+                    searchFields = new String[1][];
+                    searchFields[0] = new String[]{NameIndexField.SOUNDEX_KEY.toString(), ALANameIndexer.soundexKey(genus, specific, StringUtils.isNotEmpty(infra) ? infra : "<null>")};
                 } else {
-                    searchFields[2] = new String[]{NameIndexField.INFRA_EX.toString(), "<null>"};
+                    searchFields = new String[3][];
+                    searchFields[0] = new String[]{NameIndexField.GENUS_EX.toString(), genus};
+                    searchFields[1] = new String[]{NameIndexField.SPECIES_EX.toString(), specific};
+                    if (StringUtils.isNotEmpty(infra)) {
+                        searchFields[2] = new String[]{NameIndexField.INFRA_EX.toString(), infra};
+                    } else {
+                        searchFields[2] = new String[]{NameIndexField.INFRA_EX.toString(), "<null>"};
+                    }
                 }
-                hits = performSearch(searchFields, rank, cl, max, MatchType.SOUNDEX, false, queryParser.get()); //don't want to check for homonyms yet...
+                stage = startStage(MatchStage.SOUNDEX);
+                hits = performSearch(searchFields, rank, cl, max, MatchType.SOUNDEX, false, queryParser); //don't want to check for homonyms yet...
+                endStage(stage, hits);
                 if (hits.size() > 0) {
                     return hits;
                 }
 
             }
+            //now check for names that are within a small edit distance
+            FuzzyNameIndex fuzzyNames = fuzzyIndex;
+            if (pn != null && fuzzy && fuzzyNames != null && pn.isBinomial() && pn.getType() != NameType.informal && pn.getType() != NameType.doubtful) {
+                String epithet = pn.infraSpecificEpithet == null ? pn.specificEpithet : pn.specificEpithet + " " + pn.infraSpecificEpithet;
+                stage = startStage(MatchStage.EDIT_DISTANCE);
+                checkBudget();
+                List<String> candidates = fuzzyNames.searchBinomial(pn.genusOrAbove, epithet);
+                traceQuery("editDistance:\"" + pn.genusOrAbove + " " + epithet + "\"", candidates.size());
+                hits = searchCandidates(candidates, rank, cl, max);
+                endStage(stage, hits);
+                if (hits.size() > 0) {
+                    return hits;
+                }
+            } else if (pn != null && fuzzy && fuzzyNames != null && pn.getGenusOrAbove() != null && pn.getSpecificEpithet() == null
+                    && pn.getType() != NameType.informal && pn.getType() != NameType.doubtful
+                    && (rank == null || rank.getId() < RankType.SPECIES.getId())) {
+                //a genus or higher taxon restricted to the supplied rank and kingdom
+                String kingdom = cl == null ? null : StringUtils.trimToNull(cl.getKingdom());
+                stage = startStage(MatchStage.EDIT_DISTANCE);
+                checkBudget();
+                List<String> candidates = fuzzyNames.searchUninomial(pn.getGenusOrAbove(), rank, kingdom);
+                traceQuery("editDistance:\"" + pn.getGenusOrAbove() + "\"", candidates.size());
+                hits = searchCandidates(candidates, rank, cl, max);
+                endStage(stage, hits);
+                if (hits.size() > 0) {
+                    return hits;
+                }
+            }
 
 
             return null;
@@ -1178,10 +1680,22 @@ public class ALANameSearcher {
                 return null;
         }
         if (acceptedLsid != null)
-            return searchForRecordByLsid(acceptedLsid);
+            return searchForAcceptedRecord(hits.get(0));
         return null;
     }
 
+    /**
+     * Returns the accepted concept for a synonym.  When the accepted concept has been copied into the synonym
+     * when it was indexed no search is necessary.
+     *
+     * @param synonym The synonym result
+     * @return The accepted concept
+     */
+    private NameSearchResult searchForAcceptedRecord(NameSearchResult synonym) {
+        NameSearchResult accepted = synonym.getAcceptedResult();
+        return accepted != null ? accepted : searchForRecordByLsid(synonym.getAcceptedLsid());
+    }
+
     /**
      * Checks to see if the "soundex" matched results are ambiguous.
      *
@@ -1238,10 +1752,295 @@ public class ALANameSearcher {
         return false;
     }
 
-    private List<NameSearchResult> performSearch(String field, String value, RankType rank, LinnaeanRankClassification cl, int max, MatchType type, boolean checkHomo, QueryParser parser) throws IOException, SearchResultException {
+    /**
+     * Searches for the names that were found within the edit distance of the supplied name.
+     *
+     * @param candidates The candidate names
+     * @return The results for all the candidates
+     * @throws BudgetExceededException when the budget runs out, with the first result found so far
+     */
+    private List<NameSearchResult> searchCandidates(List<String> candidates, RankType rank, LinnaeanRankClassification cl, int max) throws IOException, SearchResultException {
+        List<NameSearchResult> hits = new java.util.ArrayList<NameSearchResult>();
+        for (String candidate : candidates) {
+            try {
+                //only check for homonyms when the spelling is not ambiguous
+                hits.addAll(performSearch(NameIndexField.NAME.toString(), candidate, rank, cl, max, MatchType.EDIT_DISTANCE, candidates.size() == 1, queryParser));
+            } catch (BudgetExceededException e) {
+                if (hits.isEmpty())
+                    throw e;
+                throw new BudgetExceededException(budgetUsage.get(), hits.get(0));
+            }
+        }
+        return hits;
+    }
+
+    private List<NameSearchResult> performSearch(String field, String value, RankType rank, LinnaeanRankClassification cl, int max, MatchType type, boolean checkHomo, ObjectPool<QueryParser> parsers) throws IOException, SearchResultException {
         String[][] compValues = new String[1][];
         compValues[0] = new String[]{field, value};
-        return performSearch(compValues, rank, cl, max, type, checkHomo, parser);
+        return performSearch(compValues, rank, cl, max, type, checkHomo, parsers);
+    }
+
+    /**
+     * Loads only the stored fields that are needed to construct a {@link NameSearchResult}.
+     */
+    private Document loadResultDocument(IndexReader reader, int doc) throws IOException {
+        NameSearchResultFieldVisitor visitor = new NameSearchResultFieldVisitor();
+        reader.document(doc, visitor);
+        return visitor.getDocument();
+    }
+
+    /**
+     * Uses the exact name dictionary to resolve an exact match without a Lucene search.
+     * <p/>
+     * The classification does not need to be considered because it only contributes optional clauses which can
+     * not change a single candidate result.
+     *
+     * @param name The name to match
+     * @param rank The rank to restrict to, may be null
+     * @return The exact match results, an empty list when there are no candidates, or null when the dictionary is
+     * not in use or the candidates need to go through the homonym checks
+     */
+    private List<NameSearchResult> searchNameDictionary(String name, RankType rank) throws IOException, SearchResultException {
+        ExactNameDictionary dictionary = nameDictionary;
+        if (dictionary == null || !isLookupValue(name))
+            return null;
+        checkBudget();
+        BytesRef term = analyseTerm(queryParser, NameIndexField.NAME.toString(), name);
+        if (term == null)
+            return null;
+        int[] candidates = dictionary.getCandidates(term.utf8ToString(), rank);
+        traceQuery("dictionary:\"" + term.utf8ToString() + "\"", candidates.length);
+        List<NameSearchResult> results = new java.util.ArrayList<NameSearchResult>(1);
+        if (candidates.length == 0)
+            return results;
+        if (candidates.length > 1)
+            return null;
+        int doc = candidates[0];
+        //synonyms, excluded concepts, genera and species may all be homonyms
+        RankType resRank = dictionary.getRank(doc);
+        if (dictionary.isSynonym(doc) || resRank == RankType.GENUS || resRank == RankType.SPECIES)
+            return null;
+        results.add(new NameSearchResult(loadResultDocument(dictionary.getReader(), doc), MatchType.EXACT));
+        if (rank == null)
+            checkForCrossRankHomonym(results);
+        return results;
+    }
+
+    /**
+     * Looks up a single term directly in the postings of the scientific name index rather than scoring a parsed query.
+     * <p/>
+     * The results are in the same order as the scored search. Name lookups are ordered by the square root of the
+     * term frequency multiplied by the priority that was stored at index time (the encoded boost and length norm
+     * of the name fields) with ties going to the lower document.  All other fields are ordered by document only
+     * so the walk stops as soon as enough documents have been found.
+     *
+     * @param compulsoryValues 2D array of field and value mappings
+     * @param filter           The filter to apply, may be null
+     * @param max              The maximum number of documents to return
+     * @param parsers          The parsers that would have been used, supply the analyzer for the value
+     * @return The matching documents or null when the search can not be performed as a lookup
+     * @throws IOException
+     * @throws BudgetExceededException when the search runs out of budget part way through the segments
+     */
+    private ScoreDoc[] lookupTerm(String[][] compulsoryValues, Filter filter, int max, ObjectPool<QueryParser> parsers) throws IOException, BudgetExceededException {
+        String[] single = singleValue(compulsoryValues);
+        if (single == null || !isLookupValue(single[1]))
+            return null;
+        String field = single[0];
+        String value = single[1];
+        boolean scored = field.equals(NameIndexField.NAME.toString());
+        if (scored && !hasPriority)
+            return null;
+        BytesRef term = analyseTerm(parsers, field, value);
+        if (term == null)
+            return null;
+        List<ScoreDoc> found = new java.util.ArrayList<ScoreDoc>();
+        for (AtomicReaderContext context : cbReader.leaves()) {
+            checkBudget();
+            AtomicReader reader = context.reader();
+            Terms terms = reader.terms(field);
+            if (terms == null)
+                continue;
+            TermsEnum te = terms.iterator(null);
+            if (!te.seekExact(term, false))
+                continue;
+            Bits liveDocs = reader.getLiveDocs();
+            DocIdSetIterator accept = null;
+            if (filter != null) {
+                DocIdSet set = filter.getDocIdSet(context, liveDocs);
+                accept = set == null ? null : set.iterator();
+                if (accept == null)
+                    continue;
+            }
+            DocsEnum docs = te.docs(liveDocs, null, scored ? DocsEnum.FLAG_FREQS : DocsEnum.FLAG_NONE);
+            float[] priority = scored ? FieldCache.DEFAULT.getFloats(reader, NameIndexField.PRIORITY.toString(), FieldCache.NUMERIC_UTILS_FLOAT_PARSER, false) : null;
+            int doc = docs.nextDoc();
+            while (doc != DocIdSetIterator.NO_MORE_DOCS) {
+                if (accept != null) {
+                    int target = accept.docID() < doc ? accept.advance(doc) : accept.docID();
+                    if (target == DocIdSetIterator.NO_MORE_DOCS)
+                        break;
+                    if (target != doc) {
+                        doc = docs.advance(target);
+                        continue;
+                    }
+                }
+                float score = scored ? (float) Math.sqrt(docs.freq()) * priority[doc] : 1.0f;
+                found.add(new ScoreDoc(context.docBase + doc, score));
+                if (!scored && found.size() >= max)
+                    return found.toArray(new ScoreDoc[found.size()]);
+                doc = docs.nextDoc();
+            }
+        }
+        if (scored) {
+            //stable sort so that ties remain in document order
+            java.util.Collections.sort(found, new java.util.Comparator<ScoreDoc>() {
+                public int compare(ScoreDoc o1, ScoreDoc o2) {
+                    return Float.compare(o2.score, o1.score);
+                }
+            });
+        }
+        if (found.size() > max)
+            found = found.subList(0, max);
+        return found.toArray(new ScoreDoc[found.size()]);
+    }
+
+    /**
+     * @return The only field and value pair with a value or null when there is not exactly one
+     */
+    private static String[] singleValue(String[][] compulsoryValues) {
+        String[] single = null;
+        for (String[] values : compulsoryValues) {
+            if (values[1] != null) {
+                if (single != null)
+                    return null;
+                single = values;
+            }
+        }
+        return single;
+    }
+
+    /**
+     * Values that the query parser would treat as syntax are left to the query parser.
+     *
+     * @return true when the value can be looked up as a term
+     */
+    private static boolean isLookupValue(String value) {
+        return value.length() > 0 && value.indexOf('"') < 0 && value.indexOf('\\') < 0;
+    }
+
+    /**
+     * Answers a name lookup from the candidates of the batch being matched.
+     * <p/>
+     * A name without candidates has no hits whatever the rank and classification.  A single candidate that passes the
+     * rank filter is the only hit because the classification only contributes optional clauses.  Several candidates
+     * are only returned when they would have been ordered by the lookup score.
+     *
+     * @return The matching documents or null when the lookup must be searched
+     */
+    private ScoreDoc[] lookupBatch(String[][] compulsoryValues, RankType rank, Filter filter, int max, boolean unscored, ObjectPool<QueryParser> parsers) throws IOException, BudgetExceededException {
+        ExactNameBatch batch = exactBatch.get();
+        if (batch == null || batch.getReader() != cbReader)
+            return null;
+        checkBudget();
+        String[] single = singleValue(compulsoryValues);
+        if (single == null || !single[0].equals(batch.getField()) || !isLookupValue(single[1]))
+            return null;
+        BytesRef term = analyseTerm(parsers, single[0], single[1]);
+        ExactNameBatch.Candidates candidates = term == null ? null : batch.getCandidates(term);
+        if (candidates == null)
+            return null;
+        if (candidates.size() == 0)
+            return new ScoreDoc[0];
+        //the rank is a parsed clause when there is no filter
+        if (rank != null && filter == null)
+            return null;
+        int[] docs = candidates.getDocs();
+        float[] scores = candidates.getScores();
+        List<ScoreDoc> found = new java.util.ArrayList<ScoreDoc>(docs.length);
+        List<AtomicReaderContext> leaves = cbReader.leaves();
+        AtomicReaderContext context = null;
+        DocIdSetIterator accept = null;
+        for (int i = 0; i < docs.length; i++) {
+            int doc = docs[i];
+            if (filter != null) {
+                if (context == null || doc >= context.docBase + context.reader().maxDoc()) {
+                    context = leaves.get(ReaderUtil.subIndex(doc, leaves));
+                    DocIdSet set = filter.getDocIdSet(context, context.reader().getLiveDocs());
+                    accept = set == null ? null : set.iterator();
+                }
+                if (accept == null)
+                    continue;
+                int local = doc - context.docBase;
+                int target = accept.docID() < local ? accept.advance(local) : accept.docID();
+                if (target != local)
+                    continue;
+            }
+            found.add(new ScoreDoc(doc, scores[i]));
+        }
+        if (found.size() > 1) {
+            if (!unscored || !hasPriority || !constantScoreLookups)
+                return null;
+            //stable sort so that ties remain in document order
+            java.util.Collections.sort(found, new java.util.Comparator<ScoreDoc>() {
+                public int compare(ScoreDoc o1, ScoreDoc o2) {
+                    return Float.compare(o2.score, o1.score);
+                }
+            });
+        }
+        if (found.size() > max)
+            found = found.subList(0, max);
+        return found.toArray(new ScoreDoc[found.size()]);
+    }
+
+    /**
+     * Runs the value through the analyzer of one of the pooled parsers.
+     *
+     * @return The single term produced or null when the analyzer does not produce exactly one term
+     */
+    private BytesRef analyseTerm(ObjectPool<QueryParser> parsers, String field, String value) throws IOException {
+        QueryParser qp = parsers.borrow();
+        try {
+            return analyseTerm(qp.getAnalyzer(), field, value);
+        } finally {
+            parsers.release(qp);
+        }
+    }
+
+    /**
+     * Parses a query with one of the pooled parsers.
+     */
+    private Query parse(ObjectPool<QueryParser> parsers, String query) throws ParseException {
+        QueryParser qp = parsers.borrow();
+        try {
+            return qp.parse(query);
+        } finally {
+            parsers.release(qp);
+        }
+    }
+
+    /**
+     * Runs the value through the supplied analyzer.
+     *
+     * @return The single term produced or null when the analyzer does not produce exactly one term
+     */
+    private BytesRef analyseTerm(Analyzer analyzer, String field, String value) throws IOException {
+        TokenStream ts = analyzer.tokenStream(field, new StringReader(value));
+        try {
+            TermToBytesRefAttribute termAtt = ts.getAttribute(TermToBytesRefAttribute.class);
+            BytesRef bytes = termAtt.getBytesRef();
+            ts.reset();
+            if (!ts.incrementToken())
+                return null;
+            termAtt.fillBytesRef();
+            BytesRef term = BytesRef.deepCopyOf(bytes);
+            if (ts.incrementToken())
+                return null;
+            ts.end();
+            return term;
+        } finally {
+            ts.close();
+        }
     }
 
     /**
@@ -1253,13 +2052,13 @@ public class ALANameSearcher {
      * @param max       The maximum number of results to return
      * @param type      The type of search that is being performed
      * @param checkHomo Whether or not the result should check for homonyms.
-     * @param parser
+     * @param parsers
      * @return
      * @throws IOException
      * @throws SearchResultException
      */
 
-    private List<NameSearchResult> performSearch(String[][] compulsoryValues, RankType rank, LinnaeanRankClassification cl, int max, MatchType type, boolean checkHomo, QueryParser parser) throws IOException, SearchResultException {
+    private List<NameSearchResult> performSearch(String[][] compulsoryValues, RankType rank, LinnaeanRankClassification cl, int max, MatchType type, boolean checkHomo, ObjectPool<QueryParser> parsers) throws IOException, SearchResultException {
         if (cbSearcher != null) {
             String scientificName = null;
             StringBuilder query = new StringBuilder();
@@ -1274,7 +2073,11 @@ public class ALANameSearcher {
 
             }
 
-            if (rank != null) {
+            //use the cached rank family filter instead of a parsed clause when there is something to filter
+            Filter filter = null;
+            if (rank != null && filterCache != null && query.length() > 0) {
+                filter = filterCache.getRankFilter(rank);
+            } else if (rank != null) {
                 //if the rank is below species include all names that are species level and below in case synonyms have changed ranks.
                 query.append("+(");
                 if (rank.getId() >= RankType.SPECIES.getId()) {
@@ -1287,22 +2090,44 @@ public class ALANameSearcher {
                 query.append(" OR ").append(NameIndexField.iS_SYNONYM.toString()).append(":T OR ").append(NameIndexField.ALA).append(":T)");
 
             }
-            if (cl != null) {
-                query.append(cl.getLuceneSearchString(true));
+            //when the authors are indexed as keys they are compared after the search instead of being scored
+            String optional = cl != null ? cl.getLuceneSearchString(true, !hasAuthorKey) : null;
+            if (optional != null) {
+                query.append(optional);
 
             }
 
             try {
-
-                TopDocs hits = cbSearcher.search(parser.parse(query.toString()), max);//cbSearcher.search(boolQuery, max);
+                ScoreDoc[] scoreDocs = lookupBatch(compulsoryValues, rank, filter, max, StringUtils.isBlank(optional), parsers);
+                if (scoreDocs != null) {
+                    traceQuery("batch:" + query.toString(), scoreDocs.length);
+                } else {
+                    spendQuery();
+                    if (constantScoreLookups && (rank == null || filter != null) && StringUtils.isBlank(optional)) {
+                        scoreDocs = lookupTerm(compulsoryValues, filter, max, parsers);
+                    }
+                    if (scoreDocs == null) {
+                        scoreDocs = scoredSearch(parse(parsers, query.toString()), filter, max);
+                    }
+                    traceQuery(query.toString(), scoreDocs.length);
+                }
+                //the hits may have been cut off before a candidate with the supplied author
+                String[] authorKey = hasAuthorKey && cl != null && StringUtils.isNotBlank(cl.getAuthorship()) ? authorSimilarity.getKey(cl.getAuthorship()) : null;
+                if (authorKey != null && authorKey[0] != null && scoreDocs.length >= max)
+                    scoreDocs = addAuthorCandidates(scoreDocs, parse(parsers, query.toString()), filter, authorKey[0], max);
 
                 //now put the hits into the arrayof NameSearchResult
                 List<NameSearchResult> results = new java.util.ArrayList<NameSearchResult>();
 
-                for (ScoreDoc sdoc : hits.scoreDocs) {
-                    NameSearchResult nsr = new NameSearchResult(cbReader.document(sdoc.doc), type);
+                for (ScoreDoc sdoc : scoreDocs) {
+                    NameSearchResult nsr = new NameSearchResult(loadResultDocument(cbReader, sdoc.doc), type);
                     results.add(nsr);
                 }
+                if (authorKey != null && authorKey[0] != null) {
+                    sortByAuthor(results, authorKey);
+                    while (results.size() > max)
+                        results.remove(results.size() - 1);
+                }
 
                 //HOMONYM CHECKS and other checks
                 if (checkHomo) {
@@ -1331,11 +2156,13 @@ public class ALANameSearcher {
                         }
                     }
 
+                    MatchTrace.Stage stage = startStage(MatchStage.SYNONYM_CHECK);
                     //check to see if we have a situtation where a species has been split into subspecies and a synonym exists to the subspecies
                     checkForSpeciesSplit(results);
 
                     //check to see if one of the results is a misapplied synonym
                     checkForMisapplied(results);
+                    endStage(stage, results);
 
 
                     //check result level homonyms
@@ -1352,9 +2179,16 @@ public class ALANameSearcher {
                     if (results.size() > 0) {
                         RankType resRank = results.get(0).getRank();
                         if ((resRank == RankType.GENUS || resRank == RankType.SPECIES) || (results.get(0).isSynonym() && (rank == null || rank == RankType.GENUS || rank == RankType.SPECIES))) {
-                            NameSearchResult result = (cl != null && StringUtils.isNotBlank(cl.getAuthorship())) ? validateHomonymByAuthor(results, scientificName, cl) : validateHomonyms(results, scientificName, cl);
+                            stage = startStage(MatchStage.HOMONYM);
+                            NameSearchResult result;
+                            try {
+                                result = (cl != null && StringUtils.isNotBlank(cl.getAuthorship())) ? validateHomonymByAuthor(results, scientificName, cl) : validateHomonyms(results, scientificName, cl);
+                            } catch (BudgetStop e) {
+                                throw e.getException();
+                            }
                             results.clear();
                             results.add(result);
+                            endStage(stage, results);
                         }
                     }
                 }
@@ -1368,6 +2202,57 @@ public class ALANameSearcher {
         return null;
     }
 
+    /**
+     * Performs a scored search, abandoning it when it runs past the time budget of the current search.
+     */
+    private ScoreDoc[] scoredSearch(Query query, Filter filter, int max) throws IOException, BudgetExceededException {
+        MatchBudget.Usage usage = budgetUsage.get();
+        long remaining = usage == null ? Long.MAX_VALUE : usage.getRemainingTime();
+        if (remaining == Long.MAX_VALUE) {
+            TopDocs hits = cbSearcher.search(query, filter, max);//cbSearcher.search(boolQuery, max);
+            return hits.scoreDocs;
+        }
+        if (remaining <= 0)
+            throw new BudgetExceededException(usage);
+        TopScoreDocCollector collector = TopScoreDocCollector.create(Math.max(1, Math.min(max, cbReader.maxDoc())), true);
+        try {
+            cbSearcher.search(query, filter, new TimeLimitingCollector(collector, TimeLimitingCollector.getGlobalCounter(), remaining));
+        } catch (TimeLimitingCollector.TimeExceededException e) {
+            throw new BudgetExceededException(usage);
+        }
+        return collector.topDocs().scoreDocs;
+    }
+
+    /**
+     * Adds the candidates with the supplied author key that were not among the top hits.
+     *
+     * @param scoreDocs The top hits
+     * @param query     The query that produced the hits
+     * @param filter    The filter used for the hits, may be null
+     * @param key       The author key
+     * @param max       The maximum number of candidates to add
+     * @return The top hits followed by the missing candidates with the author
+     * @throws IOException
+     * @throws BudgetExceededException
+     */
+    private ScoreDoc[] addAuthorCandidates(ScoreDoc[] scoreDocs, Query query, Filter filter, String key, int max) throws IOException, BudgetExceededException {
+        BooleanQuery authorQuery = new BooleanQuery();
+        authorQuery.add(query, BooleanClause.Occur.MUST);
+        authorQuery.add(new TermQuery(new Term(NameIndexField.AUTHOR_KEY.toString(), key)), BooleanClause.Occur.MUST);
+        spendQuery();
+        ScoreDoc[] authorDocs = scoredSearch(authorQuery, filter, max);
+        traceQuery("author:" + authorQuery.toString(), authorDocs.length);
+        Set<Integer> seen = new HashSet<Integer>();
+        for (ScoreDoc sdoc : scoreDocs)
+            seen.add(sdoc.doc);
+        List<ScoreDoc> combined = new java.util.ArrayList<ScoreDoc>(Arrays.asList(scoreDocs));
+        for (ScoreDoc sdoc : authorDocs) {
+            if (seen.add(sdoc.doc))
+                combined.add(sdoc);
+        }
+        return combined.size() == scoreDocs.length ? scoreDocs : combined.toArray(new ScoreDoc[combined.size()]);
+    }
+
     private void checkResultLevelHomonym(List<NameSearchResult> results) throws HomonymException {
         //They are result level homonyms if multiple records and they don't all point to the same accepted concept...
         //They are not homonyms if they have different Kingdoms...
@@ -1406,7 +2291,7 @@ public class ALANameSearcher {
         if (s1 != null && s2 != null && Math.abs(s1.length() - s2.length()) <= maxLengthDif) {
             //if the difference in the length of the 2 strings is at the most maxLengthDif characters compare the L distance
             //log.debug("Difference ("+s1 + ", " + s2+") : " + StringUtils.getLevenshteinDistance(s1, s2));
-            return StringUtils.getLevenshteinDistance(s1, s2) <= maxDist;
+            return Levenshtein.distance(s1, s2, maxDist) <= maxDist;
 
         }
         return false;
@@ -1418,10 +2303,10 @@ public class ALANameSearcher {
             NameSearchResult second = (results.size() > 1) ? results.get(1) : null;
             if (first.getSynonymType() == au.org.ala.names.model.SynonymType.MISAPPLIED) {
                 //the first result is misapplied
-                NameSearchResult accepted = searchForRecordByLsid(first.getAcceptedLsid());
+                NameSearchResult accepted = searchForAcceptedRecord(first);
                 throw new MisappliedException(accepted);
             } else if (!first.isSynonym() && second != null && second.getSynonymType() == au.org.ala.names.model.SynonymType.MISAPPLIED) {
-                NameSearchResult accepted = searchForRecordByLsid(second.getAcceptedLsid());
+                NameSearchResult accepted = searchForAcceptedRecord(second);
                 throw new MisappliedException(first, accepted);
             }
 
@@ -1434,7 +2319,7 @@ public class ALANameSearcher {
             if (results.get(0).isSynonym() != results.get(1).isSynonym() && ((!results.get(0).isSynonym() && results.get(0).getRank() == RankType.SPECIES) || (!results.get(1).isSynonym() && results.get(1).getRank() == RankType.SPECIES))) {
                 NameSearchResult synResult = results.get(0).isSynonym() ? results.get(0) : results.get(1);
                 NameSearchResult accResult = results.get(0).isSynonym() ? results.get(1) : results.get(0);
-                NameSearchResult accSynResult = searchForRecordByLsid(synResult.getAcceptedLsid());
+                NameSearchResult accSynResult = searchForAcceptedRecord(synResult);
                 if (accResult.getLeft() != null && accSynResult.getLeft() != null) {
                     int asyLeft = Integer.parseInt(accSynResult.getLeft());
                     if (asyLeft > Integer.parseInt(accResult.getLeft()) && asyLeft < Integer.parseInt(accResult.getRight()))
@@ -1444,6 +2329,7 @@ public class ALANameSearcher {
         } else if (results.size() > 2) {
             //check to see if the all other results as synonyms of the same concept AND that concept is a child to the acc concept
             NameSearchResult accResult = null;
+            NameSearchResult synResult = null;
             String acceptedLsid = null;
             for (NameSearchResult nsr : results) {
                 if (!nsr.isSynonym()) {
@@ -1457,12 +2343,13 @@ public class ALANameSearcher {
                             return;
                     } else {
                         acceptedLsid = nsr.getAcceptedLsid();
+                        synResult = nsr;
                     }
                 }
             }
             //now check to see if the accepeted concept is a child of the accResult
             if (accResult != null && acceptedLsid != null) {
-                NameSearchResult accSynResult = searchForRecordByLsid(acceptedLsid);
+                NameSearchResult accSynResult = searchForAcceptedRecord(synResult);
                 if (accResult.getLeft() != null && accSynResult.getLeft() != null) {
                     int asyLeft = Integer.parseInt(accSynResult.getLeft());
                     if (asyLeft > Integer.parseInt(accResult.getLeft()) && asyLeft < Integer.parseInt(accResult.getRight()))
@@ -1490,22 +2377,43 @@ public class ALANameSearcher {
     }
 
 
+    /**
+     * Moves the results with the same author as the supplied author to the front, those that also have the same
+     * year first.  Otherwise the order of the results is unchanged.
+     *
+     * @param results The results to reorder
+     * @param key     The author key and year of the supplied author
+     */
+    private void sortByAuthor(List<NameSearchResult> results, final String[] key) {
+        if (results.size() < 2)
+            return;
+        Collections.sort(results, new Comparator<NameSearchResult>() {
+            @Override
+            public int compare(NameSearchResult r1, NameSearchResult r2) {
+                return authorOrder(r1) - authorOrder(r2);
+            }
+
+            private int authorOrder(NameSearchResult result) {
+                if (!key[0].equals(result.getAuthorKey()))
+                    return 2;
+                return key[1] != null && key[1].equals(result.getAuthorYear()) ? 0 : 1;
+            }
+        });
+    }
+
     public NameSearchResult validateHomonymByAuthor(List<NameSearchResult> result, String name, LinnaeanRankClassification cl) throws HomonymException {
         //based on the facte that the author is included in the search the first result should be the most complete
-        String suppliedAuthor = prepareAuthor(cl.getAuthorship());
+        String resultKey = result.get(0).getAuthorKey();
+        if (resultKey != null && resultKey.equals(authorSimilarity.getKey(cl.getAuthorship())[0]))
+            return result.get(0);
         String resultAuthor = result.get(0).getRankClassification().getAuthorship();
-        uk.ac.shef.wit.simmetrics.similaritymetrics.SmithWatermanGotoh similarity = new uk.ac.shef.wit.simmetrics.similaritymetrics.SmithWatermanGotoh();
-        if (resultAuthor == null || similarity.getSimilarity(suppliedAuthor, resultAuthor) < 0.8) {
+        if (resultAuthor == null || authorSimilarity.getSimilarity(cl.getAuthorship(), resultAuthor) < 0.8) {
             //test based on the irmng list of homoymns
             validateHomonyms(result, name, cl);
         }
         return result.get(0);
     }
 
-    private String prepareAuthor(String author) {
-        return author.replaceAll("\\p{P}", "").replaceAll("\\p{Z}", "");
-    }
-
 
     /**
      * Takes a result set that contains a homonym and then either throws a HomonymException
@@ -1590,8 +2498,11 @@ public class ALANameSearcher {
                     // 1) The IRMNG entry that resolves the homonym includes an "accepted" concepts
                     // 2) The resolveLevel is Kingdom and we make an assumption that the concept has not changed kingdoms
                     //    -- This is not always true especially with plants/algae/fungi and animalia/protozoa
-                    //TODO algorithm to handle this situations see above comment
-
+                    //When the accepted classification has been copied into the synonym it can be used above the genus
+                    //provided a kingdom has been supplied. The genus of a synonym is often different to the genus of the accepted concept.
+                    if (result.hasAcceptedConcept() && resolveLevel.getId() < RankType.GENUS.getId() && StringUtils.isNotEmpty(cl.getKingdom())
+                            && cl.hasIdenticalClassification(result.getAcceptedResult().getRankClassification(), resolveLevel))
+                        return result;
                 } else {
                     if (cl.hasIdenticalClassification(result.getRankClassification(), resolveLevel))
                         return result;
@@ -1635,7 +2546,7 @@ public class ALANameSearcher {
 
 
                 log.debug("Search string : " + searchString + " classification : " + cl);
-                Query query = queryParser.get().parse(searchString);
+                Query query = parse(queryParser, searchString);
                 log.debug("getIRMNG query: " + query.toString());
                 return irmngSearcher.search(query, 10);
 
@@ -1646,6 +2557,39 @@ public class ALANameSearcher {
         return null;
     }
 
+    /**
+     * Charges the IRMNG search to the budget of the current search.
+     * <p/>
+     * The homonym methods are public and only declare a HomonymException, so running out of budget is
+     * carried out of them as a {@link BudgetStop} and turned back into the checked exception by performSearch.
+     */
+    private TopDocs searchIRMNG(LinnaeanRankClassification cl, RankType rank) {
+        try {
+            spendQuery();
+        } catch (BudgetExceededException e) {
+            throw new BudgetStop(e);
+        }
+        return getIRMNGGenus(cl, rank);
+    }
+
+    /**
+     * Carries a budget that ran out during the homonym resolution back to the search.
+     */
+    private static class BudgetStop extends RuntimeException {
+        BudgetStop(BudgetExceededException cause) {
+            super(cause);
+        }
+
+        BudgetExceededException getException() {
+            return (BudgetExceededException) getCause();
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+
     /**
      * Attempt to resolve the homonym using the IRMNG index.
      * <p/>
@@ -1663,7 +2607,7 @@ public class ALANameSearcher {
             if (rank == RankType.SPECIES)
                 newcl.setSpecies(cl.getSpecies());
             if (cl != null && (cl.getGenus() != null || cl.getSpecies() != null)) {
-                TopDocs results = getIRMNGGenus(newcl, rank);
+                TopDocs results = searchIRMNG(newcl, rank);
                 if (results == null || results.totalHits <= 1)
                     return null;
 
@@ -1671,14 +2615,14 @@ public class ALANameSearcher {
                     //create a local classification to work with we will only add a taxon when we are ready to try and resolve with it
                     newcl.setKingdom(cl.getKingdom());
                     //Step 1 search for kingdom and genus
-                    results = getIRMNGGenus(newcl, rank);
+                    results = searchIRMNG(newcl, rank);
                     if (results.totalHits == 1)
                         return RankType.KINGDOM;
                 }
                 //Step 2 add the phylum
                 if (cl.getPhylum() != null && results.totalHits > 1) {
                     newcl.setPhylum(cl.getPhylum());
-                    results = getIRMNGGenus(newcl, rank);
+                    results = searchIRMNG(newcl, rank);
                     if (results.totalHits == 1)
                         return RankType.PHYLUM;
                         //This may not be a good idea
@@ -1688,7 +2632,7 @@ public class ALANameSearcher {
                 //Step 3 try the class
                 if (cl.getKlass() != null) {// && results.totalHits>1){
                     newcl.setKlass(cl.getKlass());
-                    results = getIRMNGGenus(newcl, rank);
+                    results = searchIRMNG(newcl, rank);
                     if (results.totalHits == 1)
                         return RankType.CLASS;
 
@@ -1696,14 +2640,14 @@ public class ALANameSearcher {
                 //step 4 try order
                 if (cl.getOrder() != null && results.totalHits > 1) {
                     newcl.setOrder(cl.getOrder());
-                    results = getIRMNGGenus(newcl, rank);
+                    results = searchIRMNG(newcl, rank);
                     if (results.totalHits == 1)
                         return RankType.ORDER;
                 }
                 //step 5 try  the family
                 if (cl.getFamily() != null && results.totalHits > 1) {
                     newcl.setFamily(cl.getFamily());
-                    results = getIRMNGGenus(newcl, rank);
+                    results = searchIRMNG(newcl, rank);
                     if (results.totalHits == 1)
                         return RankType.FAMILY;
                 }
@@ -1844,10 +2788,105 @@ public class ALANameSearcher {
         return lsid;
     }
 
+    /**
+     * Gets the primary LSID for each of a collection of LSIDs.
+     * <p/>
+     * The identifiers are sorted and looked up with a sequential pass over the lsid terms of each segment of the
+     * identifier index rather than a search for each one.
+     *
+     * @param lsids The LSIDs
+     * @return The primary LSID keyed on each of the LSIDs, the LSID itself when it has no other primary LSID
+     */
+    public Map<String, String> getPrimaryLsids(Collection<String> lsids) {
+        Map<String, String> primary = new HashMap<String, String>(lsids.size() * 2);
+        for (String lsid : lsids) {
+            if (lsid != null)
+                primary.put(lsid, lsid);
+        }
+        Set<String> fields = Collections.singleton("reallsid");
+        try {
+            IndexReader reader = idSearcher.getIndexReader();
+            for (Map.Entry<Integer, String> entry : lookupIds(reader, "lsid", primary.keySet()).entrySet()) {
+                NameSearchResultFieldVisitor visitor = new NameSearchResultFieldVisitor(fields);
+                reader.document(entry.getKey(), visitor);
+                String real = visitor.getDocument().get("reallsid");
+                if (real != null)
+                    primary.put(entry.getValue(), real);
+            }
+        } catch (IOException e) {
+            log.error("Unable to look up the primary LSIDs", e);
+        }
+        return primary;
+    }
+
+    /**
+     * Returns the records for a collection of LSIDs.
+     * <p/>
+     * The identifiers are sorted and looked up with a sequential pass over the lsid terms of each segment of the
+     * name index rather than a search for each one.
+     *
+     * @param lsids The LSIDs
+     * @return The records keyed on the LSIDs that were found
+     */
+    public Map<String, NameSearchResult> searchForRecordsByLsid(Collection<String> lsids) {
+        return searchForRecordsByIdentifier(ALANameIndexer.IndexField.LSID.toString(), lsids);
+    }
+
+    /**
+     * Returns the records for a collection of checklist bank ids, with the same sequential pass over the id terms as
+     * {@link #searchForRecordsByLsid(java.util.Collection)}.
+     *
+     * @param ids The ids
+     * @return The records keyed on the ids that were found
+     */
+    public Map<String, NameSearchResult> searchForRecordsByID(Collection<String> ids) {
+        return searchForRecordsByIdentifier(ALANameIndexer.IndexField.ID.toString(), ids);
+    }
+
+    private Map<String, NameSearchResult> searchForRecordsByIdentifier(String field, Collection<String> ids) {
+        Map<String, NameSearchResult> results = new HashMap<String, NameSearchResult>(ids.size() * 2);
+        DirectoryReader reader = cbReader;
+        if (reader == null)
+            return results;
+        try {
+            for (Map.Entry<Integer, String> entry : lookupIds(reader, field, ids).entrySet())
+                results.put(entry.getValue(), new NameSearchResult(loadResultDocument(reader, entry.getKey()), MatchType.TAXON_ID));
+        } catch (IOException e) {
+            log.error("Unable to search for records by " + field, e);
+        }
+        return results;
+    }
+
+    /**
+     * Finds the first live document for each of the identifiers, which are indexed untokenised.
+     *
+     * @return The identifiers keyed on the documents that contain them, in document order so that the stored fields
+     * can be read sequentially
+     */
+    private java.util.SortedMap<Integer, String> lookupIds(IndexReader reader, String field, Collection<String> ids) throws IOException {
+        List<String> sorted = new java.util.ArrayList<String>(new HashSet<String>(ids));
+        sorted.remove(null);
+        Collections.sort(sorted);
+        java.util.SortedMap<Integer, String> found = new java.util.TreeMap<Integer, String>();
+        for (int start = 0; start < sorted.size(); start += ID_BATCH_SIZE) {
+            List<String> chunk = sorted.subList(start, Math.min(sorted.size(), start + ID_BATCH_SIZE));
+            List<BytesRef> terms = new java.util.ArrayList<BytesRef>(chunk.size());
+            for (String id : chunk)
+                terms.add(new BytesRef(id));
+            ExactNameBatch batch = new ExactNameBatch(reader, field, terms, null);
+            for (int i = 0; i < chunk.size(); i++) {
+                ExactNameBatch.Candidates candidates = batch.getCandidates(terms.get(i));
+                if (candidates.size() > 0)
+                    found.put(candidates.getDocs()[0], chunk.get(i));
+            }
+        }
+        return found;
+    }
+
     public NameSearchResult searchForRecordByLsid(String lsid) {
         NameSearchResult result = null;
         try {
-            List<NameSearchResult> results = performSearch(ALANameIndexer.IndexField.LSID.toString(), lsid, null, null, 1, MatchType.DIRECT, false, idParser.get());
+            List<NameSearchResult> results = performSearch(ALANameIndexer.IndexField.LSID.toString(), lsid, null, null, 1, MatchType.DIRECT, false, idParser);
             if (results.size() > 0)
                 result = results.get(0);
         } catch (Exception e) {
@@ -0,0 +1,391 @@
+/*
+ * Copyright (C) 2014 Atlas of Living Australia
+ * All Rights Reserved.
+ *
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ */
+
+package au.org.ala.names.search;
+
+import au.org.ala.names.model.LinnaeanRankClassification;
+import au.org.ala.names.model.MetricsResultDTO;
+import au.org.ala.names.util.MatchExecutors;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An asynchronous facade over a {@link ALANameSearcher}.
+ * <p/>
+ * The matches are run on an executor owned by the facade, so the searcher controls its own concurrency rather than
+ * inheriting the caller's.  Each match returns a future and can also notify a {@link MatchCallback} when it is
+ * complete, so that callers can continue with other work without waiting on the future.
+ * <p/>
+ * The executor has a bounded queue.  When it is full the rejection policy applies, by default the match is rejected
+ * with a {@link RejectedExecutionException}.  A virtual thread executor, from
+ * {@link MatchExecutors#newVirtualThreadExecutor()}, can be supplied instead for very many concurrent matches.
+ */
+public class AsyncNameSearcher {
+    private static final Log log = LogFactory.getLog(AsyncNameSearcher.class);
+
+    private final ALANameSearcher searcher;
+    private final ExecutorService executor;
+    private int batchSize = 100;
+    private int window;
+
+    /**
+     * Notified when a match is complete.  The callback is run on the matching thread and should not block.
+     */
+    public interface MatchCallback<T> {
+        void completed(T result);
+
+        void failed(Throwable cause);
+    }
+
+    /**
+     * @param searcher  The searcher
+     * @param threads   The number of matching threads
+     * @param queueSize The number of matches that can be queued
+     * @param rejection What to do when the queue is full, eg {@link ThreadPoolExecutor.CallerRunsPolicy}
+     */
+    public AsyncNameSearcher(ALANameSearcher searcher, int threads, int queueSize, RejectedExecutionHandler rejection) {
+        this(searcher, new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)), MatchExecutors.threadFactory(), rejection));
+    }
+
+    /**
+     * Rejects matches when the queue is full.
+     *
+     * @param searcher  The searcher
+     * @param threads   The number of matching threads
+     * @param queueSize The number of matches that can be queued
+     */
+    public AsyncNameSearcher(ALANameSearcher searcher, int threads, int queueSize) {
+        this(searcher, threads, queueSize, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * @param searcher The searcher
+     * @param executor The executor to match with
+     */
+    public AsyncNameSearcher(ALANameSearcher searcher, ExecutorService executor) {
+        this.searcher = searcher;
+        this.executor = executor;
+        window = executor instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) executor).getMaximumPoolSize() : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * @param batchSize The number of classifications in each task of a bulk match
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * @param window The number of batches of a bulk match that are submitted to the executor at once.  Defaults
+     *               to the number of threads of the executor.
+     */
+    public void setWindow(int window) {
+        this.window = Math.max(1, window);
+    }
+
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Matches a classification.
+     *
+     * @param cl                The classification
+     * @param recursiveMatching When true attempt to match on higher classification
+     * @param fuzzy             When true allow fuzzy matching on scientific names
+     * @return The future metrics
+     * @throws RejectedExecutionException when the match is rejected
+     */
+    public Future<MetricsResultDTO> match(LinnaeanRankClassification cl, boolean recursiveMatching, boolean fuzzy) {
+        return match(cl, recursiveMatching, fuzzy, null);
+    }
+
+    /**
+     * Matches a classification, notifying the callback when it is complete.
+     *
+     * @param cl                The classification
+     * @param recursiveMatching When true attempt to match on higher classification
+     * @param fuzzy             When true allow fuzzy matching on scientific names
+     * @param callback          The callback, may be null
+     * @return The future metrics
+     * @throws RejectedExecutionException when the match is rejected
+     */
+    public Future<MetricsResultDTO> match(final LinnaeanRankClassification cl, final boolean recursiveMatching, final boolean fuzzy, MatchCallback<MetricsResultDTO> callback) {
+        MatchTask<MetricsResultDTO> task = new MatchTask<MetricsResultDTO>(new Callable<MetricsResultDTO>() {
+            @Override
+            public MetricsResultDTO call() {
+                return searcher.searchForRecordMetrics(cl, recursiveMatching, false, fuzzy);
+            }
+        }, callback);
+        executor.execute(task);
+        return task;
+    }
+
+    /**
+     * Matches a list of classifications.  The classifications are matched in batches, so that one bulk match does
+     * not fill the queue.  Only a window of batches is submitted at once, the next batch is submitted as each batch
+     * is finished, so a list of any length can be matched.  A batch that the executor rejects is submitted again
+     * when a running batch finishes, or run by the thread of the last batch to finish.
+     *
+     * @param cls               The classifications
+     * @param recursiveMatching When true attempt to match on higher classification
+     * @param fuzzy             When true allow fuzzy matching on scientific names
+     * @param callback          Notified with all the metrics, in order, when every match is complete. May be null
+     * @return The future metrics in the same order as the classifications
+     * @throws RejectedExecutionException when the first batches are rejected, any batches already submitted
+     * are cancelled.  When the executor is shut down before the last batch is submitted the future fails with the
+     * exception.
+     */
+    public Future<List<MetricsResultDTO>> matchAll(List<LinnaeanRankClassification> cls, boolean recursiveMatching, boolean fuzzy, MatchCallback<List<MetricsResultDTO>> callback) {
+        BulkFuture bulk = new BulkFuture(cls.size(), callback, executor, window);
+        for (int start = 0; start < cls.size(); start += batchSize) {
+            final List<LinnaeanRankClassification> batch = cls.subList(start, Math.min(cls.size(), start + batchSize));
+            final boolean recursive = recursiveMatching;
+            final boolean fz = fuzzy;
+            MatchTask<List<MetricsResultDTO>> task = new MatchTask<List<MetricsResultDTO>>(new Callable<List<MetricsResultDTO>>() {
+                @Override
+                public List<MetricsResultDTO> call() {
+                    return searcher.searchForRecordsMetrics(batch, recursive, false, fz);
+                }
+            }, bulk);
+            bulk.batches.add(task);
+            bulk.pending.add(task);
+        }
+        bulk.expected.set(bulk.batches.size());
+        if (bulk.batches.isEmpty()) {
+            bulk.finish();
+            return bulk;
+        }
+        try {
+            bulk.submit(false);
+        } catch (RejectedExecutionException e) {
+            bulk.cancel(true);
+            throw e;
+        }
+        return bulk;
+    }
+
+    /**
+     * Matches a list of classifications.
+     *
+     * @see #matchAll(java.util.List, boolean, boolean, au.org.ala.names.search.AsyncNameSearcher.MatchCallback)
+     */
+    public Future<List<MetricsResultDTO>> matchAll(List<LinnaeanRankClassification> cls, boolean recursiveMatching, boolean fuzzy) {
+        return matchAll(cls, recursiveMatching, fuzzy, null);
+    }
+
+    /**
+     * Stops accepting matches, the queued matches are still run.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * A match that notifies its callback when it is done.
+     */
+    private static class MatchTask<T> extends FutureTask<T> {
+        private final MatchCallback<T> callback;
+
+        MatchTask(Callable<T> callable, MatchCallback<T> callback) {
+            super(callable);
+            this.callback = callback;
+        }
+
+        @Override
+        protected void done() {
+            if (callback == null)
+                return;
+            try {
+                T result;
+                try {
+                    result = get();
+                } catch (ExecutionException e) {
+                    callback.failed(e.getCause());
+                    return;
+                } catch (CancellationException e) {
+                    callback.failed(e);
+                    return;
+                } catch (InterruptedException e) {
+                    callback.failed(e);
+                    return;
+                }
+                callback.completed(result);
+            } catch (RuntimeException e) {
+                log.warn("Match callback failed", e);
+            }
+        }
+    }
+
+    /**
+     * The combined result of the batches of a bulk match.
+     */
+    private static class BulkFuture extends FutureTask<List<MetricsResultDTO>> implements MatchCallback<List<MetricsResultDTO>> {
+        private final List<MatchTask<List<MetricsResultDTO>>> batches = new ArrayList<MatchTask<List<MetricsResultDTO>>>();
+        //guards the pending batches and the running count so that a rejected batch is always handed to a batch that is still running
+        private final Object lock = new Object();
+        //the batches that have not been submitted
+        private final ArrayDeque<MatchTask<List<MetricsResultDTO>>> pending = new ArrayDeque<MatchTask<List<MetricsResultDTO>>>();
+        private final AtomicInteger expected = new AtomicInteger();
+        //the batches that are being submitted or have been submitted and have not finished
+        private int running;
+        //the batches waiting to be run by a thread that is already running a batch inline
+        private final ThreadLocal<LinkedList<MatchTask<List<MetricsResultDTO>>>> inline = new ThreadLocal<LinkedList<MatchTask<List<MetricsResultDTO>>>>();
+        private final MatchCallback<List<MetricsResultDTO>> callback;
+        private final ExecutorService executor;
+        private final int window;
+        private final int size;
+
+        BulkFuture(int size, MatchCallback<List<MetricsResultDTO>> callback, ExecutorService executor, int window) {
+            super(new Callable<List<MetricsResultDTO>>() {
+                @Override
+                public List<MetricsResultDTO> call() {
+                    return null;
+                }
+            });
+            this.size = size;
+            this.callback = callback;
+            this.executor = executor;
+            this.window = window;
+        }
+
+        /**
+         * Submits the pending batches until the window is full.  When the executor rejects a batch it is returned
+         * to the pending batches for the next batch that finishes to submit.  If no batch is running the rejection
+         * is thrown, or when a batch has just finished on this thread the rejected batch is run inline.
+         *
+         * @param finished True when called by the thread of a batch that has just finished
+         * @throws RejectedExecutionException when a batch is rejected and no batch is running
+         */
+        void submit(boolean finished) {
+            while (true) {
+                MatchTask<List<MetricsResultDTO>> batch;
+                synchronized (lock) {
+                    if (isDone() || running >= window)
+                        return;
+                    batch = pending.poll();
+                    if (batch == null)
+                        return;
+                    running++;
+                }
+                try {
+                    executor.execute(batch);
+                } catch (RejectedExecutionException e) {
+                    synchronized (lock) {
+                        pending.addFirst(batch);
+                        //a batch that is still counted will submit it when it finishes or is rejected in turn
+                        if (--running > 0)
+                            return;
+                        if (!finished || executor.isShutdown())
+                            throw e;
+                        batch = pending.poll();
+                        running++;
+                    }
+                    runInline(batch);
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Runs a batch on this thread, which has just finished a batch.  A batch that finishes while it is run
+         * inline queues its successor rather than running it recursively.
+         */
+        private void runInline(MatchTask<List<MetricsResultDTO>> batch) {
+            LinkedList<MatchTask<List<MetricsResultDTO>>> queued = inline.get();
+            if (queued != null) {
+                queued.add(batch);
+                return;
+            }
+            queued = new LinkedList<MatchTask<List<MetricsResultDTO>>>();
+            inline.set(queued);
+            try {
+                for (MatchTask<List<MetricsResultDTO>> task = batch; task != null; task = queued.poll())
+                    task.run();
+            } finally {
+                inline.remove();
+            }
+        }
+
+        @Override
+        public void completed(List<MetricsResultDTO> result) {
+            synchronized (lock) {
+                running--;
+            }
+            if (expected.decrementAndGet() == 0) {
+                finish();
+                return;
+            }
+            try {
+                submit(true);
+            } catch (RejectedExecutionException e) {
+                setException(e);
+                cancel(false);
+            }
+        }
+
+        @Override
+        public void failed(Throwable cause) {
+            setException(cause);
+        }
+
+        void finish() {
+            List<MetricsResultDTO> metrics = new ArrayList<MetricsResultDTO>(size);
+            try {
+                for (MatchTask<List<MetricsResultDTO>> batch : batches)
+                    metrics.addAll(batch.get());
+            } catch (Exception e) {
+                setException(e);
+                return;
+            }
+            set(Collections.unmodifiableList(metrics));
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            for (MatchTask<List<MetricsResultDTO>> batch : batches)
+                batch.cancel(mayInterruptIfRunning);
+            return super.cancel(mayInterruptIfRunning);
+        }
+
+        @Override
+        protected void done() {
+            if (callback == null)
+                return;
+            try {
+                try {
+                    callback.completed(get());
+                } catch (ExecutionException e) {
+                    callback.failed(e.getCause());
+                } catch (CancellationException e) {
+                    callback.failed(e);
+                } catch (InterruptedException e) {
+                    callback.failed(e);
+                }
+            } catch (RuntimeException e) {
+                log.warn("Match callback failed", e);
+            }
+        }
+    }
+}
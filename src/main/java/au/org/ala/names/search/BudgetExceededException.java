@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2014 Atlas of Living Australia
+ * All Rights Reserved.
+ *
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ */
+
+package au.org.ala.names.search;
+
+import au.org.ala.names.model.ErrorType;
+import au.org.ala.names.model.MatchBudget;
+import au.org.ala.names.model.NameSearchResult;
+
+/**
+ * The exception that is thrown when a match has used all of its {@link MatchBudget}.
+ */
+public class BudgetExceededException extends SearchResultException {
+    private NameSearchResult partialResult;
+
+    public BudgetExceededException(MatchBudget.Usage usage) {
+        super("The match was stopped because it " + usage);
+        errorType = ErrorType.BUDGET_EXCEEDED;
+    }
+
+    /**
+     * @param usage         The usage of the budget
+     * @param partialResult The best result that was found before the budget ran out
+     */
+    public BudgetExceededException(MatchBudget.Usage usage, NameSearchResult partialResult) {
+        this(usage);
+        this.partialResult = partialResult;
+    }
+
+    /**
+     * @return The best result that was found before the budget ran out, or null when there was none
+     */
+    public NameSearchResult getPartialResult() {
+        return partialResult;
+    }
+}
@@ -0,0 +1,1019 @@
+/*
+ * Copyright (C) 2014 Atlas of Living Australia
+ * All Rights Reserved.
+ *
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ */
+
+package au.org.ala.names.search;
+
+import au.com.bytecode.opencsv.CSVParser;
+import au.com.bytecode.opencsv.CSVReader;
+import au.com.bytecode.opencsv.CSVWriter;
+import au.org.ala.names.model.ErrorType;
+import au.org.ala.names.model.LinnaeanRankClassification;
+import au.org.ala.names.model.MetricsResultDTO;
+import au.org.ala.names.model.NameSearchResult;
+import au.org.ala.names.util.MatchExecutors;
+import org.apache.commons.cli.*;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.gbif.dwc.record.DarwinCoreRecord;
+import org.gbif.dwc.text.Archive;
+import org.gbif.dwc.text.ArchiveFactory;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Matches every row of a CSV/TSV file or an occurrence DwCA against a name index, writing the input with the match
+ * columns appended.
+ * <p/>
+ * The rows are read in batches that are matched by a pool of threads and written in the order that they were read.
+ * Only a couple of batches per thread are held in memory at a time so files of any size can be matched.
+ * <p/>
+ * Occurrence files hold far fewer distinct classifications than rows.  When deduplication is on the input is read
+ * twice: the first pass collects the distinct normalised classification tuples, which are each matched once, and the
+ * second pass joins the matches back onto the rows.  When there are too many tuples to hold in memory the rows are
+ * spilt to disk in partitions by tuple, each partition is deduplicated and matched in turn, and the partitions are
+ * merged back into the input order.  A partition that still has too many tuples is split again.
+ * <p/>
+ * The columns of a delimited file are mapped onto the classification using the header, by Darwin Core term name
+ * (ignoring case and any namespace prefix), unless they are supplied explicitly.
+ * <p/>
+ * With a {@link MatchMemo} the matches of earlier runs against the same index are reused, and only the
+ * classifications that are not in the memo are matched.
+ */
+public class BulkNameMatcher {
+    private static final Log log = LogFactory.getLog(BulkNameMatcher.class);
+    /** The Darwin Core terms that are used for the classification */
+    public static final String[] TERMS = {"scientificName", "scientificNameAuthorship", "taxonRank", "kingdom", "phylum",
+            "class", "order", "family", "genus", "specificEpithet", "infraspecificEpithet"};
+    /** The columns that are added to each row */
+    public static final String[] MATCH_COLUMNS = {"match_lsid", "match_accepted_lsid", "match_type", "match_rank",
+            "match_errors", "match_name_type"};
+    private static final int PROGRESS_INTERVAL = 100000;
+    private static final char TUPLE_SEPARATOR = '\u0001';
+    /** The number of times a partition with too many tuples is split again before it is matched regardless */
+    private static final int MAX_SPLIT_LEVEL = 8;
+    /** The term columns of a tuple */
+    private static final int[] TUPLE_COLUMNS = new int[TERMS.length];
+
+    static {
+        for (int i = 0; i < TUPLE_COLUMNS.length; i++)
+            TUPLE_COLUMNS[i] = i;
+    }
+
+    private final ALANameSearcher searcher;
+    private final int threads;
+    private final int batchSize;
+    private boolean recursiveMatching = true;
+    private boolean fuzzy = false;
+    private boolean virtualThreads = false;
+    private boolean deduplicate = false;
+    private int maxTuples = 1000000;
+    private int partitions = 64;
+    private File workDirectory = new File(System.getProperty("java.io.tmpdir"));
+    private MatchMemo memo;
+
+    /**
+     * @param searcher  The searcher to match with
+     * @param threads   The number of matching threads
+     * @param batchSize The number of rows that are matched together by a thread
+     */
+    public BulkNameMatcher(ALANameSearcher searcher, int threads, int batchSize) {
+        this.searcher = searcher;
+        this.threads = Math.max(1, threads);
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    public void setRecursiveMatching(boolean recursiveMatching) {
+        this.recursiveMatching = recursiveMatching;
+    }
+
+    public void setFuzzy(boolean fuzzy) {
+        this.fuzzy = fuzzy;
+    }
+
+    /**
+     * @param virtualThreads When true each batch is matched on a virtual thread, when the JVM supports them
+     */
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     * @param deduplicate When true each distinct classification tuple is only matched once. Only applies to files
+     */
+    public void setDeduplicate(boolean deduplicate) {
+        this.deduplicate = deduplicate;
+    }
+
+    /**
+     * @param maxTuples The number of distinct tuples that can be held in memory before the rows are spilt to disk
+     */
+    public void setMaxTuples(int maxTuples) {
+        this.maxTuples = Math.max(1, maxTuples);
+    }
+
+    /**
+     * @param partitions The number of partitions the rows are spilt into when the tuples do not fit in memory
+     */
+    public void setPartitions(int partitions) {
+        this.partitions = Math.max(1, partitions);
+    }
+
+    /**
+     * @param workDirectory The directory for the spilt partitions
+     */
+    public void setWorkDirectory(File workDirectory) {
+        this.workDirectory = workDirectory;
+    }
+
+    /**
+     * @param memo The memo of earlier matches to reuse and add to, may be null
+     */
+    public void setMemo(MatchMemo memo) {
+        this.memo = memo;
+    }
+
+    /**
+     * Matches a delimited stream that has a header row in a single pass.
+     *
+     * @param in        The input
+     * @param out       The output, the input columns followed by the {@link #MATCH_COLUMNS}
+     * @param separator The column separator for the input and output
+     * @param columns   The header of the column to use for a term, overriding the header matching. May be empty
+     * @return The number of rows that were matched
+     * @throws IOException
+     */
+    public long matchDelimited(Reader in, Writer out, char separator, Map<String, String> columns) throws IOException {
+        final CSVReader reader = new CSVReader(in, separator, '"');
+        String[] header = reader.readNext();
+        if (header == null)
+            return 0;
+        CSVWriter writer = new CSVWriter(out, separator);
+        writer.writeNext(appendMatchColumns(header));
+        return matchRows(new RowReader() {
+            @Override
+            public String[] next() throws IOException {
+                return reader.readNext();
+            }
+
+            @Override
+            public void close() {
+            }
+        }, mapColumns(header, columns), writer);
+    }
+
+    /**
+     * Matches a delimited file that has a header row, deduplicating the classifications when requested.
+     *
+     * @param input     The input file
+     * @param out       The output, the input columns followed by the {@link #MATCH_COLUMNS}
+     * @param separator The column separator for the input and output
+     * @param columns   The header of the column to use for a term, overriding the header matching. May be empty
+     * @return The number of rows that were matched
+     * @throws IOException
+     */
+    public long matchDelimited(final File input, Writer out, final char separator, Map<String, String> columns) throws IOException {
+        RowSource source = new RowSource() {
+            @Override
+            public RowReader open() throws IOException {
+                return new DelimitedRowReader(new BufferedReader(new InputStreamReader(new FileInputStream(input), "UTF-8"), 1 << 16), separator, '"', '\\');
+            }
+        };
+        RowReader reader = source.open();
+        String[] header;
+        try {
+            header = reader.next();
+        } finally {
+            reader.close();
+        }
+        if (header == null)
+            return 0;
+        CSVWriter writer = new CSVWriter(out, separator);
+        writer.writeNext(appendMatchColumns(header));
+        return match(new HeaderlessSource(source), mapColumns(header, columns), writer);
+    }
+
+    /**
+     * Matches the core records of an unzipped occurrence DwCA.  The output contains the record id and the
+     * classification terms.
+     *
+     * @param archiveDirectory The unzipped archive
+     * @param out              The output
+     * @param separator        The output column separator
+     * @return The number of rows that were matched
+     * @throws IOException
+     */
+    public long matchArchive(final File archiveDirectory, Writer out, char separator) throws IOException {
+        CSVWriter writer = new CSVWriter(out, separator);
+        String[] header = new String[TERMS.length + 1];
+        header[0] = "id";
+        System.arraycopy(TERMS, 0, header, 1, TERMS.length);
+        writer.writeNext(appendMatchColumns(header));
+        int[] termColumns = new int[TERMS.length];
+        for (int i = 0; i < termColumns.length; i++)
+            termColumns[i] = i + 1;
+        return match(new RowSource() {
+            @Override
+            public RowReader open() throws IOException {
+                Archive archive = ArchiveFactory.openArchive(archiveDirectory);
+                final Iterator<DarwinCoreRecord> it = archive.iteratorDwc();
+                return new RowReader() {
+                    @Override
+                    public String[] next() {
+                        if (!it.hasNext())
+                            return null;
+                        DarwinCoreRecord dwcr = it.next();
+                        return new String[]{dwcr.getId(), dwcr.getScientificName(), dwcr.getScientificNameAuthorship(),
+                                dwcr.getTaxonRank(), dwcr.getKingdom(), dwcr.getPhylum(), dwcr.getClasss(), dwcr.getOrder(),
+                                dwcr.getFamily(), dwcr.getGenus(), dwcr.getSpecificEpithet(), dwcr.getInfraspecificEpithet()};
+                    }
+
+                    @Override
+                    public void close() {
+                    }
+                };
+            }
+        }, termColumns, writer);
+    }
+
+    /**
+     * Works out the column for each of the {@link #TERMS}.
+     *
+     * @return The column index for each term, -1 when the term is not present
+     */
+    int[] mapColumns(String[] header, Map<String, String> columns) {
+        int[] termColumns = new int[TERMS.length];
+        for (int i = 0; i < TERMS.length; i++) {
+            String name = columns.get(TERMS[i]);
+            termColumns[i] = -1;
+            for (int j = 0; j < header.length && termColumns[i] < 0; j++) {
+                String column = StringUtils.trimToEmpty(header[j]);
+                if (name != null) {
+                    if (column.equals(name))
+                        termColumns[i] = j;
+                } else {
+                    int prefix = Math.max(column.lastIndexOf('/'), column.lastIndexOf(':'));
+                    if (column.substring(prefix + 1).equalsIgnoreCase(TERMS[i]))
+                        termColumns[i] = j;
+                }
+            }
+            if (name != null && termColumns[i] < 0)
+                throw new IllegalArgumentException("No column " + name + " for " + TERMS[i]);
+        }
+        if (termColumns[0] < 0)
+            log.warn("No scientificName column, only the higher classification will be matched");
+        return termColumns;
+    }
+
+    private String[] appendMatchColumns(String[] row) {
+        return concat(row, MATCH_COLUMNS);
+    }
+
+    /**
+     * Joins the columns, replacing any nulls with empty values so that the output is the same whether or not the
+     * rows have been spilt to disk.
+     */
+    private static String[] concat(String[] row, String[] match) {
+        String[] output = new String[row.length + match.length];
+        System.arraycopy(row, 0, output, 0, row.length);
+        System.arraycopy(match, 0, output, row.length, match.length);
+        for (int i = 0; i < output.length; i++) {
+            if (output[i] == null)
+                output[i] = "";
+        }
+        return output;
+    }
+
+    private long match(RowSource source, int[] termColumns, CSVWriter writer) throws IOException {
+        if (deduplicate)
+            return matchDistinct(source, termColumns, writer);
+        RowReader reader = source.open();
+        try {
+            return matchRows(reader, termColumns, writer);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Matches every row and writes them in order.
+     */
+    private long matchRows(RowReader reader, int[] termColumns, final CSVWriter writer) throws IOException {
+        long start = System.currentTimeMillis();
+        long count = matchBatches(reader, termColumns, new BatchHandler() {
+            @Override
+            public void matched(List<String[]> rows, String[][] matches) {
+                for (int i = 0; i < matches.length; i++)
+                    writer.writeNext(concat(rows.get(i), matches[i]));
+            }
+        });
+        writer.flush();
+        log.info("Matched " + count + " rows in " + (System.currentTimeMillis() - start) + "ms");
+        return count;
+    }
+
+    /**
+     * Matches the distinct classification tuples once and joins the matches back onto the rows.
+     */
+    private long matchDistinct(RowSource source, int[] termColumns, CSVWriter writer) throws IOException {
+        long start = System.currentTimeMillis();
+        //collect the distinct tuples, giving up when there are too many to hold in memory
+        Set<String> tuples = new HashSet<String>();
+        long rows = 0;
+        RowReader reader = source.open();
+        try {
+            String[] row;
+            while ((row = reader.next()) != null) {
+                rows++;
+                if (tuples.add(tupleKey(row, termColumns)) && tuples.size() > maxTuples) {
+                    tuples = null;
+                    break;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        if (tuples == null) {
+            log.info("More than " + maxTuples + " distinct tuples, spilling the rows to " + partitions + " partitions");
+            return matchPartitioned(source, termColumns, writer, start);
+        }
+        Map<String, String[]> matches = matchTuples(tuples);
+        reader = source.open();
+        try {
+            String[] row;
+            while ((row = reader.next()) != null)
+                writer.writeNext(concat(row, matches.get(tupleKey(row, termColumns))));
+        } finally {
+            reader.close();
+        }
+        writer.flush();
+        reportDistinct(rows, matches.size(), start);
+        return rows;
+    }
+
+    /**
+     * Spills the rows to partitions by tuple, matches the distinct tuples of each partition and then merges the
+     * partitions back into the input order.
+     */
+    private long matchPartitioned(RowSource source, int[] termColumns, CSVWriter writer, long start) throws IOException {
+        File dir = File.createTempFile("bulkmatch", "", workDirectory);
+        if (!dir.delete() || !dir.mkdirs())
+            throw new IOException("Unable to create the work directory " + dir);
+        try {
+            //each spilt row is preceded by its position in the input
+            CSVWriter[] parts = new CSVWriter[partitions];
+            for (int i = 0; i < partitions; i++)
+                parts[i] = spillWriter(new File(dir, "rows-" + i));
+            long rows = 0;
+            RowReader reader = source.open();
+            try {
+                String[] row;
+                while ((row = reader.next()) != null) {
+                    parts[partition(tupleKey(row, termColumns), 0, partitions)].writeNext(concat(new String[]{Long.toString(rows)}, row));
+                    rows++;
+                }
+            } finally {
+                reader.close();
+                for (CSVWriter part : parts)
+                    part.close();
+            }
+            int[] spiltColumns = new int[termColumns.length];
+            for (int i = 0; i < termColumns.length; i++)
+                spiltColumns[i] = termColumns[i] < 0 ? -1 : termColumns[i] + 1;
+            long distinct = 0;
+            File[] matched = new File[partitions];
+            for (int i = 0; i < partitions; i++) {
+                matched[i] = new File(dir, "matched-" + i);
+                distinct += matchPartition(new File(dir, "rows-" + i), matched[i], spiltColumns, 0);
+            }
+            merge(matched, writer, true);
+            reportDistinct(rows, distinct, start);
+            return rows;
+        } finally {
+            FileUtils.deleteQuietly(dir);
+        }
+    }
+
+    /**
+     * Matches the distinct tuples of a spilt partition and writes the matched rows in the same order.  A partition
+     * that holds more tuples than can be kept in memory is split again.
+     *
+     * @return The number of distinct tuples in the partition
+     */
+    private long matchPartition(File spilt, File matched, int[] spiltColumns, int level) throws IOException {
+        Set<String> tuples = new HashSet<String>();
+        RowReader reader = spillReader(spilt);
+        try {
+            String[] row;
+            while ((row = reader.next()) != null) {
+                if (tuples.add(tupleKey(row, spiltColumns)) && tuples.size() > maxTuples && level < MAX_SPLIT_LEVEL) {
+                    tuples = null;
+                    break;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        long distinct;
+        if (tuples == null) {
+            distinct = splitPartition(spilt, matched, spiltColumns, level + 1);
+        } else {
+            if (tuples.size() > maxTuples)
+                log.warn("Matching " + tuples.size() + " distinct tuples from " + spilt + " after splitting it " + level + " times");
+            Map<String, String[]> matches = matchTuples(tuples);
+            distinct = matches.size();
+            CSVWriter writer = spillWriter(matched);
+            reader = spillReader(spilt);
+            try {
+                String[] row;
+                while ((row = reader.next()) != null)
+                    writer.writeNext(concat(row, matches.get(tupleKey(row, spiltColumns))));
+            } finally {
+                reader.close();
+                writer.close();
+            }
+        }
+        if (!spilt.delete())
+            log.warn("Unable to delete " + spilt);
+        return distinct;
+    }
+
+    /**
+     * Splits a partition with too many tuples into smaller partitions using a different hash for each level, matches
+     * them and merges the matched rows back into the order of the partition.
+     *
+     * @return The number of distinct tuples in the partition
+     */
+    private long splitPartition(File spilt, File matched, int[] spiltColumns, int level) throws IOException {
+        int count = Math.max(2, partitions);
+        File[] parts = new File[count];
+        File[] matchedParts = new File[count];
+        CSVWriter[] writers = new CSVWriter[count];
+        for (int i = 0; i < count; i++) {
+            parts[i] = new File(spilt.getPath() + "-" + i);
+            matchedParts[i] = new File(matched.getPath() + "-" + i);
+            writers[i] = spillWriter(parts[i]);
+        }
+        RowReader reader = spillReader(spilt);
+        try {
+            String[] row;
+            while ((row = reader.next()) != null)
+                writers[partition(tupleKey(row, spiltColumns), level, count)].writeNext(row);
+        } finally {
+            reader.close();
+            for (CSVWriter writer : writers)
+                writer.close();
+        }
+        long distinct = 0;
+        for (int i = 0; i < count; i++)
+            distinct += matchPartition(parts[i], matchedParts[i], spiltColumns, level);
+        CSVWriter writer = spillWriter(matched);
+        try {
+            merge(matchedParts, writer, false);
+        } finally {
+            writer.close();
+        }
+        for (File part : matchedParts) {
+            if (!part.delete())
+                log.warn("Unable to delete " + part);
+        }
+        return distinct;
+    }
+
+    /**
+     * The partition of a tuple.  Each level scrambles the hash differently so that the tuples of a partition are
+     * spread over the partitions of the next level.
+     */
+    private static int partition(String tupleKey, int level, int count) {
+        int h = tupleKey.hashCode() + level * 0x9e3779b9;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return (h & 0x7fffffff) % count;
+    }
+
+    /**
+     * Merges the matched partitions, which are each in input order, back into the input order.
+     *
+     * @param stripPosition When true the input position is removed from the merged rows
+     */
+    private void merge(File[] files, CSVWriter writer, boolean stripPosition) throws IOException {
+        PriorityQueue<SpiltRow> heads = new PriorityQueue<SpiltRow>(files.length);
+        try {
+            for (File file : files) {
+                SpiltRow head = new SpiltRow(spillReader(file));
+                if (head.advance())
+                    heads.add(head);
+                else
+                    head.reader.close();
+            }
+            while (!heads.isEmpty()) {
+                SpiltRow head = heads.poll();
+                writer.writeNext(stripPosition ? Arrays.copyOfRange(head.row, 1, head.row.length) : head.row);
+                if (head.advance())
+                    heads.add(head);
+                else
+                    head.reader.close();
+            }
+        } finally {
+            for (SpiltRow head : heads)
+                head.reader.close();
+        }
+        writer.flush();
+    }
+
+    private CSVWriter spillWriter(File file) throws IOException {
+        return new CSVWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"), 1 << 16), '\t');
+    }
+
+    private RowReader spillReader(File file) throws IOException {
+        //the writer doubles quotes rather than escaping them
+        return new DelimitedRowReader(new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"), 1 << 16), '\t', '"', CSVParser.NULL_CHARACTER);
+    }
+
+    private void reportDistinct(long rows, long distinct, long start) {
+        log.info("Matched " + rows + " rows with " + distinct + " distinct tuples in " + (System.currentTimeMillis() - start)
+                + "ms. Deduplication ratio " + String.format("%.1f", (double) rows / Math.max(1, distinct)));
+    }
+
+    /**
+     * Matches each of the tuples.
+     *
+     * @return The match columns for each tuple
+     */
+    private Map<String, String[]> matchTuples(Collection<String> tuples) throws IOException {
+        final Map<String, String[]> matches = new HashMap<String, String[]>(tuples.size() * 2);
+        final Iterator<String> it = tuples.iterator();
+        matchBatches(new RowReader() {
+            @Override
+            public String[] next() {
+                return it.hasNext() ? StringUtils.splitPreserveAllTokens(it.next(), TUPLE_SEPARATOR) : null;
+            }
+
+            @Override
+            public void close() {
+            }
+        }, TUPLE_COLUMNS, new BatchHandler() {
+            @Override
+            public void matched(List<String[]> rows, String[][] batchMatches) {
+                for (int i = 0; i < batchMatches.length; i++)
+                    matches.put(tupleKey(rows.get(i), TUPLE_COLUMNS), batchMatches[i]);
+            }
+        });
+        return matches;
+    }
+
+    /**
+     * Matches the rows in batches using the thread pool, keeping at most two batches per thread in memory.  The
+     * batches are handed to the handler in the order that they were read.
+     *
+     * @return The number of rows
+     */
+    private long matchBatches(RowReader reader, int[] termColumns, BatchHandler handler) throws IOException {
+        ExecutorService executor = MatchExecutors.newExecutor(threads, virtualThreads);
+        LinkedList<MatchTask> pending = new LinkedList<MatchTask>();
+        long start = System.currentTimeMillis();
+        long count = 0;
+        long reported = 0;
+        try {
+            List<String[]> batch = new ArrayList<String[]>(batchSize);
+            String[] row;
+            while ((row = reader.next()) != null) {
+                batch.add(row);
+                if (batch.size() == batchSize) {
+                    pending.add(submit(new MatchTask(batch, termColumns), executor));
+                    batch = new ArrayList<String[]>(batchSize);
+                    if (pending.size() >= threads * 2)
+                        count += pending.removeFirst().handle(handler);
+                    if (count - reported >= PROGRESS_INTERVAL) {
+                        reported = count;
+                        log.info("Matched " + count + " rows, " + (count * 1000 / Math.max(1, System.currentTimeMillis() - start)) + " rows/s");
+                    }
+                }
+            }
+            if (!batch.isEmpty())
+                pending.add(submit(new MatchTask(batch, termColumns), executor));
+            while (!pending.isEmpty())
+                count += pending.removeFirst().handle(handler);
+        } finally {
+            executor.shutdownNow();
+        }
+        return count;
+    }
+
+    private MatchTask submit(MatchTask task, ExecutorService executor) {
+        task.future = executor.submit(task);
+        return task;
+    }
+
+    /**
+     * Builds the normalised classification tuple for a row.
+     */
+    String tupleKey(String[] row, int[] termColumns) {
+        StringBuilder key = new StringBuilder(64);
+        for (int i = 0; i < termColumns.length; i++) {
+            if (i > 0)
+                key.append(TUPLE_SEPARATOR);
+            int column = termColumns[i];
+            String value = column >= 0 && column < row.length ? normalise(row[column]) : null;
+            if (value != null)
+                key.append(value);
+        }
+        return key.toString();
+    }
+
+    /**
+     * Trims the value and collapses any runs of whitespace to a single space.
+     *
+     * @return The normalised value or null when it is empty
+     */
+    static String normalise(String value) {
+        if (value == null)
+            return null;
+        StringBuilder sb = new StringBuilder(value.length());
+        boolean space = false;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (Character.isWhitespace(c) || c == TUPLE_SEPARATOR) {
+                space = sb.length() > 0;
+            } else {
+                if (space)
+                    sb.append(' ');
+                space = false;
+                sb.append(c);
+            }
+        }
+        return sb.length() == 0 ? null : sb.toString();
+    }
+
+    /**
+     * Builds the classification for a row.
+     */
+    LinnaeanRankClassification classify(String[] row, int[] termColumns) {
+        String[] values = new String[TERMS.length];
+        for (int i = 0; i < TERMS.length; i++) {
+            int column = termColumns[i];
+            values[i] = column >= 0 && column < row.length ? normalise(row[column]) : null;
+        }
+        return classify(values);
+    }
+
+    /**
+     * Builds the classification from the values of the {@link #TERMS}.
+     */
+    static LinnaeanRankClassification classify(String[] values) {
+        LinnaeanRankClassification cl = new LinnaeanRankClassification();
+        cl.setScientificName(values[0]);
+        cl.setAuthorship(values[1]);
+        cl.setRank(values[2]);
+        cl.setKingdom(values[3]);
+        cl.setPhylum(values[4]);
+        cl.setKlass(values[5]);
+        cl.setOrder(values[6]);
+        cl.setFamily(values[7]);
+        cl.setGenus(values[8]);
+        cl.setSpecificEpithet(values[9]);
+        cl.setInfraspecificEpithet(values[10]);
+        return cl;
+    }
+
+    /**
+     * Matches a row.
+     *
+     * @return The match columns
+     */
+    String[] match(String[] row, int[] termColumns) {
+        LinnaeanRankClassification cl = classify(row, termColumns);
+        try {
+            return matchColumns(searcher.searchForRecordMetrics(cl, recursiveMatching, false, fuzzy));
+        } catch (RuntimeException e) {
+            log.warn("Unable to match " + cl, e);
+            String[] match = new String[MATCH_COLUMNS.length];
+            match[4] = "exception";
+            return match;
+        }
+    }
+
+    /**
+     * Matches a batch of rows, falling back to matching the rows one at a time when the batch fails.
+     *
+     * @return The match columns for each row
+     */
+    String[][] match(List<String[]> rows, int[] termColumns) {
+        String[][] matches = new String[rows.size()][];
+        List<Integer> unmatched = new ArrayList<Integer>(rows.size());
+        List<String> keys = new ArrayList<String>(rows.size());
+        List<LinnaeanRankClassification> cls = new ArrayList<LinnaeanRankClassification>(rows.size());
+        if (memo != null) {
+            List<String> rowKeys = new ArrayList<String>(rows.size());
+            for (String[] row : rows)
+                rowKeys.add(memoKey(row, termColumns));
+            List<MetricsResultDTO> memoised = memo.get(rowKeys);
+            for (int i = 0; i < matches.length; i++) {
+                if (memoised.get(i) != null)
+                    matches[i] = matchColumns(memoised.get(i));
+                else
+                    keys.add(rowKeys.get(i));
+            }
+        }
+        for (int i = 0; i < matches.length; i++) {
+            if (matches[i] != null)
+                continue;
+            unmatched.add(i);
+            cls.add(classify(rows.get(i), termColumns));
+        }
+        if (cls.isEmpty())
+            return matches;
+        try {
+            List<MetricsResultDTO> metrics = searcher.searchForRecordsMetrics(cls, recursiveMatching, false, fuzzy);
+            for (int i = 0; i < metrics.size(); i++) {
+                matches[unmatched.get(i)] = matchColumns(metrics.get(i));
+                if (memo != null && !metrics.get(i).getErrors().contains(ErrorType.BUDGET_EXCEEDED))
+                    memo.put(keys.get(i), metrics.get(i));
+            }
+        } catch (RuntimeException e) {
+            log.debug("Unable to match a batch of " + rows.size() + " rows, matching them one at a time", e);
+            for (int i : unmatched)
+                matches[i] = match(rows.get(i), termColumns);
+        }
+        return matches;
+    }
+
+    /**
+     * The memo key is the tuple along with the options that change the match.
+     */
+    private String memoKey(String[] row, int[] termColumns) {
+        return (recursiveMatching ? "T" : "F") + (fuzzy ? "T" : "F") + tupleKey(row, termColumns);
+    }
+
+    /**
+     * @return The match columns for the metrics
+     */
+    private String[] matchColumns(MetricsResultDTO metrics) {
+        String[] match = new String[MATCH_COLUMNS.length];
+        NameSearchResult result = metrics.getResult();
+        if (result != null) {
+            match[0] = result.getLsid();
+            match[1] = result.isSynonym() ? result.getAcceptedLsid() : result.getLsid();
+            match[2] = result.getMatchType() == null ? null : result.getMatchType().toString();
+            match[3] = result.getRank() == null ? null : result.getRank().getRank();
+        }
+        StringBuilder errors = new StringBuilder();
+        for (ErrorType error : metrics.getErrors()) {
+            if (error != ErrorType.NONE)
+                errors.append(errors.length() == 0 ? "" : "|").append(error);
+        }
+        match[4] = errors.toString();
+        match[5] = metrics.getNameType() == null ? null : metrics.getNameType().toString();
+        return match;
+    }
+
+    /**
+     * A source of rows that can be read more than once.
+     */
+    private interface RowSource {
+        RowReader open() throws IOException;
+    }
+
+    /**
+     * Reads rows from a source.
+     */
+    private interface RowReader {
+        /**
+         * @return The next row or null when there are no more rows
+         */
+        String[] next() throws IOException;
+
+        void close() throws IOException;
+    }
+
+    private static class DelimitedRowReader implements RowReader {
+        private final CSVReader reader;
+
+        DelimitedRowReader(Reader in, char separator, char quote, char escape) {
+            reader = new CSVReader(in, separator, quote, escape);
+        }
+
+        @Override
+        public String[] next() throws IOException {
+            return reader.readNext();
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+
+    /**
+     * Skips the header row of a delimited file.
+     */
+    private static class HeaderlessSource implements RowSource {
+        private final RowSource source;
+
+        HeaderlessSource(RowSource source) {
+            this.source = source;
+        }
+
+        @Override
+        public RowReader open() throws IOException {
+            RowReader reader = source.open();
+            reader.next();
+            return reader;
+        }
+    }
+
+    /**
+     * Receives the matches for a batch of rows.
+     */
+    private interface BatchHandler {
+        void matched(List<String[]> rows, String[][] matches) throws IOException;
+    }
+
+    /**
+     * Matches a batch of rows, returning the match columns for each row.
+     */
+    private class MatchTask implements Callable<String[][]> {
+        private final List<String[]> rows;
+        private final int[] termColumns;
+        private Future<String[][]> future;
+
+        MatchTask(List<String[]> rows, int[] termColumns) {
+            this.rows = rows;
+            this.termColumns = termColumns;
+        }
+
+        @Override
+        public String[][] call() {
+            return match(rows, termColumns);
+        }
+
+        /**
+         * Waits for the batch and hands it to the handler.
+         *
+         * @return The number of rows in the batch
+         */
+        int handle(BatchHandler handler) throws IOException {
+            try {
+                handler.matched(rows, future.get());
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted while matching", e);
+            } catch (ExecutionException e) {
+                throw new IOException("Unable to match a batch of rows", e.getCause());
+            }
+            return rows.size();
+        }
+    }
+
+    /**
+     * The current row of a matched partition.
+     */
+    private static class SpiltRow implements Comparable<SpiltRow> {
+        private final RowReader reader;
+        private String[] row;
+        private long position;
+
+        SpiltRow(RowReader reader) {
+            this.reader = reader;
+        }
+
+        boolean advance() throws IOException {
+            row = reader.next();
+            if (row == null)
+                return false;
+            position = Long.parseLong(row[0]);
+            return true;
+        }
+
+        @Override
+        public int compareTo(SpiltRow o) {
+            return position < o.position ? -1 : position == o.position ? 0 : 1;
+        }
+    }
+
+    /**
+     * Example run
+     *
+     * java -cp .:names.jar au.org.ala.names.search.BulkNameMatcher
+     * -index /data/lucene/namematching
+     * -input /data/occurrences.csv
+     * -output /data/occurrences-matched.csv
+     * -threads 8
+     *
+     * @param args
+     */
+    public static void main(String[] args) {
+        final String DEFAULT_INDEX = "/data/lucene/namematching";
+
+        Options options = new Options();
+        options.addOption("h", "help", false, "Retrieve options");
+        options.addOption("index", true, "The name matching index. Defaults to " + DEFAULT_INDEX);
+        options.addOption("input", true, "The CSV/TSV file with a header row, or the unzipped occurrence DwCA, to match");
+        options.addOption("output", true, "The file to write the matches to. Defaults to standard output");
+        options.addOption("format", true, "csv, tsv or dwca. Defaults to dwca for a directory, tsv for .tsv and .txt files and csv otherwise");
+        options.addOption("threads", true, "The number of matching threads. Defaults to the number of processors");
+        options.addOption("batch", true, "The number of rows matched together by a thread. Defaults to 1000");
+        options.addOption("column", true, "Maps a term onto a column header, eg -column scientificName=name. Can be repeated");
+        options.addOption("norecursive", false, "Do not match on the higher classification when the name does not match");
+        options.addOption("fuzzy", false, "Allow fuzzy matching of scientific names");
+        options.addOption("virtual", false, "Match on virtual threads, needs Java 21 or later");
+        options.addOption("dedup", false, "Match each distinct classification once. The input is read twice");
+        options.addOption("tuples", true, "The number of distinct classifications held in memory before the rows are spilt to disk. Defaults to 1000000");
+        options.addOption("tmp", true, "The directory for the spilt rows. Defaults to java.io.tmpdir");
+        options.addOption("memo", true, "A file of matches to reuse and add to. It is cleared when the index changes");
+        options.addOption("memoSize", true, "The number of matches a new memo file holds. Defaults to 5000000");
+
+        CommandLineParser parser = new BasicParser();
+
+        try {
+            CommandLine line = parser.parse(options, args);
+
+            if (line.hasOption("help") || !line.hasOption("input")) {
+                new HelpFormatter().printHelp("bulkmatcher", options);
+                System.exit(-1);
+            }
+
+            File input = new File(line.getOptionValue("input"));
+            String name = input.getName().toLowerCase();
+            String format = line.getOptionValue("format", input.isDirectory() ? "dwca" : name.endsWith(".tsv") || name.endsWith(".txt") ? "tsv" : "csv");
+            char separator = format.equals("csv") ? ',' : '\t';
+            Map<String, String> columns = new HashMap<String, String>();
+            if (line.getOptionValues("column") != null) {
+                for (String column : line.getOptionValues("column")) {
+                    String[] mapping = column.split("=", 2);
+                    if (mapping.length != 2)
+                        throw new IllegalArgumentException("Expected term=column for " + column);
+                    columns.put(mapping[0].trim(), mapping[1].trim());
+                }
+            }
+
+            ALANameSearcher searcher = new ALANameSearcher(line.getOptionValue("index", DEFAULT_INDEX));
+            BulkNameMatcher matcher = new BulkNameMatcher(searcher,
+                    Integer.parseInt(line.getOptionValue("threads", Integer.toString(Runtime.getRuntime().availableProcessors()))),
+                    Integer.parseInt(line.getOptionValue("batch", "1000")));
+            matcher.setRecursiveMatching(!line.hasOption("norecursive"));
+            matcher.setFuzzy(line.hasOption("fuzzy"));
+            matcher.setVirtualThreads(line.hasOption("virtual"));
+            matcher.setDeduplicate(line.hasOption("dedup"));
+            if (line.hasOption("tuples"))
+                matcher.setMaxTuples(Integer.parseInt(line.getOptionValue("tuples")));
+            if (line.hasOption("tmp"))
+                matcher.setWorkDirectory(new File(line.getOptionValue("tmp")));
+
+            MatchMemo memo = null;
+            if (line.hasOption("memo")) {
+                memo = new MatchMemo(new File(line.getOptionValue("memo")), searcher, Integer.parseInt(line.getOptionValue("memoSize", "5000000")));
+                matcher.setMemo(memo);
+            }
+
+            OutputStream os = line.hasOption("output") ? new FileOutputStream(line.getOptionValue("output")) : System.out;
+            Writer out = new BufferedWriter(new OutputStreamWriter(os, "UTF-8"), 1 << 16);
+            try {
+                if (format.equals("dwca")) {
+                    matcher.matchArchive(input, out, separator);
+                } else {
+                    matcher.matchDelimited(input, out, separator, columns);
+                }
+            } finally {
+                out.close();
+                if (memo != null) {
+                    log.info("Memo hits " + memo.getHits() + ", misses " + memo.getMisses() + ", " + memo.size() + " entries");
+                    memo.close();
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
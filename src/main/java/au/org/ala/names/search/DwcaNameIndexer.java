@@ -374,6 +374,9 @@ public class DwcaNameIndexer extends ALANameIndexer {
      * @param dwcaDir
      */
     private void addSynonymsToIndex(String dwcaDir) throws Exception {
+        //the accepted concepts that have been written by generateIndex
+        DirectoryReader acceptedReader = DirectoryReader.open(writer, false);
+        IndexSearcher accepted = new IndexSearcher(acceptedReader);
         Archive archive = ArchiveFactory.openArchive(new File(dwcaDir));
         Iterator<DarwinCoreRecord> it = archive.iteratorDwc();
         int i = 0;
@@ -387,12 +390,17 @@ public class DwcaNameIndexer extends ALANameIndexer {
             if(StringUtils.isNotEmpty(acceptedId) && (!StringUtils.equals(acceptedId , id) && !StringUtils.equals(acceptedId, lsid))){
                 count++;
                 //we have a synonym that needs to be load
-                writer.addDocument(this.createALASynonymDocument(dwcr.getScientificName(), dwcr.getScientificNameAuthorship(), dwcr.getId(), lsid, lsid, dwcr.getAcceptedNameUsageID(), dwcr.getAcceptedNameUsageID(), 1.0f, dwcr.getTaxonomicStatus()));
+                Document doc = this.createALASynonymDocument(dwcr.getScientificName(), dwcr.getScientificNameAuthorship(), dwcr.getId(), lsid, lsid, dwcr.getAcceptedNameUsageID(), dwcr.getAcceptedNameUsageID(), 1.0f, dwcr.getTaxonomicStatus());
+                if (doc != null) {
+                    addAcceptedConcept(doc, accepted, acceptedId);
+                    writer.addDocument(doc);
+                }
             }
             if(i % 1000 == 0){
                 log.debug("Processed " + i + " records " + count + " synonyms" );
             }
         }
+        acceptedReader.close();
     }
 
     /**
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2014 Atlas of Living Australia
+ * All Rights Reserved.
+ *
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ */
+package au.org.ala.names.search;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The candidates for a batch of indexed names or identifiers, collected with a single pass over the terms of each
+ * segment.
+ * <p/>
+ * The terms are sorted and the terms enum of each segment is walked forward through them, so a batch of thousands of
+ * terms costs one sequential pass per segment rather than a seek (and a query) per term.  For each term the live
+ * documents are collected in document order along with the score that the scientific name lookup would give them.
+ * <p/>
+ * A batch is bound to the reader it was built from and is only meant to live for the matching of the batch.
+ */
+public class ExactNameBatch {
+    private static final int[] NO_DOCS = new int[0];
+    private static final float[] NO_SCORES = new float[0];
+
+    private final IndexReader reader;
+    private final String field;
+    private final Map<BytesRef, Candidates> candidates;
+    private final int segmentSeeks;
+
+    /**
+     * @param reader        The reader to look the terms up in
+     * @param field         The field the terms are indexed in
+     * @param terms         The analysed terms
+     * @param priorityField The field holding the index time priority of each document, null when there is none
+     * @throws IOException
+     */
+    public ExactNameBatch(IndexReader reader, String field, Collection<BytesRef> terms, String priorityField) throws IOException {
+        this.reader = reader;
+        this.field = field;
+        List<BytesRef> sorted = new ArrayList<BytesRef>(terms);
+        //the terms enum order
+        Collections.sort(sorted);
+        Map<BytesRef, List<int[]>> docs = new HashMap<BytesRef, List<int[]>>(sorted.size() * 2);
+        Map<BytesRef, List<float[]>> scores = new HashMap<BytesRef, List<float[]>>(sorted.size() * 2);
+        int seeks = 0;
+        for (AtomicReaderContext context : reader.leaves()) {
+            AtomicReader segment = context.reader();
+            Terms fieldTerms = segment.terms(field);
+            if (fieldTerms == null)
+                continue;
+            Bits liveDocs = segment.getLiveDocs();
+            float[] priority = priorityField == null ? null : FieldCache.DEFAULT.getFloats(segment, priorityField, FieldCache.NUMERIC_UTILS_FLOAT_PARSER, false);
+            TermsEnum te = fieldTerms.iterator(null);
+            DocsEnum postings = null;
+            BytesRef previous = null;
+            for (BytesRef term : sorted) {
+                if (term.equals(previous))
+                    continue;
+                previous = term;
+                seeks++;
+                TermsEnum.SeekStatus status = te.seekCeil(term, true);
+                if (status == TermsEnum.SeekStatus.END)
+                    break;
+                if (status != TermsEnum.SeekStatus.FOUND)
+                    continue;
+                postings = te.docs(liveDocs, postings, priority == null ? DocsEnum.FLAG_NONE : DocsEnum.FLAG_FREQS);
+                int[] found = new int[Math.max(1, te.docFreq())];
+                float[] score = new float[found.length];
+                int n = 0;
+                int doc;
+                while ((doc = postings.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+                    if (n == found.length) {
+                        int[] grown = new int[n * 2];
+                        System.arraycopy(found, 0, grown, 0, n);
+                        found = grown;
+                        float[] grownScore = new float[n * 2];
+                        System.arraycopy(score, 0, grownScore, 0, n);
+                        score = grownScore;
+                    }
+                    score[n] = priority == null ? 1.0f : (float) Math.sqrt(postings.freq()) * priority[doc];
+                    found[n++] = context.docBase + doc;
+                }
+                if (n == 0)
+                    continue;
+                add(docs, term, trim(found, n));
+                add(scores, term, trim(score, n));
+            }
+        }
+        candidates = new HashMap<BytesRef, Candidates>(sorted.size() * 2);
+        for (BytesRef term : sorted) {
+            List<int[]> termDocs = docs.get(term);
+            if (termDocs == null)
+                candidates.put(term, new Candidates(NO_DOCS, NO_SCORES));
+            else
+                candidates.put(term, new Candidates(concat(termDocs), concatScores(scores.get(term))));
+        }
+        segmentSeeks = seeks;
+    }
+
+    private static <T> void add(Map<BytesRef, List<T>> map, BytesRef term, T value) {
+        List<T> values = map.get(term);
+        if (values == null) {
+            values = new ArrayList<T>(1);
+            map.put(term, values);
+        }
+        values.add(value);
+    }
+
+    private static int[] trim(int[] values, int n) {
+        if (n == values.length)
+            return values;
+        int[] trimmed = new int[n];
+        System.arraycopy(values, 0, trimmed, 0, n);
+        return trimmed;
+    }
+
+    private static float[] trim(float[] values, int n) {
+        if (n == values.length)
+            return values;
+        float[] trimmed = new float[n];
+        System.arraycopy(values, 0, trimmed, 0, n);
+        return trimmed;
+    }
+
+    private static int[] concat(List<int[]> parts) {
+        if (parts.size() == 1)
+            return parts.get(0);
+        int length = 0;
+        for (int[] part : parts)
+            length += part.length;
+        int[] all = new int[length];
+        int offset = 0;
+        for (int[] part : parts) {
+            System.arraycopy(part, 0, all, offset, part.length);
+            offset += part.length;
+        }
+        return all;
+    }
+
+    private static float[] concatScores(List<float[]> parts) {
+        if (parts.size() == 1)
+            return parts.get(0);
+        int length = 0;
+        for (float[] part : parts)
+            length += part.length;
+        float[] all = new float[length];
+        int offset = 0;
+        for (float[] part : parts) {
+            System.arraycopy(part, 0, all, offset, part.length);
+            offset += part.length;
+        }
+        return all;
+    }
+
+    /**
+     * @return The reader that the document numbers refer to
+     */
+    public IndexReader getReader() {
+        return reader;
+    }
+
+    /**
+     * @return The field the terms were looked up in
+     */
+    public String getField() {
+        return field;
+    }
+
+    /**
+     * @param term The analysed term
+     * @return The candidates for the term or null when the term was not part of the batch
+     */
+    public Candidates getCandidates(BytesRef term) {
+        return candidates.get(term);
+    }
+
+    /**
+     * @return The number of distinct terms in the batch
+     */
+    public int size() {
+        return candidates.size();
+    }
+
+    /**
+     * @return The number of terms enum seeks over all the segments
+     */
+    public int getSegmentSeeks() {
+        return segmentSeeks;
+    }
+
+    /**
+     * The live documents that contain a term, in document order, with their scores.
+     */
+    public static class Candidates {
+        private final int[] docs;
+        private final float[] scores;
+
+        Candidates(int[] docs, float[] scores) {
+            this.docs = docs;
+            this.scores = scores;
+        }
+
+        /**
+         * @return The top level document numbers
+         */
+        public int[] getDocs() {
+            return docs;
+        }
+
+        /**
+         * @return The score for each document, the square root of the term frequency multiplied by the priority
+         */
+        public float[] getScores() {
+            return scores;
+        }
+
+        public int size() {
+            return docs.length;
+        }
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2014 Atlas of Living Australia
+ * All Rights Reserved.
+ *
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ */
+
+package au.org.ala.names.search;
+
+import au.org.ala.names.model.NameIndexField;
+import au.org.ala.names.model.RankType;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An in memory dictionary of the indexed scientific and canonical names in the name matching index.
+ * <p/>
+ * Each indexed (lowercased) name maps to the packed list of the documents that contain it.  For every document
+ * the rank, synonym flags and kingdom are held in arrays so that the exact match stage can work out the candidates
+ * for a name, and whether a unique candidate needs any homonym checks, without a Lucene search.
+ * <p/>
+ * The dictionary is bound to the reader it was built from and must be rebuilt when the reader is reopened.
+ */
+public class ExactNameDictionary {
+    private static final Log log = LogFactory.getLog(ExactNameDictionary.class);
+    /** The indexed value for true flags. The fields are analysed with the LowerCaseKeywordAnalyzer */
+    private static final BytesRef TRUE = new BytesRef("t");
+    private static final int[] NONE = new int[0];
+
+    private static final byte SYNONYM = 1;
+    private static final byte ALA = 2;
+    private static final byte ACCEPTED = 4;
+    private static final byte SYNONYM_TYPE = 8;
+
+    private final IndexReader reader;
+    private final Map<String, int[]> names;
+    private final byte[] flags;
+    private final short[] rankIds;
+    private final short[] ranks;
+    private final short[] kingdoms;
+    private final String[] rankIdValues;
+    private final String[] rankValues;
+    private final String[] kingdomValues;
+    private final int postings;
+
+    /**
+     * Builds the dictionary from the live documents of the supplied reader.
+     *
+     * @param reader The reader for the scientific name index
+     * @throws IOException
+     */
+    public ExactNameDictionary(IndexReader reader) throws IOException {
+        long start = System.currentTimeMillis();
+        this.reader = reader;
+        int maxDoc = reader.maxDoc();
+        flags = new byte[maxDoc];
+        rankIds = new short[maxDoc];
+        ranks = new short[maxDoc];
+        kingdoms = new short[maxDoc];
+        markFlag(reader, NameIndexField.iS_SYNONYM.toString(), TRUE, SYNONYM);
+        markFlag(reader, NameIndexField.ALA.toString(), TRUE, ALA);
+        markFlag(reader, NameIndexField.ACCEPTED.toString(), null, ACCEPTED);
+        markFlag(reader, NameIndexField.SYNONYM_TYPE.toString(), null, SYNONYM_TYPE);
+        rankIdValues = loadOrdinals(reader, NameIndexField.RANK_ID.toString(), rankIds);
+        rankValues = loadOrdinals(reader, NameIndexField.RANK.toString(), ranks);
+        kingdomValues = loadOrdinals(reader, RankType.KINGDOM.getRank(), kingdoms);
+
+        //the names with the candidates from each segment in document order
+        Map<String, int[]> map = new HashMap<String, int[]>();
+        int count = 0;
+        for (AtomicReaderContext context : reader.leaves()) {
+            Terms terms = context.reader().terms(NameIndexField.NAME.toString());
+            if (terms == null)
+                continue;
+            Bits liveDocs = context.reader().getLiveDocs();
+            TermsEnum te = terms.iterator(null);
+            DocsEnum docs = null;
+            BytesRef term;
+            while ((term = te.next()) != null) {
+                docs = te.docs(liveDocs, docs, DocsEnum.FLAG_NONE);
+                int[] found = new int[Math.max(1, te.docFreq())];
+                int n = 0;
+                int doc;
+                while ((doc = docs.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+                    if (n == found.length) {
+                        int[] grown = new int[n * 2];
+                        System.arraycopy(found, 0, grown, 0, n);
+                        found = grown;
+                    }
+                    found[n++] = context.docBase + doc;
+                }
+                if (n == 0)
+                    continue;
+                String name = term.utf8ToString();
+                int[] existing = map.get(name);
+                int offset = existing == null ? 0 : existing.length;
+                int[] packed = new int[offset + n];
+                if (existing != null)
+                    System.arraycopy(existing, 0, packed, 0, offset);
+                System.arraycopy(found, 0, packed, offset, n);
+                map.put(name, packed);
+                count += n;
+            }
+        }
+        names = map;
+        postings = count;
+        log.info("Loaded " + names.size() + " names with " + postings + " candidates into the exact name dictionary in "
+                + (System.currentTimeMillis() - start) + "ms. Estimated size " + (getMemoryEstimate() / 1024) + "kb");
+    }
+
+    private void markFlag(IndexReader reader, String field, BytesRef value, byte flag) throws IOException {
+        for (AtomicReaderContext context : reader.leaves()) {
+            Terms terms = context.reader().terms(field);
+            if (terms == null)
+                continue;
+            Bits liveDocs = context.reader().getLiveDocs();
+            TermsEnum te = terms.iterator(null);
+            DocsEnum docs = null;
+            if (value != null) {
+                if (!te.seekExact(value, false))
+                    continue;
+                docs = te.docs(liveDocs, docs, DocsEnum.FLAG_NONE);
+                mark(docs, context.docBase, flag);
+            } else {
+                while (te.next() != null) {
+                    docs = te.docs(liveDocs, docs, DocsEnum.FLAG_NONE);
+                    mark(docs, context.docBase, flag);
+                }
+            }
+        }
+    }
+
+    private void mark(DocsEnum docs, int docBase, byte flag) throws IOException {
+        int doc;
+        while ((doc = docs.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS)
+            flags[docBase + doc] |= flag;
+    }
+
+    /**
+     * Assigns an ordinal to each distinct value of a single valued field.  Ordinal 0 means no value.
+     *
+     * @return The values for each of the ordinals
+     */
+    static String[] loadOrdinals(IndexReader reader, String field, short[] ordinals) throws IOException {
+        List<String> values = new ArrayList<String>();
+        Map<String, Short> lookup = new HashMap<String, Short>();
+        values.add(null);
+        for (AtomicReaderContext context : reader.leaves()) {
+            Terms terms = context.reader().terms(field);
+            if (terms == null)
+                continue;
+            Bits liveDocs = context.reader().getLiveDocs();
+            TermsEnum te = terms.iterator(null);
+            DocsEnum docs = null;
+            BytesRef term;
+            while ((term = te.next()) != null) {
+                String value = term.utf8ToString();
+                Short ord = lookup.get(value);
+                if (ord == null) {
+                    if (values.size() > Short.MAX_VALUE) {
+                        log.warn("Too many distinct values for " + field + " in the exact name dictionary. " + value + " will be ignored");
+                        continue;
+                    }
+                    ord = (short) values.size();
+                    values.add(value);
+                    lookup.put(value, ord);
+                }
+                docs = te.docs(liveDocs, docs, DocsEnum.FLAG_NONE);
+                int doc;
+                while ((doc = docs.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS)
+                    ordinals[context.docBase + doc] = ord;
+            }
+        }
+        return values.toArray(new String[values.size()]);
+    }
+
+    /**
+     * @return The reader that the document numbers refer to
+     */
+    public IndexReader getReader() {
+        return reader;
+    }
+
+    /**
+     * @param name The indexed form of the name
+     * @return The documents that contain the name in document order, an empty array when there are none
+     */
+    public int[] getCandidates(String name) {
+        int[] candidates = names.get(name);
+        return candidates == null ? NONE : candidates;
+    }
+
+    /**
+     * Returns the candidates for the name that satisfy the same rank family restriction that the searcher applies.
+     * Synonyms and ALA concepts are always included.
+     *
+     * @param name The indexed form of the name
+     * @param rank The rank, may be null
+     * @return The documents in document order
+     */
+    public int[] getCandidates(String name, RankType rank) {
+        int[] candidates = getCandidates(name);
+        if (rank == null || candidates.length == 0)
+            return candidates;
+        int[] accepted = new int[candidates.length];
+        int n = 0;
+        for (int doc : candidates) {
+            if (inRankFamily(doc, rank))
+                accepted[n++] = doc;
+        }
+        if (n == candidates.length)
+            return candidates;
+        int[] result = new int[n];
+        System.arraycopy(accepted, 0, result, 0, n);
+        return result;
+    }
+
+    private boolean inRankFamily(int doc, RankType rank) {
+        if ((flags[doc] & (SYNONYM | ALA)) != 0)
+            return true;
+        if (rank.getId() >= RankType.SPECIES.getId()) {
+            //the same as the term range rank_id:[7000 TO 9999]
+            String rankId = rankIdValues[rankIds[doc]];
+            return rankId != null && rankId.compareTo("7000") >= 0 && rankId.compareTo("9999") <= 0;
+        }
+        return rank.getRank().equals(rankValues[ranks[doc]]);
+    }
+
+    /**
+     * @return true when the document is a synonym of another concept or carries a synonym type (eg excluded)
+     */
+    public boolean isSynonym(int doc) {
+        return (flags[doc] & (SYNONYM | ACCEPTED | SYNONYM_TYPE)) != 0;
+    }
+
+    /**
+     * @return The rank of the document or null when it does not have a known rank
+     */
+    public RankType getRank(int doc) {
+        String rankId = rankIdValues[rankIds[doc]];
+        if (rankId == null)
+            return null;
+        try {
+            return RankType.getForId(Integer.parseInt(rankId));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return The indexed (lowercase) kingdom for the document or null
+     */
+    public String getKingdom(int doc) {
+        return kingdomValues[kingdoms[doc]];
+    }
+
+    /**
+     * @return The number of distinct names
+     */
+    public int size() {
+        return names.size();
+    }
+
+    /**
+     * A rough estimate of the heap used by the dictionary, assuming compressed oops.
+     *
+     * @return The estimated number of bytes
+     */
+    public long getMemoryEstimate() {
+        long bytes = (long) flags.length * 7;
+        for (Map.Entry<String, int[]> entry : names.entrySet()) {
+            //hash entry, string, char array and packed candidate array
+            bytes += 32 + 24 + 16 + entry.getKey().length() * 2 + 16 + entry.getValue().length * 4;
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2014 Atlas of Living Australia
+ * All Rights Reserved.
+ *
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ */
+
+package au.org.ala.names.search;
+
+import au.org.ala.names.model.NameIndexField;
+import au.org.ala.names.model.RankType;
+import au.org.ala.names.util.FuzzyDictionary;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * An in memory index of the binomial and trinomial names in the name matching index that can be searched
+ * for names with spelling mistakes.
+ * <p/>
+ * In the same way as TaxaMatch the candidate genera are found first and then the epithets within the candidate
+ * genera are compared.  Each part may differ by up to {@link #maxDistance(String)} edits and the whole name by
+ * the maximum distance for the whole name.
+ * <p/>
+ * Uninomials above the rank of species (genera, families, orders etc) are held in a separate dictionary for each
+ * rank and kingdom so that a search can be restricted to the supplied rank and kingdom.  Names without a kingdom
+ * are held against an empty kingdom and are always searched.
+ */
+public class FuzzyNameIndex {
+    private static final Log log = LogFactory.getLog(FuzzyNameIndex.class);
+    /** The indexed names that are a genus followed by one or two epithets */
+    private static final Pattern CANONICAL = Pattern.compile("[a-z]+( [a-z][a-z\\-]*){1,2}");
+    /** The indexed names that are a single word */
+    private static final Pattern UNINOMIAL = Pattern.compile("[a-z]+");
+    /** The key for names without a kingdom */
+    private static final String NO_KINGDOM = "";
+
+    private final FuzzyDictionary genera;
+    private final Map<String, FuzzyDictionary> epithets;
+    private final Map<RankType, Map<String, FuzzyDictionary>> uninomials;
+
+    /**
+     * Builds the index from the names in the supplied reader
+     *
+     * @param reader The reader for the scientific name index
+     * @throws IOException
+     */
+    public FuzzyNameIndex(IndexReader reader) throws IOException {
+        long start = System.currentTimeMillis();
+        Map<String, Set<String>> names = new HashMap<String, Set<String>>();
+        Terms terms = MultiFields.getTerms(reader, NameIndexField.NAME.toString());
+        if (terms != null) {
+            TermsEnum te = terms.iterator(null);
+            BytesRef term;
+            while ((term = te.next()) != null) {
+                String name = term.utf8ToString();
+                if (!CANONICAL.matcher(name).matches())
+                    continue;
+                int space = name.indexOf(' ');
+                String genus = name.substring(0, space);
+                Set<String> rest = names.get(genus);
+                if (rest == null) {
+                    rest = new HashSet<String>();
+                    names.put(genus, rest);
+                }
+                rest.add(name.substring(space + 1));
+            }
+        }
+        genera = new FuzzyDictionary(names.keySet());
+        epithets = new HashMap<String, FuzzyDictionary>(names.size() * 2);
+        int count = 0;
+        for (Map.Entry<String, Set<String>> entry : names.entrySet()) {
+            epithets.put(entry.getKey(), new FuzzyDictionary(entry.getValue()));
+            count += entry.getValue().size();
+        }
+        uninomials = loadUninomials(reader);
+        log.info("Loaded " + count + " names in " + genera.size() + " genera into the fuzzy name index in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * Groups the single word names by the rank and kingdom of the documents that contain them.
+     */
+    private Map<RankType, Map<String, FuzzyDictionary>> loadUninomials(IndexReader reader) throws IOException {
+        long start = System.currentTimeMillis();
+        int maxDoc = reader.maxDoc();
+        short[] rankIds = new short[maxDoc];
+        short[] kingdoms = new short[maxDoc];
+        String[] rankIdValues = ExactNameDictionary.loadOrdinals(reader, NameIndexField.RANK_ID.toString(), rankIds);
+        String[] kingdomValues = ExactNameDictionary.loadOrdinals(reader, RankType.KINGDOM.getRank(), kingdoms);
+        RankType[] ranks = new RankType[rankIdValues.length];
+        for (int i = 1; i < rankIdValues.length; i++) {
+            try {
+                RankType rank = RankType.getForId(Integer.parseInt(rankIdValues[i]));
+                ranks[i] = rank != null && rank.getId() < RankType.SPECIES.getId() ? rank : null;
+            } catch (NumberFormatException e) {
+                ranks[i] = null;
+            }
+        }
+
+        Map<RankType, Map<String, Set<String>>> names = new HashMap<RankType, Map<String, Set<String>>>();
+        for (AtomicReaderContext context : reader.leaves()) {
+            Terms terms = context.reader().terms(NameIndexField.NAME.toString());
+            if (terms == null)
+                continue;
+            Bits liveDocs = context.reader().getLiveDocs();
+            TermsEnum te = terms.iterator(null);
+            DocsEnum docs = null;
+            BytesRef term;
+            while ((term = te.next()) != null) {
+                String name = term.utf8ToString();
+                if (!UNINOMIAL.matcher(name).matches())
+                    continue;
+                docs = te.docs(liveDocs, docs, DocsEnum.FLAG_NONE);
+                int doc;
+                while ((doc = docs.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+                    RankType rank = ranks[rankIds[context.docBase + doc]];
+                    if (rank == null)
+                        continue;
+                    String kingdom = kingdomValues[kingdoms[context.docBase + doc]];
+                    Map<String, Set<String>> byKingdom = names.get(rank);
+                    if (byKingdom == null) {
+                        byKingdom = new HashMap<String, Set<String>>();
+                        names.put(rank, byKingdom);
+                    }
+                    String key = kingdom == null ? NO_KINGDOM : kingdom;
+                    Set<String> words = byKingdom.get(key);
+                    if (words == null) {
+                        words = new HashSet<String>();
+                        byKingdom.put(key, words);
+                    }
+                    words.add(name);
+                }
+            }
+        }
+        Map<RankType, Map<String, FuzzyDictionary>> dictionaries = new EnumMap<RankType, Map<String, FuzzyDictionary>>(RankType.class);
+        int count = 0;
+        for (Map.Entry<RankType, Map<String, Set<String>>> rank : names.entrySet()) {
+            Map<String, FuzzyDictionary> byKingdom = new HashMap<String, FuzzyDictionary>();
+            for (Map.Entry<String, Set<String>> kingdom : rank.getValue().entrySet()) {
+                byKingdom.put(kingdom.getKey(), new FuzzyDictionary(kingdom.getValue()));
+                count += kingdom.getValue().size();
+            }
+            dictionaries.put(rank.getKey(), byKingdom);
+        }
+        log.info("Loaded " + count + " uninomials in " + dictionaries.size() + " ranks into the fuzzy name index in " + (System.currentTimeMillis() - start) + "ms");
+        return dictionaries;
+    }
+
+    /**
+     * The maximum number of edits allowed for a word or name
+     *
+     * @param word The word
+     * @return 0 for less than 4 characters, 1 for less than 8 characters otherwise 2
+     */
+    public static int maxDistance(String word) {
+        int length = word.length();
+        return length < 4 ? 0 : length < 8 ? 1 : 2;
+    }
+
+    /**
+     * Finds the indexed names that are closest to the supplied binomial or trinomial.
+     *
+     * @param genus   The genus
+     * @param epithet The specific epithet, followed by the infraspecific epithet for a trinomial
+     * @return The lowercase names with the smallest distance in alphabetical order, empty when there are none within the maximum distances
+     */
+    public List<String> searchBinomial(String genus, String epithet) {
+        genus = genus.toLowerCase(Locale.ENGLISH);
+        epithet = epithet.toLowerCase(Locale.ENGLISH);
+        int totalMax = maxDistance(genus + " " + epithet);
+        int epithetMax = maxDistance(epithet);
+        List<String> closest = new ArrayList<String>();
+        int best = totalMax + 1;
+        for (FuzzyDictionary.Match genusMatch : genera.search(genus, Math.min(totalMax, maxDistance(genus)))) {
+            int limit = Math.min(best, totalMax) - genusMatch.getDistance();
+            if (limit < 0)
+                break;
+            FuzzyDictionary candidates = epithets.get(genusMatch.getWord());
+            for (FuzzyDictionary.Match epithetMatch : candidates.search(epithet, Math.min(epithetMax, limit))) {
+                int distance = genusMatch.getDistance() + epithetMatch.getDistance();
+                if (distance < best) {
+                    best = distance;
+                    closest.clear();
+                }
+                if (distance == best)
+                    closest.add(genusMatch.getWord() + " " + epithetMatch.getWord());
+            }
+        }
+        Collections.sort(closest);
+        return closest;
+    }
+
+    /**
+     * Finds the indexed uninomials above the rank of species that are closest to the supplied name.
+     *
+     * @param name    The genus or higher taxon name
+     * @param rank    The rank of the name. When null all the ranks above species are searched.
+     * @param kingdom The kingdom of the name. When null all the kingdoms are searched.
+     * @return The lowercase names with the smallest distance in alphabetical order, empty when there are none within the maximum distance
+     */
+    public List<String> searchUninomial(String name, RankType rank, String kingdom) {
+        name = name.toLowerCase(Locale.ENGLISH);
+        List<String> closest = new ArrayList<String>();
+        int best = maxDistance(name);
+        if (best == 0)
+            return closest;
+        Collection<Map<String, FuzzyDictionary>> searched;
+        if (rank == null) {
+            searched = uninomials.values();
+        } else {
+            Map<String, FuzzyDictionary> byKingdom = uninomials.get(rank);
+            if (byKingdom == null)
+                return closest;
+            searched = Collections.singleton(byKingdom);
+        }
+        Set<String> found = new HashSet<String>();
+        for (Map<String, FuzzyDictionary> byKingdom : searched) {
+            Collection<FuzzyDictionary> dictionaries;
+            if (kingdom == null) {
+                dictionaries = byKingdom.values();
+            } else {
+                dictionaries = new ArrayList<FuzzyDictionary>(2);
+                FuzzyDictionary dictionary = byKingdom.get(kingdom.toLowerCase(Locale.ENGLISH));
+                if (dictionary != null)
+                    dictionaries.add(dictionary);
+                dictionary = byKingdom.get(NO_KINGDOM);
+                if (dictionary != null)
+                    dictionaries.add(dictionary);
+            }
+            for (FuzzyDictionary dictionary : dictionaries) {
+                for (FuzzyDictionary.Match match : dictionary.search(name, best)) {
+                    if (match.getDistance() < best) {
+                        best = match.getDistance();
+                        found.clear();
+                    }
+                    if (match.getDistance() == best)
+                        found.add(match.getWord());
+                }
+            }
+        }
+        closest.addAll(found);
+        Collections.sort(closest);
+        return closest;
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2014 Atlas of Living Australia
+ * All Rights Reserved.
+ *
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ */
+package au.org.ala.names.search;
+
+import au.org.ala.names.model.MatchType;
+import au.org.ala.names.model.NameIndexField;
+import au.org.ala.names.model.RankType;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.DocumentStoredFieldVisitor;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The differences between two builds of a name index that can change the outcome of a match.
+ * <p/>
+ * Each taxon concept is compared, by LSID, on its names, author, rank, synonymy and classification.  The internal
+ * ids and the nested set values are ignored because they change with every build.  The homonym indexes are compared
+ * document by document.  Every name of a concept that was added, removed or changed in either build is affected,
+ * along with its genus.
+ * <p/>
+ * A classification tuple is affected when any of its names is affected, or when it was matched to a concept that
+ * changed.  A name that is only similar to an affected name, such as a misspelt genus, can not be found from the
+ * affected names, so the tuples that were not matched or were matched by sound, edit distance or the higher
+ * classification are always affected.  A tuple that matched a name exactly keeps that match whatever similar names
+ * are added.
+ */
+public class IndexDiff {
+    private static final Log log = LogFactory.getLog(IndexDiff.class);
+    /** The stored fields that are compared */
+    static final Set<String> COMPARED_FIELDS = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(
+            NameIndexField.LSID.toString(), NameIndexField.NAME.toString(), NameIndexField.AUTHOR.toString(),
+            NameIndexField.RANK_ID.toString(), NameIndexField.ACCEPTED.toString(), NameIndexField.SYNONYM_TYPE.toString(),
+            NameIndexField.ACCEPTED_NAME.toString(), NameIndexField.ACCEPTED_AUTHOR.toString(), NameIndexField.ACCEPTED_RANK_ID.toString(),
+            RankType.KINGDOM.getRank(), RankType.PHYLUM.getRank(), RankType.CLASS.getRank(), RankType.ORDER.getRank(),
+            RankType.FAMILY.getRank(), RankType.GENUS.getRank(), RankType.SPECIES.getRank(),
+            "kid", "pid", "cid", "oid", "fid", "gid", "sid")));
+
+    /** The previous match types that a new or changed similar name could improve on */
+    static final Set<String> APPROXIMATE_MATCHES = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(
+            MatchType.SOUNDEX.toString(), MatchType.EDIT_DISTANCE.toString(), MatchType.RECURSIVE.toString())));
+
+    private final Set<String> changedLsids = new HashSet<String>();
+    private final Set<String> affectedNames = new HashSet<String>();
+
+    /**
+     * @param oldNames    The scientific name index of the old build
+     * @param newNames    The scientific name index of the new build
+     * @param oldHomonyms The homonym index of the old build, may be null
+     * @param newHomonyms The homonym index of the new build, may be null
+     * @throws IOException
+     */
+    public IndexDiff(IndexReader oldNames, IndexReader newNames, IndexReader oldHomonyms, IndexReader newHomonyms) throws IOException {
+        long start = System.currentTimeMillis();
+        Map<String, Long> old = signatures(oldNames);
+        Map<String, Long> current = signatures(newNames);
+        for (Map.Entry<String, Long> entry : current.entrySet()) {
+            if (!entry.getValue().equals(old.get(entry.getKey())))
+                changedLsids.add(entry.getKey());
+        }
+        for (String lsid : old.keySet()) {
+            if (!current.containsKey(lsid))
+                changedLsids.add(lsid);
+        }
+        addNames(oldNames);
+        addNames(newNames);
+        int homonyms = 0;
+        if (oldHomonyms != null && newHomonyms != null) {
+            Set<String> before = homonyms(oldHomonyms);
+            Set<String> after = homonyms(newHomonyms);
+            for (String homonym : before) {
+                if (!after.contains(homonym))
+                    homonyms += addHomonym(homonym);
+            }
+            for (String homonym : after) {
+                if (!before.contains(homonym))
+                    homonyms += addHomonym(homonym);
+            }
+        }
+        log.info("Found " + changedLsids.size() + " changed concepts of " + current.size() + " and " + homonyms
+                + " changed homonyms, affecting " + affectedNames.size() + " names, in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * Compares the name indexes in two index directories.
+     *
+     * @param oldIndex The directory of the old build
+     * @param newIndex The directory of the new build
+     * @throws IOException
+     */
+    public static IndexDiff open(File oldIndex, File newIndex) throws IOException {
+        IndexReader oldNames = DirectoryReader.open(FSDirectory.open(new File(oldIndex, "cb")));
+        IndexReader newNames = DirectoryReader.open(FSDirectory.open(new File(newIndex, "cb")));
+        IndexReader oldHomonyms = null, newHomonyms = null;
+        try {
+            if (new File(oldIndex, "irmng").exists() && new File(newIndex, "irmng").exists()) {
+                oldHomonyms = DirectoryReader.open(FSDirectory.open(new File(oldIndex, "irmng")));
+                newHomonyms = DirectoryReader.open(FSDirectory.open(new File(newIndex, "irmng")));
+            }
+            return new IndexDiff(oldNames, newNames, oldHomonyms, newHomonyms);
+        } finally {
+            oldNames.close();
+            newNames.close();
+            if (oldHomonyms != null)
+                oldHomonyms.close();
+            if (newHomonyms != null)
+                newHomonyms.close();
+        }
+    }
+
+    /**
+     * @return The 64 bit hash of the compared fields of the concepts with each LSID
+     */
+    private Map<String, Long> signatures(IndexReader reader) throws IOException {
+        Map<String, Long> signatures = new HashMap<String, Long>(reader.numDocs() * 2);
+        Bits liveDocs = MultiFields.getLiveDocs(reader);
+        for (int i = 0; i < reader.maxDoc(); i++) {
+            if (liveDocs != null && !liveDocs.get(i))
+                continue;
+            Document doc = load(reader, i, COMPARED_FIELDS);
+            String lsid = doc.get(NameIndexField.LSID.toString());
+            if (lsid == null)
+                continue;
+            long signature = MatchMemo.hash(signature(doc));
+            Long existing = signatures.get(lsid);
+            //concepts that share an LSID are combined
+            signatures.put(lsid, existing == null ? signature : existing ^ (signature * 31));
+        }
+        return signatures;
+    }
+
+    /**
+     * @return The fields in a fixed order so that the signature does not depend on the order they were indexed
+     */
+    private static String signature(Document doc) {
+        List<String> fields = new ArrayList<String>();
+        for (IndexableField field : doc.getFields())
+            fields.add(field.name() + "=" + field.stringValue());
+        Collections.sort(fields);
+        StringBuilder sb = new StringBuilder(256);
+        for (String field : fields)
+            sb.append(field).append('\u0001');
+        return sb.toString();
+    }
+
+    /**
+     * Adds the names of the changed concepts in the index.
+     */
+    private void addNames(IndexReader reader) throws IOException {
+        Set<String> fields = new HashSet<String>(Arrays.asList(NameIndexField.LSID.toString(), NameIndexField.NAME.toString()));
+        Bits liveDocs = MultiFields.getLiveDocs(reader);
+        for (int i = 0; i < reader.maxDoc(); i++) {
+            if (liveDocs != null && !liveDocs.get(i))
+                continue;
+            Document doc = load(reader, i, fields);
+            if (!changedLsids.contains(doc.get(NameIndexField.LSID.toString())))
+                continue;
+            for (String name : doc.getValues(NameIndexField.NAME.toString()))
+                addName(name);
+        }
+    }
+
+    private Set<String> homonyms(IndexReader reader) throws IOException {
+        Set<String> homonyms = new HashSet<String>(reader.numDocs() * 2);
+        Bits liveDocs = MultiFields.getLiveDocs(reader);
+        for (int i = 0; i < reader.maxDoc(); i++) {
+            if (liveDocs == null || liveDocs.get(i)) {
+                DocumentStoredFieldVisitor visitor = new DocumentStoredFieldVisitor();
+                reader.document(i, visitor);
+                homonyms.add(signature(visitor.getDocument()));
+            }
+        }
+        return homonyms;
+    }
+
+    private int addHomonym(String signature) {
+        for (String field : signature.split("\u0001")) {
+            if (field.startsWith(RankType.GENUS.getRank() + "=") || field.startsWith(RankType.SPECIES.getRank() + "="))
+                addName(field.substring(field.indexOf('=') + 1));
+        }
+        return 1;
+    }
+
+    private static Document load(IndexReader reader, int doc, Set<String> fields) throws IOException {
+        DocumentStoredFieldVisitor visitor = new DocumentStoredFieldVisitor(fields);
+        reader.document(doc, visitor);
+        return visitor.getDocument();
+    }
+
+    private void addName(String name) {
+        String normalised = normalise(name);
+        if (normalised == null)
+            return;
+        affectedNames.add(normalised);
+        int space = normalised.indexOf(' ');
+        if (space > 0)
+            affectedNames.add(normalised.substring(0, space));
+    }
+
+    /**
+     * Lowercases the name and collapses its whitespace.
+     *
+     * @return The normalised name or null when it is empty
+     */
+    static String normalise(String name) {
+        String normalised = BulkNameMatcher.normalise(name);
+        return normalised == null ? null : normalised.toLowerCase();
+    }
+
+    /**
+     * Works out whether the match of a classification could be different with the new index.
+     *
+     * @param terms          The values of the {@link BulkNameMatcher#TERMS}
+     * @param lsid           The LSID that was matched, null when nothing was matched
+     * @param acceptedLsid   The accepted LSID that was matched, may be null
+     * @param matchType      The {@link MatchType} title of the match, may be null
+     * @return true when the classification needs to be matched again
+     */
+    public boolean isAffected(String[] terms, String lsid, String acceptedLsid, String matchType) {
+        if (lsid == null || (matchType != null && APPROXIMATE_MATCHES.contains(matchType)))
+            return true;
+        if (changedLsids.contains(lsid) || (acceptedLsid != null && changedLsids.contains(acceptedLsid)))
+            return true;
+        for (String term : terms) {
+            String name = normalise(term);
+            if (name != null && affectedNames.contains(name))
+                return true;
+        }
+        //the genus, binomial and trinomial parts of the scientific name
+        String name = normalise(terms[0]);
+        if (name != null) {
+            String[] words = name.split(" ");
+            StringBuilder prefix = new StringBuilder(name.length());
+            for (int i = 0; i < words.length && i < 3; i++) {
+                if (i > 0)
+                    prefix.append(' ');
+                prefix.append(words[i]);
+                if (affectedNames.contains(prefix.toString()))
+                    return true;
+            }
+        }
+        //the name constructed from the parts
+        String genus = normalise(terms[8]);
+        String specific = normalise(terms[9]);
+        if (genus != null && specific != null) {
+            String binomial = genus + " " + specific;
+            if (affectedNames.contains(binomial))
+                return true;
+            String infraspecific = normalise(terms[10]);
+            if (infraspecific != null && affectedNames.contains(binomial + " " + infraspecific))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return The LSIDs of the concepts that were added, removed or changed
+     */
+    public Set<String> getChangedLsids() {
+        return changedLsids;
+    }
+
+    /**
+     * @return The normalised names whose matches could change
+     */
+    public Set<String> getAffectedNames() {
+        return affectedNames;
+    }
+}
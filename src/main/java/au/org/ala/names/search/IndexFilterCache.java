@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2014 Atlas of Living Australia
+ * All Rights Reserved.
+ *
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ */
+
+package au.org.ala.names.search;
+
+import au.org.ala.names.model.NameIndexField;
+import au.org.ala.names.model.RankType;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.*;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Provides the cached filters for the clauses that are applied to the majority of the searches against the
+ * name matching index.
+ * <p/>
+ * Every ranked search restricts the results to the supplied rank (or all ranks species and below) OR a synonym
+ * OR an ALA added concept. Rather than having this clause parsed and evaluated for every candidate, the bitsets
+ * are cached for each segment using a {@link CachingWrapperFilter}.  The cache is keyed on the segment core so
+ * the bitsets are built once per reader generation and reused when {@link ALANameSearcher#reopenReaders()}
+ * opens a new reader on unchanged segments.
+ */
+public class IndexFilterCache {
+    /** The indexed value for true flags. The fields are analysed with the LowerCaseKeywordAnalyzer */
+    private static final String TRUE = "t";
+
+    private final Filter speciesAndBelowFilter;
+    private final ConcurrentMap<RankType, Filter> rankFilters = new ConcurrentHashMap<RankType, Filter>();
+
+    public IndexFilterCache() {
+        speciesAndBelowFilter = cache(rankFamilyQuery(TermRangeQuery.newStringRange(NameIndexField.RANK_ID.toString(), "7000", "9999", true, true)));
+    }
+
+    private Filter cache(Query query) {
+        return new CachingWrapperFilter(new QueryWrapperFilter(query));
+    }
+
+    /**
+     * Cater for the situation where the search term could be a synonym that does not have a rank.
+     * Also ALA added concepts do NOT have ranks.
+     */
+    private Query rankFamilyQuery(Query rankQuery) {
+        BooleanQuery bq = new BooleanQuery();
+        bq.add(rankQuery, BooleanClause.Occur.SHOULD);
+        bq.add(new TermQuery(new Term(NameIndexField.iS_SYNONYM.toString(), TRUE)), BooleanClause.Occur.SHOULD);
+        bq.add(new TermQuery(new Term(NameIndexField.ALA.toString(), TRUE)), BooleanClause.Occur.SHOULD);
+        return bq;
+    }
+
+    /**
+     * Returns the filter for the rank family of the supplied rank.  If the rank is species or below all the names
+     * that are species level and below are included in case synonyms have changed ranks.  Synonyms and ALA
+     * concepts are always included.
+     *
+     * @param rank The rank to restrict to
+     * @return The filter or null when no rank was supplied
+     */
+    public Filter getRankFilter(RankType rank) {
+        if (rank == null)
+            return null;
+        if (rank.getId() >= RankType.SPECIES.getId())
+            return speciesAndBelowFilter;
+        Filter filter = rankFilters.get(rank);
+        if (filter == null) {
+            filter = cache(rankFamilyQuery(new TermQuery(new Term(NameIndexField.RANK.toString(), rank.getRank()))));
+            Filter existing = rankFilters.putIfAbsent(rank, filter);
+            if (existing != null)
+                filter = existing;
+        }
+        return filter;
+    }
+}
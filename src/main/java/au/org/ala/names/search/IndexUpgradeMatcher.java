@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2014 Atlas of Living Australia
+ * All Rights Reserved.
+ *
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ */
+package au.org.ala.names.search;
+
+import au.com.bytecode.opencsv.CSVReader;
+import au.com.bytecode.opencsv.CSVWriter;
+import au.org.ala.names.util.MatchExecutors;
+import org.apache.commons.cli.*;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Brings a file of matched classifications up to date with a new build of the name index, matching only the
+ * classifications whose outcome could have changed.
+ * <p/>
+ * The input is the output of the {@link BulkNameMatcher}, usually for the distinct classification tuples of an
+ * occurrence store: a header row, the classification terms and the {@link BulkNameMatcher#MATCH_COLUMNS}.  The
+ * output has the same columns.  The rows that are affected by the {@link IndexDiff} between the old and new builds
+ * are matched against the new build and the rest are copied.
+ */
+public class IndexUpgradeMatcher {
+    private static final Log log = LogFactory.getLog(IndexUpgradeMatcher.class);
+
+    private final BulkNameMatcher matcher;
+    private final IndexDiff diff;
+    private final int threads;
+    private final int batchSize;
+    private final AtomicLong affected = new AtomicLong();
+
+    /**
+     * @param matcher   The matcher for the new build
+     * @param diff      The differences between the builds
+     * @param threads   The number of matching threads
+     * @param batchSize The number of rows that are checked and matched together by a thread
+     */
+    public IndexUpgradeMatcher(BulkNameMatcher matcher, IndexDiff diff, int threads, int batchSize) {
+        this.matcher = matcher;
+        this.diff = diff;
+        this.threads = Math.max(1, threads);
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * @return The number of rows that were matched again
+     */
+    public long getAffected() {
+        return affected.get();
+    }
+
+    /**
+     * Copies the matched rows, matching the affected rows again.
+     *
+     * @param in        The previous matches
+     * @param out       The updated matches
+     * @param separator The column separator for the input and output
+     * @return The number of rows
+     * @throws IOException
+     */
+    public long rematch(Reader in, Writer out, char separator) throws IOException {
+        CSVReader reader = new CSVReader(in, separator, '"');
+        String[] header = reader.readNext();
+        if (header == null)
+            return 0;
+        final int[] termColumns = matcher.mapColumns(header, Collections.<String, String>emptyMap());
+        final int[] matchColumns = new int[BulkNameMatcher.MATCH_COLUMNS.length];
+        for (int i = 0; i < matchColumns.length; i++) {
+            matchColumns[i] = -1;
+            for (int j = 0; j < header.length; j++) {
+                if (BulkNameMatcher.MATCH_COLUMNS[i].equals(StringUtils.trim(header[j])))
+                    matchColumns[i] = j;
+            }
+            if (matchColumns[i] < 0)
+                throw new IllegalArgumentException("No " + BulkNameMatcher.MATCH_COLUMNS[i] + " column in the previous matches");
+        }
+        CSVWriter writer = new CSVWriter(out, separator);
+        writer.writeNext(header);
+        ExecutorService executor = MatchExecutors.newExecutor(threads, false);
+        LinkedList<Future<List<String[]>>> pending = new LinkedList<Future<List<String[]>>>();
+        long count = 0;
+        long start = System.currentTimeMillis();
+        try {
+            List<String[]> batch = new ArrayList<String[]>(batchSize);
+            String[] row;
+            while ((row = reader.readNext()) != null) {
+                batch.add(row);
+                if (batch.size() == batchSize) {
+                    pending.add(executor.submit(new RematchTask(batch, termColumns, matchColumns)));
+                    batch = new ArrayList<String[]>(batchSize);
+                    if (pending.size() >= threads * 2)
+                        count += write(pending.removeFirst(), writer);
+                }
+            }
+            if (!batch.isEmpty())
+                pending.add(executor.submit(new RematchTask(batch, termColumns, matchColumns)));
+            while (!pending.isEmpty())
+                count += write(pending.removeFirst(), writer);
+        } finally {
+            executor.shutdownNow();
+        }
+        writer.flush();
+        log.info("Matched " + affected.get() + " of " + count + " rows again in " + (System.currentTimeMillis() - start) + "ms");
+        return count;
+    }
+
+    private int write(Future<List<String[]>> future, CSVWriter writer) throws IOException {
+        try {
+            List<String[]> rows = future.get();
+            writer.writeAll(rows);
+            return rows.size();
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while matching", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Unable to match a batch of rows", e.getCause());
+        }
+    }
+
+    /**
+     * Matches the affected rows of a batch.
+     */
+    private class RematchTask implements Callable<List<String[]>> {
+        private final List<String[]> rows;
+        private final int[] termColumns;
+        private final int[] matchColumns;
+
+        RematchTask(List<String[]> rows, int[] termColumns, int[] matchColumns) {
+            this.rows = rows;
+            this.termColumns = termColumns;
+            this.matchColumns = matchColumns;
+        }
+
+        @Override
+        public List<String[]> call() {
+            List<String[]> rematch = new ArrayList<String[]>();
+            String[] terms = new String[BulkNameMatcher.TERMS.length];
+            for (String[] row : rows) {
+                for (int i = 0; i < terms.length; i++)
+                    terms[i] = termColumns[i] >= 0 && termColumns[i] < row.length ? row[termColumns[i]] : null;
+                if (diff.isAffected(terms, value(row, matchColumns[0]), value(row, matchColumns[1]), value(row, matchColumns[2])))
+                    rematch.add(row);
+            }
+            if (rematch.isEmpty())
+                return rows;
+            affected.addAndGet(rematch.size());
+            String[][] matches = matcher.match(rematch, termColumns);
+            for (int i = 0; i < matches.length; i++) {
+                String[] row = rematch.get(i);
+                for (int j = 0; j < matchColumns.length; j++) {
+                    if (matchColumns[j] < row.length)
+                        row[matchColumns[j]] = matches[i][j] == null ? "" : matches[i][j];
+                }
+            }
+            return rows;
+        }
+
+        private String value(String[] row, int column) {
+            return column < row.length ? StringUtils.trimToNull(row[column]) : null;
+        }
+    }
+
+    public static void main(String[] args) {
+        Options options = new Options();
+        options.addOption("h", "help", false, "Retrieve options");
+        options.addOption("old", true, "The name matching index that the previous matches were made with");
+        options.addOption("new", true, "The new name matching index");
+        options.addOption("input", true, "The previous matches, the output of the bulk matcher");
+        options.addOption("output", true, "The file to write the updated matches to");
+        options.addOption("tsv", false, "The files are tab separated rather than CSV");
+        options.addOption("threads", true, "The number of matching threads. Defaults to the number of processors");
+        options.addOption("batch", true, "The number of rows checked together by a thread. Defaults to 1000");
+        options.addOption("norecursive", false, "The previous matches did not use the higher classification");
+        options.addOption("fuzzy", false, "The previous matches allowed fuzzy matching of scientific names");
+
+        CommandLineParser parser = new BasicParser();
+
+        try {
+            CommandLine line = parser.parse(options, args);
+
+            if (line.hasOption("help") || !line.hasOption("old") || !line.hasOption("new") || !line.hasOption("input") || !line.hasOption("output")) {
+                new HelpFormatter().printHelp("upgradematcher", options);
+                System.exit(-1);
+            }
+
+            IndexDiff diff = IndexDiff.open(new File(line.getOptionValue("old")), new File(line.getOptionValue("new")));
+            int threads = Integer.parseInt(line.getOptionValue("threads", Integer.toString(Runtime.getRuntime().availableProcessors())));
+            int batchSize = Integer.parseInt(line.getOptionValue("batch", "1000"));
+            ALANameSearcher searcher = new ALANameSearcher(line.getOptionValue("new"));
+            BulkNameMatcher matcher = new BulkNameMatcher(searcher, 1, batchSize);
+            matcher.setRecursiveMatching(!line.hasOption("norecursive"));
+            matcher.setFuzzy(line.hasOption("fuzzy"));
+            IndexUpgradeMatcher upgrade = new IndexUpgradeMatcher(matcher, diff, threads, batchSize);
+
+            Reader in = new BufferedReader(new InputStreamReader(new FileInputStream(line.getOptionValue("input")), "UTF-8"), 1 << 16);
+            Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(line.getOptionValue("output")), "UTF-8"), 1 << 16);
+            try {
+                upgrade.rematch(in, out, line.hasOption("tsv") ? '\t' : ',');
+            } finally {
+                in.close();
+                out.close();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,354 @@
+/*
+ * Copyright (C) 2014 Atlas of Living Australia
+ * All Rights Reserved.
+ *
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ */
+package au.org.ala.names.search;
+
+import au.org.ala.names.model.ErrorType;
+import au.org.ala.names.model.MatchType;
+import au.org.ala.names.model.MetricsResultDTO;
+import au.org.ala.names.model.NameSearchResult;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.gbif.ecat.voc.NameType;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A persistent memo of match results, held in a memory mapped file so that it can be reused by later runs against
+ * the same index without adding to the heap.
+ * <p/>
+ * The file is an open addressing hash table with linear probing.  Each slot holds the 64 bit hash of a key, the
+ * match errors, match type and name type, and the index id of the result.  The result is rebuilt from the index when
+ * it is read, so the trace and last exception of the original match are not kept.  The results for a list of keys are
+ * rebuilt together with one pass over the ids of the index.  Results with an id that does not fit in a slot are not
+ * memoised.
+ * <p/>
+ * The header records the identity of the index (see {@link ALANameSearcher#getIndexIdentity()}) and of the encoded
+ * enumerations.  When either has changed the memo is cleared on opening.  The table is sized when it is created;
+ * once it is three quarters full new results are no longer added.
+ */
+public class MatchMemo implements Closeable {
+    private static final Log log = LogFactory.getLog(MatchMemo.class);
+    private static final long MAGIC = 0x414c414d454d4f31L; //ALAMEMO1
+    private static final int HEADER_SIZE = 1024;
+    private static final int MAX_IDENTITY = HEADER_SIZE - 24;
+    private static final int SLOT_SIZE = 64;
+    private static final int MAX_ID = SLOT_SIZE - 19;
+    private static final int MAX_SLOTS = Integer.MAX_VALUE / SLOT_SIZE / 2 + 1;
+
+    //the header layout
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int COUNT_OFFSET = 12;
+    private static final int IDENTITY_OFFSET = 16;
+    //the slot layout
+    private static final int ERRORS_OFFSET = 8;
+    private static final int MATCH_TYPE_OFFSET = 16;
+    private static final int NAME_TYPE_OFFSET = 17;
+    private static final int ID_LENGTH_OFFSET = 18;
+    private static final int ID_OFFSET = 19;
+
+    private final ALANameSearcher searcher;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private final int mask;
+    private final int maxCount;
+    private int count;
+    private boolean full;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Opens a memo, creating or clearing it when it does not match the current index.
+     *
+     * @param memoFile   The memo file
+     * @param searcher   The searcher the results come from
+     * @param maxEntries The number of entries to size a new memo for
+     * @throws IOException
+     */
+    public MatchMemo(File memoFile, ALANameSearcher searcher, int maxEntries) throws IOException {
+        if (ErrorType.values().length > 64)
+            throw new IllegalStateException("Too many error types to encode");
+        this.searcher = searcher;
+        byte[] identity = (searcher.getIndexIdentity() + "|" + enumSignature()).getBytes("UTF-8");
+        if (identity.length > MAX_IDENTITY)
+            identity = Arrays.copyOf(identity, MAX_IDENTITY);
+        file = new RandomAccessFile(memoFile, "rw");
+        boolean reuse = false;
+        int slots = 0;
+        if (file.length() > HEADER_SIZE) {
+            file.seek(0);
+            slots = file.readLong() == MAGIC ? file.readInt() : 0;
+            if (slots > 0 && Integer.bitCount(slots) == 1 && file.length() == HEADER_SIZE + (long) slots * SLOT_SIZE) {
+                file.seek(IDENTITY_OFFSET);
+                byte[] stored = new byte[file.readUnsignedShort()];
+                file.readFully(stored);
+                reuse = Arrays.equals(stored, identity);
+                if (!reuse)
+                    log.info("The index has changed since " + memoFile + " was written, clearing it");
+            }
+        }
+        if (!reuse) {
+            slots = Integer.highestOneBit(Math.max(16, (int) Math.min(MAX_SLOTS, maxEntries * 4L / 3)) - 1) << 1;
+            slots = Math.min(slots, MAX_SLOTS);
+            file.setLength(0);
+            file.setLength(HEADER_SIZE + (long) slots * SLOT_SIZE);
+        }
+        channel = file.getChannel();
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) slots * SLOT_SIZE);
+        capacity = slots;
+        mask = slots - 1;
+        maxCount = slots / 4 * 3;
+        if (reuse) {
+            count = buffer.getInt(COUNT_OFFSET);
+        } else {
+            buffer.putInt(CAPACITY_OFFSET, slots);
+            buffer.putInt(COUNT_OFFSET, 0);
+            buffer.putShort(IDENTITY_OFFSET, (short) identity.length);
+            for (int i = 0; i < identity.length; i++)
+                buffer.put(IDENTITY_OFFSET + 2 + i, identity[i]);
+            //the magic number goes last so that a partly written header is not trusted
+            buffer.putLong(0, MAGIC);
+            count = 0;
+        }
+        full = count >= maxCount;
+        log.info((reuse ? "Reusing " : "Created ") + memoFile + " with " + count + " of " + maxCount + " entries");
+    }
+
+    /**
+     * The names of the encoded enumerations, so that the memo is cleared when a library changes them.
+     */
+    private static String enumSignature() {
+        return Integer.toHexString((Arrays.toString(ErrorType.values()) + Arrays.toString(MatchType.values())
+                + Arrays.toString(NameType.values())).hashCode());
+    }
+
+    /**
+     * A 64 bit hash of the key.  Zero marks an empty slot so it is never returned.
+     */
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        //spread the bits so that the low bits can be used for the slot
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h == 0 ? 1 : h;
+    }
+
+    /**
+     * @return The offset of the slot holding the hash, or of the empty slot where it belongs
+     */
+    private int find(long hash) {
+        int slot = (int) hash & mask;
+        while (true) {
+            int offset = HEADER_SIZE + slot * SLOT_SIZE;
+            long stored = buffer.getLong(offset);
+            if (stored == hash || stored == 0)
+                return offset;
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * @param key The normalised key for the match
+     * @return The memoised metrics or null when the key is not in the memo
+     */
+    public MetricsResultDTO get(String key) {
+        return get(Collections.singletonList(key)).get(0);
+    }
+
+    /**
+     * Gets the memoised metrics for a list of keys, looking up the results in the index together.
+     *
+     * @param keys The normalised keys for the matches
+     * @return The memoised metrics for each key, null when the key is not in the memo
+     */
+    public List<MetricsResultDTO> get(List<String> keys) {
+        long[] errors = new long[keys.size()];
+        int[] matchTypes = new int[keys.size()];
+        int[] nameTypes = new int[keys.size()];
+        String[] ids = new String[keys.size()];
+        boolean[] found = new boolean[keys.size()];
+        synchronized (this) {
+            for (int k = 0; k < keys.size(); k++) {
+                int offset = find(hash(keys.get(k)));
+                if (buffer.getLong(offset) == 0)
+                    continue;
+                found[k] = true;
+                errors[k] = buffer.getLong(offset + ERRORS_OFFSET);
+                matchTypes[k] = buffer.get(offset + MATCH_TYPE_OFFSET) & 0xff;
+                nameTypes[k] = buffer.get(offset + NAME_TYPE_OFFSET) & 0xff;
+                byte[] id = new byte[buffer.get(offset + ID_LENGTH_OFFSET) & 0xff];
+                for (int i = 0; i < id.length; i++)
+                    id[i] = buffer.get(offset + ID_OFFSET + i);
+                ids[k] = matchTypes[k] > 0 ? decode(id) : null;
+            }
+        }
+        Set<String> lookup = new HashSet<String>();
+        for (String id : ids) {
+            if (id != null)
+                lookup.add(id);
+        }
+        Map<String, NameSearchResult> results = lookup.isEmpty() ? Collections.<String, NameSearchResult>emptyMap() : searcher.searchForRecordsByID(lookup);
+        List<MetricsResultDTO> memoised = new ArrayList<MetricsResultDTO>(keys.size());
+        for (int k = 0; k < keys.size(); k++) {
+            MetricsResultDTO metrics = null;
+            if (found[k]) {
+                metrics = new MetricsResultDTO();
+                if (ids[k] != null) {
+                    NameSearchResult result = results.get(ids[k]);
+                    //the memo does not belong to this index after all
+                    if (result == null) {
+                        metrics = null;
+                    } else {
+                        //each key gets its own copy as the same result may be memoised for several keys
+                        result = new NameSearchResult(result);
+                        result.setMatchType(MatchType.values()[matchTypes[k] - 1]);
+                        metrics.setResult(result);
+                    }
+                }
+            }
+            if (metrics == null) {
+                misses.incrementAndGet();
+                memoised.add(null);
+                continue;
+            }
+            metrics.setNameType(nameTypes[k] == 0 ? null : NameType.values()[nameTypes[k] - 1]);
+            Set<ErrorType> errorTypes = new HashSet<ErrorType>();
+            for (ErrorType error : ErrorType.values()) {
+                if ((errors[k] & (1L << error.ordinal())) != 0)
+                    errorTypes.add(error);
+            }
+            metrics.setErrors(errorTypes);
+            hits.incrementAndGet();
+            memoised.add(metrics);
+        }
+        return memoised;
+    }
+
+    /**
+     * Adds the metrics for a match.
+     *
+     * @param key     The normalised key for the match
+     * @param metrics The metrics
+     * @return true when the metrics are in the memo
+     */
+    public boolean put(String key, MetricsResultDTO metrics) {
+        NameSearchResult result = metrics.getResult();
+        byte[] id = new byte[0];
+        if (result != null) {
+            if (result.getId() == null || result.getMatchType() == null)
+                return false;
+            id = encode(result.getId());
+            if (id.length > MAX_ID)
+                return false;
+        }
+        long errors = 0;
+        if (metrics.getErrors() != null) {
+            for (ErrorType error : metrics.getErrors())
+                errors |= 1L << error.ordinal();
+        }
+        long hash = hash(key);
+        synchronized (this) {
+            int offset = find(hash);
+            boolean added = buffer.getLong(offset) == 0;
+            if (added && full)
+                return false;
+            buffer.putLong(offset + ERRORS_OFFSET, errors);
+            buffer.put(offset + MATCH_TYPE_OFFSET, (byte) (result == null ? 0 : result.getMatchType().ordinal() + 1));
+            buffer.put(offset + NAME_TYPE_OFFSET, (byte) (metrics.getNameType() == null ? 0 : metrics.getNameType().ordinal() + 1));
+            buffer.put(offset + ID_LENGTH_OFFSET, (byte) id.length);
+            for (int i = 0; i < id.length; i++)
+                buffer.put(offset + ID_OFFSET + i, id[i]);
+            //the key goes last so that a partly written slot is not found
+            buffer.putLong(offset, hash);
+            if (added) {
+                buffer.putInt(COUNT_OFFSET, ++count);
+                if (count >= maxCount) {
+                    full = true;
+                    log.warn("The match memo is full at " + count + " entries, new matches will not be added");
+                }
+            }
+        }
+        return true;
+    }
+
+    private static byte[] encode(String value) {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (java.io.UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String decode(byte[] value) {
+        try {
+            return new String(value, "UTF-8");
+        } catch (java.io.UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return The number of entries
+     */
+    public synchronized int size() {
+        return count;
+    }
+
+    /**
+     * @return The number of slots in the table
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Writes the memo to disk and closes the file.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        buffer.force();
+        channel.close();
+        file.close();
+    }
+}
@@ -0,0 +1,351 @@
+/*
+ * Copyright (C) 2014 Atlas of Living Australia
+ * All Rights Reserved.
+ *
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ */
+
+package au.org.ala.names.search;
+
+import au.org.ala.names.model.LinnaeanRankClassification;
+import au.org.ala.names.model.MetricsResultDTO;
+import au.org.ala.names.util.Flow;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * A streaming name matching stage.  Classifications are received from an upstream publisher and the metrics are
+ * published to a single downstream subscriber.
+ * <p/>
+ * No more than a fixed number of classifications are requested from upstream ahead of the downstream subscriber,
+ * so a slow subscriber holds back a fast publisher and memory stays bounded.
+ * <p/>
+ * The classifications are matched in micro-batches on the executor, with no more than the parallelism batches being
+ * matched at once.  A batch is dispatched as soon as there is a free worker, so batches only grow when the workers
+ * are busy.  A full batch waits for a free worker while the next batch is filled.  The metrics are either published in the same order as the classifications or as
+ * soon as they are ready.
+ */
+public class MatchingProcessor implements Flow.Processor<LinnaeanRankClassification, MetricsResultDTO> {
+    private final ALANameSearcher searcher;
+    private final Executor executor;
+    private final int parallelism;
+    private final int batchSize;
+    private final boolean ordered;
+    private final int capacity;
+    private boolean recursiveMatching = true;
+    private boolean fuzzy = false;
+
+    private Flow.Subscription upstream;
+    private Flow.Subscriber<? super MetricsResultDTO> downstream;
+    private long demand;
+    private long received;
+    private long emitted;
+    private long nextEmit;
+    private int inFlight;
+    //the batch being filled and the full batches waiting for a free worker
+    private Batch batch;
+    private final ArrayDeque<Batch> waiting = new ArrayDeque<Batch>();
+    private final Map<Long, MetricsResultDTO> pending = new HashMap<Long, MetricsResultDTO>();
+    private final ArrayDeque<MetricsResultDTO> ready = new ArrayDeque<MetricsResultDTO>();
+    private boolean upstreamDone;
+    private Throwable error;
+    private boolean cancelled;
+    private boolean terminated;
+    private boolean emitting;
+    private boolean missed;
+
+    /**
+     * @param searcher    The searcher
+     * @param executor    The executor to match on
+     * @param parallelism The maximum number of batches matched at once
+     * @param batchSize   The maximum number of classifications in a batch
+     * @param ordered     When true the metrics are published in the same order as the classifications
+     */
+    public MatchingProcessor(ALANameSearcher searcher, Executor executor, int parallelism, int batchSize, boolean ordered) {
+        this.searcher = searcher;
+        this.executor = executor;
+        this.parallelism = Math.max(1, parallelism);
+        this.batchSize = Math.max(1, batchSize);
+        this.ordered = ordered;
+        this.capacity = this.parallelism * this.batchSize * 2;
+    }
+
+    public void setRecursiveMatching(boolean recursiveMatching) {
+        this.recursiveMatching = recursiveMatching;
+    }
+
+    public void setFuzzy(boolean fuzzy) {
+        this.fuzzy = fuzzy;
+    }
+
+    /**
+     * @return The most classifications that are requested from upstream ahead of the downstream subscriber
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        synchronized (this) {
+            if (upstream != null || cancelled) {
+                subscription.cancel();
+                return;
+            }
+            upstream = subscription;
+        }
+        subscription.request(capacity);
+    }
+
+    @Override
+    public void onNext(LinnaeanRankClassification item) {
+        boolean failed;
+        synchronized (this) {
+            if (upstreamDone || cancelled)
+                return;
+            if (batch == null)
+                batch = new Batch(received, batchSize);
+            batch.items.add(item);
+            received++;
+            if (batch.items.size() >= batchSize) {
+                waiting.add(batch);
+                batch = null;
+            }
+            dispatch();
+            failed = error != null;
+        }
+        if (failed)
+            drain();
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        synchronized (this) {
+            if (upstreamDone)
+                return;
+            upstreamDone = true;
+            if (error == null)
+                error = throwable;
+        }
+        drain();
+    }
+
+    @Override
+    public void onComplete() {
+        synchronized (this) {
+            if (upstreamDone)
+                return;
+            upstreamDone = true;
+            dispatch();
+        }
+        drain();
+    }
+
+    @Override
+    public void subscribe(final Flow.Subscriber<? super MetricsResultDTO> subscriber) {
+        synchronized (this) {
+            if (downstream == null) {
+                downstream = subscriber;
+            } else {
+                subscriber.onSubscribe(new Flow.Subscription() {
+                    @Override
+                    public void request(long n) {
+                    }
+
+                    @Override
+                    public void cancel() {
+                    }
+                });
+                subscriber.onError(new IllegalStateException("Only one subscriber is supported"));
+                return;
+            }
+        }
+        subscriber.onSubscribe(new Flow.Subscription() {
+            @Override
+            public void request(long n) {
+                synchronized (MatchingProcessor.this) {
+                    if (n <= 0) {
+                        if (error == null)
+                            error = new IllegalArgumentException("The number of requested items must be positive");
+                    } else {
+                        demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                    }
+                }
+                drain();
+            }
+
+            @Override
+            public void cancel() {
+                Flow.Subscription subscription;
+                synchronized (MatchingProcessor.this) {
+                    cancelled = true;
+                    terminated = true;
+                    batch = null;
+                    waiting.clear();
+                    pending.clear();
+                    ready.clear();
+                    subscription = upstream;
+                }
+                if (subscription != null)
+                    subscription.cancel();
+            }
+        });
+        drain();
+    }
+
+    /**
+     * Sends the waiting batches, then the batch being filled, to the executor while there are free workers.  Must be
+     * called holding the lock.  When the executor rejects a batch the error is recorded and nothing more is sent, the
+     * caller publishes the error once it has released the lock.
+     */
+    private void dispatch() {
+        while (inFlight < parallelism && error == null) {
+            Batch next = waiting.poll();
+            if (next == null) {
+                next = batch;
+                batch = null;
+            }
+            if (next == null)
+                return;
+            dispatch(next.items, next.start);
+        }
+    }
+
+    private void dispatch(final List<LinnaeanRankClassification> matching, final long start) {
+        inFlight++;
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    List<MetricsResultDTO> results = Collections.emptyList();
+                    Throwable failure = null;
+                    try {
+                        results = searcher.searchForRecordsMetrics(matching, recursiveMatching, false, fuzzy);
+                    } catch (Throwable t) {
+                        failure = t;
+                    }
+                    completed(start, results, failure);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight--;
+            if (error == null)
+                error = e;
+        }
+    }
+
+    private void completed(long start, List<MetricsResultDTO> results, Throwable failure) {
+        synchronized (this) {
+            inFlight--;
+            if (failure != null && error == null)
+                error = failure;
+            if (!cancelled) {
+                for (int i = 0; i < results.size(); i++) {
+                    if (ordered)
+                        pending.put(start + i, results.get(i));
+                    else
+                        ready.add(results.get(i));
+                }
+                dispatch();
+            }
+        }
+        drain();
+    }
+
+    /**
+     * Publishes the metrics that the subscriber has asked for, replenishes the upstream requests and signals the end
+     * of the stream.  Only one thread publishes at a time.
+     */
+    private void drain() {
+        synchronized (this) {
+            if (emitting) {
+                missed = true;
+                return;
+            }
+            emitting = true;
+            missed = false;
+        }
+        long replenish = 0;
+        while (true) {
+            MetricsResultDTO next = null;
+            Throwable failure = null;
+            boolean complete = false;
+            Flow.Subscriber<? super MetricsResultDTO> subscriber;
+            Flow.Subscription subscription;
+            synchronized (this) {
+                subscriber = downstream;
+                subscription = upstream;
+                if (terminated || subscriber == null) {
+                    emitting = false;
+                    return;
+                }
+                if (error != null) {
+                    failure = error;
+                    terminated = true;
+                    emitting = false;
+                } else if (demand > 0 && (next = ordered ? pending.remove(nextEmit) : ready.poll()) != null) {
+                    nextEmit++;
+                    emitted++;
+                    demand--;
+                    replenish++;
+                } else if (upstreamDone && inFlight == 0 && emitted == received) {
+                    complete = true;
+                    terminated = true;
+                    emitting = false;
+                } else if (missed) {
+                    missed = false;
+                    continue;
+                } else {
+                    emitting = false;
+                }
+            }
+            if (failure != null) {
+                if (subscription != null)
+                    subscription.cancel();
+                subscriber.onError(failure);
+                return;
+            }
+            if (complete) {
+                subscriber.onComplete();
+                return;
+            }
+            if (next == null || replenish >= batchSize) {
+                //keep the upstream requests topped up to the capacity
+                if (replenish > 0 && subscription != null)
+                    subscription.request(replenish);
+                replenish = 0;
+            }
+            if (next == null)
+                return;
+            subscriber.onNext(next);
+        }
+    }
+
+    /**
+     * The classifications of a batch and the position of the first one in the stream.
+     */
+    private static class Batch {
+        private final long start;
+        private final List<LinnaeanRankClassification> items;
+
+        Batch(long start, int size) {
+            this.start = start;
+            this.items = new ArrayList<LinnaeanRankClassification>(size);
+        }
+    }
+}
@@ -0,0 +1,631 @@
+/*
+ * Copyright (C) 2014 Atlas of Living Australia
+ * All Rights Reserved.
+ *
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ */
+
+package au.org.ala.names.search;
+
+import au.org.ala.names.model.ErrorType;
+import au.org.ala.names.model.LinnaeanRankClassification;
+import au.org.ala.names.model.MetricsResultDTO;
+import au.org.ala.names.model.NameSearchResult;
+import au.org.ala.names.util.MatchExecutors;
+import au.org.ala.names.util.SimpleJson;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.cli.*;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An embedded HTTP name matching service, using the HTTP server that comes with the JDK.
+ * <p/>
+ * The endpoints are
+ * <ul>
+ *     <li>GET /match?scientificName=...&amp;kingdom=... matches a single classification, the parameters are the
+ *     {@link BulkNameMatcher#TERMS} with optional fuzzy and recursive flags</li>
+ *     <li>POST /match/batch matches a JSON lines body of flat classification objects, returning a JSON line for
+ *     each in the same order</li>
+ *     <li>GET /lsid?lsid=... looks up a taxon concept</li>
+ *     <li>GET /common?name=... looks up a common name</li>
+ *     <li>GET /health is always up once the server has started</li>
+ *     <li>GET /ready is only up once the index has been warmed up</li>
+ * </ul>
+ * Requests are handled by a fixed pool of workers.  When all the workers are busy and the queue is full the
+ * request is refused with a 503 response.  Alternatively each request can run on its own virtual thread, with the
+ * number of requests that are handled at once limited to the number of workers and the number waiting limited to
+ * the queue size, beyond which requests are also refused.  The health and readiness checks
+ * are answered on the thread that accepts connections so that they are never refused or delayed by a busy server.
+ * Responses always have a content length so connections are kept alive.
+ */
+public class NameMatchingServer {
+    private static final Log log = LogFactory.getLog(NameMatchingServer.class);
+    private static final String JSON = "application/json; charset=UTF-8";
+    private static final int MAX_URI_LENGTH = 8192;
+
+    private final ALANameSearcher searcher;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    //limits the concurrent and the waiting requests when each has its own virtual thread
+    private final Semaphore permits;
+    private final Semaphore admissions;
+    private volatile boolean ready = false;
+    private int maxRequestBytes = 10 * 1024 * 1024;
+    private int maxBatchSize = 10000;
+
+    /**
+     * @param searcher The searcher to match with
+     * @param address  The address to listen on
+     * @param threads  The number of worker threads
+     * @param queue    The number of requests that can wait for a worker
+     * @throws IOException
+     */
+    public NameMatchingServer(ALANameSearcher searcher, InetSocketAddress address, int threads, int queue) throws IOException {
+        this(searcher, address, threads, queue, false);
+    }
+
+    /**
+     * @param searcher The searcher to match with
+     * @param address  The address to listen on
+     * @param threads  The number of worker threads, or concurrent requests for virtual threads
+     * @param queue    The number of requests that can wait for a worker
+     * @param virtual  When true run each request on a virtual thread, when the JVM supports them
+     * @throws IOException
+     */
+    public NameMatchingServer(ALANameSearcher searcher, InetSocketAddress address, int threads, int queue, boolean virtual) throws IOException {
+        this.searcher = searcher;
+        if (virtual && MatchExecutors.isVirtualThreadsAvailable()) {
+            executor = MatchExecutors.newVirtualThreadExecutor();
+            permits = new Semaphore(Math.max(1, threads));
+            admissions = new Semaphore(Math.max(1, threads) + Math.max(0, queue));
+        } else {
+            if (virtual)
+                log.warn("Virtual threads are not supported by this JVM, using " + threads + " platform threads");
+            executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(Math.max(1, queue)),
+                    MatchExecutors.threadFactory(), new ThreadPoolExecutor.AbortPolicy());
+            permits = null;
+            admissions = null;
+        }
+        server = HttpServer.create(address, 0);
+        //the endpoints hand the requests to the executor themselves
+        server.setExecutor(null);
+        server.createContext("/match", new MatchHandler());
+        server.createContext("/match/batch", new BatchHandler());
+        server.createContext("/lsid", new LsidHandler());
+        server.createContext("/common", new CommonNameHandler());
+        server.createContext("/health", new HealthHandler(false));
+        server.createContext("/ready", new HealthHandler(true));
+    }
+
+    /**
+     * @param maxRequestBytes The largest batch request body that will be accepted
+     */
+    public void setMaxRequestBytes(int maxRequestBytes) {
+        this.maxRequestBytes = maxRequestBytes;
+    }
+
+    /**
+     * @param maxBatchSize The largest number of classifications in a batch request
+     */
+    public void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * @return The address that the server is listening on
+     */
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    public void start() {
+        server.start();
+        log.info("Name matching service listening on " + server.getAddress());
+    }
+
+    /**
+     * @param delay The number of seconds to wait for the requests in progress to finish
+     */
+    public void stop(int delay) {
+        ready = false;
+        server.stop(delay);
+        executor.shutdown();
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Marks the server as ready, or not, to handle matching requests.
+     */
+    public void setReady(boolean ready) {
+        this.ready = ready;
+    }
+
+    /**
+     * Warms up the index and caches by matching the names and then marks the server as ready.
+     *
+     * @param names The names to match
+     */
+    public void warmUp(List<String> names) {
+        long start = System.currentTimeMillis();
+        for (String name : names) {
+            if (StringUtils.isNotBlank(name)) {
+                LinnaeanRankClassification cl = new LinnaeanRankClassification();
+                cl.setScientificName(name.trim());
+                searcher.searchForRecordMetrics(cl, true, false, false);
+            }
+        }
+        log.info("Warmed up with " + names.size() + " names in " + (System.currentTimeMillis() - start) + "ms");
+        ready = true;
+    }
+
+    /**
+     * Matches a classification made from the request values.
+     */
+    String match(Map<String, String> values) {
+        return toJson(searcher.searchForRecordMetrics(classify(values), isRecursive(values), false, isFuzzy(values)));
+    }
+
+    /**
+     * Matches the classifications made from the values of each request, a batch at a time for each combination of
+     * the matching flags.
+     *
+     * @return The JSON result for each request
+     */
+    List<String> matchAll(List<Map<String, String>> requests) {
+        String[] results = new String[requests.size()];
+        Map<String, List<Integer>> groups = new LinkedHashMap<String, List<Integer>>();
+        for (int i = 0; i < requests.size(); i++) {
+            Map<String, String> values = requests.get(i);
+            String flags = (isRecursive(values) ? "T" : "F") + (isFuzzy(values) ? "T" : "F");
+            List<Integer> group = groups.get(flags);
+            if (group == null) {
+                group = new ArrayList<Integer>();
+                groups.put(flags, group);
+            }
+            group.add(i);
+        }
+        for (Map.Entry<String, List<Integer>> group : groups.entrySet()) {
+            List<LinnaeanRankClassification> cls = new ArrayList<LinnaeanRankClassification>(group.getValue().size());
+            for (int i : group.getValue())
+                cls.add(classify(requests.get(i)));
+            List<MetricsResultDTO> metrics = searcher.searchForRecordsMetrics(cls, group.getKey().charAt(0) == 'T', false, group.getKey().charAt(1) == 'T');
+            for (int i = 0; i < metrics.size(); i++)
+                results[group.getValue().get(i)] = toJson(metrics.get(i));
+        }
+        return Arrays.asList(results);
+    }
+
+    private static LinnaeanRankClassification classify(Map<String, String> values) {
+        String[] terms = new String[BulkNameMatcher.TERMS.length];
+        for (int i = 0; i < terms.length; i++)
+            terms[i] = BulkNameMatcher.normalise(values.get(BulkNameMatcher.TERMS[i]));
+        return BulkNameMatcher.classify(terms);
+    }
+
+    private static boolean isRecursive(Map<String, String> values) {
+        return !"false".equals(values.get("recursive"));
+    }
+
+    private static boolean isFuzzy(Map<String, String> values) {
+        return "true".equals(values.get("fuzzy"));
+    }
+
+    static String toJson(MetricsResultDTO metrics) {
+        StringBuilder sb = new StringBuilder(512);
+        sb.append("{\"result\":");
+        appendResult(sb, metrics.getResult());
+        sb.append(",\"errors\":[");
+        boolean first = true;
+        for (ErrorType error : metrics.getErrors()) {
+            if (!first)
+                sb.append(',');
+            SimpleJson.quote(sb, error.toString());
+            first = false;
+        }
+        sb.append("],\"nameType\":");
+        SimpleJson.quote(sb, metrics.getNameType() == null ? null : metrics.getNameType().toString());
+        return sb.append('}').toString();
+    }
+
+    static String toJson(NameSearchResult result) {
+        StringBuilder sb = new StringBuilder(512);
+        appendResult(sb, result);
+        return sb.toString();
+    }
+
+    private static void appendResult(StringBuilder sb, NameSearchResult result) {
+        if (result == null) {
+            sb.append("null");
+            return;
+        }
+        LinnaeanRankClassification cl = result.getRankClassification();
+        String[][] fields = {
+                {"id", result.getId()},
+                {"lsid", result.getLsid()},
+                {"acceptedLsid", result.isSynonym() ? result.getAcceptedLsid() : result.getLsid()},
+                {"synonymType", result.getSynonymType() == null ? null : result.getSynonymType().toString()},
+                {"matchType", result.getMatchType() == null ? null : result.getMatchType().toString()},
+                {"rank", result.getRank() == null ? null : result.getRank().getRank()},
+                {"scientificName", cl.getScientificName()},
+                {"authorship", cl.getAuthorship()},
+                {"kingdom", cl.getKingdom()},
+                {"phylum", cl.getPhylum()},
+                {"class", cl.getKlass()},
+                {"order", cl.getOrder()},
+                {"family", cl.getFamily()},
+                {"genus", cl.getGenus()},
+                {"species", cl.getSpecies()},
+                {"left", result.getLeft()},
+                {"right", result.getRight()}
+        };
+        sb.append('{');
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0)
+                sb.append(',');
+            SimpleJson.quote(sb, fields[i][0]).append(':');
+            SimpleJson.quote(sb, fields[i][1]);
+        }
+        sb.append('}');
+    }
+
+    private static String error(String message) {
+        StringBuilder sb = new StringBuilder(64).append("{\"error\":");
+        return SimpleJson.quote(sb, message).append('}').toString();
+    }
+
+    /**
+     * Handles the common parts of a request: the method, the parameters, errors and closing the exchange.
+     */
+    private abstract class Endpoint implements HttpHandler {
+        private final String method;
+
+        Endpoint(String method) {
+            this.method = method;
+        }
+
+        /**
+         * Hands the request to the executor, or refuses it when the server is busy.  Called on the thread that
+         * accepts connections.
+         */
+        @Override
+        public void handle(final HttpExchange exchange) throws IOException {
+            if (admissions != null && !admissions.tryAcquire()) {
+                busy(exchange);
+                return;
+            }
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (permits != null)
+                            permits.acquireUninterruptibly();
+                        try {
+                            process(exchange);
+                        } catch (IOException e) {
+                            log.warn("Unable to respond to " + exchange.getRequestURI(), e);
+                        } finally {
+                            if (permits != null) {
+                                permits.release();
+                                admissions.release();
+                            }
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                if (admissions != null)
+                    admissions.release();
+                busy(exchange);
+            }
+        }
+
+        private void busy(HttpExchange exchange) throws IOException {
+            try {
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                send(exchange, 503, error("The server is busy"));
+            } finally {
+                exchange.close();
+            }
+        }
+
+        void process(HttpExchange exchange) throws IOException {
+            try {
+                if (!method.equals(exchange.getRequestMethod())) {
+                    exchange.getResponseHeaders().set("Allow", method);
+                    send(exchange, 405, error("Use " + method));
+                } else if (exchange.getRequestURI().getRawQuery() != null && exchange.getRequestURI().getRawQuery().length() > MAX_URI_LENGTH) {
+                    send(exchange, 414, error("The query is too long"));
+                } else {
+                    handle(exchange, parseQuery(exchange.getRequestURI().getRawQuery()));
+                }
+            } catch (RequestTooLargeException e) {
+                send(exchange, 413, error(e.getMessage()));
+            } catch (IllegalArgumentException e) {
+                send(exchange, 400, error(e.getMessage()));
+            } catch (Exception e) {
+                log.error("Unable to handle " + exchange.getRequestURI(), e);
+                send(exchange, 500, error(e.getClass().getSimpleName() + ": " + e.getMessage()));
+            } finally {
+                exchange.close();
+            }
+        }
+
+        abstract void handle(HttpExchange exchange, Map<String, String> parameters) throws Exception;
+
+        String required(Map<String, String> parameters, String name) {
+            String value = StringUtils.trimToNull(parameters.get(name));
+            if (value == null)
+                throw new IllegalArgumentException("Missing " + name);
+            return value;
+        }
+    }
+
+    private Map<String, String> parseQuery(String query) throws UnsupportedEncodingException {
+        Map<String, String> parameters = new HashMap<String, String>();
+        if (query == null)
+            return parameters;
+        for (String pair : StringUtils.split(query, '&')) {
+            int eq = pair.indexOf('=');
+            String name = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), "UTF-8");
+            String value = eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), "UTF-8");
+            parameters.put(name, value);
+        }
+        return parameters;
+    }
+
+    private void send(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] bytes = json.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", JSON);
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream os = exchange.getResponseBody();
+        os.write(bytes);
+        os.close();
+    }
+
+    private class MatchHandler extends Endpoint {
+        MatchHandler() {
+            super("GET");
+        }
+
+        @Override
+        void handle(HttpExchange exchange, Map<String, String> parameters) throws IOException {
+            if (StringUtils.isBlank(parameters.get("scientificName")) && StringUtils.isBlank(parameters.get("genus")))
+                throw new IllegalArgumentException("Missing scientificName");
+            send(exchange, 200, match(parameters));
+        }
+    }
+
+    private class BatchHandler extends Endpoint {
+        BatchHandler() {
+            super("POST");
+        }
+
+        @Override
+        void handle(HttpExchange exchange, Map<String, String> parameters) throws IOException {
+            String length = exchange.getRequestHeaders().getFirst("Content-Length");
+            if (length != null && Long.parseLong(length.trim()) > maxRequestBytes)
+                throw new RequestTooLargeException("The request is larger than " + maxRequestBytes + " bytes");
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new LimitedInputStream(exchange.getRequestBody(), maxRequestBytes), "UTF-8"));
+            List<String> lines = new ArrayList<String>();
+            //identical lines are only matched once
+            Map<String, String> matched = new HashMap<String, String>();
+            List<String> distinct = new ArrayList<String>();
+            List<Map<String, String>> requests = new ArrayList<Map<String, String>>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0)
+                    continue;
+                if (lines.size() >= maxBatchSize)
+                    throw new RequestTooLargeException("The batch has more than " + maxBatchSize + " lines");
+                lines.add(line);
+                if (matched.containsKey(line))
+                    continue;
+                try {
+                    requests.add(SimpleJson.parseObject(line));
+                    distinct.add(line);
+                    matched.put(line, null);
+                } catch (IllegalArgumentException e) {
+                    matched.put(line, error(e.getMessage()));
+                }
+            }
+            List<String> results = matchAll(requests);
+            for (int i = 0; i < distinct.size(); i++)
+                matched.put(distinct.get(i), results.get(i));
+            StringBuilder response = new StringBuilder();
+            for (String request : lines)
+                response.append(matched.get(request)).append('\n');
+            send(exchange, 200, response.toString());
+        }
+    }
+
+    private class LsidHandler extends Endpoint {
+        LsidHandler() {
+            super("GET");
+        }
+
+        @Override
+        void handle(HttpExchange exchange, Map<String, String> parameters) throws IOException {
+            NameSearchResult result = searcher.searchForRecordByLsid(required(parameters, "lsid"));
+            send(exchange, result == null ? 404 : 200, result == null ? error("Not found") : toJson(result));
+        }
+    }
+
+    private class CommonNameHandler extends Endpoint {
+        CommonNameHandler() {
+            super("GET");
+        }
+
+        @Override
+        void handle(HttpExchange exchange, Map<String, String> parameters) throws IOException {
+            NameSearchResult result = searcher.searchForCommonName(required(parameters, "name"));
+            send(exchange, result == null ? 404 : 200, result == null ? error("Not found") : toJson(result));
+        }
+    }
+
+    private class HealthHandler extends Endpoint {
+        private final boolean readiness;
+
+        HealthHandler(boolean readiness) {
+            super("GET");
+            this.readiness = readiness;
+        }
+
+        /**
+         * Answers at once, without waiting for a worker.
+         */
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            process(exchange);
+        }
+
+        @Override
+        void handle(HttpExchange exchange, Map<String, String> parameters) throws IOException {
+            if (!readiness)
+                send(exchange, 200, "{\"status\":\"UP\"}");
+            else
+                send(exchange, ready ? 200 : 503, "{\"ready\":" + ready + "}");
+        }
+    }
+
+    private static class RequestTooLargeException extends IOException {
+        RequestTooLargeException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Stops reading a request body that is larger than the limit.
+     */
+    private static class LimitedInputStream extends FilterInputStream {
+        private long remaining;
+        private final long limit;
+
+        LimitedInputStream(InputStream in, long limit) {
+            super(in);
+            this.remaining = limit;
+            this.limit = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0)
+                count(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0)
+                count(n);
+            return n;
+        }
+
+        private void count(int n) throws RequestTooLargeException {
+            remaining -= n;
+            if (remaining < 0)
+                throw new RequestTooLargeException("The request is larger than " + limit + " bytes");
+        }
+    }
+
+    /**
+     * Example run
+     *
+     * java -cp .:names.jar au.org.ala.names.search.NameMatchingServer
+     * -index /data/lucene/namematching
+     * -port 9179
+     * -threads 16
+     * -warmup /data/names/warmup.txt
+     *
+     * @param args
+     */
+    public static void main(String[] args) {
+        final String DEFAULT_INDEX = "/data/lucene/namematching";
+
+        Options options = new Options();
+        options.addOption("h", "help", false, "Retrieve options");
+        options.addOption("index", true, "The name matching index. Defaults to " + DEFAULT_INDEX);
+        options.addOption("port", true, "The port to listen on. Defaults to 9179");
+        options.addOption("threads", true, "The number of worker threads. Defaults to twice the number of processors");
+        options.addOption("queue", true, "The number of requests that can wait for a worker. Defaults to 100");
+        options.addOption("maxBytes", true, "The largest batch request in bytes. Defaults to 10485760");
+        options.addOption("maxBatch", true, "The largest number of lines in a batch request. Defaults to 10000");
+        options.addOption("warmup", true, "A file of names, one per line, to match before the service is ready");
+        options.addOption("dictionary", false, "Load the exact name dictionary");
+        options.addOption("fuzzyIndex", false, "Load the fuzzy name index");
+        options.addOption("coalesce", false, "Coalesce concurrent identical matches");
+        options.addOption("virtual", false, "Handle each request on a virtual thread, needs Java 21 or later. The threads are the concurrent requests");
+
+        CommandLineParser parser = new BasicParser();
+
+        try {
+            CommandLine line = parser.parse(options, args);
+
+            if (line.hasOption("help")) {
+                new HelpFormatter().printHelp("namematchingserver", options);
+                System.exit(-1);
+            }
+
+            ALANameSearcher searcher = new ALANameSearcher(line.getOptionValue("index", DEFAULT_INDEX));
+            searcher.setCoalesceRequests(line.hasOption("coalesce"));
+            final NameMatchingServer server = new NameMatchingServer(searcher,
+                    new InetSocketAddress(Integer.parseInt(line.getOptionValue("port", "9179"))),
+                    Integer.parseInt(line.getOptionValue("threads", Integer.toString(Runtime.getRuntime().availableProcessors() * 2))),
+                    Integer.parseInt(line.getOptionValue("queue", "100")),
+                    line.hasOption("virtual"));
+            server.setMaxRequestBytes(Integer.parseInt(line.getOptionValue("maxBytes", "10485760")));
+            server.setMaxBatchSize(Integer.parseInt(line.getOptionValue("maxBatch", "10000")));
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                @Override
+                public void run() {
+                    server.stop(5);
+                }
+            });
+            server.start();
+            //the service is up but not ready while the index is warmed up
+            if (line.hasOption("dictionary"))
+                searcher.setUseNameDictionary(true);
+            if (line.hasOption("fuzzyIndex"))
+                searcher.setUseFuzzyIndex(true);
+            List<String> names = line.hasOption("warmup") ? FileUtils.readLines(new File(line.getOptionValue("warmup")), "UTF-8") : Collections.<String>emptyList();
+            server.warmUp(names);
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
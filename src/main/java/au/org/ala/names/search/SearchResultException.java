@@ -27,7 +27,11 @@ import au.org.ala.names.model.NameSearchResult;
  * @author Natasha
  * @see HomonymException
  */
-public class SearchResultException extends Exception {
+public class SearchResultException extends Exception implements Cloneable {
+    //set while the searcher is catching the exceptions itself to record the outcome of a match
+    private static final ThreadLocal<Boolean> stackless = new ThreadLocal<Boolean>();
+    //set by fillInStackTrace during construction so it must not have an initialiser
+    private boolean stackTraceCaptured;
     protected List<NameSearchResult> results;
     protected ErrorType errorType;
 
@@ -49,4 +53,55 @@ public class SearchResultException extends Exception {
         return errorType;
     }
 
+    /**
+     * The exceptions are used to report the frequent outcomes of a match (homonyms, misapplied and excluded names
+     * etc).  When the searcher handles the exception itself the stack trace is never used so it is not captured.
+     */
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        if (Boolean.TRUE.equals(stackless.get()))
+            return this;
+        stackTraceCaptured = true;
+        return super.fillInStackTrace();
+    }
+
+    /**
+     * Turns the capture of stack traces for the exceptions created by the current thread on or off.
+     *
+     * @param value When true no stack traces are captured
+     * @return The previous value so that it can be restored
+     */
+    static boolean setStackless(boolean value) {
+        boolean previous = Boolean.TRUE.equals(stackless.get());
+        if (value)
+            stackless.set(Boolean.TRUE);
+        else
+            stackless.remove();
+        return previous;
+    }
+
+    /**
+     * Returns an exception with a stack trace that can be thrown to a caller.  An exception that was created
+     * without a stack trace is copied, with the stack trace of the current thread, so that the exception recorded
+     * by the searcher is never changed.
+     *
+     * @return This exception or a copy of it with a stack trace
+     */
+    public SearchResultException withStackTrace() {
+        if (stackTraceCaptured)
+            return this;
+        try {
+            SearchResultException copy = (SearchResultException) clone();
+            copy.captureStackTrace();
+            return copy;
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private synchronized void captureStackTrace() {
+        stackTraceCaptured = true;
+        super.fillInStackTrace();
+    }
+
 }
@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2014 Atlas of Living Australia
+ * All Rights Reserved.
+ *
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ */
+
+package au.org.ala.names.util;
+
+import uk.ac.shef.wit.simmetrics.similaritymetrics.SmithWatermanGotoh;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Scores the similarity of a supplied authorship to the authorship of a matched name.
+ * <p/>
+ * The score is the simmetrics Smith-Waterman-Gotoh similarity of the supplied author, with the punctuation and
+ * white space removed, and the result author.  The same authors are compared many times when a data set is
+ * matched, so the normalised authors and the scores are cached.  The caches are cleared when they reach their
+ * maximum size to keep the memory bounded.
+ * <p/>
+ * A scorer is safe to share between threads.  The Smith-Waterman-Gotoh instances are pooled and borrowed for each score.
+ * <p/>
+ * The {@link #authorKey(String)} is the form of the author that is indexed so that authors can be compared
+ * for equality without any scoring.
+ */
+public class AuthorSimilarity {
+    private static final int DEFAULT_CACHE_SIZE = 10000;
+
+    private final int cacheSize;
+    private final ConcurrentMap<String, String> normalised = new ConcurrentHashMap<String, String>();
+    private final ConcurrentMap<String, String[]> keys = new ConcurrentHashMap<String, String[]>();
+    private final ConcurrentMap<String, Float> scores = new ConcurrentHashMap<String, Float>();
+    //not thread safe
+    private final ObjectPool<SmithWatermanGotoh> similarity = new ObjectPool<SmithWatermanGotoh>(64) {
+        @Override
+        protected SmithWatermanGotoh create() {
+            return new SmithWatermanGotoh();
+        }
+    };
+
+    public AuthorSimilarity() {
+        this(DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * @param cacheSize The maximum number of authors and scores to cache
+     */
+    public AuthorSimilarity(int cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+
+    /**
+     * Removes the punctuation and separator characters from an author.  This is the same as removing the
+     * <code>\p{P}</code> and <code>\p{Z}</code> regular expression classes.
+     *
+     * @param author The author
+     * @return The normalised author
+     */
+    public static String normalise(String author) {
+        int length = author.length();
+        StringBuilder sb = null;
+        for (int i = 0; i < length; ) {
+            int cp = author.codePointAt(i);
+            int next = i + Character.charCount(cp);
+            if (isRemoved(cp)) {
+                if (sb == null)
+                    sb = new StringBuilder(length).append(author, 0, i);
+            } else if (sb != null) {
+                sb.append(author, i, next);
+            }
+            i = next;
+        }
+        return sb == null ? author : sb.toString();
+    }
+
+    private static boolean isRemoved(int cp) {
+        switch (Character.getType(cp)) {
+            case Character.CONNECTOR_PUNCTUATION:
+            case Character.DASH_PUNCTUATION:
+            case Character.START_PUNCTUATION:
+            case Character.END_PUNCTUATION:
+            case Character.INITIAL_QUOTE_PUNCTUATION:
+            case Character.FINAL_QUOTE_PUNCTUATION:
+            case Character.OTHER_PUNCTUATION:
+            case Character.SPACE_SEPARATOR:
+            case Character.LINE_SEPARATOR:
+            case Character.PARAGRAPH_SEPARATOR:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Calculates the similarity of the supplied author to a result author.
+     *
+     * @param suppliedAuthor The author that was supplied for the search
+     * @param resultAuthor   The author of the result
+     * @return The similarity between 0 and 1
+     */
+    public float getSimilarity(String suppliedAuthor, String resultAuthor) {
+        String supplied = normalised.get(suppliedAuthor);
+        if (supplied == null) {
+            supplied = normalise(suppliedAuthor);
+            put(normalised, suppliedAuthor, supplied);
+        }
+        String key = supplied + '\u0000' + resultAuthor;
+        Float score = scores.get(key);
+        if (score == null) {
+            SmithWatermanGotoh metric = similarity.borrow();
+            try {
+                score = metric.getSimilarity(supplied, resultAuthor);
+            } finally {
+                similarity.release(metric);
+            }
+            put(scores, key, score);
+        }
+        return score;
+    }
+
+    private <T> void put(ConcurrentMap<String, T> cache, String key, T value) {
+        if (cache.size() >= cacheSize)
+            cache.clear();
+        cache.put(key, value);
+    }
+
+    /**
+     * Returns the key and year for the supplied author, caching the result.
+     *
+     * @param author The author
+     * @return The {@link #authorKey(String)} and the {@link #authorYear(String)}
+     */
+    public String[] getKey(String author) {
+        String[] key = keys.get(author);
+        if (key == null) {
+            key = parseAuthor(author);
+            put(keys, author, key);
+        }
+        return key;
+    }
+
+    /**
+     * Generates a key for an author that ignores the differences in the way that an author can be written.
+     * <ul>
+     * <li>Diacritics, punctuation and spaces are removed and the key is lower case</li>
+     * <li>The year is removed</li>
+     * <li>Only the author after an "ex" is used, eg Sol. ex Benth. becomes benth</li>
+     * <li>Only the author before an "in" is used, eg Benth. in DC. becomes benth</li>
+     * <li>&amp;, et and and are removed</li>
+     * </ul>
+     * The bracketed basionym author is handled separately from the combination author.
+     *
+     * @param author The author
+     * @return The key or null when there is nothing left of the author
+     */
+    public static String authorKey(String author) {
+        return author == null ? null : parseAuthor(author)[0];
+    }
+
+    /**
+     * @param author The author
+     * @return The first year in the author or null when there is no year
+     */
+    public static String authorYear(String author) {
+        return author == null ? null : parseAuthor(author)[1];
+    }
+
+    /**
+     * @param author The author
+     * @return The {@link #authorKey(String)} and the {@link #authorYear(String)} of the author
+     */
+    public static String[] parseAuthor(String author) {
+        String value = Normalizer.normalize(author, Normalizer.Form.NFD).toLowerCase(Locale.ENGLISH);
+        List<String> basionym = new ArrayList<String>();
+        List<String> combination = new ArrayList<String>();
+        List<String> group = combination;
+        String year = null;
+        StringBuilder token = new StringBuilder();
+        int length = value.length();
+        for (int i = 0; i <= length; i++) {
+            char c = i < length ? value.charAt(i) : ' ';
+            if (Character.getType(c) == Character.NON_SPACING_MARK)
+                continue;
+            if (Character.isLetterOrDigit(c)) {
+                token.append(c);
+                continue;
+            }
+            if (token.length() > 0) {
+                String word = token.toString();
+                token.setLength(0);
+                if (isYear(word)) {
+                    if (year == null)
+                        year = word;
+                } else {
+                    group.add(word);
+                }
+            }
+            if (c == '(')
+                group = basionym;
+            else if (c == ')')
+                group = combination;
+        }
+        String key = groupKey(basionym) + groupKey(combination);
+        return new String[]{key.length() == 0 ? null : key, year};
+    }
+
+    private static boolean isYear(String word) {
+        if (word.length() != 4)
+            return false;
+        for (int i = 0; i < 4; i++)
+            if (word.charAt(i) < '0' || word.charAt(i) > '9')
+                return false;
+        return word.compareTo("1500") >= 0 && word.compareTo("2099") <= 0;
+    }
+
+    private static String groupKey(List<String> words) {
+        int start = words.lastIndexOf("ex") + 1;
+        int end = words.indexOf("in");
+        if (end < start)
+            end = words.size();
+        StringBuilder sb = new StringBuilder();
+        for (String word : words.subList(start, end)) {
+            if (!word.equals("et") && !word.equals("and"))
+                sb.append(word);
+        }
+        return sb.toString();
+    }
+}
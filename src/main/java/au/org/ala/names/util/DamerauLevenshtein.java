@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2014 Atlas of Living Australia
+ * All Rights Reserved.
+ *
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ */
+
+package au.org.ala.names.util;
+
+/**
+ * Bounded Damerau-Levenshtein (optimal string alignment) distance.  Insertions, deletions, substitutions and
+ * transpositions of adjacent characters each cost 1, which is the edit distance used by TaxaMatch.
+ * <p/>
+ * Only distances up to a maximum are of interest for fuzzy matching so the calculation stops as soon as every
+ * alignment exceeds the maximum.
+ */
+public class DamerauLevenshtein {
+
+    /**
+     * Calculates the distance between 2 strings.
+     *
+     * @param a   The first string
+     * @param b   The second string
+     * @param max The maximum distance of interest
+     * @return The distance or max + 1 when the distance is greater than max
+     */
+    public static int distance(CharSequence a, CharSequence b, int max) {
+        int n = a.length();
+        int m = b.length();
+        if (Math.abs(n - m) > max)
+            return max + 1;
+        if (n == 0 || m == 0)
+            return Math.max(n, m);
+        int[] prev2 = new int[m + 1];
+        int[] prev = new int[m + 1];
+        int[] cur = new int[m + 1];
+        for (int j = 0; j <= m; j++)
+            prev[j] = j;
+        for (int i = 1; i <= n; i++) {
+            char ca = a.charAt(i - 1);
+            cur[0] = i;
+            int rowMin = i;
+            for (int j = 1; j <= m; j++) {
+                char cb = b.charAt(j - 1);
+                int d = prev[j - 1] + (ca == cb ? 0 : 1);
+                if (prev[j] + 1 < d)
+                    d = prev[j] + 1;
+                if (cur[j - 1] + 1 < d)
+                    d = cur[j - 1] + 1;
+                if (i > 1 && j > 1 && ca == b.charAt(j - 2) && a.charAt(i - 2) == cb && prev2[j - 2] + 1 < d)
+                    d = prev2[j - 2] + 1;
+                cur[j] = d;
+                if (d < rowMin)
+                    rowMin = d;
+            }
+            //the rows that follow are calculated from this row and the one before so they can only be larger
+            if (rowMin > max && min(prev) > max)
+                return max + 1;
+            int[] t = prev2;
+            prev2 = prev;
+            prev = cur;
+            cur = t;
+        }
+        return prev[m] > max ? max + 1 : prev[m];
+    }
+
+    private static int min(int[] values) {
+        int min = Integer.MAX_VALUE;
+        for (int v : values)
+            if (v < min)
+                min = v;
+        return min;
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2014 Atlas of Living Australia
+ * All Rights Reserved.
+ *
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ */
+
+package au.org.ala.names.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * An in memory vocabulary that can be searched for the words within a small edit distance of a supplied word.
+ * <p/>
+ * The words are grouped by length and each has a signature of the letters it contains.  A search only considers
+ * the words whose length is within the distance and whose signature differs by no more than 2 letters per edit,
+ * so the bounded {@link DamerauLevenshtein} distance is only calculated for a small number of candidates.
+ * <p/>
+ * A BK-tree is not used because the optimal string alignment distance does not satisfy the triangle inequality,
+ * which would cause the tree to miss some matches.
+ */
+public class FuzzyDictionary {
+    private static final String[] NO_WORDS = new String[0];
+    private static final long[] NO_SIGNATURES = new long[0];
+
+    //the words and signatures indexed by length - minLength
+    private final String[][] words;
+    private final long[][] signatures;
+    private final int minLength;
+    private final int size;
+
+    /**
+     * @param vocabulary The words to search
+     */
+    public FuzzyDictionary(Set<String> vocabulary) {
+        int min = Integer.MAX_VALUE, max = -1;
+        for (String word : vocabulary) {
+            min = Math.min(min, word.length());
+            max = Math.max(max, word.length());
+        }
+        minLength = max < 0 ? 0 : min;
+        int lengths = max < 0 ? 0 : max - min + 1;
+        List<List<String>> byLength = new ArrayList<List<String>>(lengths);
+        for (int i = 0; i < lengths; i++)
+            byLength.add(new ArrayList<String>());
+        for (String word : vocabulary)
+            byLength.get(word.length() - minLength).add(word);
+        words = new String[lengths][];
+        signatures = new long[lengths][];
+        for (int i = 0; i < lengths; i++) {
+            List<String> list = byLength.get(i);
+            if (list.isEmpty()) {
+                words[i] = NO_WORDS;
+                signatures[i] = NO_SIGNATURES;
+            } else {
+                Collections.sort(list);
+                words[i] = list.toArray(new String[list.size()]);
+                signatures[i] = new long[words[i].length];
+                for (int j = 0; j < words[i].length; j++)
+                    signatures[i][j] = signature(words[i][j]);
+            }
+        }
+        size = vocabulary.size();
+    }
+
+    /**
+     * A bit for each letter and digit in the word, any other character sets the top bit
+     */
+    private static long signature(CharSequence word) {
+        long signature = 0;
+        for (int i = 0; i < word.length(); i++) {
+            char c = word.charAt(i);
+            if (c >= 'a' && c <= 'z')
+                signature |= 1L << (c - 'a');
+            else if (c >= 'A' && c <= 'Z')
+                signature |= 1L << (c - 'A');
+            else if (c >= '0' && c <= '9')
+                signature |= 1L << (26 + c - '0');
+            else
+                signature |= 1L << 63;
+        }
+        return signature;
+    }
+
+    /**
+     * Finds the words within the maximum distance of the supplied word.
+     *
+     * @param word The word to search for
+     * @param max  The maximum edit distance
+     * @return The matches ordered by distance and then word
+     */
+    public List<Match> search(String word, int max) {
+        List<Match> matches = new ArrayList<Match>();
+        long signature = signature(word);
+        int length = word.length();
+        for (int l = Math.max(0, length - max - minLength); l <= Math.min(words.length - 1, length + max - minLength); l++) {
+            String[] candidates = words[l];
+            long[] candidateSignatures = signatures[l];
+            for (int i = 0; i < candidates.length; i++) {
+                //every edit can change at most 2 of the letters present
+                if (Long.bitCount(signature ^ candidateSignatures[i]) > 2 * max)
+                    continue;
+                int distance = DamerauLevenshtein.distance(word, candidates[i], max);
+                if (distance <= max)
+                    matches.add(new Match(candidates[i], distance));
+            }
+        }
+        Collections.sort(matches, MATCH_ORDER);
+        return matches;
+    }
+
+    /**
+     * Finds the words that have the smallest distance to the supplied word.
+     *
+     * @param word The word to search for
+     * @param max  The maximum edit distance
+     * @return The closest words in alphabetical order, empty when nothing is within the maximum distance
+     */
+    public Set<String> closest(String word, int max) {
+        Set<String> closest = new TreeSet<String>();
+        List<Match> matches = search(word, max);
+        for (Match match : matches) {
+            if (match.getDistance() > matches.get(0).getDistance())
+                break;
+            closest.add(match.getWord());
+        }
+        return closest;
+    }
+
+    public boolean contains(String word) {
+        int l = word.length() - minLength;
+        return l >= 0 && l < words.length && Arrays.binarySearch(words[l], word) >= 0;
+    }
+
+    /**
+     * @return The number of words in the dictionary
+     */
+    public int size() {
+        return size;
+    }
+
+    private static final Comparator<Match> MATCH_ORDER = new Comparator<Match>() {
+        public int compare(Match o1, Match o2) {
+            return o1.distance != o2.distance ? o1.distance - o2.distance : o1.word.compareTo(o2.word);
+        }
+    };
+
+    /**
+     * A word that is within the distance of the search
+     */
+    public static class Match {
+        private final String word;
+        private final int distance;
+
+        public Match(String word, int distance) {
+            this.word = word;
+            this.distance = distance;
+        }
+
+        public String getWord() {
+            return word;
+        }
+
+        public int getDistance() {
+            return distance;
+        }
+
+        @Override
+        public String toString() {
+            return word + " (" + distance + ")";
+        }
+    }
+}
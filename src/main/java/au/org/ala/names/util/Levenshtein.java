@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2014 Atlas of Living Australia
+ * All Rights Reserved.
+ *
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ */
+
+package au.org.ala.names.util;
+
+/**
+ * Bounded Levenshtein distance using the bit-parallel algorithm of Myers (as formulated by Hyyrö).
+ * <p/>
+ * When the shorter string has at most 64 characters a column of the distance matrix is held in the bits of a
+ * pair of longs and each character of the longer string is processed in a handful of word operations, with no
+ * arrays allocated for the matrix.  The table of character positions is borrowed from a pool.  Longer strings fall
+ * back to a two row calculation.  In both cases the calculation stops as soon as the distance must exceed the
+ * maximum.
+ */
+public class Levenshtein {
+    /** The positions of the ascii characters in the pattern, all zero between calculations */
+    private static final ObjectPool<long[]> ASCII_MASKS = new ObjectPool<long[]>(64) {
+        @Override
+        protected long[] create() {
+            return new long[128];
+        }
+    };
+
+    /**
+     * Calculates the distance between 2 strings.
+     *
+     * @param a   The first string
+     * @param b   The second string
+     * @param max The maximum distance of interest
+     * @return The distance or max + 1 when the distance is greater than max
+     */
+    public static int distance(CharSequence a, CharSequence b, int max) {
+        if (a.length() > b.length()) {
+            CharSequence t = a;
+            a = b;
+            b = t;
+        }
+        int m = a.length();
+        int n = b.length();
+        if (n - m > max)
+            return max + 1;
+        if (m == 0)
+            return n;
+        return m <= 64 ? myers(a, b, max) : rows(a, b, max);
+    }
+
+    /**
+     * The bit-parallel distance where the pattern a has between 1 and 64 characters.
+     */
+    private static int myers(CharSequence a, CharSequence b, int max) {
+        int m = a.length();
+        long[] ascii = ASCII_MASKS.borrow();
+        try {
+            return myers(a, b, max, ascii);
+        } finally {
+            for (int i = 0; i < m; i++) {
+                char c = a.charAt(i);
+                if (c < 128)
+                    ascii[c] = 0L;
+            }
+            ASCII_MASKS.release(ascii);
+        }
+    }
+
+    /**
+     * @param ascii The cleared table for the positions of the ascii characters in the pattern
+     */
+    private static int myers(CharSequence a, CharSequence b, int max, long[] ascii) {
+        int m = a.length();
+        int n = b.length();
+        //the positions of each character in the pattern, with a short list for the non ascii characters
+        char[] others = null;
+        long[] otherMasks = null;
+        int otherCount = 0;
+        for (int i = 0; i < m; i++) {
+            char c = a.charAt(i);
+            if (c < 128) {
+                ascii[c] |= 1L << i;
+            } else {
+                if (others == null) {
+                    others = new char[m];
+                    otherMasks = new long[m];
+                }
+                int k = 0;
+                while (k < otherCount && others[k] != c)
+                    k++;
+                if (k == otherCount)
+                    others[otherCount++] = c;
+                otherMasks[k] |= 1L << i;
+            }
+        }
+        long last = 1L << (m - 1);
+        long pv = -1L;
+        long mv = 0L;
+        int score = m;
+        for (int j = 0; j < n; j++) {
+            char c = b.charAt(j);
+            long eq = 0L;
+            if (c < 128) {
+                eq = ascii[c];
+            } else {
+                for (int k = 0; k < otherCount; k++) {
+                    if (others[k] == c) {
+                        eq = otherMasks[k];
+                        break;
+                    }
+                }
+            }
+            long xv = eq | mv;
+            long xh = (((eq & pv) + pv) ^ pv) | eq;
+            long ph = mv | ~(xh | pv);
+            long mh = pv & xh;
+            if ((ph & last) != 0)
+                score++;
+            else if ((mh & last) != 0)
+                score--;
+            //each of the remaining characters can reduce the distance by at most 1
+            if (score - (n - j - 1) > max)
+                return max + 1;
+            ph = (ph << 1) | 1L;
+            mh <<= 1;
+            pv = mh | ~(xv | ph);
+            mv = ph & xv;
+        }
+        return score > max ? max + 1 : score;
+    }
+
+    /**
+     * The two row distance for long strings.
+     */
+    private static int rows(CharSequence a, CharSequence b, int max) {
+        int m = a.length();
+        int n = b.length();
+        int[] prev = new int[m + 1];
+        int[] cur = new int[m + 1];
+        for (int i = 0; i <= m; i++)
+            prev[i] = i;
+        for (int j = 1; j <= n; j++) {
+            char c = b.charAt(j - 1);
+            cur[0] = j;
+            int rowMin = j;
+            for (int i = 1; i <= m; i++) {
+                int d = prev[i - 1] + (a.charAt(i - 1) == c ? 0 : 1);
+                if (prev[i] + 1 < d)
+                    d = prev[i] + 1;
+                if (cur[i - 1] + 1 < d)
+                    d = cur[i - 1] + 1;
+                cur[i] = d;
+                if (d < rowMin)
+                    rowMin = d;
+            }
+            if (rowMin > max)
+                return max + 1;
+            int[] t = prev;
+            prev = cur;
+            cur = t;
+        }
+        return prev[m] > max ? max + 1 : prev[m];
+    }
+}
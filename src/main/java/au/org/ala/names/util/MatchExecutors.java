@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2014 Atlas of Living Australia
+ * All Rights Reserved.
+ *
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ */
+
+package au.org.ala.names.util;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the executors used for matching.
+ * <p/>
+ * When running on Java 21 or later an executor can start a virtual thread for each match.  Matching is mostly short
+ * index reads, so virtual threads let thousands of concurrent matches share a few carrier threads.  The library is
+ * built for earlier versions of Java so the virtual thread executor is looked up when it is needed.
+ */
+public class MatchExecutors {
+    private static final Log log = LogFactory.getLog(MatchExecutors.class);
+    private static final Method VIRTUAL_EXECUTOR = findVirtualExecutor();
+    private static final AtomicInteger pools = new AtomicInteger();
+
+    private static Method findVirtualExecutor() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return true when the JVM supports virtual threads
+     */
+    public static boolean isVirtualThreadsAvailable() {
+        return VIRTUAL_EXECUTOR != null;
+    }
+
+    /**
+     * @return An executor that starts a new virtual thread for each task
+     * @throws UnsupportedOperationException when the JVM does not support virtual threads
+     */
+    public static ExecutorService newVirtualThreadExecutor() {
+        if (VIRTUAL_EXECUTOR == null)
+            throw new UnsupportedOperationException("Virtual threads need Java 21 or later");
+        try {
+            return (ExecutorService) VIRTUAL_EXECUTOR.invoke(null);
+        } catch (Exception e) {
+            throw new UnsupportedOperationException("Unable to create a virtual thread executor", e);
+        }
+    }
+
+    /**
+     * Creates a matching executor.  Platform threads are used when virtual threads are asked for but the JVM does
+     * not support them.
+     *
+     * @param threads The number of platform threads
+     * @param virtual When true start a virtual thread for each task
+     * @return The executor
+     */
+    public static ExecutorService newExecutor(int threads, boolean virtual) {
+        if (virtual) {
+            if (isVirtualThreadsAvailable())
+                return newVirtualThreadExecutor();
+            log.warn("Virtual threads are not supported by this JVM, using " + threads + " platform threads");
+        }
+        return Executors.newFixedThreadPool(Math.max(1, threads), threadFactory());
+    }
+
+    /**
+     * @return A factory for named daemon threads, so that matching threads do not stop the JVM from exiting
+     */
+    public static ThreadFactory threadFactory() {
+        final int pool = pools.incrementAndGet();
+        return new ThreadFactory() {
+            private final AtomicInteger threads = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "name-match-" + pool + "-" + threads.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
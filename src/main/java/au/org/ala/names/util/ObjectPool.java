@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2014 Atlas of Living Australia
+ * All Rights Reserved.
+ *
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ */
+
+package au.org.ala.names.util;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of objects that are expensive enough to reuse but can not be shared between threads.
+ * <p/>
+ * Unlike a thread local the number of objects depends on the number of concurrent users rather than the number of
+ * threads, which matters when there are many short lived threads.  An object is borrowed for a single use and then
+ * released.  Only a limited number of idle objects are kept.
+ */
+public abstract class ObjectPool<T> {
+    private final ConcurrentLinkedQueue<T> idle = new ConcurrentLinkedQueue<T>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private final int maxIdle;
+
+    /**
+     * @param maxIdle The maximum number of idle objects to keep
+     */
+    protected ObjectPool(int maxIdle) {
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * @return A new object for the pool
+     */
+    protected abstract T create();
+
+    /**
+     * @return An idle object or a new one when there are none
+     */
+    public T borrow() {
+        T object = idle.poll();
+        if (object == null)
+            return create();
+        idleCount.decrementAndGet();
+        return object;
+    }
+
+    /**
+     * Returns a borrowed object to the pool.
+     */
+    public void release(T object) {
+        if (idleCount.incrementAndGet() <= maxIdle)
+            idle.offer(object);
+        else
+            idleCount.decrementAndGet();
+    }
+
+    /**
+     * @return The number of idle objects
+     */
+    public int getIdle() {
+        return idleCount.get();
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2014 Atlas of Living Australia
+ * All Rights Reserved.
+ *
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ */
+
+package au.org.ala.names.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Just enough JSON for flat request and response objects, so that the matching service does not need a JSON library.
+ * <p/>
+ * Only objects with string, number, boolean or null values can be parsed.  Numbers and booleans are returned as
+ * their text and null as a null value.
+ */
+public class SimpleJson {
+
+    /**
+     * Parses a flat JSON object.
+     *
+     * @param json The JSON text
+     * @return The values in the order that they appear
+     * @throws IllegalArgumentException when the text is not a flat object
+     */
+    public static Map<String, String> parseObject(String json) {
+        Parser parser = new Parser(json);
+        Map<String, String> values = parser.parseObject();
+        parser.skipWhitespace();
+        if (parser.pos != json.length())
+            throw parser.error("Unexpected text after the object");
+        return values;
+    }
+
+    /**
+     * Appends a quoted and escaped string, or null.
+     */
+    public static StringBuilder quote(StringBuilder sb, String value) {
+        if (value == null)
+            return sb.append("null");
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20 || c == '\u2028' || c == '\u2029')
+                        sb.append(String.format("\\u%04x", (int) c));
+                    else
+                        sb.append(c);
+            }
+        }
+        return sb.append('"');
+    }
+
+    private static class Parser {
+        private final String json;
+        private int pos;
+
+        Parser(String json) {
+            this.json = json;
+        }
+
+        Map<String, String> parseObject() {
+            Map<String, String> values = new LinkedHashMap<String, String>();
+            skipWhitespace();
+            expect('{');
+            skipWhitespace();
+            if (peek() == '}') {
+                pos++;
+                return values;
+            }
+            while (true) {
+                skipWhitespace();
+                String key = parseString();
+                skipWhitespace();
+                expect(':');
+                skipWhitespace();
+                values.put(key, parseValue());
+                skipWhitespace();
+                char c = next();
+                if (c == '}')
+                    return values;
+                if (c != ',')
+                    throw error("Expected , or }");
+            }
+        }
+
+        String parseValue() {
+            char c = peek();
+            if (c == '"')
+                return parseString();
+            if (c == '{' || c == '[')
+                throw error("Only flat objects are supported");
+            int start = pos;
+            while (pos < json.length() && ",}] \t\r\n".indexOf(json.charAt(pos)) < 0)
+                pos++;
+            String literal = json.substring(start, pos);
+            if (literal.length() == 0)
+                throw error("Expected a value");
+            if (literal.equals("null"))
+                return null;
+            if (!literal.equals("true") && !literal.equals("false") && !literal.matches("-?[0-9]+(\\.[0-9]+)?([eE][+-]?[0-9]+)?"))
+                throw error("Unexpected value " + literal);
+            return literal;
+        }
+
+        String parseString() {
+            expect('"');
+            StringBuilder sb = new StringBuilder();
+            while (true) {
+                char c = next();
+                if (c == '"')
+                    return sb.toString();
+                if (c != '\\') {
+                    sb.append(c);
+                    continue;
+                }
+                c = next();
+                switch (c) {
+                    case 'b':
+                        sb.append('\b');
+                        break;
+                    case 'f':
+                        sb.append('\f');
+                        break;
+                    case 'n':
+                        sb.append('\n');
+                        break;
+                    case 'r':
+                        sb.append('\r');
+                        break;
+                    case 't':
+                        sb.append('\t');
+                        break;
+                    case 'u':
+                        if (pos + 4 > json.length())
+                            throw error("Incomplete unicode escape");
+                        try {
+                            sb.append((char) Integer.parseInt(json.substring(pos, pos + 4), 16));
+                        } catch (NumberFormatException e) {
+                            throw error("Invalid unicode escape");
+                        }
+                        pos += 4;
+                        break;
+                    default:
+                        sb.append(c);
+                }
+            }
+        }
+
+        void skipWhitespace() {
+            while (pos < json.length() && Character.isWhitespace(json.charAt(pos)))
+                pos++;
+        }
+
+        char peek() {
+            if (pos >= json.length())
+                throw error("Unexpected end of text");
+            return json.charAt(pos);
+        }
+
+        char next() {
+            char c = peek();
+            pos++;
+            return c;
+        }
+
+        void expect(char c) {
+            if (next() != c)
+                throw error("Expected " + c);
+        }
+
+        IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at " + pos);
+        }
+    }
+}
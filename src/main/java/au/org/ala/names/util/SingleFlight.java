@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2014 Atlas of Living Australia
+ * All Rights Reserved.
+ *
+ * The contents of this file are subject to the Mozilla Public
+ * License Version 1.1 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of
+ * the License at http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS
+ * IS" basis, WITHOUT WARRANTY OF ANY KIND, either express or
+ * implied. See the License for the specific language governing
+ * rights and limitations under the License.
+ */
+
+package au.org.ala.names.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Coalesces concurrent calculations of the same key.  The first caller for a key performs the calculation and
+ * any callers that arrive while it is in progress wait for, and share, the same value.  Nothing is kept once the
+ * calculation has finished so this is not a cache.
+ * <p/>
+ * Shared values must not be modified by the callers.  Copy them before handing them out.
+ */
+public class SingleFlight<K, V> {
+    private final ConcurrentMap<K, FutureTask<V>> inFlight = new ConcurrentHashMap<K, FutureTask<V>>();
+
+    /**
+     * Returns the value for the key, calculating it unless another thread is already calculating it.
+     *
+     * @param key        The key
+     * @param calculator Calculates the value. Only used when no other thread is calculating the key
+     * @return The value
+     * @throws RuntimeException When the calculation throws a runtime exception
+     */
+    public V get(K key, Callable<V> calculator) {
+        try {
+            return get(key, calculator, 0);
+        } catch (TimeoutException e) {
+            //there is no timeout
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the value for the key, calculating it unless another thread is already calculating it.  A caller
+     * that calculates the value is never timed out, only the wait for another thread is limited.
+     *
+     * @param key        The key
+     * @param calculator Calculates the value. Only used when no other thread is calculating the key
+     * @param timeout    The maximum milliseconds to wait for another thread, 0 to wait for as long as it takes
+     * @return The value
+     * @throws TimeoutException When the other thread has not calculated the value within the timeout
+     * @throws RuntimeException When the calculation throws a runtime exception
+     */
+    public V get(K key, Callable<V> calculator, long timeout) throws TimeoutException {
+        FutureTask<V> task = new FutureTask<V>(calculator);
+        FutureTask<V> existing = inFlight.putIfAbsent(key, task);
+        if (existing == null) {
+            try {
+                task.run();
+            } finally {
+                inFlight.remove(key, task);
+            }
+            existing = task;
+            timeout = 0;
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    if (timeout <= 0)
+                        return existing.get();
+                    return existing.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    //the calculation belongs to another caller so keep waiting and restore the interrupt afterwards
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new RuntimeException(cause);
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return The number of calculations in progress
+     */
+    public int size() {
+        return inFlight.size();
+    }
+}
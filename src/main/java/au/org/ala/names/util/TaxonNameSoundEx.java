@@ -4,6 +4,7 @@ package au.org.ala.names.util;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 import java.util.StringTokenizer;
 
 import org.apache.commons.lang.StringUtils;
@@ -25,137 +26,280 @@ public class TaxonNameSoundEx {
         return source.replaceAll("\\s+$", "");
     }
 
-    private static String translate(String source, String transSource, String transTarget) {
-        String result = source;
-
-        while (transSource.length() > transTarget.length()) {
-
-            transTarget += " ";
+    /**
+     * The accented capitals that are folded to a plain capital
+     */
+    private static final String ACCENTED = "\u00c1\u00c9\u00cd\u00d3\u00da\u00c0\u00c8\u00cc\u00d2\u00d9" +
+            "\u00c2\u00ca\u00ce\u00d4\u00db\u00c4\u00cb\u00cf\u00d6\u00dc\u00c3\u00d1\u00d5" +
+            "\u00c5\u00c7\u00d8";
+    private static final String FOLDED = "AEIOUAEIOUAEIOUAEIOUANOACO";
+    /**
+     * Lookup table for the Latin-1 characters after they have been converted to upper case.
+     * Plain capitals, space and full stop map to themselves, accented capitals are folded
+     * and everything else is removed (0).
+     */
+    private static final char[] FOLD = new char[256];
+    /**
+     * The leading pairs that are replaced, the first letter of each pair is indexed by the second letter of the pair
+     */
+    private static final char[][] LEADING = new char[26][];
 
+    static {
+        for (char c = 'A'; c <= 'Z'; c++) {
+            FOLD[c] = c;
+            FOLD[c + ('a' - 'A')] = (char) (c + ('a' - 'A'));
         }
-        for (int i = 0; i < transSource.length(); i++) {
+        FOLD[' '] = ' ';
+        FOLD['.'] = '.';
+        for (int i = 0; i < ACCENTED.length(); i++)
+            FOLD[ACCENTED.charAt(i)] = FOLDED.charAt(i);
+        String[] leading = {"AE", "E", "CN", "N", "CT", "T", "CZ", "C", "DJ", "J", "EA", "E", "EU", "U", "GN", "N",
+                "KN", "N", "MN", "N", "OE", "E", "QU", "Q", "PS", "S", "PT", "T", "TS", "S", "WR", "R"};
+        for (int i = 0; i < leading.length; i += 2) {
+            int first = leading[i].charAt(0) - 'A';
+            if (LEADING[first] == null)
+                LEADING[first] = new char[26];
+            LEADING[first][leading[i].charAt(1) - 'A'] = leading[i + 1].charAt(0);
+        }
+    }
 
-            result = result.replace(transSource.charAt(i), transTarget.charAt(i));
+    /**
+     * The working characters for a single word.  Each stage rewrites the characters in place.
+     */
+    private static final class Word {
+        char[] chars;
+        int length;
 
+        Word(int capacity) {
+            chars = new char[capacity];
         }
-        return result;
-    }
 
+        void append(char c) {
+            if (length == chars.length) {
+                char[] grown = new char[length * 2 + 2];
+                System.arraycopy(chars, 0, grown, 0, length);
+                chars = grown;
+            }
+            chars[length++] = c;
+        }
 
-    public static String normalize(String str) {
+        void insert(int index, char c) {
+            append(c);
+            System.arraycopy(chars, index, chars, index + 1, length - index - 1);
+            chars[index] = c;
+        }
 
-        if (str == null) return null;
+        boolean startsWith(char c1, char c2) {
+            return length > 1 && chars[0] == c1 && chars[1] == c2;
+        }
 
-        String output = str;
+        boolean endsWith(char c1, char c2) {
+            return length > 1 && chars[length - 2] == c1 && chars[length - 1] == c2;
+        }
 
-        // trim any leading, trailing spaces or line feeds
-        //output = ltrim(rtrim(str));
+        /**
+         * Replace the first two characters with the supplied character
+         */
+        void replaceLeading(char c) {
+            System.arraycopy(chars, 2, chars, 1, length - 2);
+            chars[0] = c;
+            length--;
+        }
 
-        output = output.replace(" cf ", " ");
-        output = output.replace(" cf. ", " ");
-        output = output.replace(" near ", " ");
-        output = output.replace(" aff. ", " ");
-        output = output.replace(" sp.", " ");
-        output = output.replace(" spp.", " ");
-        output = output.replace(" spp ", " ");
+        /**
+         * Replaces every non overlapping occurrence of c1c2, working left to right, from the offset onwards
+         */
+        void replacePair(int offset, char c1, char c2, char replacement) {
+            int out = offset;
+            for (int i = offset; i < length; i++) {
+                if (chars[i] == c1 && i + 1 < length && chars[i + 1] == c2) {
+                    chars[out++] = replacement;
+                    i++;
+                } else {
+                    chars[out++] = chars[i];
+                }
+            }
+            length = out;
+        }
 
-        output = str.toUpperCase();
+        @Override
+        public String toString() {
+            return new String(chars, 0, length);
+        }
+    }
 
+    /**
+     * Converts the string to upper case, removes HTML ampersands and tags, folds the accented characters
+     * and removes everything that is not a letter, space or full stop.
+     *
+     * @return The normalised word or null when there is nothing left
+     */
+    private static Word normalizeWord(String str) {
+        int len = str.length();
+        Word word = new Word(len + 8);
+        for (int i = 0; i < len; i++) {
+            char c = str.charAt(i);
+            if (c < 128) {
+                word.append(c >= 'a' && c <= 'z' ? (char) (c - ('a' - 'A')) : c);
+            } else {
+                char u = Character.toUpperCase(c);
+                if (u == '\u00c6') {
+                    //expanding here is the same as after the ampersands and tags because neither can contain AE
+                    word.append('A');
+                    word.append('E');
+                } else if (u != c || (c < 256 && c != '\u00df')) {
+                    word.append(u);
+                } else {
+                    //characters such as the sharp s expand when converted to upper case
+                    String upper = String.valueOf(c).toUpperCase(Locale.ENGLISH);
+                    for (int j = 0; j < upper.length(); j++)
+                        word.append(upper.charAt(j));
+                }
+            }
+        }
+        char[] chars = word.chars;
         // replace any HTML ampersands
-        output = output.replace(" &AMP; ", " & ");
-
+        int out = 0;
+        for (int i = 0; i < word.length; i++) {
+            if (chars[i] == ' ' && i + 6 < word.length && chars[i + 1] == '&' && chars[i + 2] == 'A' && chars[i + 3] == 'M'
+                    && chars[i + 4] == 'P' && chars[i + 5] == ';' && chars[i + 6] == ' ') {
+                chars[out++] = ' ';
+                chars[out++] = '&';
+                chars[out++] = ' ';
+                i += 6;
+            } else {
+                chars[out++] = chars[i];
+            }
+        }
+        word.length = out;
         // remove any content in angle brackets (e.g. html tags - <i>, </i>, etc.)
-        output = output.replaceAll("\\<.+?\\>", "");
+        out = 0;
+        for (int i = 0; i < word.length; i++) {
+            int end = chars[i] == '<' ? tagEnd(chars, i, word.length) : -1;
+            if (end < 0)
+                chars[out++] = chars[i];
+            else
+                i = end;
+        }
+        word.length = out;
+        // fold the accents and remove everything else, trimming the spaces from the start
+        out = 0;
+        for (int i = 0; i < word.length; i++) {
+            char c = chars[i];
+            char f = c < 256 ? FOLD[c] : 0;
+            if (f == 0 || (f == ' ' && out == 0))
+                continue;
+            chars[out++] = f;
+        }
+        word.length = out;
+        return trim(word);
+    }
+
+    private static Word trim(Word word) {
+        while (word.length > 0 && word.chars[word.length - 1] == ' ')
+            word.length--;
+        return word.length == 0 ? null : word;
+    }
+
+    /**
+     * Finds the end of the tag that starts at the supplied position. Equivalent to matching \<.+?\>
+     *
+     * @return The position of the closing bracket or -1 when this is not a tag
+     */
+    private static int tagEnd(char[] chars, int start, int length) {
+        for (int i = start + 1; i < length; i++) {
+            char c = chars[i];
+            if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029')
+                return -1;
+            if (c == '>' && i > start + 1)
+                return i;
+        }
+        return -1;
+    }
 
-        output = translate(output, "\u00c1\u00c9\u00cd\u00d3\u00da\u00c0\u00c8\u00cc\u00d2\u00d9" +
-                "\u00c2\u00ca\u00ce\u00d4\u00db\u00c4\u00cb\u00cf\u00d6\u00dc\u00c3\u00d1\u00d5" +
-                "\u00c5\u00c7\u00d8", "AEIOUAEIOUAEIOUAEIOUANOACO");
+    public static String normalize(String str) {
 
-        output = output.replace("\u00c6", "AE");
-        output = output.replaceAll("[^a-zA-Z .]", "");
-        output = StringUtils.trimToNull(output);
+        if (str == null) return null;
 
-        return output;
+        Word word = normalizeWord(str);
+        return word == null ? null : word.toString();
     }
 
 
     public static String treatWord(String str2, String wordType) {
-        char startLetter;
-        String temp = normalize(str2);
+        if (str2 == null)
+            return null;
+        Word word = normalizeWord(str2);
+        if (word == null)
+            return null;
+        char[] chars = word.chars;
         // Do some selective replacement on the leading letter/s only:
-        if (StringUtils.isNotEmpty(temp)) {
-            if (temp.startsWith("AE")) {
-                temp = "E" + temp.substring(2);
-            } else if (temp.startsWith("CN")) {
-                temp = "N" + temp.substring(2);
-            } else if (temp.startsWith("CT")) {
-                temp = "T" + temp.substring(2);
-            } else if (temp.startsWith("CZ")) {
-                temp = "C" + temp.substring(2);
-            } else if (temp.startsWith("DJ")) {
-                temp = "J" + temp.substring(2);
-            } else if (temp.startsWith("EA")) {
-                temp = "E" + temp.substring(2);
-            } else if (temp.startsWith("EU")) {
-                temp = "U" + temp.substring(2);
-            } else if (temp.startsWith("GN")) {
-                temp = "N" + temp.substring(2);
-            } else if (temp.startsWith("KN")) {
-                temp = "N" + temp.substring(2);
-            } else if (temp.startsWith("MC")) {
-                temp = "MAC" + temp.substring(2);
-            } else if (temp.startsWith("MN")) {
-                temp = "N" + temp.substring(2);
-            } else if (temp.startsWith("OE")) {
-                temp = "E" + temp.substring(2);
-            } else if (temp.startsWith("QU")) {
-                temp = "Q" + temp.substring(2);
-            } else if (temp.startsWith("PS")) {
-                temp = "S" + temp.substring(2);
-            } else if (temp.startsWith("PT")) {
-                temp = "T" + temp.substring(2);
-            } else if (temp.startsWith("TS")) {
-                temp = "S" + temp.substring(2);
-            } else if (temp.startsWith("WR")) {
-                temp = "R" + temp.substring(2);
-            } else if (temp.startsWith("X")) {
-                temp = "Z" + temp.substring(2);
+        char first = chars[0];
+        if (word.startsWith('M', 'C')) {
+            word.insert(1, 'A');
+        } else if (first == 'X') {
+            //X drops the following character as well
+            if (word.length > 1)
+                word.replaceLeading('Z');
+            else
+                chars[0] = 'Z';
+        } else if (word.length > 1 && first >= 'A' && first <= 'Z' && chars[1] >= 'A' && chars[1] <= 'Z') {
+            char[] pairs = LEADING[first - 'A'];
+            char replacement = pairs == null ? 0 : pairs[chars[1] - 'A'];
+            if (replacement != 0)
+                word.replaceLeading(replacement);
+        }
+        chars = word.chars;
+        // Now keep the leading character, then do selected "soundalike" replacements. The
+        // following letters are equated: AE, OE, E, U, Y and I; IA and A are equated;
+        // K and C; Z and S; and H is dropped. Also, A and O are equated, MAC and MC are equated, and SC and S.
+        word.replacePair(1, 'A', 'E', 'I');
+        word.replacePair(1, 'I', 'A', 'A');
+        word.replacePair(1, 'O', 'E', 'I');
+        word.replacePair(1, 'O', 'I', 'A');
+        word.replacePair(1, 'S', 'C', 'S');
+        int out = 1;
+        for (int i = 1; i < word.length; i++) {
+            char c = chars[i];
+            switch (c) {
+                case 'E':
+                case 'U':
+                case 'Y':
+                    c = 'I';
+                    break;
+                case 'O':
+                    c = 'A';
+                    break;
+                case 'K':
+                case 'Z':
+                    c = 'C';
+                    break;
+                case 'H':
+                    continue;
             }
-            // Now keep the leading character, then do selected "soundalike" replacements. The
-            // following letters are equated: AE, OE, E, U, Y and I; IA and A are equated;
-            // K and C; Z and S; and H is dropped. Also, A and O are equated, MAC and MC are equated, and SC and S.
-            startLetter = temp.charAt(0); // quarantine the leading letter
-            temp = temp.substring(1); // snip off the leading letter
-            // now do the replacements
-            temp = temp.replaceAll("AE", "I");
-            temp = temp.replaceAll("IA", "A");
-            temp = temp.replaceAll("OE", "I");
-            temp = temp.replaceAll("OI", "A");
-            temp = temp.replaceAll("SC", "S");
-            temp = temp.replaceAll("E", "I");
-            temp = temp.replaceAll("O", "A");
-            temp = temp.replaceAll("U", "I");
-            temp = temp.replaceAll("Y", "I");
-            temp = temp.replaceAll("K", "C");
-            temp = temp.replaceAll("Z", "C");
-            temp = temp.replaceAll("H", "");
-            // add back the leading letter
-            temp = startLetter + temp;
-            // now drop any repeated characters (AA becomes A, BB or BBB becomes B, etc.)
-            temp = temp.replaceAll("(\\w)\\1+", "$1");
-
-            if (wordType == "species") {
-                if (temp.endsWith("IS")) {
-                    temp = temp.substring(0, temp.length() - 2) + "A";
-                } else if (temp.endsWith("IM")) {
-                    temp = temp.substring(0, temp.length() - 2) + "A";
-                } else if (temp.endsWith("AS")) {
-                    temp = temp.substring(0, temp.length() - 2) + "A";
-                }
-                //temp = temp.replaceAll("(\\w)\\1+", "$1");
+            chars[out++] = c;
+        }
+        word.length = out;
+        // now drop any repeated characters (AA becomes A, BB or BBB becomes B, etc.)
+        out = 1;
+        for (int i = 1; i < word.length; i++) {
+            char c = chars[i];
+            if (c != chars[out - 1] || !isWordChar(c))
+                chars[out++] = c;
+        }
+        word.length = out;
+
+        if ("species".equals(wordType)) {
+            if (word.endsWith('I', 'S') || word.endsWith('I', 'M') || word.endsWith('A', 'S')) {
+                word.length--;
+                chars[word.length - 1] = 'A';
             }
         }
-        return temp;
+        return word.toString();
+    }
+
+    private static boolean isWordChar(char c) {
+        return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '_';
     }
 
 
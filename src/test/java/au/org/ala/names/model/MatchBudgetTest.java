@@ -0,0 +1,55 @@
+package au.org.ala.names.model;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the limits of a match budget.
+ */
+public class MatchBudgetTest {
+
+    @Test
+    public void testUnlimited() {
+        MatchBudget.Usage usage = new MatchBudget(0, 0, 0).start();
+        for (int i = 0; i < 1000; i++) {
+            usage.stage();
+            assertTrue(usage.query());
+        }
+        assertFalse(usage.isExceeded());
+        assertEquals(Long.MAX_VALUE, usage.getRemainingTime());
+    }
+
+    @Test
+    public void testQueries() {
+        MatchBudget.Usage usage = new MatchBudget(0, 2, 0).start();
+        assertTrue(usage.query());
+        assertTrue(usage.query());
+        assertFalse(usage.query());
+        assertTrue(usage.isExceeded());
+        assertFalse(usage.query());
+        assertEquals(3, usage.getQueries());
+    }
+
+    @Test
+    public void testStages() {
+        MatchBudget.Usage usage = new MatchBudget(0, 0, 1).start();
+        usage.stage();
+        assertTrue(usage.query());
+        usage.stage();
+        assertTrue(usage.isExceeded());
+        assertFalse(usage.query());
+    }
+
+    @Test
+    public void testTime() throws Exception {
+        MatchBudget.Usage usage = new MatchBudget(20, 0, 0).start();
+        assertTrue(usage.getRemainingTime() <= 20);
+        assertTrue(usage.query());
+        Thread.sleep(40);
+        assertTrue(usage.isExceeded());
+        assertFalse(usage.query());
+    }
+}
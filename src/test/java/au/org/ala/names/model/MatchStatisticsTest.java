@@ -0,0 +1,93 @@
+package au.org.ala.names.model;
+
+import au.org.ala.names.search.ALANameSearcher;
+import au.org.ala.names.search.SearchResultException;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests the aggregation of the traced matches and the sampling of the matches that are traced.
+ */
+public class MatchStatisticsTest {
+
+    private MatchTrace trace(int hits, SearchResultException e) {
+        MatchTrace trace = new MatchTrace();
+        MatchTrace.Stage exact = trace.start(MatchStage.EXACT);
+        trace.query("name:\"acacia dealbata\"", hits);
+        trace.end(exact, hits);
+        if (e != null) {
+            int depth = trace.depth();
+            trace.start(MatchStage.CANONICAL);
+            trace.fail(depth, e);
+        }
+        trace.finish();
+        return trace;
+    }
+
+    @Test
+    public void testRecord() {
+        MatchStatistics statistics = new MatchStatistics();
+        MatchTrace first = trace(2, null);
+        MatchTrace second = trace(0, new SearchResultException("Homonym"));
+        statistics.record(first);
+        statistics.record(second);
+        assertEquals(2, statistics.getMatches());
+        assertEquals(first.getElapsed() + second.getElapsed(), statistics.getElapsed());
+        assertEquals(2, statistics.getCount(MatchStage.EXACT));
+        assertEquals(2, statistics.getQueries(MatchStage.EXACT));
+        assertEquals(2, statistics.getHits(MatchStage.EXACT));
+        assertEquals(0, statistics.getExceptions(MatchStage.EXACT));
+        assertEquals(first.getStages().get(0).getElapsed() + second.getStages().get(0).getElapsed(), statistics.getElapsed(MatchStage.EXACT));
+        assertEquals(1, statistics.getCount(MatchStage.CANONICAL));
+        assertEquals(1, statistics.getExceptions(MatchStage.CANONICAL));
+        assertEquals(0, statistics.getCount(MatchStage.RECURSIVE));
+
+        Map<String, Long> map = statistics.toMap();
+        assertEquals(2 + 5 * MatchStage.values().length, map.size());
+        assertEquals(Long.valueOf(2), map.get("matches"));
+        assertEquals(Long.valueOf(2), map.get("exact.count"));
+        assertEquals(Long.valueOf(1), map.get("canonical.exceptions"));
+
+        statistics.reset();
+        assertEquals(0, statistics.getMatches());
+        assertEquals(0, statistics.getElapsed());
+        assertEquals(0, statistics.getCount(MatchStage.EXACT));
+        assertEquals(0, statistics.getHits(MatchStage.EXACT));
+        assertEquals(0, statistics.getExceptions(MatchStage.CANONICAL));
+    }
+
+    @Test
+    public void testSampling() throws Exception {
+        File directory = new File(System.getProperty("java.io.tmpdir"), "statistics-" + System.nanoTime());
+        try {
+            ALANameSearcher searcher = new ALANameSearcher(directory.getAbsolutePath());
+            assertEquals(0, searcher.getTraceInterval());
+            LinnaeanRankClassification cl = new LinnaeanRankClassification();
+            cl.setScientificName("Acacia dealbata");
+            assertNull(searcher.searchForRecordMetrics(cl, false).getTrace());
+            assertEquals(0, searcher.getMatchStatistics().getMatches());
+
+            searcher.setTraceInterval(3);
+            int traced = 0;
+            for (int i = 0; i < 9; i++) {
+                MetricsResultDTO metrics = searcher.searchForRecordMetrics(cl, false);
+                if (metrics.getTrace() != null) {
+                    traced++;
+                    assertNotNull(metrics.getTrace().getStages());
+                }
+            }
+            assertEquals(3, traced);
+            assertEquals(3, searcher.getMatchStatistics().getMatches());
+            assertEquals(3, searcher.getMatchStatistics().getCount(MatchStage.EXACT));
+        } finally {
+            FileUtils.deleteDirectory(directory);
+        }
+    }
+}
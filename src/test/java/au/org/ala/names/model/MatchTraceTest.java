@@ -0,0 +1,100 @@
+package au.org.ala.names.model;
+
+import au.org.ala.names.search.SearchResultException;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the recording of the stages of a match.
+ */
+public class MatchTraceTest {
+
+    @Test
+    public void testStages() {
+        MatchTrace trace = new MatchTrace();
+        MatchTrace.Stage exact = trace.start(MatchStage.EXACT);
+        trace.query("name:\"acacia\"", 3);
+        trace.query("name:\"acacia dealbata\"", 1);
+        trace.end(exact, 2);
+        MatchTrace.Stage recursive = trace.start(MatchStage.RECURSIVE);
+        MatchTrace.Stage genus = trace.start(MatchStage.EXACT);
+        assertEquals(2, trace.depth());
+        trace.query("genus:\"acacia\"", 5);
+        trace.end(genus, 1);
+        trace.end(recursive, 1);
+        assertEquals(0, trace.depth());
+        assertEquals(-1, trace.getElapsed());
+        trace.finish();
+
+        List<MatchTrace.Stage> stages = trace.getStages();
+        assertEquals(3, stages.size());
+        assertSame(exact, stages.get(0));
+        assertSame(recursive, stages.get(1));
+        assertSame(genus, stages.get(2));
+        assertEquals(0, exact.getDepth());
+        assertEquals(2, exact.getHits());
+        assertEquals(2, exact.getQueries().size());
+        assertEquals(4, exact.getQueryHits());
+        assertEquals(1, genus.getDepth());
+        assertEquals(5, genus.getQueryHits());
+        //the queries of the nested stage are not counted against the outer stage
+        assertEquals(0, recursive.getQueries().size());
+        assertTrue(recursive.getElapsed() >= genus.getElapsed());
+        assertTrue(trace.getElapsed() >= recursive.getElapsed());
+        assertNull(trace.getException());
+    }
+
+    @Test
+    public void testEndNested() {
+        MatchTrace trace = new MatchTrace();
+        MatchTrace.Stage recursive = trace.start(MatchStage.RECURSIVE);
+        MatchTrace.Stage exact = trace.start(MatchStage.EXACT);
+        trace.end(recursive, 0);
+        assertEquals(0, trace.depth());
+        assertTrue(exact.getElapsed() >= 0);
+        //ending a stage that has already been ended is ignored
+        trace.end(exact, 4);
+        assertEquals(0, exact.getHits());
+    }
+
+    @Test
+    public void testQueryOutsideStage() {
+        MatchTrace trace = new MatchTrace();
+        trace.query("name:\"acacia\"", 3);
+        trace.finish();
+        assertEquals(0, trace.getStages().size());
+    }
+
+    @Test
+    public void testFail() {
+        MatchTrace trace = new MatchTrace();
+        int depth = trace.depth();
+        MatchTrace.Stage recursive = trace.start(MatchStage.RECURSIVE);
+        MatchTrace.Stage canonical = trace.start(MatchStage.CANONICAL);
+        SearchResultException e = new SearchResultException("Homonym");
+        trace.fail(depth, e);
+        assertEquals(0, trace.depth());
+        assertSame(e, canonical.getException());
+        assertNull(recursive.getException());
+        assertSame(e, trace.getException());
+        assertTrue(canonical.getElapsed() >= 0);
+        assertTrue(recursive.getElapsed() >= 0);
+    }
+
+    @Test
+    public void testFinish() {
+        MatchTrace trace = new MatchTrace();
+        MatchTrace.Stage exact = trace.start(MatchStage.EXACT);
+        assertEquals(-1, exact.getElapsed());
+        trace.finish();
+        assertEquals(0, trace.depth());
+        assertTrue(exact.getElapsed() >= 0);
+        assertTrue(trace.getElapsed() >= exact.getElapsed());
+    }
+}
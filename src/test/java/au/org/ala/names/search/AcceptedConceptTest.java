@@ -0,0 +1,146 @@
+package au.org.ala.names.search;
+
+import au.org.ala.names.lucene.analyzer.LowerCaseKeywordAnalyzer;
+import au.org.ala.names.model.LinnaeanRankClassification;
+import au.org.ala.names.model.MatchType;
+import au.org.ala.names.model.NameIndexField;
+import au.org.ala.names.model.NameSearchResult;
+import au.org.ala.names.model.RankType;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the accepted concept that is copied into synonym documents and the accepted result built from it.
+ */
+public class AcceptedConceptTest {
+    private static DirectoryReader reader;
+    private static IndexSearcher searcher;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        RAMDirectory directory = new RAMDirectory();
+        IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(Version.LUCENE_41, new LowerCaseKeywordAnalyzer()));
+        Document doc = new Document();
+        doc.add(new StringField(NameIndexField.ID.toString(), "100", Field.Store.YES));
+        doc.add(new StringField(NameIndexField.LSID.toString(), "urn:lsid:accepted", Field.Store.YES));
+        doc.add(new TextField(NameIndexField.NAME.toString(), "Acacia dealbata", Field.Store.YES));
+        doc.add(new StoredField(NameIndexField.AUTHOR.toString(), "Link"));
+        doc.add(new StoredField(NameIndexField.AUTHOR_KEY.toString(), "link"));
+        doc.add(new StoredField(NameIndexField.AUTHOR_YEAR.toString(), "1822"));
+        doc.add(new StoredField(NameIndexField.RANK_ID.toString(), Integer.toString(RankType.SPECIES.getId())));
+        doc.add(new StoredField(ALANameIndexer.IndexField.LEFT.toString(), "10"));
+        doc.add(new StoredField(ALANameIndexer.IndexField.RIGHT.toString(), "11"));
+        String[][] classification = {
+                {RankType.KINGDOM.getRank(), "Plantae", "kid", "k1"}, {RankType.PHYLUM.getRank(), "Charophyta", "pid", "p1"},
+                {RankType.CLASS.getRank(), "Equisetopsida", "cid", "c1"}, {RankType.ORDER.getRank(), "Fabales", "oid", "o1"},
+                {RankType.FAMILY.getRank(), "Fabaceae", "fid", "f1"}, {RankType.GENUS.getRank(), "Acacia", "gid", "g1"},
+                {RankType.SPECIES.getRank(), "Acacia dealbata", "sid", "100"}};
+        for (String[] values : classification) {
+            doc.add(new TextField(values[0], values[1], Field.Store.YES));
+            doc.add(new StoredField(values[2], values[3]));
+        }
+        writer.addDocument(doc);
+        writer.close();
+        reader = DirectoryReader.open(directory);
+        searcher = new IndexSearcher(reader);
+    }
+
+    @AfterClass
+    public static void close() throws Exception {
+        reader.close();
+    }
+
+    private Document createSynonym(String genus, String gid, String accepted) {
+        Document doc = new Document();
+        doc.add(new StringField(NameIndexField.ID.toString(), "200", Field.Store.YES));
+        doc.add(new StringField(NameIndexField.LSID.toString(), "urn:lsid:synonym", Field.Store.YES));
+        doc.add(new TextField(NameIndexField.NAME.toString(), "Racosperma dealbatum", Field.Store.YES));
+        doc.add(new StringField(NameIndexField.ACCEPTED.toString(), accepted, Field.Store.YES));
+        if (genus != null) {
+            doc.add(new TextField(RankType.GENUS.getRank(), genus, Field.Store.YES));
+            doc.add(new StoredField("gid", gid));
+        }
+        return doc;
+    }
+
+    @Test
+    public void testDenormalisedSynonym() throws Exception {
+        Document doc = createSynonym("Racosperma", "g2", "urn:lsid:accepted");
+        new ALANameIndexer().addAcceptedConcept(doc, searcher, "urn:lsid:accepted");
+        //the synonym keeps its own genus and gains the ranks it did not have
+        assertEquals(1, doc.getValues(RankType.GENUS.getRank()).length);
+        assertEquals("Racosperma", doc.get(RankType.GENUS.getRank()));
+        assertEquals("g2", doc.get("gid"));
+        assertEquals("Fabaceae", doc.get(RankType.FAMILY.getRank()));
+        assertEquals("f1", doc.get("fid"));
+        //the accepted concept is kept separately
+        assertEquals("100", doc.get(NameIndexField.ACCEPTED_ID.toString()));
+        assertEquals("Acacia dealbata", doc.get(NameIndexField.ACCEPTED_NAME.toString()));
+        assertEquals("Link", doc.get(NameIndexField.ACCEPTED_AUTHOR.toString()));
+        assertEquals("Acacia", doc.get(NameIndexField.ACCEPTED_PREFIX + RankType.GENUS.getRank()));
+        assertEquals("g1", doc.get(NameIndexField.ACCEPTED_PREFIX + "gid"));
+        assertEquals("Plantae", doc.get(NameIndexField.ACCEPTED_PREFIX + RankType.KINGDOM.getRank()));
+        assertEquals("10", doc.get(NameIndexField.ACCEPTED_LEFT.toString()));
+    }
+
+    @Test
+    public void testUnknownAccepted() throws Exception {
+        Document doc = createSynonym(null, null, "urn:lsid:missing");
+        new ALANameIndexer().addAcceptedConcept(doc, searcher, "urn:lsid:missing");
+        assertNull(doc.get(NameIndexField.ACCEPTED_NAME.toString()));
+        assertNull(doc.get(RankType.FAMILY.getRank()));
+        NameSearchResult synonym = new NameSearchResult(doc, MatchType.EXACT);
+        assertTrue(synonym.isSynonym());
+        assertFalse(synonym.hasAcceptedConcept());
+        assertNull(synonym.getAcceptedResult());
+    }
+
+    @Test
+    public void testAcceptedResult() throws Exception {
+        //the synonym refers to the accepted concept by its id
+        Document doc = createSynonym("Racosperma", "g2", "100");
+        new ALANameIndexer().addAcceptedConcept(doc, searcher, "100");
+        NameSearchResult synonym = new NameSearchResult(doc, MatchType.EXACT);
+        assertTrue(synonym.hasAcceptedConcept());
+        NameSearchResult accepted = new NameSearchResult(synonym).getAcceptedResult();
+        assertEquals("100", accepted.getId());
+        assertEquals("urn:lsid:accepted", accepted.getLsid());
+        assertEquals("100", synonym.getAcceptedLsid());
+        assertEquals(MatchType.TAXON_ID, accepted.getMatchType());
+        assertEquals("link", accepted.getAuthorKey());
+        assertEquals("1822", accepted.getAuthorYear());
+        assertEquals(RankType.SPECIES, accepted.getRank());
+        assertEquals("10", accepted.getLeft());
+        assertEquals("11", accepted.getRight());
+        assertFalse(accepted.isSynonym());
+        LinnaeanRankClassification cl = accepted.getRankClassification();
+        assertEquals("Acacia dealbata", cl.getScientificName());
+        assertEquals("Link", cl.getAuthorship());
+        assertEquals("Acacia", cl.getGenus());
+        assertEquals("g1", cl.getGid());
+        assertEquals("Fabaceae", cl.getFamily());
+        assertEquals("Plantae", cl.getKingdom());
+        assertEquals("k1", cl.getKid());
+        assertEquals("100", cl.getSid());
+        //the synonym classification is unchanged
+        assertEquals("Racosperma", synonym.getRankClassification().getGenus());
+        assertEquals("g2", synonym.getRankClassification().getGid());
+    }
+}
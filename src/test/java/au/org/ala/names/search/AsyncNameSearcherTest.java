@@ -0,0 +1,198 @@
+package au.org.ala.names.search;
+
+import au.org.ala.names.model.LinnaeanRankClassification;
+import au.org.ala.names.model.MetricsResultDTO;
+import au.org.ala.names.model.NameSearchResult;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests the asynchronous facade with a searcher that echoes the scientific name.
+ */
+public class AsyncNameSearcherTest {
+
+    private static class EchoSearcher extends ALANameSearcher {
+        private final CountDownLatch release;
+
+        EchoSearcher(CountDownLatch release) {
+            this.release = release;
+        }
+
+        @Override
+        public MetricsResultDTO searchForRecordMetrics(LinnaeanRankClassification cl, boolean recursiveMatching, boolean addGuids, boolean fuzzy) {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            if ("fail".equals(cl.getScientificName()))
+                throw new IllegalStateException("fail");
+            MetricsResultDTO metrics = new MetricsResultDTO();
+            NameSearchResult result = new NameSearchResult(cl.getScientificName(), cl.getScientificName(), null);
+            metrics.setResult(result);
+            return metrics;
+        }
+    }
+
+    private LinnaeanRankClassification classification(String name) {
+        LinnaeanRankClassification cl = new LinnaeanRankClassification();
+        cl.setScientificName(name);
+        return cl;
+    }
+
+    @Test
+    public void testCallback() throws Exception {
+        AsyncNameSearcher searcher = new AsyncNameSearcher(new EchoSearcher(new CountDownLatch(0)), 2, 10);
+        final CountDownLatch done = new CountDownLatch(2);
+        final AtomicReference<String> matched = new AtomicReference<String>();
+        final AtomicReference<Throwable> failed = new AtomicReference<Throwable>();
+        AsyncNameSearcher.MatchCallback<MetricsResultDTO> callback = new AsyncNameSearcher.MatchCallback<MetricsResultDTO>() {
+            @Override
+            public void completed(MetricsResultDTO result) {
+                matched.set(result.getResult().getLsid());
+                done.countDown();
+            }
+
+            @Override
+            public void failed(Throwable cause) {
+                failed.set(cause);
+                done.countDown();
+            }
+        };
+        Future<MetricsResultDTO> future = searcher.match(classification("Acacia"), true, false, callback);
+        searcher.match(classification("fail"), true, false, callback);
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals("Acacia", future.get().getResult().getLsid());
+        assertEquals("Acacia", matched.get());
+        assertTrue(failed.get() instanceof IllegalStateException);
+        searcher.shutdown();
+    }
+
+    @Test
+    public void testMatchAll() throws Exception {
+        AsyncNameSearcher searcher = new AsyncNameSearcher(new EchoSearcher(new CountDownLatch(0)), 3, 100);
+        searcher.setBatchSize(7);
+        List<LinnaeanRankClassification> cls = new ArrayList<LinnaeanRankClassification>();
+        for (int i = 0; i < 50; i++)
+            cls.add(classification("Name " + i));
+        List<MetricsResultDTO> metrics = searcher.matchAll(cls, true, false).get(10, TimeUnit.SECONDS);
+        assertEquals(50, metrics.size());
+        for (int i = 0; i < 50; i++)
+            assertEquals("Name " + i, metrics.get(i).getResult().getLsid());
+        assertEquals(0, searcher.matchAll(new ArrayList<LinnaeanRankClassification>(), true, false).get().size());
+        cls.set(20, classification("fail"));
+        try {
+            searcher.matchAll(cls, true, false).get(10, TimeUnit.SECONDS);
+            fail("Expected the bulk match to fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        searcher.shutdown();
+    }
+
+    @Test
+    public void testMatchAllLongerThanQueue() throws Exception {
+        AsyncNameSearcher searcher = new AsyncNameSearcher(new EchoSearcher(new CountDownLatch(0)), 2, 1);
+        searcher.setBatchSize(5);
+        List<LinnaeanRankClassification> cls = new ArrayList<LinnaeanRankClassification>();
+        for (int i = 0; i < 200; i++)
+            cls.add(classification("Name " + i));
+        List<MetricsResultDTO> metrics = searcher.matchAll(cls, true, false).get(10, TimeUnit.SECONDS);
+        assertEquals(200, metrics.size());
+        for (int i = 0; i < 200; i++)
+            assertEquals("Name " + i, metrics.get(i).getResult().getLsid());
+        //a window that fills the queue, the rejected batches are run by the thread that finished a batch
+        searcher.setWindow(3);
+        metrics = searcher.matchAll(cls, true, false).get(10, TimeUnit.SECONDS);
+        assertEquals(200, metrics.size());
+        for (int i = 0; i < 200; i++)
+            assertEquals("Name " + i, metrics.get(i).getResult().getLsid());
+        searcher.shutdown();
+    }
+
+    @Test
+    public void testRejection() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AsyncNameSearcher searcher = new AsyncNameSearcher(new EchoSearcher(release), 1, 1);
+        searcher.match(classification("a"), true, false);
+        //the first match may not have been taken by the thread yet
+        int accepted = 1;
+        try {
+            for (int i = 0; i < 3; i++) {
+                searcher.match(classification("b"), true, false);
+                accepted++;
+            }
+            fail("Expected the queue to fill");
+        } catch (RejectedExecutionException e) {
+            assertTrue(accepted <= 3);
+        }
+        release.countDown();
+        searcher.shutdown();
+    }
+
+    @Test
+    public void testConcurrentMatchAllSaturated() throws Exception {
+        //a window larger than the pool and queue so that batches are rejected while other batches are finishing
+        final AsyncNameSearcher searcher = new AsyncNameSearcher(new EchoSearcher(new CountDownLatch(0)), 2, 1);
+        searcher.setBatchSize(1);
+        searcher.setWindow(8);
+        final List<LinnaeanRankClassification> cls = new ArrayList<LinnaeanRankClassification>();
+        for (int i = 0; i < 40; i++)
+            cls.add(classification("Name " + i));
+        ExecutorService callers = Executors.newFixedThreadPool(9);
+        for (int round = 0; round < 200; round++) {
+            List<Future<List<MetricsResultDTO>>> results = new ArrayList<Future<List<MetricsResultDTO>>>();
+            for (int c = 0; c < 8; c++) {
+                results.add(callers.submit(new Callable<List<MetricsResultDTO>>() {
+                    @Override
+                    public List<MetricsResultDTO> call() throws Exception {
+                        while (true) {
+                            try {
+                                return searcher.matchAll(cls, true, false).get(10, TimeUnit.SECONDS);
+                            } catch (RejectedExecutionException e) {
+                                //nothing of this bulk match was running, try again
+                                Thread.yield();
+                            }
+                        }
+                    }
+                }));
+            }
+            //single matches share the executor
+            callers.submit(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 20; i++) {
+                        try {
+                            searcher.match(classification("single"), true, false);
+                        } catch (RejectedExecutionException e) {
+                            //expected when the queue is full
+                        }
+                    }
+                }
+            });
+            for (Future<List<MetricsResultDTO>> result : results) {
+                List<MetricsResultDTO> metrics = result.get(20, TimeUnit.SECONDS);
+                assertEquals(40, metrics.size());
+                for (int i = 0; i < 40; i++)
+                    assertEquals("Name " + i, metrics.get(i).getResult().getLsid());
+            }
+        }
+        callers.shutdown();
+        searcher.shutdown();
+    }
+}
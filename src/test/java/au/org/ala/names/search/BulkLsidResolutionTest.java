@@ -0,0 +1,69 @@
+package au.org.ala.names.search;
+
+import au.org.ala.names.model.NameSearchResult;
+import org.apache.commons.io.LineIterator;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Compares resolving LSIDs in bulk with resolving them one at a time, reporting the latency of each.
+ */
+public class BulkLsidResolutionTest {
+
+    private static ALANameSearcher searcher;
+
+    @org.junit.BeforeClass
+    public static void init() {
+        try {
+            searcher = new ALANameSearcher("/data/lucene/namematching");
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Test
+    public void testBiocacheAnimalCoLLsids() throws Exception {
+        List<String> lsids = new ArrayList<String>();
+        LineIterator lines = new LineIterator(new BufferedReader(new java.io.FileReader(new java.io.File(getClass().getResource("biocache_animal_col.txt").toURI()))));
+        while (lines.hasNext()) {
+            try {
+                NameSearchResult nsr = searcher.searchForRecord(lines.next(), null);
+                if (nsr != null) {
+                    lsids.add(nsr.getLsid());
+                    if (nsr.isSynonym())
+                        lsids.add(nsr.getAcceptedLsid());
+                }
+            } catch (SearchResultException e) {
+            }
+        }
+        lsids.add("urn:lsid:example.org:unknown");
+
+        long start = System.nanoTime();
+        Map<String, NameSearchResult> records = searcher.searchForRecordsByLsid(lsids);
+        Map<String, String> primary = searcher.getPrimaryLsids(lsids);
+        long bulkTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (String lsid : lsids) {
+            NameSearchResult nsr = searcher.searchForRecordByLsid(lsid);
+            NameSearchResult bulk = records.get(lsid);
+            if (nsr == null) {
+                assertNull(lsid, bulk);
+            } else {
+                assertEquals(lsid, nsr.getId(), bulk.getId());
+                assertEquals(lsid, nsr.getMatchType(), bulk.getMatchType());
+            }
+            assertEquals(lsid, searcher.getPrimaryLsid(lsid), primary.get(lsid));
+        }
+        long singleTime = System.nanoTime() - start;
+        System.out.println("Resolved " + lsids.size() + " LSIDs. One at a time " + singleTime / lsids.size()
+                + "ns per LSID, in bulk " + bulkTime / lsids.size() + "ns per LSID");
+    }
+}
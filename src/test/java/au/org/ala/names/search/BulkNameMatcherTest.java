@@ -0,0 +1,122 @@
+package au.org.ala.names.search;
+
+import au.org.ala.names.model.LinnaeanRankClassification;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests the mapping of the input columns onto the classification and that deduplication, in memory and spilt to
+ * disk, gives the same output as matching every row.
+ */
+public class BulkNameMatcherTest {
+
+    @Test
+    public void testHeaderMapping() {
+        BulkNameMatcher matcher = new BulkNameMatcher(null, 1, 1);
+        String[] header = {"id", "dwc:scientificName", "http://rs.tdwg.org/dwc/terms/kingdom", "Family", "genus"};
+        int[] columns = matcher.mapColumns(header, new HashMap<String, String>());
+        LinnaeanRankClassification cl = matcher.classify(new String[]{"1", " Acacia dealbata ", "Plantae", "Fabaceae", ""}, columns);
+        assertEquals("Acacia dealbata", cl.getScientificName());
+        assertEquals("Plantae", cl.getKingdom());
+        assertEquals("Fabaceae", cl.getFamily());
+        assertNull(cl.getGenus());
+        assertNull(cl.getPhylum());
+    }
+
+    @Test
+    public void testExplicitMapping() {
+        BulkNameMatcher matcher = new BulkNameMatcher(null, 1, 1);
+        Map<String, String> mapping = new HashMap<String, String>();
+        mapping.put("scientificName", "raw_name");
+        int[] columns = matcher.mapColumns(new String[]{"scientificName", "raw_name"}, mapping);
+        LinnaeanRankClassification cl = matcher.classify(new String[]{"Acacia", "Eucalyptus"}, columns);
+        assertEquals("Eucalyptus", cl.getScientificName());
+        //short rows are allowed
+        cl = matcher.classify(new String[]{"Acacia"}, columns);
+        assertNull(cl.getScientificName());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMissingColumn() {
+        Map<String, String> mapping = new HashMap<String, String>();
+        mapping.put("kingdom", "regnum");
+        new BulkNameMatcher(null, 1, 1).mapColumns(new String[]{"scientificName"}, mapping);
+    }
+
+    @Test
+    public void testNormalise() {
+        assertEquals("Acacia dealbata", BulkNameMatcher.normalise(" Acacia \t dealbata\n"));
+        assertNull(BulkNameMatcher.normalise("  "));
+    }
+
+    /**
+     * Matches by echoing the name and genus, counting the matches
+     */
+    private static class EchoMatcher extends BulkNameMatcher {
+        private final AtomicInteger matches = new AtomicInteger();
+
+        EchoMatcher() {
+            super(null, 3, 4);
+        }
+
+        @Override
+        String[] match(String[] row, int[] termColumns) {
+            matches.incrementAndGet();
+            LinnaeanRankClassification cl = classify(row, termColumns);
+            return new String[]{cl.getScientificName(), cl.getGenus(), null, null, "", null};
+        }
+
+        @Override
+        String[][] match(List<String[]> rows, int[] termColumns) {
+            String[][] matches = new String[rows.size()][];
+            for (int i = 0; i < matches.length; i++)
+                matches[i] = match(rows.get(i), termColumns);
+            return matches;
+        }
+    }
+
+    private String match(File input, boolean deduplicate, int maxTuples, int expectedMatches) throws Exception {
+        return match(input, deduplicate, maxTuples, 3, expectedMatches);
+    }
+
+    private String match(File input, boolean deduplicate, int maxTuples, int partitions, int expectedMatches) throws Exception {
+        EchoMatcher matcher = new EchoMatcher();
+        matcher.setDeduplicate(deduplicate);
+        matcher.setMaxTuples(maxTuples);
+        matcher.setPartitions(partitions);
+        StringWriter out = new StringWriter();
+        assertEquals(200, matcher.matchDelimited(input, out, ',', new HashMap<String, String>()));
+        assertEquals(expectedMatches, matcher.matches.get());
+        return out.toString();
+    }
+
+    @Test
+    public void testDeduplicate() throws Exception {
+        StringBuilder csv = new StringBuilder("id,scientificName,genus\n");
+        for (int i = 0; i < 200; i++)
+            csv.append(i).append(",\"Name ").append(i % 7).append(i % 2 == 0 ? "  \"" : "\"").append(",\"Genus \"\"q\"\"\nx\"\n");
+        File input = File.createTempFile("bulkmatch", ".csv");
+        try {
+            FileUtils.writeStringToFile(input, csv.toString(), "UTF-8");
+            String all = match(input, false, 1000, 200);
+            assertEquals(all, match(input, true, 1000, 7));
+            //spilt to disk
+            assertEquals(all, match(input, true, 2, 7));
+            //partitions that still have too many tuples are split again
+            assertEquals(all, match(input, true, 1, 7));
+            assertEquals(all, match(input, true, 2, 1, 7));
+        } finally {
+            input.delete();
+        }
+    }
+}
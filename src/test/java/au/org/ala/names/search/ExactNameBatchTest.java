@@ -0,0 +1,87 @@
+package au.org.ala.names.search;
+
+import au.org.ala.names.lucene.analyzer.LowerCaseKeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FloatField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.Version;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the candidates collected by the batched term walk against the documents in a multi segment index.
+ */
+public class ExactNameBatchTest {
+
+    @Test
+    public void testCandidates() throws Exception {
+        Random random = new Random(3);
+        String[] names = new String[500];
+        float[] priorities = new float[names.length];
+        RAMDirectory directory = new RAMDirectory();
+        IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(Version.LUCENE_41, new LowerCaseKeywordAnalyzer()));
+        for (int i = 0; i < names.length; i++) {
+            names[i] = "name " + random.nextInt(150);
+            priorities[i] = 1 + random.nextInt(4);
+            Document doc = new Document();
+            doc.add(new StringField("id", Integer.toString(i), Field.Store.YES));
+            doc.add(new StringField("name", names[i], Field.Store.NO));
+            doc.add(new FloatField("priority", priorities[i], Field.Store.NO));
+            writer.addDocument(doc);
+            //several segments
+            if (i % 120 == 119)
+                writer.commit();
+        }
+        for (int i = 0; i < names.length; i += 7) {
+            writer.deleteDocuments(new Term("id", Integer.toString(i)));
+            names[i] = null;
+        }
+        writer.close();
+        DirectoryReader reader = DirectoryReader.open(directory);
+        try {
+            List<BytesRef> terms = new ArrayList<BytesRef>();
+            for (int i = 0; i < 200; i += 3)
+                terms.add(new BytesRef("name " + i));
+            ExactNameBatch batch = new ExactNameBatch(reader, "name", terms, "priority");
+            assertEquals(terms.size(), batch.size());
+            assertNull(batch.getCandidates(new BytesRef("name 1")));
+            for (BytesRef term : terms) {
+                List<Integer> expected = new ArrayList<Integer>();
+                for (int doc = 0; doc < reader.maxDoc(); doc++) {
+                    int id = Integer.parseInt(reader.document(doc).get("id"));
+                    if (term.utf8ToString().equals(names[id]))
+                        expected.add(doc);
+                }
+                ExactNameBatch.Candidates candidates = batch.getCandidates(term);
+                int[] docs = candidates.getDocs();
+                assertEquals(term.utf8ToString(), expected.size(), docs.length);
+                for (int i = 0; i < docs.length; i++) {
+                    assertEquals(expected.get(i).intValue(), docs[i]);
+                    int id = Integer.parseInt(reader.document(docs[i]).get("id"));
+                    assertEquals(priorities[id], candidates.getScores()[i], 0.0001f);
+                }
+            }
+            float[] unscored = new ExactNameBatch(reader, "name", Arrays.asList(new BytesRef("name 3")), null).getCandidates(new BytesRef("name 3")).getScores();
+            assertTrue(unscored.length > 0);
+            for (float score : unscored)
+                assertEquals(1.0f, score, 0.0f);
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package au.org.ala.names.search;
+
+import au.org.ala.names.model.NameSearchResult;
+import org.apache.commons.io.LineIterator;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares the exact name dictionary with the Lucene exact match, reporting the latency and memory of each.
+ */
+public class ExactNameDictionaryTest {
+
+    private static ALANameSearcher searcher;
+
+    @org.junit.BeforeClass
+    public static void init() {
+        try {
+            searcher = new ALANameSearcher("/data/lucene/namematching");
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Test
+    public void testBiocacheAnimalCoLNames() throws Exception {
+        List<String> names = loadNames("biocache_animal_col.txt");
+
+        searcher.setUseNameDictionary(false);
+        List<String> lucene = new ArrayList<String>();
+        //warm up the caches before timing
+        match(names, new ArrayList<String>());
+        long luceneTime = match(names, lucene);
+
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        long before = runtime.totalMemory() - runtime.freeMemory();
+        searcher.setUseNameDictionary(true);
+        System.gc();
+        long after = runtime.totalMemory() - runtime.freeMemory();
+        List<String> dictionary = new ArrayList<String>();
+        match(names, new ArrayList<String>());
+        long dictionaryTime = match(names, dictionary);
+
+        System.out.println("Lucene exact match: " + luceneTime / names.size() + "ns per name");
+        System.out.println("Dictionary exact match: " + dictionaryTime / names.size() + "ns per name");
+        System.out.println("Dictionary of " + searcher.getNameDictionary().size() + " names. Heap used "
+                + (after - before) / 1024 + "kb, estimated " + searcher.getNameDictionary().getMemoryEstimate() / 1024 + "kb");
+        assertEquals(lucene, dictionary);
+        searcher.setUseNameDictionary(false);
+    }
+
+    private List<String> loadNames(String filename) throws Exception {
+        List<String> names = new ArrayList<String>();
+        LineIterator lines = new LineIterator(new BufferedReader(new java.io.FileReader(new java.io.File(getClass().getResource(filename).toURI()))));
+        while (lines.hasNext())
+            names.add(lines.next());
+        return names;
+    }
+
+    private long match(List<String> names, List<String> results) {
+        long start = System.nanoTime();
+        for (String name : names) {
+            try {
+                NameSearchResult nsr = searcher.searchForRecord(name, null);
+                results.add(nsr == null ? null : nsr.getLsid() + " " + nsr.getMatchType());
+            } catch (SearchResultException e) {
+                results.add(e.getClass().getSimpleName());
+            }
+        }
+        return System.nanoTime() - start;
+    }
+}
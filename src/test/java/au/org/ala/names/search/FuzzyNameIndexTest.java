@@ -0,0 +1,152 @@
+package au.org.ala.names.search;
+
+import au.org.ala.names.lucene.analyzer.LowerCaseKeywordAnalyzer;
+import au.org.ala.names.model.LinnaeanRankClassification;
+import au.org.ala.names.model.MatchStage;
+import au.org.ala.names.model.MatchTrace;
+import au.org.ala.names.model.MatchType;
+import au.org.ala.names.model.MetricsResultDTO;
+import au.org.ala.names.model.NameIndexField;
+import au.org.ala.names.model.RankType;
+import org.apache.commons.io.FileUtils;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Version;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks the edit distance search for genera and higher taxa, both in the fuzzy name index and in the searcher.
+ */
+public class FuzzyNameIndexTest {
+    private static File directory;
+    private static ALANameSearcher searcher;
+    private static FuzzyNameIndex index;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        directory = new File(System.getProperty("java.io.tmpdir"), "fuzzy-" + System.nanoTime());
+        IndexWriter writer = new IndexWriter(FSDirectory.open(new File(directory, "cb")), new IndexWriterConfig(Version.LUCENE_41, new LowerCaseKeywordAnalyzer()));
+        writer.addDocument(create("1", "Acacia", RankType.GENUS, "Plantae"));
+        writer.addDocument(create("2", "Fabaceae", RankType.FAMILY, "Plantae"));
+        writer.addDocument(create("3", "Macropus", RankType.GENUS, "Animalia"));
+        writer.addDocument(create("4", "Macropis", RankType.GENUS, null));
+        writer.addDocument(create("5", "Acacia dealbata", RankType.SPECIES, "Plantae"));
+        writer.close();
+        searcher = new ALANameSearcher(directory.getAbsolutePath());
+        searcher.setUseFuzzyIndex(true);
+        index = searcher.getFuzzyIndex();
+    }
+
+    @AfterClass
+    public static void close() throws Exception {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    private static Document create(String id, String name, RankType rank, String kingdom) {
+        Document doc = new Document();
+        doc.add(new StringField(NameIndexField.ID.toString(), id, Field.Store.YES));
+        doc.add(new StringField(NameIndexField.LSID.toString(), "urn:lsid:" + id, Field.Store.YES));
+        doc.add(new TextField(NameIndexField.NAME.toString(), name, Field.Store.YES));
+        doc.add(new StringField(NameIndexField.RANK_ID.toString(), Integer.toString(rank.getId()), Field.Store.YES));
+        doc.add(new StringField(NameIndexField.RANK.toString(), rank.getRank(), Field.Store.YES));
+        if (kingdom != null)
+            doc.add(new TextField(RankType.KINGDOM.getRank(), kingdom, Field.Store.YES));
+        return doc;
+    }
+
+    private MetricsResultDTO search(String name, String rank, String kingdom) {
+        LinnaeanRankClassification cl = new LinnaeanRankClassification();
+        cl.setScientificName(name);
+        cl.setRank(rank);
+        cl.setKingdom(kingdom);
+        return searcher.searchForRecordMetrics(cl, false, false, true, false, null);
+    }
+
+    @Test
+    public void testUninomial() {
+        assertEquals(Collections.singletonList("acacia"), index.searchUninomial("Acacie", null, null));
+        assertEquals(Collections.singletonList("fabaceae"), index.searchUninomial("Fabacaea", null, null));
+        //too short to allow any edits
+        assertEquals(0, index.searchUninomial("Aca", null, null).size());
+        //the species are not held as uninomials
+        assertEquals(0, index.searchUninomial("Acacia dealbatx", null, null).size());
+    }
+
+    @Test
+    public void testUninomialRank() {
+        assertEquals(Collections.singletonList("acacia"), index.searchUninomial("Acacie", RankType.GENUS, null));
+        assertEquals(0, index.searchUninomial("Acacie", RankType.FAMILY, null).size());
+        assertEquals(0, index.searchUninomial("Acacie", RankType.ORDER, null).size());
+    }
+
+    @Test
+    public void testUninomialKingdom() {
+        assertEquals(Collections.singletonList("macropus"), index.searchUninomial("Macropux", null, null));
+        assertEquals(Collections.singletonList("macropus"), index.searchUninomial("Macropux", RankType.GENUS, "Animalia"));
+        //the name without a kingdom is searched for every kingdom
+        assertEquals(Collections.singletonList("macropis"), index.searchUninomial("Macropux", RankType.GENUS, "Plantae"));
+        assertEquals(Arrays.asList("macropis", "macropus"), index.searchUninomial("Macropys", RankType.GENUS, "Animalia"));
+        assertEquals(0, index.searchUninomial("Acacie", RankType.GENUS, "Animalia").size());
+    }
+
+    @Test
+    public void testSearchMisspeltGenus() {
+        MetricsResultDTO metrics = search("Acacie", null, null);
+        assertNotNull(metrics.getResult());
+        assertEquals("urn:lsid:1", metrics.getResult().getLsid());
+        assertEquals(MatchType.EDIT_DISTANCE, metrics.getResult().getMatchType());
+    }
+
+    @Test
+    public void testSearchMisspeltFamily() {
+        MetricsResultDTO metrics = search("Fabacaea", "family", "Plantae");
+        assertNotNull(metrics.getResult());
+        assertEquals("urn:lsid:2", metrics.getResult().getLsid());
+        assertEquals(MatchType.EDIT_DISTANCE, metrics.getResult().getMatchType());
+    }
+
+    @Test
+    public void testSearchRank() {
+        assertEquals("urn:lsid:1", search("Acacie", "genus", null).getResult().getLsid());
+        assertNull(search("Acacie", "family", null).getResult());
+    }
+
+    @Test
+    public void testSearchKingdom() {
+        assertEquals("urn:lsid:3", search("Macropux", "genus", "Animalia").getResult().getLsid());
+        assertEquals("urn:lsid:4", search("Macropux", "genus", "Plantae").getResult().getLsid());
+        assertNull(search("Acacie", "genus", "Animalia").getResult());
+    }
+
+    @Test
+    public void testSearchSpeciesSkipped() {
+        assertEquals("urn:lsid:1", search("Acacie", null, null).getResult().getLsid());
+        searcher.setTraceInterval(1);
+        try {
+            for (String rank : new String[]{"species", "subsp"}) {
+                MetricsResultDTO metrics = search("Acacie", rank, null);
+                assertNull(metrics.getResult());
+                for (MatchTrace.Stage stage : metrics.getTrace().getStages())
+                    assertFalse(stage.getStage() == MatchStage.EDIT_DISTANCE);
+            }
+        } finally {
+            searcher.setTraceInterval(0);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package au.org.ala.names.search;
+
+import au.org.ala.names.model.MatchType;
+import au.org.ala.names.lucene.analyzer.LowerCaseKeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests finding the classifications affected by the differences between two builds of an index and matching only
+ * those again.
+ */
+public class IndexDiffTest {
+
+    /**
+     * Marks the rematched rows
+     */
+    private static class MarkingMatcher extends BulkNameMatcher {
+        MarkingMatcher() {
+            super(null, 1, 10);
+        }
+
+        @Override
+        String[][] match(List<String[]> rows, int[] termColumns) {
+            String[][] matches = new String[rows.size()][];
+            for (int i = 0; i < matches.length; i++)
+                matches[i] = new String[]{"new:" + rows.get(i)[termColumns[0]], null, "exactMatch", null, "", null};
+            return matches;
+        }
+    }
+
+    private DirectoryReader index(String[]... concepts) throws Exception {
+        RAMDirectory directory = new RAMDirectory();
+        IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(Version.LUCENE_41, new LowerCaseKeywordAnalyzer()));
+        for (String[] concept : concepts) {
+            Document doc = new Document();
+            for (int i = 0; i < concept.length; i += 2) {
+                if (concept[i].equals("lsid"))
+                    doc.add(new StringField(concept[i], concept[i + 1], Field.Store.YES));
+                else
+                    doc.add(new StoredField(concept[i], concept[i + 1]));
+            }
+            writer.addDocument(doc);
+        }
+        writer.close();
+        return DirectoryReader.open(directory);
+    }
+
+    private IndexDiff diff() throws Exception {
+        DirectoryReader oldNames = index(
+                new String[]{"lsid", "a", "id", "1", "name", "Acacia dealbata", "name", "Acacia dealbata Link", "genus", "Acacia", "left", "1"},
+                new String[]{"lsid", "b", "id", "2", "name", "Eucalyptus regnans", "genus", "Eucalyptus", "left", "2"},
+                new String[]{"lsid", "c", "id", "3", "name", "Banksia serrata", "genus", "Banksia", "left", "3"});
+        //only the ids and nested set values of a change
+        DirectoryReader newNames = index(
+                new String[]{"lsid", "a", "id", "10", "genus", "Acacia", "name", "Acacia dealbata", "name", "Acacia dealbata Link", "left", "7"},
+                new String[]{"lsid", "b", "id", "20", "name", "Eucalyptus regnans", "genus", "Eucalyptus", "accepted_lsid", "x", "left", "8"},
+                new String[]{"lsid", "d", "id", "40", "name", "Grevillea robusta", "genus", "Grevillea", "left", "9"});
+        DirectoryReader oldHomonyms = index(new String[]{"genus", "Pterostylis", "rank", "genus"});
+        DirectoryReader newHomonyms = index(new String[]{"genus", "Pterostylis", "rank", "genus"}, new String[]{"genus", "Morus", "rank", "genus"});
+        return new IndexDiff(oldNames, newNames, oldHomonyms, newHomonyms);
+    }
+
+    private String[] terms(String scientificName, String genus) {
+        String[] terms = new String[BulkNameMatcher.TERMS.length];
+        terms[0] = scientificName;
+        terms[8] = genus;
+        return terms;
+    }
+
+    @Test
+    public void testAffected() throws Exception {
+        IndexDiff diff = diff();
+        assertEquals(3, diff.getChangedLsids().size());
+        assertFalse(diff.getChangedLsids().contains("a"));
+        String exact = MatchType.EXACT.toString();
+        assertFalse(diff.isAffected(terms("Acacia dealbata", "Acacia"), "a", "a", exact));
+        assertTrue(diff.isAffected(terms("Acacia dealbata", "Acacia"), "c", "c", exact));
+        assertTrue(diff.isAffected(terms("EUCALYPTUS  regnans F.Muell.", null), "z", "z", exact));
+        assertTrue(diff.isAffected(terms("Banksia serrata", null), "z", "z", exact));
+        assertTrue(diff.isAffected(terms("Banksia integrifolia", null), "z", "z", exact));
+        assertTrue(diff.isAffected(terms(null, "Grevillea"), "z", "z", exact));
+        assertTrue(diff.isAffected(terms("Morus alba", null), "z", "z", exact));
+        assertFalse(diff.isAffected(terms("Pterostylis nutans", "Pterostylis"), "z", "z", exact));
+    }
+
+    @Test
+    public void testApproximateMatches() throws Exception {
+        IndexDiff diff = diff();
+        //a misspelt genus is not one of the affected names but a new similar name may now be a better match
+        assertTrue(diff.isAffected(terms("Grevilea robusta", null), null, null, null));
+        assertTrue(diff.isAffected(terms("Akacia dealbata", "Akacia"), "a", "a", MatchType.SOUNDEX.toString()));
+        assertTrue(diff.isAffected(terms("Acacai dealbata", null), "a", "a", MatchType.EDIT_DISTANCE.toString()));
+        assertTrue(diff.isAffected(terms("Acacia dealbatta", "Acacia"), "a", "a", MatchType.RECURSIVE.toString()));
+        assertFalse(diff.isAffected(terms("Acacia dealbata", "Acacia"), "a", "a", MatchType.CANONICAL.toString()));
+    }
+
+    @Test
+    public void testRematch() throws Exception {
+        StringBuilder csv = new StringBuilder("scientificName,genus,match_lsid,match_accepted_lsid,match_type,match_rank,match_errors,match_name_type\n");
+        csv.append("Acacia dealbata,Acacia,a,a,exactMatch,species,,wellformed\n");
+        csv.append("Banksia serrata,Banksia,c,c,exactMatch,species,,wellformed\n");
+        csv.append("Pterostylis nutans,,,,,,,\n");
+        csv.append("Grevillea robusta,,,,,,,\n");
+        IndexUpgradeMatcher upgrade = new IndexUpgradeMatcher(new MarkingMatcher(), diff(), 2, 1);
+        StringWriter out = new StringWriter();
+        assertEquals(4, upgrade.rematch(new StringReader(csv.toString()), out, ','));
+        assertEquals(3, upgrade.getAffected());
+        String[] lines = out.toString().split("\n");
+        assertEquals(5, lines.length);
+        assertEquals("\"Acacia dealbata\",\"Acacia\",\"a\",\"a\",\"exactMatch\",\"species\",\"\",\"wellformed\"", lines[1]);
+        assertEquals("\"Banksia serrata\",\"Banksia\",\"new:Banksia serrata\",\"\",\"exactMatch\",\"\",\"\",\"\"", lines[2]);
+        assertEquals("\"Pterostylis nutans\",\"\",\"new:Pterostylis nutans\",\"\",\"exactMatch\",\"\",\"\",\"\"", lines[3]);
+        assertEquals("\"Grevillea robusta\",\"\",\"new:Grevillea robusta\",\"\",\"exactMatch\",\"\",\"\",\"\"", lines[4]);
+    }
+}
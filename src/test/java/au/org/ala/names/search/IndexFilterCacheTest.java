@@ -0,0 +1,128 @@
+package au.org.ala.names.search;
+
+import au.org.ala.names.lucene.analyzer.LowerCaseKeywordAnalyzer;
+import au.org.ala.names.model.NameIndexField;
+import au.org.ala.names.model.RankType;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Checks that the cached rank filters select the same documents as the rank clause they replace.
+ */
+public class IndexFilterCacheTest {
+    private static DirectoryReader reader;
+    private static IndexSearcher searcher;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        RAMDirectory directory = new RAMDirectory();
+        IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(Version.LUCENE_41, new LowerCaseKeywordAnalyzer()));
+        writer.addDocument(create("kingdom", RankType.KINGDOM, null, null));
+        writer.addDocument(create("genus", RankType.GENUS, null, null));
+        writer.addDocument(create("species", RankType.SPECIES, null, null));
+        writer.addDocument(create("subspecies", RankType.SUBSPECIES, null, null));
+        writer.addDocument(create("synonym", null, NameIndexField.iS_SYNONYM, "T"));
+        writer.addDocument(create("ala", null, NameIndexField.ALA, "T"));
+        writer.addDocument(create("unranked", null, null, null));
+        writer.close();
+        reader = DirectoryReader.open(directory);
+        searcher = new IndexSearcher(reader);
+    }
+
+    @AfterClass
+    public static void close() throws Exception {
+        reader.close();
+    }
+
+    private static Document create(String id, RankType rank, NameIndexField flag, String value) {
+        Document doc = new Document();
+        doc.add(new StringField(NameIndexField.ID.toString(), id, Field.Store.YES));
+        if (rank != null) {
+            doc.add(new StringField(NameIndexField.RANK.toString(), rank.getRank(), Field.Store.YES));
+            doc.add(new StringField(NameIndexField.RANK_ID.toString(), Integer.toString(rank.getId()), Field.Store.YES));
+        }
+        if (flag != null)
+            doc.add(new StringField(flag.toString(), value.toLowerCase(), Field.Store.YES));
+        return doc;
+    }
+
+    private Set<String> filtered(Filter filter) throws Exception {
+        return ids(searcher.search(new MatchAllDocsQuery(), filter, 100).scoreDocs);
+    }
+
+    /**
+     * The rank clause that the searcher adds to the query when the filter cache is not used.
+     */
+    private Set<String> parsed(RankType rank) throws Exception {
+        String clause = rank.getId() >= RankType.SPECIES.getId() ? NameIndexField.RANK_ID + ":[7000 TO 9999]" : NameIndexField.RANK + ":" + rank.getRank();
+        QueryParser parser = new QueryParser(Version.LUCENE_34, "genus", new LowerCaseKeywordAnalyzer());
+        String query = "+(" + clause + " OR " + NameIndexField.iS_SYNONYM + ":T OR " + NameIndexField.ALA + ":T)";
+        return ids(searcher.search(parser.parse(query), 100).scoreDocs);
+    }
+
+    private Set<String> ids(ScoreDoc[] docs) throws Exception {
+        Set<String> ids = new TreeSet<String>();
+        for (ScoreDoc doc : docs)
+            ids.add(searcher.doc(doc.doc).get(NameIndexField.ID.toString()));
+        return ids;
+    }
+
+    @Test
+    public void testNoRank() {
+        assertNull(new IndexFilterCache().getRankFilter(null));
+    }
+
+    @Test
+    public void testSpeciesAndBelow() throws Exception {
+        IndexFilterCache cache = new IndexFilterCache();
+        Set<String> expected = new TreeSet<String>();
+        java.util.Collections.addAll(expected, "ala", "species", "subspecies", "synonym");
+        assertEquals(expected, filtered(cache.getRankFilter(RankType.SPECIES)));
+        assertEquals(parsed(RankType.SPECIES), filtered(cache.getRankFilter(RankType.SPECIES)));
+        assertEquals(parsed(RankType.SUBSPECIES), filtered(cache.getRankFilter(RankType.SUBSPECIES)));
+        assertSame(cache.getRankFilter(RankType.SPECIES), cache.getRankFilter(RankType.SUBSPECIES));
+    }
+
+    @Test
+    public void testAboveSpecies() throws Exception {
+        IndexFilterCache cache = new IndexFilterCache();
+        Set<String> expected = new TreeSet<String>();
+        java.util.Collections.addAll(expected, "ala", "genus", "synonym");
+        assertEquals(expected, filtered(cache.getRankFilter(RankType.GENUS)));
+        assertEquals(parsed(RankType.GENUS), filtered(cache.getRankFilter(RankType.GENUS)));
+        assertEquals(parsed(RankType.KINGDOM), filtered(cache.getRankFilter(RankType.KINGDOM)));
+        assertSame(cache.getRankFilter(RankType.GENUS), cache.getRankFilter(RankType.GENUS));
+    }
+
+    @Test
+    public void testCachedPerSegment() throws Exception {
+        Filter filter = new IndexFilterCache().getRankFilter(RankType.FAMILY);
+        for (AtomicReaderContext context : reader.leaves()) {
+            DocIdSet first = filter.getDocIdSet(context, context.reader().getLiveDocs());
+            assertSame(first, filter.getDocIdSet(context, context.reader().getLiveDocs()));
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package au.org.ala.names.search;
+
+import au.org.ala.names.lucene.analyzer.LowerCaseKeywordAnalyzer;
+import au.org.ala.names.model.ErrorType;
+import au.org.ala.names.model.LinnaeanRankClassification;
+import au.org.ala.names.model.MatchBudget;
+import au.org.ala.names.model.MatchType;
+import au.org.ala.names.model.MetricsResultDTO;
+import au.org.ala.names.model.NameIndexField;
+import au.org.ala.names.model.RankType;
+import org.apache.commons.io.FileUtils;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Version;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a search stops when it runs out of budget and keeps the best result found so far.
+ */
+public class MatchBudgetSearchTest {
+    private static File directory;
+    private static ALANameSearcher searcher;
+
+    @BeforeClass
+    public static void init() throws Exception {
+        directory = new File(System.getProperty("java.io.tmpdir"), "budget-" + System.nanoTime());
+        IndexWriter writer = new IndexWriter(FSDirectory.open(new File(directory, "cb")), new IndexWriterConfig(Version.LUCENE_41, new LowerCaseKeywordAnalyzer()));
+        writer.addDocument(createSpecies("1", "Acacia dealbata"));
+        writer.addDocument(createSpecies("2", "Acacia dealbato"));
+        writer.close();
+        searcher = new ALANameSearcher(directory.getAbsolutePath());
+        searcher.setUseFuzzyIndex(true);
+    }
+
+    @AfterClass
+    public static void close() throws Exception {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    private static Document createSpecies(String id, String name) {
+        Document doc = new Document();
+        doc.add(new StringField(NameIndexField.ID.toString(), id, Field.Store.YES));
+        doc.add(new StringField(NameIndexField.LSID.toString(), "urn:lsid:" + id, Field.Store.YES));
+        doc.add(new TextField(NameIndexField.NAME.toString(), name, Field.Store.YES));
+        doc.add(new StringField(NameIndexField.RANK_ID.toString(), Integer.toString(RankType.SPECIES.getId()), Field.Store.YES));
+        doc.add(new StringField(NameIndexField.RANK.toString(), RankType.SPECIES.getRank(), Field.Store.YES));
+        return doc;
+    }
+
+    private MetricsResultDTO search(MatchBudget budget) {
+        LinnaeanRankClassification cl = new LinnaeanRankClassification();
+        cl.setScientificName("Acacia dealbatx");
+        return searcher.searchForRecordMetrics(cl, true, false, true, false, budget);
+    }
+
+    @Test
+    public void testUnlimited() {
+        MetricsResultDTO metrics = search(null);
+        assertNotNull(metrics.getResult());
+        assertEquals("urn:lsid:1", metrics.getResult().getLsid());
+        assertEquals(MatchType.EDIT_DISTANCE, metrics.getResult().getMatchType());
+        assertFalse(metrics.getErrors().contains(ErrorType.BUDGET_EXCEEDED));
+    }
+
+    @Test
+    public void testPartialResult() {
+        //the exact, canonical, sound-alike and first edit distance searches are allowed, the second candidate is not
+        MetricsResultDTO metrics = search(new MatchBudget(0, 4, 0));
+        assertTrue(metrics.getErrors().contains(ErrorType.BUDGET_EXCEEDED));
+        assertNotNull(metrics.getResult());
+        assertEquals("urn:lsid:1", metrics.getResult().getLsid());
+        assertEquals(MatchType.EDIT_DISTANCE, metrics.getResult().getMatchType());
+        assertTrue(metrics.getLastException() instanceof BudgetExceededException);
+    }
+
+    @Test
+    public void testNoResult() {
+        MetricsResultDTO metrics = search(new MatchBudget(0, 1, 0));
+        assertTrue(metrics.getErrors().contains(ErrorType.BUDGET_EXCEEDED));
+        assertNull(metrics.getResult());
+    }
+}
@@ -0,0 +1,155 @@
+package au.org.ala.names.search;
+
+import au.org.ala.names.model.ErrorType;
+import au.org.ala.names.model.MatchType;
+import au.org.ala.names.model.MetricsResultDTO;
+import au.org.ala.names.model.NameSearchResult;
+import org.gbif.ecat.voc.NameType;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests storing, reopening and invalidating the memory mapped match memo.
+ */
+public class MatchMemoTest {
+
+    /**
+     * Rebuilds results from the id alone
+     */
+    private static class IdSearcher extends ALANameSearcher {
+        private final String identity;
+
+        private int lookups;
+
+        IdSearcher(String identity) {
+            this.identity = identity;
+        }
+
+        @Override
+        public String getIndexIdentity() {
+            return identity;
+        }
+
+        @Override
+        public Map<String, NameSearchResult> searchForRecordsByID(Collection<String> ids) {
+            lookups++;
+            Map<String, NameSearchResult> results = new HashMap<String, NameSearchResult>();
+            for (String id : ids) {
+                if (!id.startsWith("missing"))
+                    results.put(id, new NameSearchResult(id, "urn:lsid:" + id, MatchType.TAXON_ID));
+            }
+            return results;
+        }
+    }
+
+    private MetricsResultDTO metrics(String id, MatchType type, NameType nameType, ErrorType... errors) {
+        MetricsResultDTO metrics = new MetricsResultDTO();
+        metrics.setResult(id == null ? null : new NameSearchResult(id, "urn:lsid:" + id, type));
+        metrics.setNameType(nameType);
+        metrics.setErrors(new HashSet<ErrorType>(Arrays.asList(errors)));
+        return metrics;
+    }
+
+    @Test
+    public void testReuseAndInvalidate() throws Exception {
+        File file = File.createTempFile("memo", ".bin");
+        file.deleteOnExit();
+        MatchMemo memo = new MatchMemo(file, new IdSearcher("index-1"), 1000);
+        for (int i = 0; i < 500; i++)
+            assertTrue(memo.put("key " + i, metrics("id" + i, MatchType.EXACT, NameType.wellformed, ErrorType.NONE)));
+        assertTrue(memo.put("none", metrics(null, null, null, ErrorType.HOMONYM, ErrorType.QUESTION_SPECIES)));
+        assertEquals(501, memo.size());
+        memo.close();
+
+        memo = new MatchMemo(file, new IdSearcher("index-1"), 10);
+        assertEquals(501, memo.size());
+        for (int i = 0; i < 500; i++) {
+            MetricsResultDTO metrics = memo.get("key " + i);
+            assertEquals("id" + i, metrics.getResult().getId());
+            assertEquals(MatchType.EXACT, metrics.getResult().getMatchType());
+            assertEquals(NameType.wellformed, metrics.getNameType());
+            assertEquals(new HashSet<ErrorType>(Arrays.asList(ErrorType.NONE)), metrics.getErrors());
+        }
+        MetricsResultDTO none = memo.get("none");
+        assertNull(none.getResult());
+        assertNull(none.getNameType());
+        assertEquals(new HashSet<ErrorType>(Arrays.asList(ErrorType.HOMONYM, ErrorType.QUESTION_SPECIES)), none.getErrors());
+        assertNull(memo.get("key 500"));
+        assertEquals(501, memo.getHits());
+        assertEquals(1, memo.getMisses());
+        memo.close();
+
+        memo = new MatchMemo(file, new IdSearcher("index-2"), 1000);
+        assertEquals(0, memo.size());
+        assertNull(memo.get("key 1"));
+        memo.close();
+    }
+
+    @Test
+    public void testBatch() throws Exception {
+        File file = File.createTempFile("memo", ".bin");
+        file.deleteOnExit();
+        IdSearcher searcher = new IdSearcher("index");
+        MatchMemo memo = new MatchMemo(file, searcher, 1000);
+        List<String> keys = new ArrayList<String>();
+        for (int i = 0; i < 100; i++) {
+            //the same result for two keys
+            memo.put("key " + i, metrics("id" + i / 2, i % 2 == 0 ? MatchType.EXACT : MatchType.CANONICAL, null));
+            keys.add("key " + i);
+        }
+        memo.put("gone", metrics("missing", MatchType.EXACT, null));
+        memo.put("none", metrics(null, null, null, ErrorType.HOMONYM));
+        keys.add("gone");
+        keys.add("none");
+        keys.add("unknown");
+        List<MetricsResultDTO> memoised = memo.get(keys);
+        assertEquals(1, searcher.lookups);
+        assertEquals(keys.size(), memoised.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals("id" + i / 2, memoised.get(i).getResult().getId());
+            assertEquals(i % 2 == 0 ? MatchType.EXACT : MatchType.CANONICAL, memoised.get(i).getResult().getMatchType());
+        }
+        assertNull(memoised.get(100));
+        assertNull(memoised.get(101).getResult());
+        assertEquals(new HashSet<ErrorType>(Arrays.asList(ErrorType.HOMONYM)), memoised.get(101).getErrors());
+        assertNull(memoised.get(102));
+        assertEquals(101, memo.getHits());
+        assertEquals(2, memo.getMisses());
+        memo.close();
+    }
+
+    @Test
+    public void testFull() throws Exception {
+        File file = File.createTempFile("memo", ".bin");
+        file.deleteOnExit();
+        MatchMemo memo = new MatchMemo(file, new IdSearcher("index"), 10);
+        int added = 0;
+        for (int i = 0; i < 100; i++) {
+            if (memo.put("key " + i, metrics("id" + i, MatchType.RECURSIVE, null)))
+                added++;
+        }
+        assertEquals(memo.getCapacity() / 4 * 3, added);
+        //existing entries can still be replaced
+        assertTrue(memo.put("key 0", metrics("other", MatchType.CANONICAL, null)));
+        assertEquals("other", memo.get("key 0").getResult().getId());
+        //ids that do not fit are not kept
+        StringBuilder id = new StringBuilder();
+        for (int i = 0; i < 50; i++)
+            id.append('x');
+        assertFalse(memo.put("key 1", metrics(id.toString(), MatchType.EXACT, null)));
+        memo.close();
+    }
+}
@@ -0,0 +1,221 @@
+package au.org.ala.names.search;
+
+import au.org.ala.names.model.LinnaeanRankClassification;
+import au.org.ala.names.model.MetricsResultDTO;
+import au.org.ala.names.model.NameSearchResult;
+import au.org.ala.names.util.Flow;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the ordering and backpressure of the matching processor with a searcher that echoes the scientific name
+ * after a random delay.
+ */
+public class MatchingProcessorTest {
+    private ExecutorService executor;
+
+    @Before
+    public void start() {
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void stop() {
+        executor.shutdownNow();
+    }
+
+    private static class EchoSearcher extends ALANameSearcher {
+        private final Random random = new Random(1);
+        private final AtomicInteger active = new AtomicInteger();
+        private volatile int maxActive;
+
+        @Override
+        public List<MetricsResultDTO> searchForRecordsMetrics(List<LinnaeanRankClassification> cls, boolean recursiveMatching, boolean addGuids, boolean fuzzy) {
+            int batches = active.incrementAndGet();
+            synchronized (this) {
+                maxActive = Math.max(maxActive, batches);
+            }
+            try {
+                return super.searchForRecordsMetrics(cls, recursiveMatching, addGuids, fuzzy);
+            } finally {
+                active.decrementAndGet();
+            }
+        }
+
+        @Override
+        public MetricsResultDTO searchForRecordMetrics(LinnaeanRankClassification cl, boolean recursiveMatching, boolean addGuids, boolean fuzzy) {
+            try {
+                Thread.sleep(random.nextInt(2));
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            MetricsResultDTO metrics = new MetricsResultDTO();
+            metrics.setResult(new NameSearchResult(cl.getScientificName(), cl.getScientificName(), null));
+            return metrics;
+        }
+    }
+
+    /**
+     * Publishes the names, only as many as have been requested
+     */
+    private static class NamePublisher implements Flow.Publisher<LinnaeanRankClassification> {
+        private final int size;
+        private final AtomicInteger sent = new AtomicInteger();
+        private volatile boolean cancelled;
+
+        NamePublisher(int size) {
+            this.size = size;
+        }
+
+        @Override
+        public void subscribe(final Flow.Subscriber<? super LinnaeanRankClassification> subscriber) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                private long requested;
+                private boolean sending;
+
+                @Override
+                public void request(long n) {
+                    synchronized (this) {
+                        requested += n;
+                        if (sending)
+                            return;
+                        sending = true;
+                    }
+                    while (true) {
+                        synchronized (this) {
+                            if (requested == 0 || sent.get() == size) {
+                                sending = false;
+                                break;
+                            }
+                            requested--;
+                        }
+                        LinnaeanRankClassification cl = new LinnaeanRankClassification();
+                        cl.setScientificName("Name " + sent.getAndIncrement());
+                        subscriber.onNext(cl);
+                    }
+                    if (sent.get() == size)
+                        subscriber.onComplete();
+                }
+
+                @Override
+                public void cancel() {
+                    cancelled = true;
+                }
+            });
+        }
+    }
+
+    /**
+     * Requests one name at a time, checking how far ahead the publisher has got
+     */
+    private static class SlowSubscriber implements Flow.Subscriber<MetricsResultDTO> {
+        private final NamePublisher publisher;
+        private final List<String> names = Collections.synchronizedList(new ArrayList<String>());
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile Throwable error;
+        private volatile int maxAhead;
+        private Flow.Subscription subscription;
+
+        SlowSubscriber(NamePublisher publisher) {
+            this.publisher = publisher;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(1);
+        }
+
+        @Override
+        public void onNext(MetricsResultDTO item) {
+            names.add(item.getResult().getLsid());
+            maxAhead = Math.max(maxAhead, publisher.sent.get() - names.size());
+            subscription.request(1);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+            done.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            done.countDown();
+        }
+    }
+
+    private SlowSubscriber run(boolean ordered, int size) throws Exception {
+        EchoSearcher searcher = new EchoSearcher();
+        MatchingProcessor processor = new MatchingProcessor(searcher, executor, 3, 5, ordered);
+        NamePublisher publisher = new NamePublisher(size);
+        SlowSubscriber subscriber = new SlowSubscriber(publisher);
+        processor.subscribe(subscriber);
+        publisher.subscribe(processor);
+        assertTrue(subscriber.done.await(30, TimeUnit.SECONDS));
+        assertNull(subscriber.error);
+        assertEquals(size, subscriber.names.size());
+        assertTrue(subscriber.maxAhead <= processor.getCapacity());
+        assertTrue(searcher.maxActive <= 3);
+        return subscriber;
+    }
+
+    @Test
+    public void testOrdered() throws Exception {
+        SlowSubscriber subscriber = run(true, 500);
+        for (int i = 0; i < 500; i++)
+            assertEquals("Name " + i, subscriber.names.get(i));
+    }
+
+    @Test
+    public void testUnordered() throws Exception {
+        SlowSubscriber subscriber = run(false, 500);
+        assertEquals(500, new HashSet<String>(subscriber.names).size());
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        run(true, 0);
+    }
+
+    @Test
+    public void testRejected() throws Exception {
+        //accepts the first two batches and then rejects the rest
+        final AtomicInteger accepted = new AtomicInteger();
+        Executor rejecting = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                if (accepted.incrementAndGet() > 2)
+                    throw new RejectedExecutionException();
+                executor.execute(command);
+            }
+        };
+        MatchingProcessor processor = new MatchingProcessor(new EchoSearcher(), rejecting, 3, 5, true);
+        NamePublisher publisher = new NamePublisher(500);
+        SlowSubscriber subscriber = new SlowSubscriber(publisher);
+        processor.subscribe(subscriber);
+        publisher.subscribe(processor);
+        assertTrue(subscriber.done.await(30, TimeUnit.SECONDS));
+        assertTrue(subscriber.error instanceof RejectedExecutionException);
+        assertTrue(publisher.cancelled);
+        assertEquals(3, accepted.get());
+    }
+}
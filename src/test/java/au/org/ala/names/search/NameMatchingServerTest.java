@@ -0,0 +1,178 @@
+package au.org.ala.names.search;
+
+import au.org.ala.names.model.ErrorType;
+import au.org.ala.names.model.LinnaeanRankClassification;
+import au.org.ala.names.model.MetricsResultDTO;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the parts of the matching service that do not need a name index.
+ */
+public class NameMatchingServerTest {
+    private NameMatchingServer server;
+
+    @Before
+    public void start() throws Exception {
+        server = new NameMatchingServer(null, new InetSocketAddress("localhost", 0), 2, 2);
+        server.setMaxRequestBytes(100);
+        server.start();
+    }
+
+    @After
+    public void stop() {
+        server.stop(0);
+    }
+
+    /**
+     * Holds every match until it is released.
+     */
+    private static class BlockingSearcher extends ALANameSearcher {
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public MetricsResultDTO searchForRecordMetrics(LinnaeanRankClassification cl, boolean recursiveMatching, boolean addGuids, boolean fuzzy) {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            MetricsResultDTO metrics = new MetricsResultDTO();
+            metrics.setErrors(new HashSet<ErrorType>());
+            return metrics;
+        }
+    }
+
+    private HttpURLConnection open(String path) throws Exception {
+        return (HttpURLConnection) new URL("http://localhost:" + server.getAddress().getPort() + path).openConnection();
+    }
+
+    private String body(HttpURLConnection connection) throws Exception {
+        InputStream is = connection.getResponseCode() < 400 ? connection.getInputStream() : connection.getErrorStream();
+        try {
+            return IOUtils.toString(is, "UTF-8");
+        } finally {
+            is.close();
+        }
+    }
+
+    @Test
+    public void testHealth() throws Exception {
+        HttpURLConnection connection = open("/health");
+        assertEquals(200, connection.getResponseCode());
+        assertEquals("{\"status\":\"UP\"}", body(connection));
+        connection = open("/ready");
+        assertEquals(503, connection.getResponseCode());
+        assertEquals("{\"ready\":false}", body(connection));
+        server.warmUp(Collections.<String>emptyList());
+        connection = open("/ready");
+        assertEquals(200, connection.getResponseCode());
+        assertEquals("{\"ready\":true}", body(connection));
+    }
+
+    @Test
+    public void testBadRequests() throws Exception {
+        HttpURLConnection connection = open("/match");
+        assertEquals(400, connection.getResponseCode());
+        assertTrue(body(connection).contains("Missing scientificName"));
+        connection = open("/lsid");
+        assertEquals(400, connection.getResponseCode());
+        body(connection);
+        connection = open("/match/batch");
+        assertEquals(405, connection.getResponseCode());
+        body(connection);
+    }
+
+    @Test
+    public void testRequestTooLarge() throws Exception {
+        HttpURLConnection connection = open("/match/batch");
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        OutputStream os = connection.getOutputStream();
+        for (int i = 0; i < 10; i++)
+            os.write("{\"scientificName\":\"Acacia\"}\n".getBytes("UTF-8"));
+        os.close();
+        assertEquals(413, connection.getResponseCode());
+        body(connection);
+    }
+
+    @Test
+    public void testBadLine() throws Exception {
+        HttpURLConnection connection = open("/match/batch");
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        OutputStream os = connection.getOutputStream();
+        os.write("{\"scientificName\":{}}\n\n".getBytes("UTF-8"));
+        os.close();
+        assertEquals(200, connection.getResponseCode());
+        assertTrue(body(connection).startsWith("{\"error\":\"Only flat objects are supported"));
+    }
+
+    @Test
+    public void testBusy() throws Exception {
+        server.stop(0);
+        BlockingSearcher searcher = new BlockingSearcher();
+        server = new NameMatchingServer(searcher, new InetSocketAddress("localhost", 0), 1, 1);
+        server.start();
+        ExecutorService clients = Executors.newFixedThreadPool(2);
+        try {
+            Callable<Integer> match = new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    HttpURLConnection connection = open("/match?scientificName=Acacia");
+                    int status = connection.getResponseCode();
+                    body(connection);
+                    return status;
+                }
+            };
+            Future<Integer> running = clients.submit(match);
+            assertTrue(searcher.started.await(10, TimeUnit.SECONDS));
+            Future<Integer> queued = clients.submit(match);
+            Field field = NameMatchingServer.class.getDeclaredField("executor");
+            field.setAccessible(true);
+            ThreadPoolExecutor executor = (ThreadPoolExecutor) field.get(server);
+            for (int i = 0; i < 1000 && executor.getQueue().isEmpty(); i++)
+                Thread.sleep(10);
+            HttpURLConnection connection = open("/match?scientificName=Acacia");
+            assertEquals(503, connection.getResponseCode());
+            assertEquals("1", connection.getHeaderField("Retry-After"));
+            body(connection);
+            //the checks are still answered
+            connection = open("/health");
+            assertEquals(200, connection.getResponseCode());
+            body(connection);
+            connection = open("/ready");
+            assertEquals(503, connection.getResponseCode());
+            assertEquals("{\"ready\":false}", body(connection));
+            searcher.release.countDown();
+            assertEquals(200, running.get(10, TimeUnit.SECONDS).intValue());
+            assertEquals(200, queued.get(10, TimeUnit.SECONDS).intValue());
+        } finally {
+            searcher.release.countDown();
+            clients.shutdown();
+        }
+    }
+}
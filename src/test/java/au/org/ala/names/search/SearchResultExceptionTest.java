@@ -0,0 +1,69 @@
+package au.org.ala.names.search;
+
+import au.org.ala.names.model.MetricsResultDTO;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that the exceptions handled by the searcher do not capture stack traces.
+ */
+public class SearchResultExceptionTest {
+
+    private ExcludedNameException createStackless() {
+        boolean previous = SearchResultException.setStackless(true);
+        try {
+            return new ExcludedNameException("excluded", null);
+        } finally {
+            SearchResultException.setStackless(previous);
+        }
+    }
+
+    @Test
+    public void testStackless() {
+        assertTrue(new HomonymException("homonym").getStackTrace().length > 0);
+        boolean previous = SearchResultException.setStackless(true);
+        assertFalse(previous);
+        SearchResultException e;
+        try {
+            e = new ExcludedNameException("excluded", null);
+            assertEquals(0, e.getStackTrace().length);
+        } finally {
+            SearchResultException.setStackless(previous);
+        }
+        assertTrue(new SPPException().getStackTrace().length > 0);
+        assertTrue(e.withStackTrace().getStackTrace().length > 0);
+    }
+
+    @Test
+    public void testWithStackTraceCopies() {
+        ExcludedNameException e = createStackless();
+        SearchResultException copy = e.withStackTrace();
+        assertNotSame(e, copy);
+        assertTrue(copy instanceof ExcludedNameException);
+        assertEquals(e.getMessage(), copy.getMessage());
+        assertEquals(e.getErrorType(), copy.getErrorType());
+        assertEquals(0, e.getStackTrace().length);
+        assertSame(copy, copy.withStackTrace());
+        HomonymException homonym = new HomonymException("homonym");
+        assertSame(homonym, homonym.withStackTrace());
+    }
+
+    @Test
+    public void testMetricsException() {
+        MetricsResultDTO shared = new MetricsResultDTO();
+        ExcludedNameException e = createStackless();
+        shared.setLastException(e);
+        MetricsResultDTO first = new MetricsResultDTO(shared);
+        MetricsResultDTO second = new MetricsResultDTO(shared);
+        SearchResultException firstException = first.getLastException();
+        assertTrue(firstException.getStackTrace().length > 0);
+        assertSame(firstException, first.getLastException());
+        assertNotSame(firstException, second.getLastException());
+        assertEquals(0, e.getStackTrace().length);
+    }
+}
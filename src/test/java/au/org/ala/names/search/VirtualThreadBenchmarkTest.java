@@ -0,0 +1,94 @@
+package au.org.ala.names.search;
+
+import au.org.ala.names.model.NameSearchResult;
+import au.org.ala.names.util.MatchExecutors;
+import org.apache.commons.io.LineIterator;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares matching many concurrent names on a fixed pool of platform threads with one virtual thread per match.
+ * The virtual thread runs are skipped when the JVM does not support them.
+ * <p/>
+ * The benchmark only runs when asked for, with mvn test -Dbenchmark=true -Dtest=VirtualThreadBenchmarkTest
+ */
+public class VirtualThreadBenchmarkTest {
+
+    private static final int[] CONCURRENCY = {1000, 5000, 10000};
+
+    private static ALANameSearcher searcher;
+
+    @org.junit.BeforeClass
+    public static void init() {
+        Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+        try {
+            searcher = new ALANameSearcher("/data/lucene/namematching");
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Test
+    public void testPlatformAndVirtualThreads() throws Exception {
+        List<String> names = loadNames("biocache_animal_col.txt");
+        int platform = Runtime.getRuntime().availableProcessors() * 2;
+        //warm up the caches before timing
+        match(names, CONCURRENCY[0], MatchExecutors.newExecutor(platform, false), new ArrayList<String>());
+        for (int concurrency : CONCURRENCY) {
+            List<String> results = new ArrayList<String>();
+            long time = match(names, concurrency, MatchExecutors.newExecutor(platform, false), results);
+            System.out.println(concurrency + " concurrent matches on " + platform + " platform threads: " + time / concurrency + "ns per name");
+            if (!MatchExecutors.isVirtualThreadsAvailable()) {
+                System.out.println("Virtual threads are not available, skipping");
+                continue;
+            }
+            List<String> virtual = new ArrayList<String>();
+            time = match(names, concurrency, MatchExecutors.newVirtualThreadExecutor(), virtual);
+            System.out.println(concurrency + " concurrent matches on virtual threads: " + time / concurrency + "ns per name");
+            assertEquals(results, virtual);
+        }
+    }
+
+    private List<String> loadNames(String filename) throws Exception {
+        List<String> names = new ArrayList<String>();
+        LineIterator lines = new LineIterator(new BufferedReader(new java.io.FileReader(new java.io.File(getClass().getResource(filename).toURI()))));
+        while (lines.hasNext())
+            names.add(lines.next());
+        return names;
+    }
+
+    private long match(List<String> names, int concurrency, ExecutorService executor, List<String> results) throws Exception {
+        long start = System.nanoTime();
+        List<Future<String>> futures = new ArrayList<Future<String>>(concurrency);
+        try {
+            for (int i = 0; i < concurrency; i++) {
+                final String name = names.get(i % names.size());
+                futures.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() {
+                        try {
+                            NameSearchResult nsr = searcher.searchForRecord(name, null);
+                            return nsr == null ? null : nsr.getLsid() + " " + nsr.getMatchType();
+                        } catch (SearchResultException e) {
+                            return e.getClass().getSimpleName();
+                        }
+                    }
+                }));
+            }
+            for (Future<String> future : futures)
+                results.add(future.get());
+            return System.nanoTime() - start;
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
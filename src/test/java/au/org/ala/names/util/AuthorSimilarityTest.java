@@ -0,0 +1,46 @@
+package au.org.ala.names.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests the indexed author keys.
+ */
+public class AuthorSimilarityTest {
+
+    @Test
+    public void testAuthorKey() {
+        assertEquals("benth", AuthorSimilarity.authorKey("Benth."));
+        assertEquals("benth", AuthorSimilarity.authorKey("Sol. ex Benth."));
+        assertEquals("benth", AuthorSimilarity.authorKey("Benth. in DC."));
+        assertEquals("benth", AuthorSimilarity.authorKey("Benth., 1842"));
+        assertEquals("lsm", AuthorSimilarity.authorKey("(L.) Sm."));
+        assertEquals("lsm", AuthorSimilarity.authorKey("(L.)Sm."));
+        assertEquals("hookfthomson", AuthorSimilarity.authorKey("Hook.f. & Thomson"));
+        assertEquals("hookfthomson", AuthorSimilarity.authorKey("Hook. f. et Thomson"));
+        assertEquals("mullarg", AuthorSimilarity.authorKey("Müll.Arg."));
+        assertEquals("grayhooker", AuthorSimilarity.authorKey("(Gray, 1831) Hooker, 1850"));
+        assertEquals("benthbenth", AuthorSimilarity.authorKey("(F.Muell. ex Benth.) Benth."));
+        assertNull(AuthorSimilarity.authorKey("1850"));
+        assertNull(AuthorSimilarity.authorKey(null));
+    }
+
+    @Test
+    public void testAuthorYear() {
+        assertEquals("1842", AuthorSimilarity.authorYear("Benth., 1842"));
+        assertEquals("1831", AuthorSimilarity.authorYear("(Gray, 1831) Hooker, 1850"));
+        assertNull(AuthorSimilarity.authorYear("Benth."));
+        assertNull(AuthorSimilarity.authorYear("Smith 123"));
+    }
+
+    @Test
+    public void testGetKey() {
+        AuthorSimilarity similarity = new AuthorSimilarity(2);
+        assertEquals("lsm", similarity.getKey("(L.) Sm.")[0]);
+        assertEquals("benth", similarity.getKey("Benth., 1842")[0]);
+        assertEquals("1842", similarity.getKey("Benth., 1842")[1]);
+        assertEquals("lsm", similarity.getKey("(L.) Sm.")[0]);
+    }
+}
@@ -0,0 +1,84 @@
+package au.org.ala.names.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests the bounded edit distance and the fuzzy dictionary search against brute force calculations.
+ */
+public class FuzzyDictionaryTest {
+
+    /**
+     * The full optimal string alignment distance
+     */
+    private int osa(String a, String b) {
+        int[][] d = new int[a.length() + 1][b.length() + 1];
+        for (int i = 0; i <= a.length(); i++)
+            d[i][0] = i;
+        for (int j = 0; j <= b.length(); j++)
+            d[0][j] = j;
+        for (int i = 1; i <= a.length(); i++) {
+            for (int j = 1; j <= b.length(); j++) {
+                int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                d[i][j] = Math.min(Math.min(d[i - 1][j] + 1, d[i][j - 1] + 1), d[i - 1][j - 1] + cost);
+                if (i > 1 && j > 1 && a.charAt(i - 1) == b.charAt(j - 2) && a.charAt(i - 2) == b.charAt(j - 1))
+                    d[i][j] = Math.min(d[i][j], d[i - 2][j - 2] + 1);
+            }
+        }
+        return d[a.length()][b.length()];
+    }
+
+    private String randomWord(Random random, int maxLength) {
+        int length = 1 + random.nextInt(maxLength);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < length; i++)
+            sb.append((char) ('a' + random.nextInt(6)));
+        return sb.toString();
+    }
+
+    @Test
+    public void testDistance() {
+        assertEquals(0, DamerauLevenshtein.distance("acacia", "acacia", 2));
+        assertEquals(1, DamerauLevenshtein.distance("acacia", "acaica", 2));
+        assertEquals(1, DamerauLevenshtein.distance("acacia", "accacia", 2));
+        assertEquals(1, DamerauLevenshtein.distance("acacia", "acaca", 2));
+        assertEquals(2, DamerauLevenshtein.distance("myrtacaea", "myrtaceae", 2));
+        assertEquals(3, DamerauLevenshtein.distance("eucalyptus", "acacia", 2));
+        Random random = new Random(1);
+        for (int i = 0; i < 20000; i++) {
+            String a = randomWord(random, 8);
+            String b = randomWord(random, 8);
+            int max = random.nextInt(4);
+            assertEquals(a + " " + b, Math.min(osa(a, b), max + 1), DamerauLevenshtein.distance(a, b, max));
+        }
+    }
+
+    @Test
+    public void testSearch() {
+        Random random = new Random(2);
+        Set<String> vocabulary = new HashSet<String>();
+        for (int i = 0; i < 5000; i++)
+            vocabulary.add(randomWord(random, 10));
+        FuzzyDictionary dictionary = new FuzzyDictionary(vocabulary);
+        for (int i = 0; i < 200; i++) {
+            String word = randomWord(random, 10);
+            int max = random.nextInt(3);
+            List<String> expected = new ArrayList<String>();
+            for (String candidate : vocabulary)
+                if (osa(word, candidate) <= max)
+                    expected.add(candidate);
+            List<String> found = new ArrayList<String>();
+            for (FuzzyDictionary.Match match : dictionary.search(word, max))
+                found.add(match.getWord());
+            assertEquals(word, new HashSet<String>(expected), new HashSet<String>(found));
+            assertEquals(expected.size(), found.size());
+        }
+    }
+}
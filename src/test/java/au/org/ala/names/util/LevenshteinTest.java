@@ -0,0 +1,73 @@
+package au.org.ala.names.util;
+
+import org.apache.commons.lang.StringUtils;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests the bit-parallel distance and the author normalisation against the implementations they replace.
+ */
+public class LevenshteinTest {
+
+    private String randomWord(Random random, int maxLength, String alphabet) {
+        int length = random.nextInt(maxLength + 1);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < length; i++)
+            sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        return sb.toString();
+    }
+
+    @Test
+    public void testDistance() {
+        assertEquals(0, Levenshtein.distance("", "", 2));
+        assertEquals(2, Levenshtein.distance("", "ab", 2));
+        assertEquals(3, Levenshtein.distance("", "abc", 2));
+        assertEquals(2, Levenshtein.distance("acacia", "acaica", 2));
+        assertEquals(1, Levenshtein.distance("Müller", "Muller", 2));
+        Random random = new Random(1);
+        String[] alphabets = {"abc", "abcdefgh", "aéüøb"};
+        for (int i = 0; i < 50000; i++) {
+            String alphabet = alphabets[i % alphabets.length];
+            int length = i % 10 == 0 ? 150 : 12;
+            String a = randomWord(random, length, alphabet);
+            String b = randomWord(random, length, alphabet);
+            int max = random.nextInt(i % 10 == 0 ? 200 : 6);
+            assertEquals(a + " " + b, Math.min(StringUtils.getLevenshteinDistance(a, b), max + 1), Levenshtein.distance(a, b, max));
+        }
+    }
+
+    @Test
+    public void testNormaliseAuthor() {
+        String[] authors = {"(L.) Sm.", "F.Muell. ex Benth.", "Müll.Arg.", "de Candolle", "Hook. f. & Thomson",
+                "R.Br.", "Wall. [ex G.Don]", "Sm.—Jones", "«A»", "", "Smith_Jones", "Lindl. ",
+                "A𐄀B"};
+        for (String author : authors)
+            assertEquals(author, author.replaceAll("\\p{P}", "").replaceAll("\\p{Z}", ""), AuthorSimilarity.normalise(author));
+    }
+
+    @Test
+    public void testSpeed() {
+        Random random = new Random(2);
+        String[] a = new String[10000];
+        String[] b = new String[a.length];
+        for (int i = 0; i < a.length; i++) {
+            a[i] = randomWord(random, 20, "abcdefghijklmnopqrstuvwxyz");
+            b[i] = randomWord(random, 20, "abcdefghijklmnopqrstuvwxyz");
+        }
+        long legacy = 0, current = 0;
+        for (int r = 0; r < 6; r++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < a.length; i++)
+                StringUtils.getLevenshteinDistance(a[i], b[i]);
+            legacy = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < a.length; i++)
+                Levenshtein.distance(a[i], b[i], 3);
+            current = System.nanoTime() - start;
+        }
+        System.out.println("Commons lang: " + legacy / a.length + "ns per pair. Bit-parallel: " + current / a.length + "ns per pair");
+    }
+}
@@ -0,0 +1,91 @@
+package au.org.ala.names.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the object pool and the executors used for matching.
+ */
+public class ObjectPoolTest {
+
+    private static class CountingPool extends ObjectPool<StringBuilder> {
+        private final AtomicInteger created = new AtomicInteger();
+
+        CountingPool(int maxIdle) {
+            super(maxIdle);
+        }
+
+        @Override
+        protected StringBuilder create() {
+            created.incrementAndGet();
+            return new StringBuilder();
+        }
+    }
+
+    @Test
+    public void testReuse() {
+        CountingPool pool = new CountingPool(2);
+        StringBuilder a = pool.borrow();
+        StringBuilder b = pool.borrow();
+        assertNotSame(a, b);
+        pool.release(a);
+        assertEquals(1, pool.getIdle());
+        assertSame(a, pool.borrow());
+        assertEquals(0, pool.getIdle());
+        assertEquals(2, pool.created.get());
+    }
+
+    @Test
+    public void testMaxIdle() {
+        CountingPool pool = new CountingPool(2);
+        List<StringBuilder> borrowed = new ArrayList<StringBuilder>();
+        for (int i = 0; i < 5; i++)
+            borrowed.add(pool.borrow());
+        for (StringBuilder sb : borrowed)
+            pool.release(sb);
+        assertEquals(2, pool.getIdle());
+    }
+
+    @Test
+    public void testConcurrentUse() throws Exception {
+        final CountingPool pool = new CountingPool(8);
+        final List<StringBuilder> inUse = Collections.synchronizedList(new ArrayList<StringBuilder>());
+        ExecutorService executor = MatchExecutors.newExecutor(8, true);
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int i = 0; i < 1000; i++) {
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        StringBuilder sb = pool.borrow();
+                        //no two tasks may hold the same object
+                        assertTrue(!inUse.contains(sb));
+                        inUse.add(sb);
+                        sb.setLength(0);
+                        sb.append("x");
+                        inUse.remove(sb);
+                        pool.release(sb);
+                    }
+                }));
+            }
+            for (Future<?> future : futures)
+                future.get();
+        } finally {
+            executor.shutdown();
+        }
+        assertTrue(pool.getIdle() <= 8);
+        System.out.println("Created " + pool.created.get() + " objects for 1000 tasks, virtual threads "
+                + MatchExecutors.isVirtualThreadsAvailable());
+    }
+}
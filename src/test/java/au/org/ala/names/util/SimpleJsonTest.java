@@ -0,0 +1,50 @@
+package au.org.ala.names.util;
+
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the flat JSON object parsing and quoting.
+ */
+public class SimpleJsonTest {
+
+    @Test
+    public void testParse() {
+        Map<String, String> values = SimpleJson.parseObject(" {\"scientificName\": \"Acacia \\\"dealbata\\\"\", \"kingdom\":null, \"fuzzy\" : true, \"max\": 10, \"x\":\"\\u00e6\\n\"} ");
+        assertEquals("Acacia \"dealbata\"", values.get("scientificName"));
+        assertTrue(values.containsKey("kingdom"));
+        assertNull(values.get("kingdom"));
+        assertEquals("true", values.get("fuzzy"));
+        assertEquals("10", values.get("max"));
+        assertEquals("æ\n", values.get("x"));
+        assertEquals(0, SimpleJson.parseObject("{}").size());
+    }
+
+    @Test
+    public void testRoundTrip() {
+        String value = "a\"b\\c\td\u0001e/ ";
+        StringBuilder sb = new StringBuilder("{\"v\":");
+        SimpleJson.quote(sb, value).append('}');
+        assertEquals(value, SimpleJson.parseObject(sb.toString()).get("v"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNested() {
+        SimpleJson.parseObject("{\"a\":{\"b\":1}}");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTrailing() {
+        SimpleJson.parseObject("{\"a\":1} x");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnterminated() {
+        SimpleJson.parseObject("{\"a\":\"b");
+    }
+}
@@ -0,0 +1,130 @@
+package au.org.ala.names.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests that concurrent calculations of the same key are coalesced.
+ */
+public class SingleFlightTest {
+
+    @Test
+    public void testCoalesce() throws Exception {
+        final SingleFlight<String, String> flight = new SingleFlight<String, String>();
+        final AtomicInteger calculations = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Callable<String> slow = new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                calculations.incrementAndGet();
+                started.countDown();
+                release.await();
+                return "Homo sapiens";
+            }
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<String>> results = new ArrayList<Future<String>>();
+        results.add(executor.submit(new Callable<String>() {
+            @Override
+            public String call() {
+                return flight.get("homo sapiens", slow);
+            }
+        }));
+        started.await();
+        for (int i = 0; i < 7; i++) {
+            results.add(executor.submit(new Callable<String>() {
+                @Override
+                public String call() {
+                    return flight.get("homo sapiens", slow);
+                }
+            }));
+        }
+        //give the followers time to join the calculation in progress
+        Thread.sleep(200);
+        release.countDown();
+        for (Future<String> result : results)
+            assertEquals("Homo sapiens", result.get());
+        executor.shutdown();
+        executor.awaitTermination(5, TimeUnit.SECONDS);
+        assertEquals(1, calculations.get());
+        assertEquals(0, flight.size());
+        //nothing is kept once the calculation has finished
+        flight.get("homo sapiens", slow);
+        assertEquals(2, calculations.get());
+    }
+
+    @Test
+    public void testException() {
+        SingleFlight<String, String> flight = new SingleFlight<String, String>();
+        try {
+            flight.get("key", new Callable<String>() {
+                @Override
+                public String call() {
+                    throw new IllegalStateException("failed");
+                }
+            });
+            fail("Expected the exception to be rethrown");
+        } catch (IllegalStateException e) {
+            assertEquals("failed", e.getMessage());
+        }
+        assertEquals(0, flight.size());
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        final SingleFlight<String, String> flight = new SingleFlight<String, String>();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<String> leader = executor.submit(new Callable<String>() {
+            @Override
+            public String call() {
+                return flight.get("homo sapiens", new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        started.countDown();
+                        release.await();
+                        return "Homo sapiens";
+                    }
+                });
+            }
+        });
+        started.await();
+        try {
+            flight.get("homo sapiens", new Callable<String>() {
+                @Override
+                public String call() {
+                    return "calculated";
+                }
+            }, 50);
+            fail("Expected the wait to time out");
+        } catch (TimeoutException e) {
+            //the calculation is still in progress
+        }
+        release.countDown();
+        assertEquals("Homo sapiens", leader.get());
+        executor.shutdown();
+        //a caller that does the calculation itself is not timed out
+        assertEquals("calculated", flight.get("homo sapiens", new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                Thread.sleep(100);
+                return "calculated";
+            }
+        }, 10));
+    }
+}
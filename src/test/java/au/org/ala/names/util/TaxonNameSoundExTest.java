@@ -0,0 +1,179 @@
+package au.org.ala.names.util;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that the sound expressions are the same as those produced by the original regular expression
+ * implementation (copied below) for every name in the test name lists.
+ */
+public class TaxonNameSoundExTest {
+
+    private static final String[] NAME_LISTS = {"ba_names.txt", "bio_aust_birds.txt", "biocache_animal_col.txt",
+            "birds.txt", "caab_fish.txt", "spatial-distribution-names.txt", "iconic_species_list.csv"};
+
+    private static final String[] EXTRA = {"Ætheria", "æthiops", "Mcmillan", "Xanthorrhoea", "X", "Cnemidophorus",
+            "Ctenophorus", "Czekanowskia", "Djeragia", "Eastia", "Euphorbia", "Gnathia", "Knightia", "Mnium", "Oenanthe",
+            "Quercus", "Psittacus", "Pterostylis", "Tsuga", "Wrightia", "straße", "ﬁcus", "Ñandu", "Çedrus", "Øresund",
+            "<i>Acacia</i> dealbata", "A <i>B", "a <> b", "a <>> b", "a <\nb> c", "Smith &amp; Jones", "A &amp; &amp; B",
+            "A <b>&amp; C", "  spaced  ", "...", "<i></i>", "aaabbbccc", "Hhhh", "sciurus", "pictis", "dentatum",
+            "mas", "is", "hexagonus", "1234", "a_b__c", "Mc", "Aeae"};
+
+    private List<String> loadWords() throws Exception {
+        List<String> words = new ArrayList<String>(Arrays.asList(EXTRA));
+        File dir = new File("src/test/java/au/org/ala/names/search");
+        for (String list : NAME_LISTS) {
+            for (String line : FileUtils.readLines(new File(dir, list), "UTF-8")) {
+                words.add(line);
+                for (String word : StringUtils.split(line, " ,\t"))
+                    words.add(word);
+            }
+        }
+        return words;
+    }
+
+    @Test
+    public void testSameAsRegularExpressions() throws Exception {
+        List<String> words = loadWords();
+        for (String word : words) {
+            assertEquals(word, legacyNormalize(word), TaxonNameSoundEx.normalize(word));
+            assertEquals(word, legacyTreatWord(word, "genus"), TaxonNameSoundEx.treatWord(word, "genus"));
+            assertEquals(word, legacyTreatWord(word, "species"), TaxonNameSoundEx.treatWord(word, "species"));
+        }
+        System.out.println("Compared " + words.size() + " words");
+    }
+
+    @Test
+    public void testSpeed() throws Exception {
+        List<String> words = loadWords();
+        //warm up both implementations
+        for (int i = 0; i < 5; i++) {
+            timeLegacy(words);
+            timeCurrent(words);
+        }
+        long legacy = timeLegacy(words);
+        long current = timeCurrent(words);
+        System.out.println("Regular expressions: " + legacy / words.size() + "ns per word. Char array: " + current / words.size()
+                + "ns per word. Speed up " + (current == 0 ? "-" : String.format("%.1f", (double) legacy / current)) + "x");
+    }
+
+    private long timeLegacy(List<String> words) {
+        long start = System.nanoTime();
+        for (String word : words)
+            legacyTreatWord(word, "species");
+        return System.nanoTime() - start;
+    }
+
+    private long timeCurrent(List<String> words) {
+        long start = System.nanoTime();
+        for (String word : words)
+            TaxonNameSoundEx.treatWord(word, "species");
+        return System.nanoTime() - start;
+    }
+
+    // The original implementation
+
+    private static String translate(String source, String transSource, String transTarget) {
+        String result = source;
+        while (transSource.length() > transTarget.length()) {
+            transTarget += " ";
+        }
+        for (int i = 0; i < transSource.length(); i++) {
+            result = result.replace(transSource.charAt(i), transTarget.charAt(i));
+        }
+        return result;
+    }
+
+    private static String legacyNormalize(String str) {
+        if (str == null) return null;
+        String output = str.toUpperCase();
+        output = output.replace(" &AMP; ", " & ");
+        output = output.replaceAll("\\<.+?\\>", "");
+        output = translate(output, "ÁÉÍÓÚÀÈÌÒÙ" +
+                "ÂÊÎÔÛÄËÏÖÜÃÑÕ" +
+                "ÅÇØ", "AEIOUAEIOUAEIOUAEIOUANOACO");
+        output = output.replace("Æ", "AE");
+        output = output.replaceAll("[^a-zA-Z .]", "");
+        output = StringUtils.trimToNull(output);
+        return output;
+    }
+
+    private static String legacyTreatWord(String str2, String wordType) {
+        char startLetter;
+        String temp = legacyNormalize(str2);
+        if (StringUtils.isNotEmpty(temp)) {
+            if (temp.startsWith("AE")) {
+                temp = "E" + temp.substring(2);
+            } else if (temp.startsWith("CN")) {
+                temp = "N" + temp.substring(2);
+            } else if (temp.startsWith("CT")) {
+                temp = "T" + temp.substring(2);
+            } else if (temp.startsWith("CZ")) {
+                temp = "C" + temp.substring(2);
+            } else if (temp.startsWith("DJ")) {
+                temp = "J" + temp.substring(2);
+            } else if (temp.startsWith("EA")) {
+                temp = "E" + temp.substring(2);
+            } else if (temp.startsWith("EU")) {
+                temp = "U" + temp.substring(2);
+            } else if (temp.startsWith("GN")) {
+                temp = "N" + temp.substring(2);
+            } else if (temp.startsWith("KN")) {
+                temp = "N" + temp.substring(2);
+            } else if (temp.startsWith("MC")) {
+                temp = "MAC" + temp.substring(2);
+            } else if (temp.startsWith("MN")) {
+                temp = "N" + temp.substring(2);
+            } else if (temp.startsWith("OE")) {
+                temp = "E" + temp.substring(2);
+            } else if (temp.startsWith("QU")) {
+                temp = "Q" + temp.substring(2);
+            } else if (temp.startsWith("PS")) {
+                temp = "S" + temp.substring(2);
+            } else if (temp.startsWith("PT")) {
+                temp = "T" + temp.substring(2);
+            } else if (temp.startsWith("TS")) {
+                temp = "S" + temp.substring(2);
+            } else if (temp.startsWith("WR")) {
+                temp = "R" + temp.substring(2);
+            } else if (temp.startsWith("X")) {
+                //the original threw an exception for a single X
+                temp = "Z" + (temp.length() > 1 ? temp.substring(2) : "");
+            }
+            startLetter = temp.charAt(0);
+            temp = temp.substring(1);
+            temp = temp.replaceAll("AE", "I");
+            temp = temp.replaceAll("IA", "A");
+            temp = temp.replaceAll("OE", "I");
+            temp = temp.replaceAll("OI", "A");
+            temp = temp.replaceAll("SC", "S");
+            temp = temp.replaceAll("E", "I");
+            temp = temp.replaceAll("O", "A");
+            temp = temp.replaceAll("U", "I");
+            temp = temp.replaceAll("Y", "I");
+            temp = temp.replaceAll("K", "C");
+            temp = temp.replaceAll("Z", "C");
+            temp = temp.replaceAll("H", "");
+            temp = startLetter + temp;
+            temp = temp.replaceAll("(\\w)\\1+", "$1");
+            if (wordType.equals("species")) {
+                if (temp.endsWith("IS")) {
+                    temp = temp.substring(0, temp.length() - 2) + "A";
+                } else if (temp.endsWith("IM")) {
+                    temp = temp.substring(0, temp.length() - 2) + "A";
+                } else if (temp.endsWith("AS")) {
+                    temp = temp.substring(0, temp.length() - 2) + "A";
+                }
+            }
+        }
+        return temp;
+    }
+}